@@ -210,6 +210,15 @@ public class BuildingManager {
         return currentBuilding;
     }
 
+    /**
+     * A get method used to retrieve the floor the user is currently on.
+     *
+     * @return The current floor of the user.
+     */
+    public Floors getCurrentFloor(){
+        return currentFloor;
+    }
+
     /**
      * A set method that can be used incase the map is not available when initialising the building manager.
      * @param recording_map The map to add ground overlays on
@@ -111,6 +111,20 @@ public enum Buildings {
         return floorPlanID;
     }
 
+    /**
+     * A get method used to retrieve the asset path of the wall map for a specific floor. Wall maps are stored in the assets as
+     * walls/{building}_{floor}.pmw, in the format described in {@link WallMap}. Floors without a wall map file are simply unconstrained.
+     *
+     * @param floor The floor which wall map is to be retrieved.
+     * @return The asset path of the wall map, or null if the user is outdoors.
+     */
+    public String getWallMapAsset(Floors floor){
+        if (this == Buildings.UNSPECIFIED || floor == null) {
+            return null;
+        }
+        return "walls/" + this.name().toLowerCase() + "_" + floor.name().toLowerCase() + ".pmw";
+    }
+
     /**
      * Converts the integer value of the floor to the corresponding position in the String array of available floor plans.
      * Only needs to be modified for buildings with floors lower than ground. Ground is assumed to be 0, but lower ground would be -1.
@@ -0,0 +1,289 @@
+package com.openpositioning.PositionMe.Buildings;
+
+import android.content.res.AssetManager;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A vector model of the walls and obstacles of a single floor, used to stop particles of the
+ * {@link com.openpositioning.PositionMe.FusionAlgorithms.ParticleFilter} from walking through walls.
+ *
+ * Walls are stored as straight segments in East and North meters. To make the check of whether a
+ * motion segment crosses a wall close to O(1) the segments are indexed in a uniform grid: every
+ * cell lists the walls whose bounding box overlaps it, packed into a single array. A query only
+ * tests the walls in the few cells covered by the short motion segment of one step.
+ *
+ * Wall maps are loaded from a compact big-endian binary file, one per building floor, see
+ * {@link Buildings#getWallMapAsset(Floors)}:
+ * <pre>
+ *     int    magic, the ASCII characters "PMWL"
+ *     short  format version, currently 1
+ *     int    number of wall segments n
+ *     n x    float startEast, float startNorth, float endEast, float endNorth
+ * </pre>
+ * Coordinates are in meters East and North of the south west corner of the building bounds, so they
+ * are independent of where a recording starts. {@link #shifted(double, double)} moves a map into
+ * the local frame of a filter.
+ *
+ * Instances are immutable, so a single map can be queried from several threads at once.
+ *
+ * @see Buildings for the static building information.
+ */
+public class WallMap {
+    // File format identifiers
+    private static final int MAGIC = 0x504D574C;
+    private static final short VERSION = 1;
+    // Side of a grid cell in meters, in the order of one step so a query only covers a few cells
+    private static final double CELL_SIZE = 2.0;
+
+    // Wall segments, index i across the arrays describes wall i
+    private final double[] startEast;
+    private final double[] startNorth;
+    private final double[] endEast;
+    private final double[] endNorth;
+
+    // Uniform grid index
+    private final double gridOriginEast;
+    private final double gridOriginNorth;
+    private final int columns;
+    private final int rows;
+    // Walls of cell c are cellWalls[cellStart[c]] to cellWalls[cellStart[c + 1] - 1]
+    private final int[] cellStart;
+    private final int[] cellWalls;
+
+    /**
+     * Creates a wall map from the given segments and builds the grid index.
+     *
+     * @param startEast The East coordinate of the start of every wall, in meters.
+     * @param startNorth The North coordinate of the start of every wall, in meters.
+     * @param endEast The East coordinate of the end of every wall, in meters.
+     * @param endNorth The North coordinate of the end of every wall, in meters.
+     */
+    public WallMap(double[] startEast, double[] startNorth, double[] endEast, double[] endNorth) {
+        int count = startEast.length;
+        if (startNorth.length != count || endEast.length != count || endNorth.length != count) {
+            throw new IllegalArgumentException("Wall coordinate arrays must have the same length");
+        }
+        this.startEast = startEast;
+        this.startNorth = startNorth;
+        this.endEast = endEast;
+        this.endNorth = endNorth;
+
+        // Find the extent of the walls to size the grid
+        double minEast = Double.MAX_VALUE, minNorth = Double.MAX_VALUE;
+        double maxEast = -Double.MAX_VALUE, maxNorth = -Double.MAX_VALUE;
+        for (int i = 0; i < count; i++) {
+            minEast = Math.min(minEast, Math.min(startEast[i], endEast[i]));
+            maxEast = Math.max(maxEast, Math.max(startEast[i], endEast[i]));
+            minNorth = Math.min(minNorth, Math.min(startNorth[i], endNorth[i]));
+            maxNorth = Math.max(maxNorth, Math.max(startNorth[i], endNorth[i]));
+        }
+        if (count == 0) {
+            minEast = minNorth = maxEast = maxNorth = 0;
+        }
+        this.gridOriginEast = minEast;
+        this.gridOriginNorth = minNorth;
+        this.columns = (int) Math.floor((maxEast - minEast) / CELL_SIZE) + 1;
+        this.rows = (int) Math.floor((maxNorth - minNorth) / CELL_SIZE) + 1;
+
+        // First pass counts the walls per cell, second pass fills the packed array
+        int numCells = columns * rows;
+        this.cellStart = new int[numCells + 1];
+        for (int i = 0; i < count; i++) {
+            int c0 = column(Math.min(startEast[i], endEast[i])), c1 = column(Math.max(startEast[i], endEast[i]));
+            int r0 = row(Math.min(startNorth[i], endNorth[i])), r1 = row(Math.max(startNorth[i], endNorth[i]));
+            for (int r = r0; r <= r1; r++) {
+                for (int c = c0; c <= c1; c++) {
+                    cellStart[r * columns + c + 1]++;
+                }
+            }
+        }
+        for (int c = 0; c < numCells; c++) {
+            cellStart[c + 1] += cellStart[c];
+        }
+        this.cellWalls = new int[cellStart[numCells]];
+        int[] fill = new int[numCells];
+        for (int i = 0; i < count; i++) {
+            int c0 = column(Math.min(startEast[i], endEast[i])), c1 = column(Math.max(startEast[i], endEast[i]));
+            int r0 = row(Math.min(startNorth[i], endNorth[i])), r1 = row(Math.max(startNorth[i], endNorth[i]));
+            for (int r = r0; r <= r1; r++) {
+                for (int c = c0; c <= c1; c++) {
+                    int cell = r * columns + c;
+                    cellWalls[cellStart[cell] + fill[cell]++] = i;
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads a wall map in the binary format described in the class documentation.
+     *
+     * @param in The stream to read from, it is not closed by this method.
+     * @return The wall map read from the stream.
+     * @throws IOException If the stream cannot be read or is not a wall map.
+     */
+    public static WallMap read(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(new BufferedInputStream(in));
+        if (data.readInt() != MAGIC) {
+            throw new IOException("Not a wall map file");
+        }
+        short version = data.readShort();
+        if (version != VERSION) {
+            throw new IOException("Unsupported wall map version " + version);
+        }
+        int count = data.readInt();
+        if (count < 0) {
+            throw new IOException("Invalid wall count " + count);
+        }
+        double[] startEast = new double[count];
+        double[] startNorth = new double[count];
+        double[] endEast = new double[count];
+        double[] endNorth = new double[count];
+        for (int i = 0; i < count; i++) {
+            startEast[i] = data.readFloat();
+            startNorth[i] = data.readFloat();
+            endEast[i] = data.readFloat();
+            endNorth[i] = data.readFloat();
+        }
+        return new WallMap(startEast, startNorth, endEast, endNorth);
+    }
+
+    /**
+     * Loads a wall map from the application assets.
+     *
+     * @param assets The asset manager of the application.
+     * @param path The path of the wall map within the assets.
+     * @return The wall map, or null if the floor has no wall map or it could not be read.
+     */
+    public static WallMap loadAsset(AssetManager assets, String path) {
+        try (InputStream in = assets.open(path)) {
+            return read(in);
+        } catch (FileNotFoundException e) {
+            Log.d("WALL_MAP", "No wall map available at " + path);
+        } catch (IOException e) {
+            Log.e("WALL_MAP", "Failed to read wall map " + path + ": " + e.getMessage());
+        }
+        return null;
+    }
+
+    /**
+     * Creates a copy of this map with every wall moved by the given offset, used to bring the map
+     * into the local East North frame of a filter.
+     *
+     * @param offsetEast The offset to add to every East coordinate, in meters.
+     * @param offsetNorth The offset to add to every North coordinate, in meters.
+     * @return The shifted wall map.
+     */
+    public WallMap shifted(double offsetEast, double offsetNorth) {
+        int count = startEast.length;
+        double[] newStartEast = new double[count];
+        double[] newStartNorth = new double[count];
+        double[] newEndEast = new double[count];
+        double[] newEndNorth = new double[count];
+        for (int i = 0; i < count; i++) {
+            newStartEast[i] = startEast[i] + offsetEast;
+            newStartNorth[i] = startNorth[i] + offsetNorth;
+            newEndEast[i] = endEast[i] + offsetEast;
+            newEndNorth[i] = endNorth[i] + offsetNorth;
+        }
+        return new WallMap(newStartEast, newStartNorth, newEndEast, newEndNorth);
+    }
+
+    /**
+     * Checks whether moving in a straight line between two points crosses any wall. Only the walls
+     * indexed in the grid cells covered by the motion are tested.
+     *
+     * @param fromEast The East coordinate of the start of the motion, in meters.
+     * @param fromNorth The North coordinate of the start of the motion, in meters.
+     * @param toEast The East coordinate of the end of the motion, in meters.
+     * @param toNorth The North coordinate of the end of the motion, in meters.
+     * @return true if the motion crosses a wall, false otherwise.
+     */
+    public boolean crossesWall(double fromEast, double fromNorth, double toEast, double toNorth) {
+        double minEast = Math.min(fromEast, toEast), maxEast = Math.max(fromEast, toEast);
+        double minNorth = Math.min(fromNorth, toNorth), maxNorth = Math.max(fromNorth, toNorth);
+        // Motion entirely outside the indexed area cannot cross a wall
+        if (maxEast < gridOriginEast || maxNorth < gridOriginNorth
+                || minEast > gridOriginEast + columns * CELL_SIZE
+                || minNorth > gridOriginNorth + rows * CELL_SIZE) {
+            return false;
+        }
+
+        int c0 = column(minEast), c1 = column(maxEast);
+        int r0 = row(minNorth), r1 = row(maxNorth);
+        for (int r = r0; r <= r1; r++) {
+            for (int c = c0; c <= c1; c++) {
+                int cell = r * columns + c;
+                for (int k = cellStart[cell]; k < cellStart[cell + 1]; k++) {
+                    int wall = cellWalls[k];
+                    if (segmentsIntersect(fromEast, fromNorth, toEast, toNorth,
+                            startEast[wall], startNorth[wall], endEast[wall], endNorth[wall])) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Tests whether two line segments intersect using the orientation of their end points.
+     */
+    private static boolean segmentsIntersect(double ax, double ay, double bx, double by,
+                                             double cx, double cy, double dx, double dy) {
+        double d1 = cross(cx, cy, dx, dy, ax, ay);
+        double d2 = cross(cx, cy, dx, dy, bx, by);
+        double d3 = cross(ax, ay, bx, by, cx, cy);
+        double d4 = cross(ax, ay, bx, by, dx, dy);
+        if (((d1 > 0 && d2 < 0) || (d1 < 0 && d2 > 0)) && ((d3 > 0 && d4 < 0) || (d3 < 0 && d4 > 0))) {
+            return true;
+        }
+        // Touching or collinear overlap counts as crossing
+        return (d1 == 0 && onSegment(cx, cy, dx, dy, ax, ay))
+                || (d2 == 0 && onSegment(cx, cy, dx, dy, bx, by))
+                || (d3 == 0 && onSegment(ax, ay, bx, by, cx, cy))
+                || (d4 == 0 && onSegment(ax, ay, bx, by, dx, dy));
+    }
+
+    /**
+     * Cross product of (b - a) and (p - a), positive if p lies to the left of the line a to b.
+     */
+    private static double cross(double ax, double ay, double bx, double by, double px, double py) {
+        return (bx - ax) * (py - ay) - (by - ay) * (px - ax);
+    }
+
+    /**
+     * Checks whether a point known to be collinear with a segment lies within its bounding box.
+     */
+    private static boolean onSegment(double ax, double ay, double bx, double by, double px, double py) {
+        return px >= Math.min(ax, bx) && px <= Math.max(ax, bx) && py >= Math.min(ay, by) && py <= Math.max(ay, by);
+    }
+
+    /**
+     * Converts an East coordinate to a grid column, clamped to the grid.
+     */
+    private int column(double east) {
+        int c = (int) Math.floor((east - gridOriginEast) / CELL_SIZE);
+        return Math.max(0, Math.min(columns - 1, c));
+    }
+
+    /**
+     * Converts a North coordinate to a grid row, clamped to the grid.
+     */
+    private int row(double north) {
+        int r = (int) Math.floor((north - gridOriginNorth) / CELL_SIZE);
+        return Math.max(0, Math.min(rows - 1, r));
+    }
+
+    /**
+     * A get method for the number of walls in the map.
+     *
+     * @return The number of wall segments.
+     */
+    public int getWallCount() { return startEast.length; }
+}
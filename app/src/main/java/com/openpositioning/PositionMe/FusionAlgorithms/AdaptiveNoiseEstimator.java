@@ -0,0 +1,125 @@
+package com.openpositioning.PositionMe.FusionAlgorithms;
+
+/**
+ * Windowed Sage-Husa estimator of the observation noise of one source of position fixes.
+ *
+ * For a fix consistent with the filter, the innovation y has the covariance H P H' + R, so over
+ * the recent fixes the mean of y y' - H P H' estimates the observation noise R actually seen. Rather
+ * than the noise itself, the estimator learns the ratio of that noise to the nominal variance each
+ * fix was expected to have, the variance reported with the fix or a constant for the source. The
+ * filter then weighs a fix with its own nominal variance times the learnt ratio, so a fix reported
+ * as accurate is trusted more than one reported as poor, while a source whose reports are
+ * consistently optimistic or pessimistic is corrected.
+ *
+ * The ratio is the mean of the samples of a fixed window, kept in a ring with a running sum, so a
+ * fix costs O(1). It is bounded so that a few unlucky fixes can neither silence a source nor let it
+ * pull the estimate freely.
+ */
+public class AdaptiveNoiseEstimator {
+    // Ratio of the radius of 68% confidence of a circular Gaussian to its standard deviation per axis,
+    // sqrt(-2 ln(1 - 0.68))
+    private static final double ACCURACY_TO_STD = 1.5096;
+
+    private final int minSamples;
+    private final double minScale;
+    private final double maxScale;
+    // Recent samples of the noise ratio, with their sum
+    private final double[] samples;
+    private int next;
+    private int count;
+    private double sum;
+
+    /**
+     * Creates an estimator.
+     *
+     * @param windowSize The number of recent fixes the ratio is averaged over.
+     * @param minSamples The number of fixes before which the ratio stays 1.
+     * @param minScale The smallest ratio of the noise to the nominal variance.
+     * @param maxScale The largest ratio of the noise to the nominal variance.
+     */
+    public AdaptiveNoiseEstimator(int windowSize, int minSamples, double minScale, double maxScale) {
+        if (windowSize <= 0) {
+            throw new IllegalArgumentException("Window size must be greater than 0");
+        }
+        if (minScale <= 0 || maxScale < minScale) {
+            throw new IllegalArgumentException("Scale bounds must be positive and ordered");
+        }
+        this.samples = new double[windowSize];
+        this.minSamples = Math.max(1, minSamples);
+        this.minScale = minScale;
+        this.maxScale = maxScale;
+    }
+
+    /**
+     * Adds the innovation of a fix used by the filter, computed before its update.
+     *
+     * @param innovationEast The East innovation, the fix minus the predicted position, in meters.
+     * @param innovationNorth The North innovation, in meters.
+     * @param varianceEast The East variance of the predicted position, in square meters.
+     * @param varianceNorth The North variance of the predicted position, in square meters.
+     * @param nominalVariance The variance the fix was expected to have on each axis, in square meters.
+     */
+    public void addInnovation(double innovationEast, double innovationNorth, double varianceEast,
+                              double varianceNorth, double nominalVariance) {
+        if (nominalVariance <= 0) return;
+        double sample = (innovationEast * innovationEast - varianceEast
+                + innovationNorth * innovationNorth - varianceNorth) / (2 * nominalVariance);
+        if (Double.isNaN(sample) || Double.isInfinite(sample)) return;
+
+        if (count == samples.length) {
+            sum -= samples[next];
+        } else {
+            count++;
+        }
+        samples[next] = sample;
+        sum += sample;
+        next = (next + 1) % samples.length;
+        // Sum the window again once per turn so that rounding errors do not build up
+        if (next == 0) {
+            sum = 0;
+            for (int i = 0; i < count; i++) {
+                sum += samples[i];
+            }
+        }
+    }
+
+    /**
+     * A get method for the ratio of the observation noise to the nominal variance of the fixes.
+     *
+     * @return The ratio, 1 until enough fixes have been seen.
+     */
+    public double getScale() {
+        if (count < minSamples) return 1;
+        return Math.min(maxScale, Math.max(minScale, sum / count));
+    }
+
+    /**
+     * A get method for the number of fixes the ratio is taken over.
+     *
+     * @return The number of samples in the window.
+     */
+    public int getSampleCount() { return count; }
+
+    /**
+     * Forgets every fix seen so far.
+     */
+    public void reset() {
+        next = 0;
+        count = 0;
+        sum = 0;
+    }
+
+    /**
+     * Converts the horizontal accuracy reported by a location provider, the radius of 68%
+     * confidence, to a variance per axis.
+     *
+     * @param accuracy The reported accuracy in meters, 0 or less if unknown.
+     * @param defaultVariance The variance to use when no accuracy is reported, in square meters.
+     * @return The variance per axis, in square meters.
+     */
+    public static double varianceFromAccuracy(double accuracy, double defaultVariance) {
+        if (!(accuracy > 0)) return defaultVariance;
+        double std = accuracy / ACCURACY_TO_STD;
+        return std * std;
+    }
+}
@@ -0,0 +1,20 @@
+package com.openpositioning.PositionMe.FusionAlgorithms;
+
+/**
+ * Likelihood of a position measurement given the distance between a particle and the measured
+ * position, used by the {@link ParticleEngine} to weigh its particles.
+ */
+public interface DistanceLikelihood {
+    /**
+     * Likelihood decaying exponentially with the distance, exp(-d / 2), evaluated exactly.
+     */
+    DistanceLikelihood EXPONENTIAL = distance -> Math.exp(-0.5 * distance);
+
+    /**
+     * Evaluates the likelihood of a measurement.
+     *
+     * @param distance The distance between the particle and the measurement, in meters.
+     * @return The likelihood, up to a constant factor.
+     */
+    double evaluate(double distance);
+}
@@ -0,0 +1,377 @@
+package com.openpositioning.PositionMe.FusionAlgorithms;
+
+/**
+ * Fixed-size numerical core of the {@link ExtendedKalmanFilter}.
+ *
+ * The filter has a three element state (bearing, East, North), a two element process noise (bearing
+ * and step length) and observes the East and North position directly. At this size general matrix
+ * objects cost far more in allocation and bookkeeping than in arithmetic, so the state, the error
+ * covariance and the noise terms are kept in plain double fields and every product is written out
+ * with the structural zeros of the model removed. The 2x2 innovation covariance is inverted in
+ * closed form. Neither step allocates.
+ *
+ * The equations are the same as the matrix form of the filter:
+ * <pre>
+ *     predict:  X = X + T u                   P = F P F' + L Q L'
+ *     update:   S = H P H' + R                K = P H' S^-1
+ *               X = X + K (z - H X)           P = (I - K H) P
+ * </pre>
+ * with F = [1 0 0; s cos(a) 1 0; -s sin(a) 0 1], T = L = [1 0; 0 sin(t); 0 cos(t)] and
+ * H = [0 1 0; 0 0 1].
+ *
+ * The kernel is not thread safe, it is only used from the EKF handler thread.
+ */
+public class EkfKernel {
+    // State estimate
+    private double bearing;
+    private double east;
+    private double north;
+
+    // Estimate error covariance, pRC is row R column C
+    private double p00, p01, p02;
+    private double p10, p11, p12;
+    private double p20, p21, p22;
+
+    // Diagonal process noise covariance (bearing, step length)
+    private double qBearing;
+    private double qStep;
+
+    // Diagonal observation noise covariance (East, North)
+    private double rEast;
+    private double rNorth;
+
+    // Squared Mahalanobis distance of the last innovation and determinant of its covariance
+    private double lastMahalanobis;
+    private double lastInnovationDeterminant;
+
+    /**
+     * Creates a kernel with a zero state and zero error covariance.
+     *
+     * @param bearingVariance The initial bearing process noise variance.
+     * @param stepVariance The initial step length process noise variance.
+     * @param eastVariance The initial East observation noise variance.
+     * @param northVariance The initial North observation noise variance.
+     */
+    public EkfKernel(double bearingVariance, double stepVariance, double eastVariance, double northVariance) {
+        setProcessNoise(bearingVariance, stepVariance);
+        setObservationNoise(eastVariance, northVariance);
+    }
+
+    /**
+     * Propagates the state and error covariance over one step.
+     *
+     * @param theta The heading of the step as reported by the sensors, in radians.
+     * @param adaptedHeading The heading of the step in radians with 0 pointing East, used for the
+     *                       state transition Jacobian.
+     * @param stepLength The length of the step, in meters.
+     */
+    public void predict(double theta, double adaptedHeading, double stepLength) {
+        double sinTheta = Math.sin(theta);
+        double cosTheta = Math.cos(theta);
+
+        // X = X + T u
+        bearing += theta;
+        east += sinTheta * stepLength;
+        north += cosTheta * stepLength;
+
+        // Non-trivial entries of the state transition matrix
+        double a = stepLength * Math.cos(adaptedHeading);
+        double b = -stepLength * Math.sin(adaptedHeading);
+
+        // F P, rows 1 and 2 gain a multiple of row 0
+        double fp10 = a * p00 + p10, fp11 = a * p01 + p11, fp12 = a * p02 + p12;
+        double fp20 = b * p00 + p20, fp21 = b * p01 + p21, fp22 = b * p02 + p22;
+
+        // (F P) F' + L Q L', columns 1 and 2 gain a multiple of column 0
+        double lq11 = qStep * sinTheta * sinTheta;
+        double lq12 = qStep * sinTheta * cosTheta;
+        double lq22 = qStep * cosTheta * cosTheta;
+
+        double n00 = p00 + qBearing;
+        double n01 = a * p00 + p01;
+        double n02 = b * p00 + p02;
+        double n10 = fp10;
+        double n11 = a * fp10 + fp11 + lq11;
+        double n12 = b * fp10 + fp12 + lq12;
+        double n20 = fp20;
+        double n21 = a * fp20 + fp21 + lq12;
+        double n22 = b * fp20 + fp22 + lq22;
+
+        p00 = n00; p01 = n01; p02 = n02;
+        p10 = n10; p11 = n11; p12 = n12;
+        p20 = n20; p21 = n21; p22 = n22;
+    }
+
+    /**
+     * Corrects the state with an observation of the East and North position.
+     *
+     * @param observedEast The observed East position, in meters.
+     * @param observedNorth The observed North position, in meters.
+     */
+    public void update(double observedEast, double observedNorth) {
+        // Innovation y = z - H X
+        double yEast = observedEast - east;
+        double yNorth = observedNorth - north;
+
+        // S = H P H' + R
+        double s00 = p11 + rEast;
+        double s01 = p12;
+        double s10 = p21;
+        double s11 = p22 + rNorth;
+
+        // Closed form inverse of S
+        double determinant = s00 * s11 - s01 * s10;
+        double inverseDet = 1.0 / determinant;
+        double i00 = s11 * inverseDet;
+        double i01 = -s01 * inverseDet;
+        double i10 = -s10 * inverseDet;
+        double i11 = s00 * inverseDet;
+
+        // y' S^-1 y, kept to judge how well the model explains the observation
+        lastMahalanobis = yEast * (i00 * yEast + i01 * yNorth) + yNorth * (i10 * yEast + i11 * yNorth);
+        lastInnovationDeterminant = determinant;
+
+        // K = P H' S^-1, P H' is columns 1 and 2 of P
+        double k00 = p01 * i00 + p02 * i10, k01 = p01 * i01 + p02 * i11;
+        double k10 = p11 * i00 + p12 * i10, k11 = p11 * i01 + p12 * i11;
+        double k20 = p21 * i00 + p22 * i10, k21 = p21 * i01 + p22 * i11;
+
+        // X = X + K y
+        bearing = wrapToPi(bearing + k00 * yEast + k01 * yNorth);
+        east += k10 * yEast + k11 * yNorth;
+        north += k20 * yEast + k21 * yNorth;
+
+        // P = (I - K H) P, every row loses a combination of rows 1 and 2
+        double r10 = p10, r11 = p11, r12 = p12;
+        double r20 = p20, r21 = p21, r22 = p22;
+        p00 -= k00 * r10 + k01 * r20;
+        p01 -= k00 * r11 + k01 * r21;
+        p02 -= k00 * r12 + k01 * r22;
+        p10 -= k10 * r10 + k11 * r20;
+        p11 -= k10 * r11 + k11 * r21;
+        p12 -= k10 * r12 + k11 * r22;
+        p20 -= k20 * r10 + k21 * r20;
+        p21 -= k20 * r11 + k21 * r21;
+        p22 -= k20 * r12 + k21 * r22;
+    }
+
+    /**
+     * Computes the squared Mahalanobis distance of the innovation an observation would have, with
+     * the current observation noise, without changing the state.
+     *
+     * @param observedEast The observed East position, in meters.
+     * @param observedNorth The observed North position, in meters.
+     * @return The squared distance y' S^-1 y.
+     */
+    public double mahalanobis(double observedEast, double observedNorth) {
+        return mahalanobis(observedEast, observedNorth, rEast, rNorth);
+    }
+
+    /**
+     * Computes the squared Mahalanobis distance of the innovation an observation would have, with
+     * the given observation noise, without changing the state.
+     *
+     * @param observedEast The observed East position, in meters.
+     * @param observedNorth The observed North position, in meters.
+     * @param eastVariance The East observation noise variance, in square meters.
+     * @param northVariance The North observation noise variance, in square meters.
+     * @return The squared distance y' S^-1 y.
+     */
+    public double mahalanobis(double observedEast, double observedNorth, double eastVariance, double northVariance) {
+        double yEast = observedEast - east;
+        double yNorth = observedNorth - north;
+        double s00 = p11 + eastVariance;
+        double s01 = p12;
+        double s10 = p21;
+        double s11 = p22 + northVariance;
+        double inverseDet = 1.0 / (s00 * s11 - s01 * s10);
+        return (yEast * (s11 * yEast - s01 * yNorth) + yNorth * (-s10 * yEast + s00 * yNorth)) * inverseDet;
+    }
+
+    /**
+     * Sets the diagonal of the process noise covariance.
+     *
+     * @param bearingVariance The variance of the bearing process noise, in square radians.
+     * @param stepVariance The variance of the step length process noise, in square meters.
+     */
+    public void setProcessNoise(double bearingVariance, double stepVariance) {
+        this.qBearing = bearingVariance;
+        this.qStep = stepVariance;
+    }
+
+    /**
+     * Sets the diagonal of the observation noise covariance.
+     *
+     * @param eastVariance The variance of the East observation noise, in square meters.
+     * @param northVariance The variance of the North observation noise, in square meters.
+     */
+    public void setObservationNoise(double eastVariance, double northVariance) {
+        this.rEast = eastVariance;
+        this.rNorth = northVariance;
+    }
+
+    /**
+     * Copies the state, error covariance and noise covariances of another kernel into this one.
+     *
+     * @param other The kernel to copy.
+     */
+    public void set(EkfKernel other) {
+        bearing = other.bearing;
+        east = other.east;
+        north = other.north;
+        p00 = other.p00; p01 = other.p01; p02 = other.p02;
+        p10 = other.p10; p11 = other.p11; p12 = other.p12;
+        p20 = other.p20; p21 = other.p21; p22 = other.p22;
+        qBearing = other.qBearing;
+        qStep = other.qStep;
+        rEast = other.rEast;
+        rNorth = other.rNorth;
+        lastMahalanobis = other.lastMahalanobis;
+        lastInnovationDeterminant = other.lastInnovationDeterminant;
+    }
+
+    /**
+     * Loads the state and error covariance from flat arrays, keeping the noise covariances.
+     *
+     * @param states The array holding the state as bearing, East, North.
+     * @param stateOffset The index of the bearing in the state array.
+     * @param covariances The array holding the error covariance in row major order.
+     * @param covarianceOffset The index of the first entry in the covariance array.
+     */
+    public void load(double[] states, int stateOffset, double[] covariances, int covarianceOffset) {
+        bearing = states[stateOffset];
+        east = states[stateOffset + 1];
+        north = states[stateOffset + 2];
+        int c = covarianceOffset;
+        p00 = covariances[c]; p01 = covariances[c + 1]; p02 = covariances[c + 2];
+        p10 = covariances[c + 3]; p11 = covariances[c + 4]; p12 = covariances[c + 5];
+        p20 = covariances[c + 6]; p21 = covariances[c + 7]; p22 = covariances[c + 8];
+    }
+
+    /**
+     * Stores the state and error covariance into flat arrays, in the layout read by
+     * {@link #load(double[], int, double[], int)}.
+     *
+     * @param states The array receiving the state as bearing, East, North.
+     * @param stateOffset The index of the bearing in the state array.
+     * @param covariances The array receiving the error covariance in row major order.
+     * @param covarianceOffset The index of the first entry in the covariance array.
+     */
+    public void store(double[] states, int stateOffset, double[] covariances, int covarianceOffset) {
+        states[stateOffset] = bearing;
+        states[stateOffset + 1] = east;
+        states[stateOffset + 2] = north;
+        int c = covarianceOffset;
+        covariances[c] = p00; covariances[c + 1] = p01; covariances[c + 2] = p02;
+        covariances[c + 3] = p10; covariances[c + 4] = p11; covariances[c + 5] = p12;
+        covariances[c + 6] = p20; covariances[c + 7] = p21; covariances[c + 8] = p22;
+    }
+
+    /**
+     * A get method for the squared Mahalanobis distance of the innovation of the last update.
+     *
+     * @return The squared distance y' S^-1 y.
+     */
+    public double getLastMahalanobis() { return lastMahalanobis; }
+
+    /**
+     * A get method for the log likelihood of the observation of the last update, under the
+     * Gaussian innovation distribution of the filter.
+     *
+     * @return The natural logarithm of the likelihood.
+     */
+    public double getLastLogLikelihood() {
+        return -0.5 * lastMahalanobis - Math.log(2 * Math.PI) - 0.5 * Math.log(lastInnovationDeterminant);
+    }
+
+    /**
+     * A get method for the bearing process noise variance.
+     *
+     * @return The bearing process noise variance, in square radians.
+     */
+    public double getProcessNoiseBearing() { return qBearing; }
+
+    /**
+     * A get method for the step length process noise variance.
+     *
+     * @return The step length process noise variance, in square meters.
+     */
+    public double getProcessNoiseStep() { return qStep; }
+
+    /**
+     * A get method for the East observation noise variance.
+     *
+     * @return The East observation noise variance, in square meters.
+     */
+    public double getObservationNoiseEast() { return rEast; }
+
+    /**
+     * A get method for the North observation noise variance.
+     *
+     * @return The North observation noise variance, in square meters.
+     */
+    public double getObservationNoiseNorth() { return rNorth; }
+
+    /**
+     * A get method for the bearing state.
+     *
+     * @return The bearing estimate, in radians.
+     */
+    public double getBearing() { return bearing; }
+
+    /**
+     * A get method for the East position state.
+     *
+     * @return The East position estimate, in meters.
+     */
+    public double getEast() { return east; }
+
+    /**
+     * A get method for the North position state.
+     *
+     * @return The North position estimate, in meters.
+     */
+    public double getNorth() { return north; }
+
+    /**
+     * A get method for one entry of the estimate error covariance.
+     *
+     * @param row The row of the entry, 0 for bearing, 1 for East and 2 for North.
+     * @param column The column of the entry, with the same ordering as the row.
+     * @return The covariance entry.
+     */
+    public double getCovariance(int row, int column) {
+        if (row < 0 || row > 2 || column < 0 || column > 2) {
+            throw new IllegalArgumentException("Covariance index out of range: " + row + ", " + column);
+        }
+        switch (row * 3 + column) {
+            case 0: return p00;
+            case 1: return p01;
+            case 2: return p02;
+            case 3: return p10;
+            case 4: return p11;
+            case 5: return p12;
+            case 6: return p20;
+            case 7: return p21;
+            default: return p22;
+        }
+    }
+
+    /**
+     * Wraps an angle in radians to the range from -π to π. This is useful for ensuring that
+     * angular measurements remain within a standard range, simplifying calculations that involve angles.
+     *
+     * @param x The angle in radians to be normalized.
+     * @return The angle wrapped to the range [-π, π].
+     */
+    static double wrapToPi(double x) {
+        double bearing = x % (2 * Math.PI); // Normalize angle to range [0, 2π]
+
+        if (bearing < -Math.PI) {
+            bearing += 2 * Math.PI; // Adjust if the angle is less than -π to fit into the range [-π, π]
+        } else if (bearing > Math.PI) {
+            bearing -= 2 * Math.PI; // Adjust if the angle is more than π to fit into the range [-π, π]
+        }
+        return bearing;
+    }
+}
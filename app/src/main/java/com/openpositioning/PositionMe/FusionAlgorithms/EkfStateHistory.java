@@ -0,0 +1,167 @@
+package com.openpositioning.PositionMe.FusionAlgorithms;
+
+import com.openpositioning.PositionMe.sensors.TurnDetector;
+
+/**
+ * Bounded, time-indexed history of the steps processed by the {@link ExtendedKalmanFilter}.
+ *
+ * WiFi fixes come back from the positioning server seconds after the scan they were computed from,
+ * by which time the user has taken several more steps. For every step the history keeps the filter
+ * state and error covariance after the step, together with the inputs needed to process the step
+ * again. A delayed fix can then be applied to the state at its scan time, and the steps taken since
+ * replayed on top of the corrected state.
+ *
+ * Entries are preallocated and recycled, the oldest entry being overwritten once the history is
+ * full. The capacity therefore bounds both the memory use and the number of steps replayed for a
+ * single delayed fix. Step times must not decrease.
+ */
+public class EkfStateHistory {
+    /**
+     * One processed step. Only the fields listed for the predict, correction and delayed fix parts
+     * that took place are meaningful.
+     */
+    public static class Entry {
+        // Time of the step, in milliseconds
+        long time;
+        // Filter state and covariances after the step and any delayed fix applied to it
+        final EkfKernel state = new EkfKernel(0, 0, 0, 0);
+        // Index of the step in the smoother of the filter
+        int smootherIndex;
+        // Mode filters and probabilities of the IMM bank after the step
+        final double[] immState = new double[ImmFilter.SNAPSHOT_SIZE];
+
+        // Whether the step was predicted, with the prediction inputs and process noise
+        boolean predicted;
+        double theta;
+        double adaptedHeading;
+        double stepLength;
+        double qBearing;
+        double qStep;
+        // Process noise of the bearing of each mode of the IMM bank
+        final double[] modeQBearing = new double[ImmFilter.MODE_COUNT];
+        // Evidence weighing the modes of the IMM bank at the step
+        TurnDetector.MovementType movementType;
+        double altitudeChange;
+
+        // PDR position at the step and the correction applied, against a fix if observed is set,
+        // otherwise a recursive correction, with the observation noise used
+        double pdrEast;
+        double pdrNorth;
+        double altitude;
+        boolean observed;
+        double observedEast;
+        double observedNorth;
+        double rEast;
+        double rNorth;
+
+        // A fix that arrived after the step but was taken at its time, with its observation noise
+        boolean delayed;
+        double delayedEast;
+        double delayedNorth;
+        double delayedREast;
+        double delayedRNorth;
+    }
+
+    private final Entry[] entries;
+    // Index of the oldest entry and number of entries held
+    private int start;
+    private int size;
+
+    /**
+     * Creates an empty history.
+     *
+     * @param capacity The number of steps kept.
+     */
+    public EkfStateHistory(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be greater than 0");
+        }
+        this.entries = new Entry[capacity];
+        for (int i = 0; i < capacity; i++) {
+            entries[i] = new Entry();
+        }
+    }
+
+    /**
+     * Adds a step, overwriting the oldest one if the history is full. The returned entry must be
+     * filled in by the caller.
+     *
+     * @param time The time of the step, in milliseconds, not before the last step added.
+     * @return The cleared entry of the step.
+     */
+    public Entry add(long time) {
+        if (size > 0 && time < get(size - 1).time) {
+            throw new IllegalArgumentException("Steps must be added in time order");
+        }
+        Entry entry;
+        if (size < entries.length) {
+            entry = entries[(start + size) % entries.length];
+            size++;
+        } else {
+            entry = entries[start];
+            start = (start + 1) % entries.length;
+        }
+        entry.time = time;
+        entry.predicted = false;
+        entry.observed = false;
+        entry.delayed = false;
+        return entry;
+    }
+
+    /**
+     * A get method for a step of the history.
+     *
+     * @param index The index of the step, 0 being the oldest.
+     * @return The entry of the step.
+     */
+    public Entry get(int index) {
+        if (index < 0 || index >= size) {
+            throw new IllegalArgumentException("History index out of range: " + index);
+        }
+        return entries[(start + index) % entries.length];
+    }
+
+    /**
+     * Finds the last step taken at or before a given time.
+     *
+     * @param time The time, in milliseconds.
+     * @return The index of the step, or -1 if the time is before the oldest step held.
+     */
+    public int findLatestAtOrBefore(long time) {
+        int low = 0;
+        int high = size - 1;
+        int found = -1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (get(middle).time <= time) {
+                found = middle;
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Removes every step from the history.
+     */
+    public void clear() {
+        start = 0;
+        size = 0;
+    }
+
+    /**
+     * A get method for the number of steps held.
+     *
+     * @return The number of steps.
+     */
+    public int size() { return size; }
+
+    /**
+     * A get method for the largest number of steps held.
+     *
+     * @return The capacity of the history.
+     */
+    public int getCapacity() { return entries.length; }
+}
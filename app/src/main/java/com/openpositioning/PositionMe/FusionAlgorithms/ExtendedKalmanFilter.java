@@ -1,16 +1,17 @@
 package com.openpositioning.PositionMe.FusionAlgorithms;
 
-import android.os.Handler;
-import android.os.HandlerThread;
 import android.util.Log;
 
+import com.google.android.gms.maps.model.LatLng;
+
 import com.openpositioning.PositionMe.Utils.CoordinateTransform;
 import com.openpositioning.PositionMe.Utils.ExponentialSmoothingFilter;
-import com.openpositioning.PositionMe.Utils.OutlierDetector;
 import com.openpositioning.PositionMe.sensors.SensorFusion;
 import com.openpositioning.PositionMe.sensors.TurnDetector;
 
-import org.ejml.simple.SimpleMatrix;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * The ExtendedKalmanFilter class implements an Extended Kalman Filter (EKF) for real-time state estimation
@@ -18,8 +19,9 @@ import org.ejml.simple.SimpleMatrix;
  * adjusts and corrects the state of a user based on a combination of sensor inputs and predefined motion models.
  *
  * The filter integrates multiple sources of data including inertial sensors, GPS, and Wi-Fi to provide a refined
- * estimate of position and orientation. The class manages updates from asynchronous data sources using a HandlerThread,
- * ensuring that operations do not block the main application thread and maintain responsive performance.
+ * estimate of position and orientation. The class manages updates from asynchronous data sources using a
+ * {@link FusionEventRing}, a bounded queue of preallocated events drained by a dedicated thread, ensuring that
+ * operations do not block the main application thread and do not allocate for every sensor event.
  *
  * Features:
  * - Real-time prediction and updating of user state based on sensor data.
@@ -37,23 +39,46 @@ import org.ejml.simple.SimpleMatrix;
  * - Pk (Estimate Error Covariance Matrix): Quantifies the estimated accuracy of the state estimates.
  * - Xk (State Estimate Vector): The estimated state of the system at each time step.
  *
+ * The matrices are held by an {@link EkfKernel}, which implements the prediction and update equations for this
+ * fixed three state model with plain double arithmetic, so that processing a step does not allocate.
+ *
+ * WiFi fixes are computed by a server from a scan taken seconds before the response arrives. The filter keeps the
+ * state after each of the recent steps in an {@link EkfStateHistory}; a fix taken before the last step is applied to
+ * the state at its scan time and the steps taken since are replayed, so the fix does not pull the estimate back
+ * towards where the user was.
+ *
+ * Instead of a single filter whose heading noise is switched by the detected movement type, the filter runs an
+ * {@link ImmFilter} bank with one model per motion mode (straight, turning, stationary, stairs or elevator). The movement
+ * type and the altitude change of each step weigh the modes, and the kernel holds the combined estimate of the bank.
+ *
+ * Every step is also recorded in an {@link RtsSmoother}. A position smoothed with the measurements of the following
+ * steps is reported a few steps behind the filter for live display, and the whole recording is smoothed once the
+ * recording is finished, for upload with the trajectory.
+ *
+ * The filter is a {@link FusionEngine}. Its estimate can be handed over to another engine during a recording, and the
+ * time spent processing each step and fix is recorded in a {@link LatencyHistogram} per kind of input.
+ *
  * Usage:
  * The ExtendedKalmanFilter is primarily used within systems where accurate real-time positional data is crucial,
  * such as in navigation apps, augmented reality platforms, and location-based services. The filter is designed
  * to be robust against errors inherent in individual sensors by fusing data from multiple sources and applying
  * mathematical models to predict and correct the system state dynamically.
  *
- * Example:
+ * Example, with times from SystemClock.uptimeMillis():
+ * <pre>
  * ExtendedKalmanFilter ekf = new ExtendedKalmanFilter();
- * ekf.predict(currentOrientation, stepSize, averageStepLength, System.currentTimeMillis(), userMovementType);
- * ekf.update(new double[]{sensorX, sensorY}, currentPenaltyFactor);
- * ekf.onStepDetected(detectedEast, detectedNorth, currentAltitude, System.currentTimeMillis());
+ * ekf.setWifiCoverage(inWifiArea);
+ * ekf.onStep(heading, stepLength, averageStepLength, pdrEast, pdrNorth, altitude, movementType, stepTime);
+ * ekf.onWifiFix(wifiLatitude, wifiLongitude, wifiAltitude, scanTime);
+ * ekf.onGnssFix(gnssLatitude, gnssLongitude, gnssAltitude, gnssAccuracy, fixTime);
+ * ekf.finish().thenAccept(smoothed -> upload(smoothed));
+ * </pre>
  *
  * @author Thomas Deppe
  * @author Alexandra Geciova
  * @author Christopher Khoo
  */
-public class ExtendedKalmanFilter{
+public class ExtendedKalmanFilter implements FusionEngine {
 
     // Threshold for relevance in the given context, measured in a specific unit (e.g., points).
     private final static long relevanceThreshold = 5000;
@@ -77,6 +102,26 @@ public class ExtendedKalmanFilter{
     private final static double sigma_dStraight = Math.toRadians(2);
     // Smoothing factor for a filter or algorithm, likely used to average or reduce noise in measurements.
     private final static double smoothingFactor = 0.35;
+    // Number of events the EKF thread can fall behind before the sensor threads wait for it.
+    private final static int eventRingCapacity = 256;
+    // Age in nanoseconds after which a queued opportunistic update is skipped, a newer fix will be available by then.
+    private final static long maxOpportunisticUpdateAge = 2000000000L;
+    // Number of recent steps kept for replaying after a delayed fix, bounding the cost of a replay.
+    private final static int stateHistorySize = 50;
+    // Number of steps the live smoothed position lags behind the filtered one.
+    private final static int smootherLag = 10;
+    // Number of steps the smoother holds before growing, about ten minutes of walking.
+    private final static int smootherInitialCapacity = 1024;
+    // Whether the motion modes are tracked by a bank of filters rather than switched by the turn detector.
+    private final static boolean useInteractingModels = true;
+    // Number of fixes gated out in a row after which the next fix is used, so a diverged estimate can recover.
+    private final static int maxConsecutiveRejections = 5;
+    // Number of recent fixes of each source the observation noise is learnt from, and before which it is not adapted.
+    private final static int noiseWindowSize = 20;
+    private final static int noiseMinSamples = 3;
+    // Bounds of the ratio of the learnt observation noise to the nominal variance of a fix.
+    private final static double minNoiseScale = 0.25;
+    private final static double maxNoiseScale = 16;
     // Standard deviation for the displacement step process noise.
     private double sigma_ds = 1;
     // Standard deviation for northward measurement noise, used in PDR.
@@ -87,20 +132,17 @@ public class ExtendedKalmanFilter{
     private double wifi_std = 10;
     // Standard deviation for GNSS (GPS) location measurements.
     private double gnss_std = 5;
-    // State transition matrix, defining how the state evolves from one time step to the next without considering the process noise.
-    private SimpleMatrix Fk;
-    // Process noise covariance matrix, quantifying the uncertainty in the process noise.
-    private SimpleMatrix Qk;
-    // Observation matrix, mapping the state space into the observed space, used in the update step.
-    private SimpleMatrix Hk;
-    // Observation noise covariance matrix, representing the noise in the measurements.
-    private SimpleMatrix Rk;
-    // Estimate error covariance matrix, quantifying the estimated accuracy of the state estimates.
-    private SimpleMatrix Pk;
-    // State estimate vector, representing the estimated state of the system at each time step.
-    private SimpleMatrix Xk;
+    // Filter state (Xk), estimate error covariance (Pk) and noise covariances (Qk, Rk), with the prediction and update equations.
+    private final EkfKernel kernel;
     // Array storing the last opportunistic update values, could be used for adaptive measurements or corrections.
-    private double[] lastOpportunisticUpdate;
+    private final double[] lastOpportunisticUpdate = new double[2];
+    // Nominal variance per axis of the last opportunistic update, from its reported accuracy or the constant of its source.
+    private double lastOpportunisticVariance;
+    // Estimators of the observation noise of the WiFi and GNSS fixes, learnt from their innovations.
+    private final AdaptiveNoiseEstimator wifiNoise;
+    private final AdaptiveNoiseEstimator gnssNoise;
+    // Boolean flag to indicate whether an opportunistic update has been received.
+    private boolean hasOpportunisticUpdate;
     // Timestamp of the last opportunistic update, used to handle timing and delays in updates.
     private long lastOpUpdateTime;
     // Timestamp marking the initialization of the filtering process or algorithm.
@@ -108,19 +150,52 @@ public class ExtendedKalmanFilter{
     // Boolean flag to indicate whether WiFi measurements are currently being used.
     private boolean usingWifi;
     // Boolean flag to control the stopping of the Extended Kalman Filter (EKF) process.
-    private boolean stopEKF;
+    private volatile boolean stopEKF;
+    // Latest estimate, published by the EKF thread after every event so that a snapshot does not wait for it.
+    private volatile FusionState lastState;
     // Boolean flag to decide whether to use the current measurement in the update step.
     private boolean useThisMeasurement;
     // Stores the length of the previous step, used in mobility or trajectory tracking.
     private double prevStepLength;
-    // Handler thread dedicated to running the Extended Kalman Filter computations to offload the main thread.
-    private HandlerThread ekfThread;
-    // Handler to manage tasks and messages for the EKF computations within its dedicated thread.
-    private Handler ekfHandler;
-    // Component for detecting outliers in the measurement updates, possibly for quality control or error minimization.
-    private OutlierDetector outlierDetector;
+    // History of the recent steps, used to apply delayed fixes at the time they were taken.
+    private final EkfStateHistory stateHistory;
+    // Inputs of the last prediction, recorded in the history with the step that follows it.
+    private boolean hasPendingPredict;
+    private double pendingTheta;
+    private double pendingAdaptedHeading;
+    private double pendingStepLength;
+    private double pendingQBearing;
+    private double pendingQStep;
+    private final double[] pendingModeQBearing = new double[ImmFilter.MODE_COUNT];
+    private TurnDetector.MovementType pendingMovementType;
+    private double pendingAltitudeChange;
+    // Bank of filters, one per motion mode, whose combined estimate is held by the kernel.
+    private final ImmFilter imm;
+    // Bearing process noise of each mode of the bank for the current prediction.
+    private final double[] modeBearingVariances = new double[ImmFilter.MODE_COUNT];
+    // Altitude at the last step, to detect stairs and elevators.
+    private double lastStepAltitude;
+    private boolean hasStepAltitude;
+    // Smoother over the filter output of every step of the recording.
+    private final RtsSmoother smoother;
+    // Filter state after the prediction of the step being processed, before its corrections.
+    private final EkfKernel predictedState;
+    // Event ring carrying the inputs to the thread dedicated to the Extended Kalman Filter computations.
+    private FusionEventRing eventRing;
+    // Lock serialising the sensor threads publishing to the single-producer event ring.
+    private final Object producerLock = new Object();
+    // Chi-square gate on the innovation of the fixes, discarding the fixes the estimate cannot explain.
+    private final InnovationGate innovationGate;
     // Filter for applying exponential smoothing to the measurements or the estimates, used to reduce noise and fluctuations.
     private ExponentialSmoothingFilter smoothingFilter;
+    // Whether WiFi fixes are used, GNSS fixes being used otherwise, as set on the sensor threads.
+    private volatile boolean wifiCoverage;
+    // Processing time of the steps and fixes on the EKF thread, a step being its prediction and its correction.
+    private final LatencyHistogram stepLatency = new LatencyHistogram();
+    private final LatencyHistogram wifiFixLatency = new LatencyHistogram();
+    private final LatencyHistogram gnssFixLatency = new LatencyHistogram();
+    // Processing time of the prediction of the step whose correction has not been processed yet.
+    private long pendingPredictNanos;
 
     /**
      * Constructor for the ExtendedKalmanFilter class.
@@ -128,8 +203,12 @@ public class ExtendedKalmanFilter{
      * and starts a background handler thread for processing in FIFO queue to ensure the steps are processed sequentially.
      */
     public ExtendedKalmanFilter() {
-        // Initialize the component responsible for detecting outliers in the measurement updates.
-        this.outlierDetector = new OutlierDetector();
+        // Initialize the gate discarding the fixes whose innovation is beyond the 99% chi-square quantile.
+        this.innovationGate = new InnovationGate(InnovationGate.CHI_SQUARE_2_99, maxConsecutiveRejections);
+
+        // Initialize the estimators adapting the observation noise of each source of fixes.
+        this.wifiNoise = new AdaptiveNoiseEstimator(noiseWindowSize, noiseMinSamples, minNoiseScale, maxNoiseScale);
+        this.gnssNoise = new AdaptiveNoiseEstimator(noiseWindowSize, noiseMinSamples, minNoiseScale, maxNoiseScale);
 
         // Initialize the smoothing filter with a specified smoothing factor and dimensionality of 2.
         this.smoothingFilter = new ExponentialSmoothingFilter(smoothingFactor, 2);
@@ -137,70 +216,100 @@ public class ExtendedKalmanFilter{
         // A flag to control the stopping of the EKF; initially set to continue running.
         this.stopEKF = false;
 
-        // Initialize the state estimate matrix (Xk) with zero values. This is a 3x1 matrix, typically representing
-        // initial guesses for the state variables (bearing, East, North).
-        this.Xk = new SimpleMatrix(new double[][]{{0}, {0}, {0}});
-
-        // Initialize the error covariance matrix (Pk) with zeros on the diagonal, indicating no initial certainty in the estimates.
-        this.Pk = SimpleMatrix.diag(0, 0, 0);
-
-        // Initialize the process noise covariance matrix (Qk) based on the variances of process noises (theta and displacement).
-        this.Qk = SimpleMatrix.diag((sigma_dTheta * sigma_dTheta), sigma_ds);
-
-        // Initialize the measurement noise covariance matrix (Rk) based on the squared standard deviations of measurement noises.
-        this.Rk = SimpleMatrix.diag((sigma_east_meas * sigma_east_meas), (sigma_north_meas * sigma_north_meas));
-
-        // Initialize the observation matrix (Hk). This matrix maps the state space into the observed space.
-        // It can vary depending on what aspects of the state are directly observed.
-        this.Hk = new SimpleMatrix(new double[][]{{0, 1, 0}, {0, 0, 1}});
+        // Initialize the kernel with a zero state (bearing, East, North) and zero error covariance, indicating no initial
+        // certainty in the estimates. The process noise covariance (Qk) is based on the variances of process noises
+        // (theta and displacement) and the measurement noise covariance (Rk) on the squared standard deviations of measurement noises.
+        // The observation matrix (Hk) maps the East and North state directly into the observed space.
+        this.kernel = new EkfKernel((sigma_dTheta * sigma_dTheta), sigma_ds,
+                (sigma_east_meas * sigma_east_meas), (sigma_north_meas * sigma_north_meas));
 
         // Record the system time at initialization to manage timing and delays in updates.
         this.initialiseTime = android.os.SystemClock.uptimeMillis();
         this.lastOpUpdateTime = 0;  // Initialize the last opportunistic update time.
         this.prevStepLength = defaultStepLength;  // Set the previous step length to the default.
         this.usingWifi = false;  // Initially not using WiFi measurements.
+        this.stateHistory = new EkfStateHistory(stateHistorySize);
+        this.smoother = new RtsSmoother(smootherInitialCapacity);
+        this.predictedState = new EkfKernel(0, 0, 0, 0);
+        this.imm = new ImmFilter();
+        this.lastState = currentState();
 
         // Call the helper method to initialize background processing.
         initialiseBackgroundHandler();
     }
 
     /**
-     * Initializes a background thread and handler for the Extended Kalman Filter processing.
+     * Initializes a background thread and event ring for the Extended Kalman Filter processing.
      * This allows the EKF computations to be handled asynchronously, offloading the main thread.
      */
     private void initialiseBackgroundHandler() {
-        // Create and start a new thread for handling the Extended Kalman Filter operations.
-        ekfThread = new HandlerThread("EKFProcessingThread");
-        ekfThread.start();
+        // Create the event ring, the sensor threads wait for a free slot rather than losing steps when the EKF falls behind.
+        eventRing = new FusionEventRing(eventRingCapacity, FusionEventRing.OverflowPolicy.BLOCK,
+                maxOpportunisticUpdateAge, "EKFProcessingThread", this::processEvent);
 
-        // Create a handler that binds to the newly created thread's looper, to manage tasks and messages for the EKF.
-        ekfHandler = new Handler(ekfThread.getLooper());
+        // Start the thread handling the Extended Kalman Filter operations.
+        eventRing.start();
     }
 
     /**
-     * Updates the state transition matrix Fk for the Extended Kalman Filter based on the current orientation and movement step.
-     * This matrix is crucial for predicting the next state of the system.
+     * Dispatches an event taken off the event ring to its processing method, on the EKF thread.
      *
-     * @param theta_k The current orientation angle in radians, where 0 radians point east.
-     * @param step_k The length of the current movement step, likely in meters.
+     * @param event The event to process.
      */
-    private void updateFk(double theta_k, double step_k){
-
-        // Compute the cosine of theta_k, which represents the change in the eastward position component
-        // due to the step in the direction of theta_k.
-        double cosTheta = Math.cos(theta_k);
-
-        // Compute the sine of theta_k, which represents the change in the northward position component
-        // due to the step in the direction of theta_k.
-        double sinTheta = Math.sin(theta_k);
+    private void processEvent(FusionEvent event) {
+        long startNanos = System.nanoTime();
+        switch (event.type) {
+            case PREDICT:
+                processPredict(event.theta, event.stepLength, event.averageStepLength, event.refTime, event.movementType);
+                break;
+            case STEP:
+                processStep(event.pdrEast, event.pdrNorth, event.altitude, event.refTime);
+                break;
+            case OPPORTUNISTIC_UPDATE:
+                processOpportunisticUpdate(event.east, event.north, event.variance, event.refTime);
+                break;
+            case OBSERVATION_UPDATE:
+                processObservationUpdate(event.east, event.north, event.pdrEast, event.pdrNorth,
+                        event.altitude, event.penaltyFactor);
+                break;
+            case RECURSIVE_CORRECTION:
+                processRecursiveCorrection(event.pdrEast, event.pdrNorth, event.altitude, event.penaltyFactor);
+                break;
+            case SET_USING_WIFI:
+                usingWifi = event.usingWifi; // Update the flag that controls WiFi usage.
+                break;
+            case SMOOTH_RECORDING:
+                processSmoothRecording(event.smoothResult);
+                break;
+            case RESTORE:
+                processRestore(event.state);
+                break;
+        }
+        lastState = currentState();
+        recordLatency(event.type, System.nanoTime() - startNanos);
+    }
 
-        // Update the state transition matrix Fk based on the current values of theta_k and step_k.
-        // This matrix predicts the next state based on the current state and the system's dynamics.
-        this.Fk = new SimpleMatrix(new double[][]{
-                {1, 0, 0},                           // First row: state remains unchanged.
-                {step_k * cosTheta, 1, 0},           // Second row: updates x position based on step length and cosine of orientation.
-                {-step_k * sinTheta, 0, 1}           // Third row: updates y position based on step length and negative sine of orientation.
-        });
+    /**
+     * Records the processing time of an event in the histogram of its kind of input.
+     *
+     * @param type The type of the event processed.
+     * @param elapsedNanos The processing time, in nanoseconds.
+     */
+    private void recordLatency(FusionEvent.Type type, long elapsedNanos) {
+        switch (type) {
+            case PREDICT:
+                pendingPredictNanos = elapsedNanos;
+                break;
+            case STEP:
+                stepLatency.record(pendingPredictNanos + elapsedNanos);
+                pendingPredictNanos = 0;
+                break;
+            case OPPORTUNISTIC_UPDATE:
+                (usingWifi ? wifiFixLatency : gnssFixLatency).record(elapsedNanos);
+                break;
+            default:
+                break;
+        }
     }
 
     /**
@@ -229,10 +338,16 @@ public class ExtendedKalmanFilter{
 
         // Set the diagonal elements of the process noise covariance matrix Qk.
         // Element (0, 0) represents the variance of the bearing error squared, indicating the uncertainty in orientation.
-        this.Qk.set(0, 0, bearing_error * bearing_error);
-
         // Element (1, 1) represents the variance of the step error squared, indicating the uncertainty in the step length.
-        this.Qk.set(1, 1, step_error * step_error);
+        this.kernel.setProcessNoise(bearing_error * bearing_error, step_error * step_error);
+
+        // Each mode of the bank has its own heading noise, penalised in the same way.
+        if (useInteractingModels) {
+            for (int mode = 0; mode < ImmFilter.MODE_COUNT; mode++) {
+                double modeBearingError = calculateBearingPenalty(ImmFilter.getBearingStd(mode), refTime);
+                modeBearingVariances[mode] = modeBearingError * modeBearingError;
+            }
+        }
     }
 
     /**
@@ -249,14 +364,33 @@ public class ExtendedKalmanFilter{
             // Set both diagonal elements of the matrix for WiFi measurements.
             // These elements represent the variance of the observation noise, scaled by the penalty factor,
             // reflecting increased or decreased confidence in sensor readings.
-            this.Rk.set(0, 0, (wifi_std * wifi_std) * penaltyFactor);
-            this.Rk.set(1, 1, (wifi_std * wifi_std) * penaltyFactor);
+            this.kernel.setObservationNoise((wifi_std * wifi_std) * penaltyFactor, (wifi_std * wifi_std) * penaltyFactor);
         } else {
-            this.Rk.set(0, 0, (gnss_std * gnss_std) * penaltyFactor);
-            this.Rk.set(1, 1, (gnss_std * gnss_std) * penaltyFactor);
+            this.kernel.setObservationNoise((gnss_std * gnss_std) * penaltyFactor, (gnss_std * gnss_std) * penaltyFactor);
         }
     }
 
+    /**
+     * Updates the observation noise covariance matrix (Rk) for the last opportunistic update, from its nominal
+     * variance scaled by the noise learnt for its source.
+     */
+    private void updateFixRk() {
+        double variance = lastOpportunisticVariance * (usingWifi ? wifiNoise : gnssNoise).getScale();
+        this.kernel.setObservationNoise(variance, variance);
+    }
+
+    /**
+     * Adds the innovation of the last opportunistic update to the noise estimator of its source, before the update.
+     *
+     * @param state The state the update is applied to.
+     * @param observeEast The observed East component, in the frame of the state.
+     * @param observeNorth The observed North component, in the frame of the state.
+     */
+    private void learnFixNoise(EkfKernel state, double observeEast, double observeNorth) {
+        (usingWifi ? wifiNoise : gnssNoise).addInnovation(observeEast - state.getEast(), observeNorth - state.getNorth(),
+                state.getCovariance(1, 1), state.getCovariance(2, 2), lastOpportunisticVariance);
+    }
+
     /**
      * Performs a prediction step within the Extended Kalman Filter to estimate the system's future state.
      * This involves updating the state estimate and error covariance based on the movement and orientation data.
@@ -271,59 +405,52 @@ public class ExtendedKalmanFilter{
         // Stop the prediction if the EKF has been flagged to stop.
         if (stopEKF) return;
 
-        // Delegate the prediction computation to the handler thread to keep UI responsive.
-        ekfHandler.post(new Runnable() {
-            @Override
-            public void run() {
-                // Log the prediction initiation.
-                Log.d("EKF", "======== PREDICT ========");
-
-                // Calculate the adapted heading by wrapping the angle to a standard range.
-                double adaptedHeading = wrapToPi((Math.PI/2 - theta_k));
-                Log.d("EKF", "Adapted bearing "+ (Math.PI/2 - theta_k)+" wrapped bearing "+adaptedHeading);
-
-                // Define a transformation matrix based on the current orientation angle, used for control inputs.
-                SimpleMatrix T_mat = new SimpleMatrix(new double[][]{
-                        {1, 0},
-                        {0, Math.sin(theta_k)},
-                        {0, Math.cos(theta_k)}
-                });
-
-                // Create the control input matrix from the current orientation and the previous step length.
-                SimpleMatrix control_inputs = new SimpleMatrix(new double[][]{
-                        {theta_k},
-                        {prevStepLength}
-                });
-
-                // Calculate the additional state change from control inputs.
-                SimpleMatrix add = T_mat.mult(control_inputs);
-
-                // Update the state estimate (Xk) with the new calculated values.
-                double Xk_bearing = Xk.get(0,0);
-                double Xk_x = Xk.get(1,0);
-                double Xk_y = Xk.get(2, 0);
-                Xk.set(0,0, Xk_bearing + add.get(0, 0));
-                Xk.set(1,0, Xk_x + add.get(1, 0));
-                Xk.set(2,0, Xk_y + add.get(2, 0));
-
-                // Update the state transition matrix and process noise covariance matrix.
-                updateFk(adaptedHeading, prevStepLength);
-                updateQk(averageStepLength, adaptedHeading, (refTime-initialiseTime), getThetaStd(userMovementInStep));
-
-                // Define a transformation matrix for process noise application.
-                SimpleMatrix L_k = new SimpleMatrix(new double[][]{
-                        {1, 0},
-                        {0, Math.sin(theta_k)},
-                        {0, Math.cos(theta_k)}
-                });
-
-                // Update the error covariance matrix (Pk) to predict future uncertainties.
-                Pk = Fk.mult(Pk).mult(Fk.transpose()).plus(L_k.mult(Qk).mult(L_k.transpose()));
-
-                // Update the step length for the next prediction.
-                prevStepLength = step_k;
-            }
-        });
+        // Pass the prediction to the EKF thread to keep UI responsive.
+        synchronized (producerLock) {
+            FusionEvent event = eventRing.claim();
+            if (event == null) return;
+            event.type = FusionEvent.Type.PREDICT;
+            event.theta = theta_k;
+            event.stepLength = step_k;
+            event.averageStepLength = averageStepLength;
+            event.refTime = refTime;
+            event.movementType = userMovementInStep;
+            eventRing.publish(event);
+        }
+    }
+
+    /**
+     * Performs the prediction step on the EKF thread.
+     *
+     * @see #predict(double, double, double, long, TurnDetector.MovementType)
+     */
+    private void processPredict(double theta_k, double step_k, double averageStepLength, long refTime, TurnDetector.MovementType userMovementInStep) {
+        // Log the prediction initiation.
+        Log.d("EKF", "======== PREDICT ========");
+
+        // Calculate the adapted heading by wrapping the angle to a standard range.
+        double adaptedHeading = EkfKernel.wrapToPi((Math.PI/2 - theta_k));
+        Log.d("EKF", "Adapted bearing "+ (Math.PI/2 - theta_k)+" wrapped bearing "+adaptedHeading);
+
+        // Update the process noise covariance matrix.
+        updateQk(averageStepLength, adaptedHeading, (refTime-initialiseTime), getThetaStd(userMovementInStep));
+
+        // Keep the inputs so that the prediction can be replayed after a delayed fix.
+        hasPendingPredict = true;
+        pendingTheta = theta_k;
+        pendingAdaptedHeading = adaptedHeading;
+        pendingStepLength = prevStepLength;
+        pendingQBearing = kernel.getProcessNoiseBearing();
+        pendingQStep = kernel.getProcessNoiseStep();
+        System.arraycopy(modeBearingVariances, 0, pendingModeQBearing, 0, ImmFilter.MODE_COUNT);
+        pendingMovementType = userMovementInStep;
+
+        // Apply the control inputs (orientation and previous step length) to the state estimate (Xk) and
+        // propagate the error covariance matrix (Pk) through the state transition matrix (Fk).
+        predictState(theta_k, adaptedHeading, prevStepLength, pendingQBearing, pendingQStep, pendingModeQBearing);
+
+        // Update the step length for the next prediction.
+        prevStepLength = step_k;
     }
 
     /**
@@ -334,36 +461,63 @@ public class ExtendedKalmanFilter{
      * @param penaltyFactor A factor used to modify the observation noise covariance matrix based on external conditions.
      */
     public void update(double[] observation_k, double penaltyFactor){
+        update(observation_k[0], observation_k[1], penaltyFactor, true);
+    }
 
-        // Identity matrix used in calculation of the innovation covariance matrix (Sk).
-        SimpleMatrix Mk = SimpleMatrix.identity(2);
-
-        // Construct the observation matrix Zk from the observation data.
-        SimpleMatrix Zk = new SimpleMatrix(new double[][]{{observation_k[0]}, {observation_k[1]}});
-
+    /**
+     * Updates the state estimate using a new East and North observation.
+     *
+     * @param observeEast The observed East component.
+     * @param observeNorth The observed North component.
+     * @param penaltyFactor A factor used to modify the observation noise covariance matrix based on external conditions.
+     * @param weighModes Whether the observation weighs the motion modes, only for observations independent of the PDR.
+     */
+    private void update(double observeEast, double observeNorth, double penaltyFactor, boolean weighModes){
         // Update the observation noise covariance matrix with the current penalty factor.
         updateRk(penaltyFactor);
 
-        // Compute the prediction error (innovation) as the difference between actual observations and predictions.
-        SimpleMatrix y_pred = Zk.minus(Hk.mult(Xk));
-
-        // Calculate the innovation covariance matrix (Sk) which includes the effect of both
-        // the measurement noise and the uncertainty of the prediction.
-        SimpleMatrix Sk = Hk.mult(Pk).mult(Hk.transpose()).plus(Mk.mult(Rk).mult(Mk.transpose()));
-
-        // Calculate the Kalman Gain, which determines how much the predictions should be corrected based on the new observations.
-        SimpleMatrix KalmanGain = Pk.mult(Hk.transpose().mult(Sk.invert()));
-
-        // Update the state estimate by applying the Kalman Gain to the innovation.
-        Xk = Xk.plus(KalmanGain.mult(y_pred));
+        // Compute the innovation and its covariance (Sk), apply the Kalman Gain to the state estimate,
+        // wrap the bearing to the appropriate range and update the estimate error covariance matrix (Pk).
+        updateState(observeEast, observeNorth, weighModes);
+    }
 
-        // Correct the bearing to ensure it remains within the appropriate range.
-        double adaptedHeading = wrapToPi(Xk.get(0, 0));
-        Xk.set(0, 0, adaptedHeading);
+    /**
+     * Predicts the state over one step, with the single filter or with every mode of the bank.
+     *
+     * @param theta The heading of the step, in radians.
+     * @param adaptedHeading The heading of the step in radians with 0 pointing East.
+     * @param stepLength The length of the step, in meters.
+     * @param qBearing The bearing process noise variance of the single filter.
+     * @param qStep The step length process noise variance.
+     * @param modeQBearing The bearing process noise variance of each mode of the bank.
+     */
+    private void predictState(double theta, double adaptedHeading, double stepLength, double qBearing, double qStep,
+                              double[] modeQBearing) {
+        kernel.setProcessNoise(qBearing, qStep);
+        if (useInteractingModels) {
+            imm.predict(theta, adaptedHeading, stepLength, modeQBearing, qStep);
+            imm.combine(kernel);
+        } else {
+            kernel.predict(theta, adaptedHeading, stepLength);
+        }
+    }
 
-        // Update the estimate error covariance matrix (Pk) using the Kalman Gain and the observation matrix.
-        SimpleMatrix I = SimpleMatrix.identity(Pk.getNumRows()); // Identity matrix for dimension of Pk.
-        Pk = (I.minus(KalmanGain.mult(Hk))).mult(Pk);
+    /**
+     * Corrects the state with an observation, using the observation noise set in the kernel, with the single filter
+     * or with every mode of the bank.
+     *
+     * @param observeEast The observed East component.
+     * @param observeNorth The observed North component.
+     * @param weighModes Whether the observation weighs the motion modes.
+     */
+    private void updateState(double observeEast, double observeNorth, boolean weighModes) {
+        if (useInteractingModels) {
+            imm.update(observeEast, observeNorth, kernel.getObservationNoiseEast(), kernel.getObservationNoiseNorth(),
+                    weighModes);
+            imm.combine(kernel);
+        } else {
+            kernel.update(observeEast, observeNorth);
+        }
     }
 
     /**
@@ -371,26 +525,217 @@ public class ExtendedKalmanFilter{
      * This method allows the EKF to utilize additional data points that may improve the accuracy of the state estimate.
      *
      * @param observe Array containing new observation data, typically positional coordinates like east and north.
-     * @param refTime Reference time when the observation was made, used to timestamp this update.
+     * @param refTime Reference time when the observation was made, used to timestamp this update. A fix made before the
+     *                last step is applied at this time and the steps since are replayed.
      */
     public void onOpportunisticUpdate(double[] observe, long refTime){
+        onOpportunisticUpdate(observe, 0, refTime);
+    }
+
+    /**
+     * Handles an opportunistic update whose accuracy is known.
+     *
+     * @param observe Array containing the observed East and North position.
+     * @param variance The variance of the observation on each axis, or 0 to use the constant of the current source.
+     * @param refTime Reference time when the observation was made.
+     * @see #onOpportunisticUpdate(double[], long)
+     */
+    public void onOpportunisticUpdate(double[] observe, double variance, long refTime){
         // Check if the EKF is set to stop and return immediately if true.
         if (stopEKF) return;
 
-        // Delegate the processing of the update to the handler thread to maintain responsiveness of the main application.
-        ekfHandler.post(new Runnable() {
-            @Override
-            public void run() {
+        // Pass the update to the EKF thread to maintain responsiveness of the main application. A fix that waits
+        // too long in the queue is skipped, as a newer one will be available by the time it is processed.
+        synchronized (producerLock) {
+            FusionEvent event = eventRing.claim();
+            if (event == null) return;
+            event.type = FusionEvent.Type.OPPORTUNISTIC_UPDATE;
+            event.droppableWhenStale = true;
+            event.east = observe[0];
+            event.north = observe[1];
+            event.variance = variance;
+            event.refTime = refTime;
+            eventRing.publish(event);
+        }
+    }
 
-                // Decide whether to use this measurement based on whether the new observation differs from the last.
-                // If it's the same as the last, it might not provide any new information, so it could be skipped.
-                useThisMeasurement = (lastOpportunisticUpdate != null) && (lastOpportunisticUpdate[0] != observe[0] || lastOpportunisticUpdate[1] != observe[1]);
+    /**
+     * Stores an opportunistic update on the EKF thread.
+     *
+     * @see #onOpportunisticUpdate(double[], double, long)
+     */
+    private void processOpportunisticUpdate(double observeEast, double observeNorth, double variance, long refTime) {
+        // Decide whether to use this measurement based on whether the new observation differs from the last.
+        // If it's the same as the last, it might not provide any new information, so it could be skipped.
+        useThisMeasurement = hasOpportunisticUpdate && (lastOpportunisticUpdate[0] != observeEast || lastOpportunisticUpdate[1] != observeNorth);
+
+        // Store the current observations as the last opportunistic update for future reference.
+        lastOpportunisticUpdate[0] = observeEast;
+        lastOpportunisticUpdate[1] = observeNorth;
+        lastOpportunisticVariance = (variance > 0) ? variance : (usingWifi ? wifi_std * wifi_std : gnss_std * gnss_std);
+        hasOpportunisticUpdate = true;
+        lastOpUpdateTime = (refTime - initialiseTime);
+
+        // A fix made before the last step is applied at its own time rather than waiting for the next step.
+        if (useThisMeasurement && applyDelayedUpdate(observeEast, observeNorth, refTime)) {
+            useThisMeasurement = false;
+        }
+    }
 
-                // Store the current observations as the last opportunistic update for future reference.
-                lastOpportunisticUpdate = observe;
-                lastOpUpdateTime = (refTime - initialiseTime);
-            }
-        });
+    /**
+     * Applies a fix made before the last processed step to the state at the time it was made, then replays the steps
+     * taken since on top of the corrected state.
+     *
+     * @param observeEast The observed East position.
+     * @param observeNorth The observed North position.
+     * @param refTime The time the fix was made, in milliseconds.
+     * @return true if the fix has been handled, false if it should be used at the next step instead.
+     */
+    private boolean applyDelayedUpdate(double observeEast, double observeNorth, long refTime) {
+        int index = stateHistory.findLatestAtOrBefore(refTime);
+        // The fix is newer than the last step, or older than the history; leave it for the next step.
+        if (index < 0 || index == stateHistory.size() - 1) return false;
+
+        EkfStateHistory.Entry entry = stateHistory.get(index);
+        // A step only holds one delayed fix, further fixes for it are used at the next step.
+        if (entry.delayed) return false;
+
+        // Gate the fix on its innovation against the state at the time it was made.
+        updateFixRk();
+        double mahalanobis = entry.state.mahalanobis(entry.pdrEast - observeEast, entry.pdrNorth - observeNorth,
+                kernel.getObservationNoiseEast(), kernel.getObservationNoiseNorth());
+        if (!innovationGate.accept(mahalanobis)) {
+            Log.d("EKF", "Gated delayed fix, squared Mahalanobis distance " + mahalanobis);
+            return true;
+        }
+
+        learnFixNoise(entry.state, entry.pdrEast - observeEast, entry.pdrNorth - observeNorth);
+        Log.d("EKF", "Applying fix " + (stateHistory.get(stateHistory.size() - 1).time - refTime)
+                + " ms late, replaying " + (stateHistory.size() - 1 - index) + " steps");
+
+        // Roll back to the state at the time of the fix and apply it as an observation update.
+        kernel.set(entry.state);
+        if (useInteractingModels) imm.restore(entry.immState);
+        updateFixRk();
+        entry.delayed = true;
+        entry.delayedEast = observeEast;
+        entry.delayedNorth = observeNorth;
+        entry.delayedREast = kernel.getObservationNoiseEast();
+        entry.delayedRNorth = kernel.getObservationNoiseNorth();
+        updateState((entry.pdrEast - observeEast), (entry.pdrNorth - observeNorth), true);
+        entry.state.set(kernel);
+        if (useInteractingModels) imm.save(entry.immState);
+        smoother.setFiltered(entry.smootherIndex, kernel);
+
+        // Replay the steps taken since the fix, refreshing their stored states.
+        for (int i = index + 1; i < stateHistory.size(); i++) {
+            EkfStateHistory.Entry step = stateHistory.get(i);
+            replayStep(step);
+            step.state.set(kernel);
+            if (useInteractingModels) imm.save(step.immState);
+            smoother.set(step.smootherIndex, predictedState, kernel);
+        }
+
+        // Reapply a prediction still waiting for its step.
+        if (hasPendingPredict) {
+            predictState(pendingTheta, pendingAdaptedHeading, pendingStepLength, pendingQBearing, pendingQStep,
+                    pendingModeQBearing);
+        }
+
+        notifyEstimate(stateHistory.get(stateHistory.size() - 1).altitude);
+        return true;
+    }
+
+    /**
+     * Processes a step from the history again, with the process and observation noise it was first processed with.
+     *
+     * @param step The step to replay.
+     */
+    private void replayStep(EkfStateHistory.Entry step) {
+        if (step.predicted) {
+            predictState(step.theta, step.adaptedHeading, step.stepLength, step.qBearing, step.qStep, step.modeQBearing);
+            applyStepEvidence(step.movementType, step.altitudeChange);
+        }
+        predictedState.set(kernel);
+        kernel.setObservationNoise(step.rEast, step.rNorth);
+        if (step.observed) {
+            updateState((step.pdrEast - step.observedEast), (step.pdrNorth - step.observedNorth), true);
+        } else {
+            updateState((step.pdrEast - kernel.getEast()), (step.pdrNorth - kernel.getNorth()), false);
+        }
+        if (step.delayed) {
+            kernel.setObservationNoise(step.delayedREast, step.delayedRNorth);
+            updateState((step.pdrEast - step.delayedEast), (step.pdrNorth - step.delayedNorth), true);
+        }
+    }
+
+    /**
+     * Records the step just processed in the history, with the prediction that preceded it.
+     *
+     * @param refTime The time of the step, in milliseconds.
+     * @param pdrEast The PDR East position at the step.
+     * @param pdrNorth The PDR North position at the step.
+     * @param altitude The altitude at the step.
+     * @param observed Whether the step was corrected with a fix rather than recursively.
+     */
+    private void recordStep(long refTime, double pdrEast, double pdrNorth, double altitude, boolean observed) {
+        // Keep the history in time order if the clock goes backwards.
+        if (stateHistory.size() > 0 && refTime < stateHistory.get(stateHistory.size() - 1).time) {
+            stateHistory.clear();
+        }
+        EkfStateHistory.Entry entry = stateHistory.add(refTime);
+        entry.predicted = hasPendingPredict;
+        entry.theta = pendingTheta;
+        entry.adaptedHeading = pendingAdaptedHeading;
+        entry.stepLength = pendingStepLength;
+        entry.qBearing = pendingQBearing;
+        entry.qStep = pendingQStep;
+        System.arraycopy(pendingModeQBearing, 0, entry.modeQBearing, 0, ImmFilter.MODE_COUNT);
+        entry.movementType = pendingMovementType;
+        entry.altitudeChange = pendingAltitudeChange;
+        entry.pdrEast = pdrEast;
+        entry.pdrNorth = pdrNorth;
+        entry.altitude = altitude;
+        entry.observed = observed;
+        entry.observedEast = lastOpportunisticUpdate[0];
+        entry.observedNorth = lastOpportunisticUpdate[1];
+        entry.rEast = kernel.getObservationNoiseEast();
+        entry.rNorth = kernel.getObservationNoiseNorth();
+        entry.state.set(kernel);
+        if (useInteractingModels) imm.save(entry.immState);
+        entry.smootherIndex = smoother.add(refTime, altitude, predictedState, kernel,
+                hasPendingPredict, pendingAdaptedHeading, pendingStepLength);
+        hasPendingPredict = false;
+
+        // Report the position a few steps back, smoothed with the steps taken since.
+        int lagged = smoother.smoothLag(smootherLag);
+        if (lagged >= 0) {
+            SensorFusion.getInstance().notifySmoothedUpdate(toLatLng(smoother.getSmoothedEast(lagged),
+                    smoother.getSmoothedNorth(lagged), smoother.getAltitude(lagged)));
+        }
+    }
+
+    /**
+     * Smooths every step of the recording on the EKF thread.
+     *
+     * @param result The future completed with the smoothed trajectory, or with null if no step was recorded.
+     */
+    private void processSmoothRecording(CompletableFuture<SmoothedTrajectory> result) {
+        if (smoother.size() == 0) {
+            result.complete(null);
+            return;
+        }
+        long startTime = System.nanoTime();
+        smoother.smoothInterval();
+
+        List<LatLng> positions = new ArrayList<>(smoother.size());
+        long[] times = new long[smoother.size()];
+        for (int i = 0; i < smoother.size(); i++) {
+            positions.add(toLatLng(smoother.getSmoothedEast(i), smoother.getSmoothedNorth(i), smoother.getAltitude(i)));
+            times[i] = smoother.getTime(i);
+        }
+        Log.d("EKF", "Smoothed " + smoother.size() + " steps in " + (System.nanoTime() - startTime) / 1000 + " us");
+        result.complete(new SmoothedTrajectory(positions, times));
     }
 
     /**
@@ -407,29 +752,82 @@ public class ExtendedKalmanFilter{
         // Return immediately if the EKF has been flagged to stop, avoiding unnecessary computations.
         if (stopEKF) return;
 
-        // Use a handler to post the step processing to a background thread, ensuring that the UI remains responsive.
-        ekfHandler.post(new Runnable() {
-            @Override
-            public void run() {
-
-                // Check if there's a valid last opportunistic update, if it should be used, and if it is still relevant based on timing.
-                if (lastOpportunisticUpdate != null && useThisMeasurement && checkRelevance((refTime - initialiseTime))) {
-                    // Calculate the Euclidean distance between the last opportunistic update and the current PDR data.
-                    double distanceBetween = Math.sqrt(Math.pow(lastOpportunisticUpdate[0] - pdrEast, 2) + Math.pow(lastOpportunisticUpdate[1] - pdrNorth, 2));
-
-                    // Use the outlier detector to determine if the new step data significantly deviates from expected patterns.
-                    if (!outlierDetector.detectOutliers(distanceBetween)) {
-                        // If no outliers are detected and the data is deemed relevant, update the observations accordingly.
-                        onObservationUpdate(lastOpportunisticUpdate[0], lastOpportunisticUpdate[1], pdrEast, pdrNorth, altitude, 1);
-                        useThisMeasurement = false;
-                        return;
-                    }
-                }
+        // Pass the step processing to the EKF thread, ensuring that the UI remains responsive.
+        synchronized (producerLock) {
+            FusionEvent event = eventRing.claim();
+            if (event == null) return;
+            event.type = FusionEvent.Type.STEP;
+            event.pdrEast = pdrEast;
+            event.pdrNorth = pdrNorth;
+            event.altitude = altitude;
+            event.refTime = refTime;
+            eventRing.publish(event);
+        }
+    }
+
+    /**
+     * Processes a detected step on the EKF thread.
+     *
+     * @see #onStepDetected(double, double, double, long)
+     */
+    private void processStep(double pdrEast, double pdrNorth, double altitude, long refTime) {
+        // Weigh the motion modes with the movement detected over the step and the change of altitude.
+        pendingAltitudeChange = hasStepAltitude ? altitude - lastStepAltitude : 0;
+        lastStepAltitude = altitude;
+        hasStepAltitude = true;
+        if (hasPendingPredict) {
+            applyStepEvidence(pendingMovementType, pendingAltitudeChange);
+        }
 
-                // If the conditions for a direct update are not met, perform a recursive correction to refine the state estimate.
-                performRecursiveCorrection(pdrEast, pdrNorth, altitude, calculateTimePenalty((refTime - initialiseTime)));
+        // Keep the predicted state of the step for the smoother.
+        predictedState.set(kernel);
+
+        // Check if there's a valid last opportunistic update, if it should be used, and if it is still relevant based on timing.
+        if (hasOpportunisticUpdate && useThisMeasurement && checkRelevance((refTime - initialiseTime))) {
+            // Gate the fix on the squared Mahalanobis distance of its innovation, with the innovation covariance of the update.
+            updateFixRk();
+            double observeEast = pdrEast - lastOpportunisticUpdate[0];
+            double observeNorth = pdrNorth - lastOpportunisticUpdate[1];
+            double mahalanobis = kernel.mahalanobis(observeEast, observeNorth);
+            if (innovationGate.accept(mahalanobis)) {
+                // If no outliers are detected and the data is deemed relevant, update the observations accordingly,
+                // weighing the fix with its own accuracy and the noise learnt for its source.
+                // The update is applied directly, as this already runs on the EKF thread.
+                learnFixNoise(kernel, observeEast, observeNorth);
+                updateFixRk();
+                updateState(observeEast, observeNorth, true);
+                notifyEstimate(altitude);
+                useThisMeasurement = false;
+                recordStep(refTime, pdrEast, pdrNorth, altitude, true);
+                return;
             }
-        });
+        }
+
+        // If the conditions for a direct update are not met, perform a recursive correction to refine the state estimate.
+        processRecursiveCorrection(pdrEast, pdrNorth, altitude, calculateTimePenalty((refTime - initialiseTime)));
+        recordStep(refTime, pdrEast, pdrNorth, altitude, false);
+    }
+
+    /**
+     * Weighs the motion modes of the bank with the evidence of a step, and updates the combined estimate.
+     *
+     * @param movementType The movement detected by the turn detector over the step.
+     * @param altitudeChange The change of altitude over the step, in meters.
+     */
+    private void applyStepEvidence(TurnDetector.MovementType movementType, double altitudeChange) {
+        if (!useInteractingModels) return;
+        imm.applyStepEvidence(movementType, altitudeChange);
+        imm.combine(kernel);
+        Log.d("EKF", "Most likely motion mode " + imm.getMostLikelyMode());
+    }
+
+    /**
+     * A get method for the bank of motion mode filters, giving access to the mode probabilities.
+     *
+     * @return The IMM bank of the filter.
+     */
+    public ImmFilter getImmFilter() {
+        return imm;
     }
 
     /**
@@ -527,30 +925,61 @@ public class ExtendedKalmanFilter{
         // If the EKF is stopped, no further processing is done.
         if (stopEKF) return;
 
-        // Post the execution to a handler to ensure the main UI thread remains responsive.
-        ekfHandler.post(new Runnable() {
-            @Override
-            public void run() {
-                // Calculate the discrepancy between the observed and PDR data.
-                double[] observation = new double[] {(pdrEast - observeEast), (pdrNorth - observeNorth)};
+        // Pass the update to the EKF thread to ensure the main UI thread remains responsive.
+        synchronized (producerLock) {
+            FusionEvent event = eventRing.claim();
+            if (event == null) return;
+            event.type = FusionEvent.Type.OBSERVATION_UPDATE;
+            event.east = observeEast;
+            event.north = observeNorth;
+            event.pdrEast = pdrEast;
+            event.pdrNorth = pdrNorth;
+            event.altitude = altitude;
+            event.penaltyFactor = penaltyFactor;
+            eventRing.publish(event);
+        }
+    }
 
-                // Update the EKF with the new observation and the penalty factor.
-                update(observation, penaltyFactor);
+    /**
+     * Performs an observation update on the EKF thread.
+     *
+     * @see #onObservationUpdate(double, double, double, double, double, double)
+     */
+    private void processObservationUpdate(double observeEast, double observeNorth, double pdrEast, double pdrNorth,
+                                          double altitude, double penaltyFactor) {
+        // Update the EKF with the discrepancy between the observed and PDR data and the penalty factor.
+        update((pdrEast - observeEast), (pdrNorth - observeNorth), penaltyFactor, true);
 
-                // Retrieve the start position and reference ECEF coordinates from a singleton instance of SensorFusion.
-                double[] startPosition = SensorFusion.getInstance().getGNSSLatLngAlt(true);
-                double[] ecefRefCoords = SensorFusion.getInstance().getEcefRefCoords();
+        // Notify the SensorFusion instance to update its fused location based on the smoothed EKF output.
+        notifyEstimate(altitude);
+    }
 
-                // Apply a smoothing filter to the updated coordinates.
-                double[] smoothedCoords = smoothingFilter.applySmoothing(new double[]{Xk.get(1, 0), Xk.get(2, 0)});
+    /**
+     * Smooths the current position estimate and passes it to {@link SensorFusion} as the fused location.
+     *
+     * @param altitude The altitude, used for the geodetic transformation.
+     */
+    private void notifyEstimate(double altitude) {
+        // Apply a smoothing filter to the updated coordinates.
+        double[] smoothedCoords = smoothingFilter.applySmoothing(new double[]{kernel.getEast(), kernel.getNorth()});
 
-                // Notify the SensorFusion instance to update its fused location based on the smoothed EKF output.
-                SensorFusion.getInstance().notifyFusedUpdate(
-                        CoordinateTransform.enuToGeodetic(smoothedCoords[0], smoothedCoords[1],
-                                altitude, startPosition[0], startPosition[1], ecefRefCoords)
-                );
-            }
-        });
+        // Notify the SensorFusion instance to update its fused location based on the smoothed EKF output.
+        SensorFusion.getInstance().notifyFusedUpdate(toLatLng(smoothedCoords[0], smoothedCoords[1], altitude));
+    }
+
+    /**
+     * Transforms a position of the filter to geodetic coordinates around the start position of the recording.
+     *
+     * @param east The East position, in meters.
+     * @param north The North position, in meters.
+     * @param altitude The altitude, used for the geodetic transformation.
+     * @return The position as latitude and longitude.
+     */
+    private LatLng toLatLng(double east, double north, double altitude) {
+        // Retrieve the start position and reference ECEF coordinates from a singleton instance of SensorFusion.
+        double[] startPosition = SensorFusion.getInstance().getGNSSLatLngAlt(true);
+        double[] ecefRefCoords = SensorFusion.getInstance().getEcefRefCoords();
+        return CoordinateTransform.enuToGeodetic(east, north, altitude, startPosition[0], startPosition[1], ecefRefCoords);
     }
 
     /**
@@ -567,36 +996,35 @@ public class ExtendedKalmanFilter{
         // Stop further execution if the filter is flagged to stop.
         if (stopEKF) return;
 
-        // Post the recursive correction process to a handler to run asynchronously, preventing UI blocking.
-        ekfHandler.post(new Runnable() {
-            @Override
-            public void run() {
-
-                // Retrieve the current predicted positions from the state estimate.
-                double predictedEast = Xk.get(1, 0);
-                double predictedNorth = Xk.get(2, 0);
-
-                // Calculate the difference between the observed (PDR) and predicted positions.
-                double[] observation = new double[] {(pdrEast - predictedEast), (pdrNorth - predictedNorth)};
-
-                // Perform an update with the observation vector and the current penalty factor.
-                update(observation, penaltyFactor);
+        // Pass the recursive correction to the EKF thread to run asynchronously, preventing UI blocking.
+        synchronized (producerLock) {
+            FusionEvent event = eventRing.claim();
+            if (event == null) return;
+            event.type = FusionEvent.Type.RECURSIVE_CORRECTION;
+            event.pdrEast = pdrEast;
+            event.pdrNorth = pdrNorth;
+            event.altitude = altitude;
+            event.penaltyFactor = penaltyFactor;
+            eventRing.publish(event);
+        }
+    }
 
-                // Retrieve starting position and reference coordinates from the SensorFusion instance.
-                double[] startPosition = SensorFusion.getInstance().getGNSSLatLngAlt(true);
-                double[] ecefRefCoords = SensorFusion.getInstance().getEcefRefCoords();
+    /**
+     * Performs a recursive correction on the EKF thread.
+     *
+     * @see #performRecursiveCorrection(double, double, double, double)
+     */
+    private void processRecursiveCorrection(double pdrEast, double pdrNorth, double altitude, double penaltyFactor) {
+        // Retrieve the current predicted positions from the state estimate.
+        double predictedEast = kernel.getEast();
+        double predictedNorth = kernel.getNorth();
 
-                // Apply a smoothing filter to the new estimated coordinates for output stabilization.
-                double[] smoothedCoords = smoothingFilter.applySmoothing(new double[]{Xk.get(1, 0), Xk.get(2, 0)});
+        // Perform an update with the difference between the observed (PDR) and predicted positions
+        // and the current penalty factor.
+        update((pdrEast - predictedEast), (pdrNorth - predictedNorth), penaltyFactor, false);
 
-                // Update the external system (e.g., a mapping interface) with the new smoothed geodetic coordinates.
-                SensorFusion.getInstance().notifyFusedUpdate(
-                        CoordinateTransform.enuToGeodetic(smoothedCoords[0], smoothedCoords[1],
-                                altitude,
-                                startPosition[0], startPosition[1], ecefRefCoords)
-                );
-            }
-        });
+        // Update the external system (e.g., a mapping interface) with the new smoothed geodetic coordinates.
+        notifyEstimate(altitude);
     }
 
     /**
@@ -619,24 +1047,6 @@ public class ExtendedKalmanFilter{
         }
     }
 
-    /**
-     * Wraps an angle in radians to the range from -π to π. This is useful for ensuring that
-     * angular measurements remain within a standard range, simplifying calculations that involve angles.
-     *
-     * @param x The angle in radians to be normalized.
-     * @return The angle wrapped to the range [-π, π].
-     */
-    private static double wrapToPi(double x) {
-        double bearing = x % (2 * Math.PI); // Normalize angle to range [0, 2π]
-
-        if (bearing < -Math.PI) {
-            bearing += 2 * Math.PI; // Adjust if the angle is less than -π to fit into the range [-π, π]
-        } else if (bearing > Math.PI) {
-            bearing -= 2 * Math.PI; // Adjust if the angle is more than π to fit into the range [-π, π]
-        }
-        return bearing;
-    }
-
     /**
      * Sets whether the system should use WiFi for location updates. This setting can affect how data is processed
      * and how updates are handled, potentially prioritizing WiFi data when available.
@@ -646,22 +1056,215 @@ public class ExtendedKalmanFilter{
     public void setUsingWifi(boolean update) {
         if (this.stopEKF) return; // Exit if the EKF is stopped.
 
-        ekfHandler.post(new Runnable() {
-            @Override
-            public void run() {
-                usingWifi = update; // Update the flag that controls WiFi usage.
-            }
-        });
+        // Change the flag on the EKF thread, in order with the measurements already queued.
+        synchronized (producerLock) {
+            FusionEvent event = eventRing.claim();
+            if (event == null) return;
+            event.type = FusionEvent.Type.SET_USING_WIFI;
+            event.usingWifi = update;
+            eventRing.publish(event);
+        }
     }
 
     /**
      * Stops all operations related to the Extended Kalman Filter, cleans up resources, and logs the action.
      * This method should be called when the system no longer needs to perform state estimations or when it is being shut down.
+     *
+     * @param smoothResult The future completed with the whole recording smoothed once the steps already queued have
+     *                     been processed, when the recording is finished, or null when the filter is only replaced by
+     *                     another engine.
      */
-    public void stopFusion(){
+    public void stopFusion(CompletableFuture<SmoothedTrajectory> smoothResult){
         this.stopEKF = true; // Set the flag to stop the EKF.
         Log.d("EKF:", "Stopping EKF handler"); // Log the stopping action for debugging.
         this.smoothingFilter.reset(); // Reset the smoothing filter to clear any retained state.
-        ekfThread.quitSafely(); // Safely quit the handler thread, ensuring all messages are processed before closure.
+        if (smoothResult != null) {
+            // Smooth the whole recording once the steps already queued have been processed.
+            synchronized (producerLock) {
+                FusionEvent event = eventRing.claim();
+                if (event != null) {
+                    event.type = FusionEvent.Type.SMOOTH_RECORDING;
+                    event.smoothResult = smoothResult;
+                    eventRing.publish(event);
+                } else {
+                    smoothResult.complete(null);
+                }
+            }
+        }
+        eventRing.shutdown(); // Stop the EKF thread once the events already queued have been processed.
+        Log.d("EKF", "Event ring: max depth " + eventRing.getMaxQueueDepth() + "/" + eventRing.getCapacity()
+                + ", overflow drops " + eventRing.getOverflowDrops() + ", stale drops " + eventRing.getStaleDrops()
+                + ", mean latency " + (long) eventRing.getMeanLatencyNanos() + " ns, max latency "
+                + eventRing.getMaxLatencyNanos() + " ns");
+        Log.d("EKF", "Step latency: " + stepLatency);
+        Log.d("EKF", "WiFi fix latency: " + wifiFixLatency);
+        Log.d("EKF", "GNSS fix latency: " + gnssFixLatency);
+        Log.d("EKF", "Innovation gate: accepted " + innovationGate.getAccepted() + ", rejected "
+                + innovationGate.getRejected());
+        Log.d("EKF", "Observation noise scale: WiFi " + wifiNoise.getScale() + ", GNSS " + gnssNoise.getScale());
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * The step is predicted with its heading and length, then corrected with the PDR position and any pending fix.
+     */
+    @Override
+    public void onStep(double heading, double stepLength, double averageStepLength, double pdrEast, double pdrNorth,
+                       double altitude, TurnDetector.MovementType movementType, long refTime) {
+        predict(heading, stepLength, averageStepLength, refTime, movementType);
+        onStepDetected(pdrEast, pdrNorth, altitude, refTime);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * WiFi fixes are only used while the user is in an area covered by the positioning server.
+     */
+    @Override
+    public void onWifiFix(double latitude, double longitude, double altitude, long refTime) {
+        if (!wifiCoverage) return;
+        onOpportunisticUpdate(toEnu(latitude, longitude, altitude), refTime);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * GNSS fixes are only used outside of the areas covered by WiFi, where they are less accurate than the WiFi fixes.
+     * Each fix is weighed with its reported accuracy, scaled by the noise learnt from the recent GNSS fixes.
+     */
+    @Override
+    public void onGnssFix(double latitude, double longitude, double altitude, double accuracy, long refTime) {
+        if (wifiCoverage) return;
+        onOpportunisticUpdate(toEnu(latitude, longitude, altitude),
+                AdaptiveNoiseEstimator.varianceFromAccuracy(accuracy, gnss_std * gnss_std), refTime);
+    }
+
+    /**
+     * Converts a geodetic position into the East North Up frame of the filter, centred on the start position.
+     *
+     * @return The East, North and Up coordinates, in meters.
+     */
+    private double[] toEnu(double latitude, double longitude, double altitude) {
+        double[] startPosition = SensorFusion.getInstance().getGNSSLatLngAlt(true);
+        return CoordinateTransform.geodeticToEnu(latitude, longitude, altitude, startPosition[0], startPosition[1], startPosition[2]);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setWifiCoverage(boolean covered) {
+        this.wifiCoverage = covered;
+        setUsingWifi(covered);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * The estimate published by the EKF thread after the last event it processed is returned without waiting, so the
+     * events still queued are not included.
+     */
+    @Override
+    public FusionState snapshot() {
+        if (stopEKF) return null;
+        return lastState;
+    }
+
+    /**
+     * Reads the current estimate, on the EKF thread or before it is started.
+     *
+     * @see #snapshot()
+     */
+    private FusionState currentState() {
+        return new FusionState(kernel.getEast(), kernel.getNorth(), hasStepAltitude ? lastStepAltitude : 0,
+                kernel.getCovariance(1, 1), kernel.getCovariance(2, 2), kernel.getCovariance(1, 2));
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * The position and its covariance are replaced on the EKF thread, in order with the events already queued.
+     */
+    @Override
+    public void restore(FusionState state) {
+        if (stopEKF || state == null) return;
+        synchronized (producerLock) {
+            FusionEvent event = eventRing.claim();
+            if (event == null) return;
+            event.type = FusionEvent.Type.RESTORE;
+            event.state = state;
+            eventRing.publish(event);
+        }
+    }
+
+    /**
+     * Replaces the estimate on the EKF thread. The bearing is kept, and the steps processed before cannot be replayed
+     * against the new estimate, so the history of delayed fixes is cleared. The altitude of another engine may come
+     * from a different sensor, so the altitude change of the next step is not used as mode evidence.
+     *
+     * @see #restore(FusionState)
+     */
+    private void processRestore(FusionState state) {
+        double[] states = {kernel.getBearing(), state.getEast(), state.getNorth()};
+        double[] covariances = {
+                kernel.getCovariance(0, 0), 0, 0,
+                0, state.getVarianceEast(), state.getCovariance(),
+                0, state.getCovariance(), state.getVarianceNorth()};
+        kernel.load(states, 0, covariances, 0);
+        imm.initialise(kernel);
+        stateHistory.clear();
+        hasPendingPredict = false;
+        hasOpportunisticUpdate = false;
+        hasStepAltitude = false;
+        smoothingFilter.reset();
+        Log.d("EKF", "Restored estimate East " + state.getEast() + " North " + state.getNorth());
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * The recording is not smoothed, as the estimate continues in another engine.
+     */
+    @Override
+    public void stop() {
+        stopFusion(null);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * The whole recording is smoothed on the EKF thread once the steps already queued have been processed, the future
+     * being completed there.
+     */
+    @Override
+    public CompletableFuture<SmoothedTrajectory> finish() {
+        CompletableFuture<SmoothedTrajectory> result = new CompletableFuture<>();
+        stopFusion(result);
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public LatencyHistogram getLatencyHistogram(Input input) {
+        switch (input) {
+            case STEP:
+                return stepLatency;
+            case WIFI_FIX:
+                return wifiFixLatency;
+            default:
+                return gnssFixLatency;
+        }
+    }
+
+    /**
+     * A get method for the event ring feeding the EKF thread, giving access to its queue depth, drop and latency metrics.
+     *
+     * @return The event ring of the filter.
+     */
+    public FusionEventRing getEventRing() {
+        return eventRing;
     }
 }
@@ -0,0 +1,165 @@
+package com.openpositioning.PositionMe.FusionAlgorithms;
+
+import java.util.Random;
+
+/**
+ * Fast, non-synchronized random number generator for the per-particle noise of the particle filter.
+ *
+ * {@link Random} guards its state with an atomic compare-and-set and {@link Random#nextGaussian()}
+ * is synchronized and uses the polar method, which needs a logarithm and a square root per pair of
+ * values. This class replaces the generator with xoroshiro128+ and the Gaussian sampler with the
+ * ziggurat method of Marsaglia and Tsang, which returns most samples with one random integer, one
+ * table lookup and one multiplication.
+ *
+ * It extends {@link Random} so it can be passed anywhere a {@link Random} is expected, but an
+ * instance must only be used from one thread at a time.
+ */
+public class FastRandom extends Random {
+    // Number of ziggurat layers
+    private static final int LAYERS = 128;
+    // Start of the tail of the ziggurat for 128 layers
+    private static final double TAIL_START = 3.442619855899;
+    // Area of every ziggurat layer
+    private static final double LAYER_AREA = 9.91256303526217e-3;
+
+    // Ziggurat tables: acceptance thresholds, layer widths scaled to a 32 bit integer and layer heights
+    private static final int[] KN = new int[LAYERS];
+    private static final double[] WN = new double[LAYERS];
+    private static final double[] FN = new double[LAYERS];
+
+    static {
+        double m1 = 2147483648.0;
+        double dn = TAIL_START;
+        double tn = dn;
+        double q = LAYER_AREA / Math.exp(-0.5 * dn * dn);
+
+        KN[0] = (int) ((dn / q) * m1);
+        KN[1] = 0;
+        WN[0] = q / m1;
+        WN[LAYERS - 1] = dn / m1;
+        FN[0] = 1.0;
+        FN[LAYERS - 1] = Math.exp(-0.5 * dn * dn);
+        for (int i = LAYERS - 2; i >= 1; i--) {
+            dn = Math.sqrt(-2.0 * Math.log(LAYER_AREA / dn + Math.exp(-0.5 * dn * dn)));
+            KN[i + 1] = (int) ((dn / tn) * m1);
+            tn = dn;
+            FN[i] = Math.exp(-0.5 * dn * dn);
+            WN[i] = dn / m1;
+        }
+    }
+
+    // xoroshiro128+ state, never both zero
+    private long state0;
+    private long state1;
+
+    /**
+     * Creates a generator seeded from the system clock.
+     */
+    public FastRandom() {
+        this(System.nanoTime() ^ 0x5DEECE66DL);
+    }
+
+    /**
+     * Creates a generator with a fixed seed, so the sequence can be reproduced.
+     *
+     * @param seed The initial seed.
+     */
+    public FastRandom(long seed) {
+        super(seed);
+    }
+
+    /**
+     * Resets the generator, expanding the seed into the 128 bit state with SplitMix64.
+     *
+     * @param seed The new seed.
+     */
+    @Override
+    public void setSeed(long seed) {
+        long x = seed;
+        x += 0x9E3779B97F4A7C15L;
+        state0 = mix64(x);
+        x += 0x9E3779B97F4A7C15L;
+        state1 = mix64(x);
+        if (state0 == 0 && state1 == 0) {
+            state1 = 1;
+        }
+    }
+
+    /**
+     * SplitMix64 finaliser.
+     */
+    private static long mix64(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    @Override
+    public long nextLong() {
+        long s0 = state0;
+        long s1 = state1;
+        long result = s0 + s1;
+        s1 ^= s0;
+        state0 = Long.rotateLeft(s0, 24) ^ s1 ^ (s1 << 16);
+        state1 = Long.rotateLeft(s1, 37);
+        return result;
+    }
+
+    @Override
+    protected int next(int bits) {
+        // The upper bits of xoroshiro128+ are the strongest
+        return (int) (nextLong() >>> (64 - bits));
+    }
+
+    @Override
+    public int nextInt() {
+        return (int) (nextLong() >>> 32);
+    }
+
+    @Override
+    public double nextDouble() {
+        return (nextLong() >>> 11) * 0x1.0p-53;
+    }
+
+    /**
+     * Draws a standard normal value with the ziggurat method.
+     *
+     * @return A sample from the standard normal distribution.
+     */
+    @Override
+    public double nextGaussian() {
+        int hz = nextInt();
+        int iz = hz & (LAYERS - 1);
+        // Fast path, the sample lies inside the rectangle of its layer
+        if (Math.abs(hz) < KN[iz]) {
+            return hz * WN[iz];
+        }
+        return gaussianSlowPath(hz, iz);
+    }
+
+    /**
+     * Handles the samples falling in the wedge of a layer or in the tail of the distribution.
+     */
+    private double gaussianSlowPath(int hz, int iz) {
+        while (true) {
+            double x = hz * WN[iz];
+            if (iz == 0) {
+                // Sample the tail beyond the last layer with Marsaglia's exponential method
+                double y;
+                do {
+                    x = -Math.log(1.0 - nextDouble()) / TAIL_START;
+                    y = -Math.log(1.0 - nextDouble());
+                } while (y + y < x * x);
+                return (hz > 0) ? TAIL_START + x : -TAIL_START - x;
+            }
+            if (FN[iz] + nextDouble() * (FN[iz - 1] - FN[iz]) < Math.exp(-0.5 * x * x)) {
+                return x;
+            }
+            hz = nextInt();
+            iz = hz & (LAYERS - 1);
+            if (Math.abs(hz) < KN[iz]) {
+                return hz * WN[iz];
+            }
+        }
+    }
+}
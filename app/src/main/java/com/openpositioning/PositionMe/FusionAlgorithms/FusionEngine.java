@@ -0,0 +1,150 @@
+package com.openpositioning.PositionMe.FusionAlgorithms;
+
+import com.google.android.gms.maps.model.LatLng;
+import com.openpositioning.PositionMe.Buildings.WallMap;
+import com.openpositioning.PositionMe.sensors.TurnDetector;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A fusion algorithm combining the PDR steps with the WiFi and GNSS fixes of a recording into a
+ * position estimate, reported through {@link com.openpositioning.PositionMe.sensors.SensorFusion}.
+ *
+ * The sensor code only talks to this interface, so the algorithm can be chosen per device and
+ * replaced during a recording: the estimate of the running engine is taken with
+ * {@link #snapshot()}, restored into the new engine with {@link #restore(FusionState)}, and the
+ * old engine is stopped. Each engine records the cost of the inputs it processes in a
+ * {@link LatencyHistogram} per kind of input.
+ *
+ * Inputs may arrive from different threads. An engine either processes them on its own thread, in
+ * the order they were received, or makes them safe to call concurrently.
+ */
+public interface FusionEngine {
+    /**
+     * The kinds of input an engine receives, each with its own latency histogram.
+     */
+    enum Input {
+        STEP,
+        WIFI_FIX,
+        GNSS_FIX
+    }
+
+    /**
+     * Processes a step detected by PDR.
+     *
+     * @param heading The heading of the step relative to North, in radians.
+     * @param stepLength The length of the step, in meters.
+     * @param averageStepLength The average step length of the recording, in meters.
+     * @param pdrEast The easting of the PDR position after the step, in meters from the start position.
+     * @param pdrNorth The northing of the PDR position after the step, in meters from the start position.
+     * @param altitude The altitude at the step, in meters.
+     * @param movementType The movement detected by the turn detector over the step.
+     * @param refTime The time of the step, from SystemClock.uptimeMillis().
+     */
+    void onStep(double heading, double stepLength, double averageStepLength, double pdrEast, double pdrNorth,
+                double altitude, TurnDetector.MovementType movementType, long refTime);
+
+    /**
+     * Processes a position computed by the WiFi positioning server.
+     *
+     * @param latitude The latitude of the fix, in degrees.
+     * @param longitude The longitude of the fix, in degrees.
+     * @param altitude The altitude of the user at the fix, in meters.
+     * @param refTime The time of the scan the fix was computed from, from SystemClock.uptimeMillis().
+     */
+    void onWifiFix(double latitude, double longitude, double altitude, long refTime);
+
+    /**
+     * Processes a GNSS position.
+     *
+     * @param latitude The latitude of the fix, in degrees.
+     * @param longitude The longitude of the fix, in degrees.
+     * @param altitude The altitude of the fix, in meters.
+     * @param accuracy The horizontal accuracy reported with the fix, the radius of 68% confidence in meters,
+     *                 or 0 if unknown.
+     * @param refTime The time of the fix, from SystemClock.uptimeMillis().
+     */
+    void onGnssFix(double latitude, double longitude, double altitude, double accuracy, long refTime);
+
+    /**
+     * Tells the engine whether the user is in an area covered by the WiFi positioning server.
+     * Engines that weigh every fix the same way can ignore it.
+     *
+     * @param covered True if WiFi fixes are available.
+     */
+    default void setWifiCoverage(boolean covered) {}
+
+    /**
+     * Whether the engine constrains the estimate to the walls of the floor, so that wall maps are
+     * only loaded for engines using them.
+     *
+     * @return True if {@link #setWallMap(WallMap, LatLng)} has an effect.
+     */
+    default boolean usesWallMap() { return false; }
+
+    /**
+     * Sets the walls of the floor the user is on.
+     *
+     * @param wallMap The walls relative to the building origin, or null to remove the constraint.
+     * @param buildingOrigin The south west corner of the building bounds the wall map is relative to.
+     */
+    default void setWallMap(WallMap wallMap, LatLng buildingOrigin) {}
+
+    /**
+     * Whether the engine propagates its estimate from the gyroscope between steps, so that the yaw
+     * rate is only computed for engines using it.
+     *
+     * @return True if {@link #onAngularRate(double, long)} has an effect.
+     */
+    default boolean usesAngularRate() { return false; }
+
+    /**
+     * Processes a sample of the gyroscope, at the sensor rate.
+     *
+     * @param yawRate The rate of turn about the vertical, clockwise seen from above, in rad/s.
+     * @param timeNanos The time of the sample, from the sensor event timestamp in nanoseconds.
+     */
+    default void onAngularRate(double yawRate, long timeNanos) {}
+
+    /**
+     * Takes the current estimate without blocking the caller, usually the main thread. Engines
+     * processing their inputs on their own thread return the estimate after the last input processed.
+     *
+     * @return The estimate, or null if the engine has been stopped or could not provide it.
+     */
+    FusionState snapshot();
+
+    /**
+     * Replaces the estimate of the engine, before any input it has not processed yet.
+     *
+     * @param state The estimate to continue from, usually taken from another engine.
+     */
+    void restore(FusionState state);
+
+    /**
+     * Stops the engine when it is replaced by another engine during the recording. Inputs received
+     * afterwards are ignored.
+     */
+    void stop();
+
+    /**
+     * Stops the engine at the end of the recording. Inputs received afterwards are ignored. Engines
+     * processing the whole recording once it is over, such as a smoother, do it here rather than in
+     * {@link #stop()}, on their own thread so that the caller is not blocked.
+     *
+     * @return A future completed with the fused trajectory smoothed over the whole recording, or
+     *         with null if the engine does not smooth it or could not provide it.
+     */
+    default CompletableFuture<SmoothedTrajectory> finish() {
+        stop();
+        return CompletableFuture.completedFuture(null);
+    }
+
+    /**
+     * A get method for the processing time of one kind of input, excluding any time spent queued.
+     *
+     * @param input The kind of input.
+     * @return The latency histogram of the input.
+     */
+    LatencyHistogram getLatencyHistogram(Input input);
+}
@@ -0,0 +1,71 @@
+package com.openpositioning.PositionMe.FusionAlgorithms;
+
+import com.openpositioning.PositionMe.sensors.TurnDetector;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A preallocated, reusable input to a fusion algorithm, carried from the sensor threads to the
+ * fusion thread by a {@link FusionEventRing}.
+ *
+ * Events live in the slots of the ring and are overwritten once consumed, so a single instance
+ * carries the fields of every event type. Only the fields listed for the event's {@link Type} are
+ * meaningful, and a processor must not keep a reference to an event after handling it.
+ */
+public class FusionEvent {
+    /**
+     * The kinds of input a fusion algorithm receives.
+     */
+    public enum Type {
+        // A step with its heading and length: theta, stepLength, averageStepLength, refTime, movementType
+        PREDICT,
+        // A PDR position: pdrEast, pdrNorth, altitude, refTime
+        STEP,
+        // A WiFi or GNSS fix: east, north, variance, refTime
+        OPPORTUNISTIC_UPDATE,
+        // A fix compared with a PDR position: east, north, pdrEast, pdrNorth, altitude, penaltyFactor
+        OBSERVATION_UPDATE,
+        // A PDR position used on its own: pdrEast, pdrNorth, altitude, penaltyFactor
+        RECURSIVE_CORRECTION,
+        // A change of the observation source: usingWifi
+        SET_USING_WIFI,
+        // The end of the recording, the whole trajectory is smoothed: smoothResult
+        SMOOTH_RECORDING,
+        // A replacement of the estimate: state
+        RESTORE
+    }
+
+    // Kind of event
+    Type type;
+    // Whether the fusion thread may skip the event once it is older than the ring's age limit
+    boolean droppableWhenStale;
+    // Time the event was published, from System.nanoTime()
+    long publishNanos;
+
+    // Event data, see Type for which fields each kind of event uses
+    double theta;
+    double stepLength;
+    double averageStepLength;
+    double east;
+    double north;
+    double pdrEast;
+    double pdrNorth;
+    double altitude;
+    double penaltyFactor;
+    double variance;
+    long refTime;
+    TurnDetector.MovementType movementType;
+    boolean usingWifi;
+    FusionState state;
+    CompletableFuture<SmoothedTrajectory> smoothResult;
+
+    /**
+     * Clears the fields that are not always set, before the slot is reused.
+     */
+    void reset() {
+        droppableWhenStale = false;
+        movementType = null;
+        state = null;
+        smoothResult = null;
+    }
+}
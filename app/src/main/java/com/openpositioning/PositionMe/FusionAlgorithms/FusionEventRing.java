@@ -0,0 +1,261 @@
+package com.openpositioning.PositionMe.FusionAlgorithms;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded single-producer single-consumer queue of preallocated {@link FusionEvent}s, drained by a
+ * dedicated fusion thread.
+ *
+ * Posting a new Runnable to a Handler for every sensor event allocates on each call and lets
+ * messages pile up without limit when the fusion thread falls behind. Here every event is written
+ * into a slot of a fixed ring, and the producer and consumer only exchange two sequence counters,
+ * so passing an event neither allocates nor takes a lock.
+ *
+ * When the ring is full the {@link OverflowPolicy} decides whether the producer waits for a free
+ * slot (backpressure) or the new event is dropped. Events marked as droppable are also skipped by
+ * the consumer once they are older than a configurable age, so a backlog is not spent on stale
+ * fixes. The ring records the queue depth, the number of dropped events and the latency from
+ * publication to the end of processing.
+ *
+ * Only one thread may claim and publish events at a time. Callers with several producer threads
+ * must serialise {@link #claim()} and {@link #publish(FusionEvent)} themselves.
+ */
+public class FusionEventRing {
+    /**
+     * What to do when an event is published into a full ring.
+     */
+    public enum OverflowPolicy {
+        // Wait for the fusion thread to free a slot
+        BLOCK,
+        // Drop the new event
+        DROP_NEWEST
+    }
+
+    /**
+     * Processes the events taken off the ring, on the fusion thread.
+     */
+    public interface EventProcessor {
+        /**
+         * Processes one event. The event is reused once this method returns.
+         *
+         * @param event The event to process.
+         */
+        void process(FusionEvent event);
+    }
+
+    // Time the producer waits between checks for a free slot when blocking
+    private static final long BACKOFF_NANOS = 50000;
+    // Smoothing factor of the running mean latency
+    private static final double LATENCY_SMOOTHING = 0.05;
+
+    // Preallocated event slots, the capacity is a power of two
+    private final FusionEvent[] events;
+    private final int mask;
+
+    // Sequence of the next event to consume, only written by the consumer
+    private final AtomicLong head = new AtomicLong();
+    // Sequence of the next event to publish, only written by the producer
+    private final AtomicLong tail = new AtomicLong();
+
+    private final OverflowPolicy overflowPolicy;
+    // Age after which droppable events are skipped, zero or less keeps every event
+    private final long maxEventAgeNanos;
+    private final EventProcessor processor;
+
+    // Fusion thread and its state
+    private final Thread consumerThread;
+    private volatile boolean running;
+    private volatile boolean consumerParked;
+
+    // Metrics, each written by a single thread
+    private volatile long maxQueueDepth;
+    private volatile long overflowDrops;
+    private volatile long staleDrops;
+    private volatile long processedEvents;
+    private volatile double meanLatencyNanos;
+    private volatile long maxLatencyNanos;
+
+    /**
+     * Creates an event ring and its fusion thread. The thread is started by {@link #start()}.
+     *
+     * @param capacity The minimum number of events the ring holds, rounded up to a power of two.
+     * @param overflowPolicy What to do when an event is published into a full ring.
+     * @param maxEventAgeNanos The age after which droppable events are skipped, zero or less to keep all.
+     * @param threadName The name of the fusion thread.
+     * @param processor The processor called on the fusion thread for every event.
+     */
+    public FusionEventRing(int capacity, OverflowPolicy overflowPolicy, long maxEventAgeNanos,
+                           String threadName, EventProcessor processor) {
+        if (capacity <= 0 || capacity > (1 << 30)) {
+            throw new IllegalArgumentException("Capacity must be between 1 and 2^30");
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) size <<= 1;
+        this.events = new FusionEvent[size];
+        for (int i = 0; i < size; i++) {
+            events[i] = new FusionEvent();
+        }
+        this.mask = size - 1;
+        this.overflowPolicy = overflowPolicy;
+        this.maxEventAgeNanos = maxEventAgeNanos;
+        this.processor = processor;
+        this.consumerThread = new Thread(this::consume, threadName);
+    }
+
+    /**
+     * Starts the fusion thread.
+     */
+    public void start() {
+        running = true;
+        consumerThread.start();
+    }
+
+    /**
+     * Stops accepting events and lets the fusion thread exit once it has processed the events
+     * already in the ring.
+     */
+    public void shutdown() {
+        running = false;
+        LockSupport.unpark(consumerThread);
+    }
+
+    /**
+     * Claims the next free slot of the ring. The returned event must be filled in and passed to
+     * {@link #publish(FusionEvent)} before the next claim.
+     *
+     * @return The event to fill in, or null if the event is dropped or the ring has been shut down.
+     */
+    public FusionEvent claim() {
+        long sequence = tail.get();
+        while (sequence - head.get() >= events.length) {
+            if (!running) return null;
+            if (overflowPolicy == OverflowPolicy.DROP_NEWEST) {
+                overflowDrops++;
+                return null;
+            }
+            LockSupport.parkNanos(BACKOFF_NANOS);
+        }
+        if (!running) return null;
+        FusionEvent event = events[(int) (sequence & mask)];
+        event.reset();
+        return event;
+    }
+
+    /**
+     * Publishes the event returned by the last {@link #claim()} to the fusion thread.
+     *
+     * @param event The claimed event, filled in.
+     */
+    public void publish(FusionEvent event) {
+        event.publishNanos = System.nanoTime();
+        // A full volatile write, so the parked flag below is not read before the new tail is visible
+        long sequence = tail.get() + 1;
+        tail.set(sequence);
+
+        long depth = sequence - head.get();
+        if (depth > maxQueueDepth) {
+            maxQueueDepth = depth;
+        }
+        if (consumerParked) {
+            LockSupport.unpark(consumerThread);
+        }
+    }
+
+    /**
+     * Fusion thread loop, processes events in order and parks while the ring is empty.
+     */
+    private void consume() {
+        while (true) {
+            long sequence = head.get();
+            if (sequence == tail.get()) {
+                if (!running) return;
+                consumerParked = true;
+                if (sequence == tail.get() && running) {
+                    LockSupport.park(this);
+                }
+                consumerParked = false;
+                continue;
+            }
+
+            FusionEvent event = events[(int) (sequence & mask)];
+            if (event.droppableWhenStale && maxEventAgeNanos > 0
+                    && System.nanoTime() - event.publishNanos > maxEventAgeNanos) {
+                staleDrops++;
+            } else {
+                processor.process(event);
+                recordLatency(System.nanoTime() - event.publishNanos);
+            }
+            // Release the slot only after the event has been read
+            head.set(sequence + 1);
+        }
+    }
+
+    /**
+     * Updates the latency metrics with a processed event.
+     */
+    private void recordLatency(long latencyNanos) {
+        processedEvents++;
+        meanLatencyNanos = (processedEvents == 1) ? latencyNanos
+                : LATENCY_SMOOTHING * latencyNanos + (1 - LATENCY_SMOOTHING) * meanLatencyNanos;
+        if (latencyNanos > maxLatencyNanos) {
+            maxLatencyNanos = latencyNanos;
+        }
+    }
+
+    /**
+     * A get method for the number of events waiting to be processed.
+     *
+     * @return The current queue depth.
+     */
+    public long getQueueDepth() { return tail.get() - head.get(); }
+
+    /**
+     * A get method for the largest queue depth seen since the ring was created.
+     *
+     * @return The maximum queue depth.
+     */
+    public long getMaxQueueDepth() { return maxQueueDepth; }
+
+    /**
+     * A get method for the number of slots in the ring.
+     *
+     * @return The ring capacity.
+     */
+    public int getCapacity() { return events.length; }
+
+    /**
+     * A get method for the number of events dropped because the ring was full.
+     *
+     * @return The number of overflow drops.
+     */
+    public long getOverflowDrops() { return overflowDrops; }
+
+    /**
+     * A get method for the number of events skipped because they were too old.
+     *
+     * @return The number of stale drops.
+     */
+    public long getStaleDrops() { return staleDrops; }
+
+    /**
+     * A get method for the number of events processed.
+     *
+     * @return The number of processed events.
+     */
+    public long getProcessedEvents() { return processedEvents; }
+
+    /**
+     * A get method for the running mean of the time from publication to the end of processing.
+     *
+     * @return The mean event latency, in nanoseconds.
+     */
+    public double getMeanLatencyNanos() { return meanLatencyNanos; }
+
+    /**
+     * A get method for the largest time from publication to the end of processing.
+     *
+     * @return The maximum event latency, in nanoseconds.
+     */
+    public long getMaxLatencyNanos() { return maxLatencyNanos; }
+}
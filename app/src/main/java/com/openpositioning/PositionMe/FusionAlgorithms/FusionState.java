@@ -0,0 +1,77 @@
+package com.openpositioning.PositionMe.FusionAlgorithms;
+
+/**
+ * The position estimate of a {@link FusionEngine} with its uncertainty, in the East North Up frame
+ * centred on the start position of the recording. Taken from one engine and restored into another
+ * to switch the fusion algorithm during a recording without losing the estimate.
+ */
+public class FusionState {
+    private final double east;
+    private final double north;
+    private final double altitude;
+    private final double varianceEast;
+    private final double varianceNorth;
+    private final double covariance;
+
+    /**
+     * Creates a fusion state.
+     *
+     * @param east The estimated easting, in meters from the start position.
+     * @param north The estimated northing, in meters from the start position.
+     * @param altitude The altitude of the estimate, in meters.
+     * @param varianceEast The variance of the easting, in square meters.
+     * @param varianceNorth The variance of the northing, in square meters.
+     * @param covariance The covariance of the easting and northing, in square meters.
+     */
+    public FusionState(double east, double north, double altitude, double varianceEast, double varianceNorth,
+                       double covariance) {
+        this.east = east;
+        this.north = north;
+        this.altitude = altitude;
+        this.varianceEast = varianceEast;
+        this.varianceNorth = varianceNorth;
+        this.covariance = covariance;
+    }
+
+    /**
+     * A get method for the estimated easting.
+     *
+     * @return The easting, in meters from the start position.
+     */
+    public double getEast() { return east; }
+
+    /**
+     * A get method for the estimated northing.
+     *
+     * @return The northing, in meters from the start position.
+     */
+    public double getNorth() { return north; }
+
+    /**
+     * A get method for the altitude of the estimate.
+     *
+     * @return The altitude, in meters.
+     */
+    public double getAltitude() { return altitude; }
+
+    /**
+     * A get method for the variance of the easting.
+     *
+     * @return The variance, in square meters.
+     */
+    public double getVarianceEast() { return varianceEast; }
+
+    /**
+     * A get method for the variance of the northing.
+     *
+     * @return The variance, in square meters.
+     */
+    public double getVarianceNorth() { return varianceNorth; }
+
+    /**
+     * A get method for the covariance of the easting and northing.
+     *
+     * @return The covariance, in square meters.
+     */
+    public double getCovariance() { return covariance; }
+}
@@ -0,0 +1,315 @@
+package com.openpositioning.PositionMe.FusionAlgorithms;
+
+import android.util.Log;
+
+import com.google.android.gms.maps.model.LatLng;
+import com.openpositioning.PositionMe.Utils.CoordinateTransform;
+import com.openpositioning.PositionMe.sensors.SensorFusion;
+import com.openpositioning.PositionMe.sensors.TurnDetector;
+
+/**
+ * Kalman filter propagating the heading and position from the gyroscope at the sensor rate, with the
+ * PDR steps as measurements of the heading and walking speed.
+ *
+ * The step based filters only move the estimate when a step is detected, so the position stands
+ * still between steps and the heading of a step is the one sampled when it was detected. This
+ * filter integrates the yaw rate of every sample of the gyroscope in a {@link StrapdownKernel}, and
+ * moves the position along the integrated heading at the estimated walking speed. A step observes
+ * the heading reported by the rotation vector, which bounds the drift of the gyroscope, and the
+ * walking speed as the step length over the time since the previous step. When no step is detected
+ * for a while the speed is observed as zero, so the position stops with the user.
+ *
+ * A sample of the gyroscope costs a fixed number of operations without allocation. The estimate at
+ * the sensor rate stays inside the filter: it is passed to {@link SensorFusion} at every step and
+ * fix, and between them at most twice a second, the rate the trajectory on the map needs. WiFi and GNSS fixes are used as by the
+ * {@link UnscentedKalmanFilter}, a fix the estimate cannot explain being discarded by an
+ * {@link InnovationGate}.
+ */
+public class HighRateKalmanFilter implements FusionEngine {
+    // Power spectral density of the gyroscope noise and bias, in rad^2/s.
+    private final static double headingNoise = Math.pow(Math.toRadians(1), 2);
+    // Power spectral density of the change of walking speed, in m^2/s^3.
+    private final static double speedNoise = 0.5;
+    // Standard deviation of the heading reported at a step, in radians.
+    private final static double stepHeadingStd = Math.toRadians(10);
+    // Standard deviation of the speed of a step, as a fraction of the speed plus a constant, in m/s.
+    private final static double stepSpeedPercentageError = 0.1;
+    private final static double stepSpeedStdOffset = 0.1;
+    // Bounds of the time between two steps, and the time assumed for a step after a pause, in milliseconds.
+    private final static long minStepInterval = 250;
+    private final static long maxStepInterval = 2000;
+    private final static long defaultStepInterval = 500;
+    // Time without a step after which the user is taken to be standing, in nanoseconds.
+    private final static long stopTimeout = 1_500_000_000L;
+    // Standard deviation of the speed of a standing user, in m/s.
+    private final static double standingSpeedStd = 0.05;
+    // Gap between two samples of the gyroscope beyond which the sensor is taken to have paused, in nanoseconds.
+    private final static long maxSampleGap = 500_000_000L;
+    // Shortest time between two estimates passed to SensorFusion from the gyroscope alone, in nanoseconds.
+    private final static long notifyInterval = 500_000_000L;
+    // Standard deviation of the initial heading, in radians.
+    private final static double initialHeadingStd = Math.toRadians(30);
+    // Standard deviation of the initial position, in meters.
+    private final static double initialPositionStd = 1;
+    // Standard deviation of the initial walking speed, in m/s.
+    private final static double initialSpeedStd = 1;
+    // Standard deviation for WiFi-based location measurements, in meters.
+    private final static double wifiStd = 10;
+    // Standard deviation for GNSS location measurements, in meters.
+    private final static double gnssStd = 5;
+    // Number of fixes gated out in a row after which the next fix is used, so a diverged estimate can recover.
+    private final static int maxConsecutiveRejections = 5;
+
+    // Filter state and error covariance.
+    private final StrapdownKernel kernel;
+    // Chi-square gate on the innovation of the fixes, discarding the fixes the estimate cannot explain.
+    private final InnovationGate innovationGate;
+    // Altitude of the last step, reported with the estimate.
+    private double altitude;
+    // Time of the last sample of the gyroscope, and of the last step on the same clock, in nanoseconds.
+    private long lastSampleNanos;
+    private long lastStepNanos;
+    // Time of the last step, from SystemClock.uptimeMillis(), or 0 before the first step.
+    private long lastStepRefTime;
+    // Whether the gyroscope has moved the estimate since the last step.
+    private boolean propagatedSinceStep;
+    // Whether the user is taken to be standing, the speed having been observed as zero.
+    private boolean standing = true;
+    // Time of the sample of the gyroscope when the estimate was last passed to SensorFusion, in nanoseconds.
+    private long lastNotifyNanos;
+    // Whether WiFi fixes are used, GNSS fixes being used otherwise.
+    private volatile boolean wifiCoverage;
+    // Flag to ignore the inputs once the filter is stopped.
+    private volatile boolean stopped;
+    // Processing time of the steps, fixes and samples of the gyroscope.
+    private final LatencyHistogram stepLatency = new LatencyHistogram();
+    private final LatencyHistogram wifiFixLatency = new LatencyHistogram();
+    private final LatencyHistogram gnssFixLatency = new LatencyHistogram();
+    private final LatencyHistogram propagationLatency = new LatencyHistogram();
+
+    /**
+     * Creates a filter starting at the start position of the recording, standing still.
+     */
+    public HighRateKalmanFilter() {
+        this.kernel = new StrapdownKernel(headingNoise, speedNoise);
+        this.kernel.setState(0, 0, 0, 0, initialHeadingStd * initialHeadingStd,
+                initialPositionStd * initialPositionStd, initialPositionStd * initialPositionStd, 0,
+                initialSpeedStd * initialSpeedStd);
+        this.innovationGate = new InnovationGate(InnovationGate.CHI_SQUARE_2_99, maxConsecutiveRejections);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean usesAngularRate() { return true; }
+
+    /**
+     * {@inheritDoc}
+     *
+     * The heading and position are propagated over the time since the previous sample. Once no step
+     * has been detected for a while, the speed is observed as zero.
+     */
+    @Override
+    public synchronized void onAngularRate(double yawRate, long timeNanos) {
+        if (stopped) return;
+        long startNanos = System.nanoTime();
+        long gap = timeNanos - lastSampleNanos;
+        boolean first = lastSampleNanos == 0;
+        lastSampleNanos = timeNanos;
+        if (first || gap <= 0 || gap > maxSampleGap) {
+            lastStepNanos = timeNanos;
+            return;
+        }
+        kernel.propagate(yawRate, gap * 1e-9);
+        propagatedSinceStep = true;
+        if (!standing && timeNanos - lastStepNanos > stopTimeout) {
+            kernel.observe(StrapdownKernel.SPEED, 0, standingSpeedStd * standingSpeedStd);
+            standing = true;
+        }
+        propagationLatency.record(System.nanoTime() - startNanos);
+
+        if (timeNanos - lastNotifyNanos >= notifyInterval) {
+            notifyEstimate();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * The step observes the heading and the walking speed, the PDR position is not used. Without
+     * samples of the gyroscope since the previous step, the estimate is first propagated over the
+     * step so that the position still moves.
+     */
+    @Override
+    public synchronized void onStep(double heading, double stepLength, double averageStepLength, double pdrEast,
+                                    double pdrNorth, double altitude, TurnDetector.MovementType movementType,
+                                    long refTime) {
+        if (stopped) return;
+        long startNanos = System.nanoTime();
+        // The first step after a pause is taken at the usual cadence
+        long interval = refTime - lastStepRefTime;
+        interval = lastStepRefTime == 0 || interval > maxStepInterval ? defaultStepInterval
+                : Math.max(minStepInterval, interval);
+        lastStepRefTime = refTime;
+        double speed = stepLength / (interval / 1000.0);
+
+        if (!propagatedSinceStep) {
+            kernel.propagate(0, interval / 1000.0);
+        }
+        kernel.observe(StrapdownKernel.HEADING, heading, stepHeadingStd * stepHeadingStd);
+        double speedStd = stepSpeedPercentageError * speed + stepSpeedStdOffset;
+        kernel.observe(StrapdownKernel.SPEED, speed, speedStd * speedStd);
+
+        propagatedSinceStep = false;
+        standing = false;
+        lastStepNanos = lastSampleNanos;
+        this.altitude = altitude;
+        stepLatency.record(System.nanoTime() - startNanos);
+        notifyEstimate();
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * WiFi fixes are only used while the user is in an area covered by the positioning server.
+     */
+    @Override
+    public synchronized void onWifiFix(double latitude, double longitude, double altitude, long refTime) {
+        if (stopped || !wifiCoverage) return;
+        long startNanos = System.nanoTime();
+        boolean applied = applyFix(latitude, longitude, altitude, wifiStd * wifiStd);
+        wifiFixLatency.record(System.nanoTime() - startNanos);
+        if (applied) notifyEstimate();
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * GNSS fixes are only used outside of the areas covered by WiFi, each weighed with its reported accuracy.
+     */
+    @Override
+    public synchronized void onGnssFix(double latitude, double longitude, double altitude, double accuracy, long refTime) {
+        if (stopped || wifiCoverage) return;
+        long startNanos = System.nanoTime();
+        boolean applied = applyFix(latitude, longitude, altitude,
+                AdaptiveNoiseEstimator.varianceFromAccuracy(accuracy, gnssStd * gnssStd));
+        gnssFixLatency.record(System.nanoTime() - startNanos);
+        if (applied) notifyEstimate();
+    }
+
+    /**
+     * Corrects the estimate with a fix, unless its innovation is beyond the gate.
+     *
+     * @param variance The variance of the fix on each axis, in square meters.
+     * @return True if the fix was applied.
+     */
+    private boolean applyFix(double latitude, double longitude, double altitude, double variance) {
+        double[] startPosition = SensorFusion.getInstance().getGNSSLatLngAlt(true);
+        double[] enu = CoordinateTransform.geodeticToEnu(latitude, longitude, altitude,
+                startPosition[0], startPosition[1], startPosition[2]);
+        double mahalanobis = kernel.mahalanobis(enu[0], enu[1], variance);
+        if (!innovationGate.accept(mahalanobis)) {
+            Log.d("HIGH_RATE", "Gated fix, squared Mahalanobis distance " + mahalanobis);
+            return false;
+        }
+        kernel.observePosition(enu[0], enu[1], variance);
+        return true;
+    }
+
+    /**
+     * Passes the current estimate to {@link SensorFusion}.
+     */
+    private void notifyEstimate() {
+        lastNotifyNanos = lastSampleNanos;
+        double[] startPosition = SensorFusion.getInstance().getGNSSLatLngAlt(true);
+        double[] ecefRefCoords = SensorFusion.getInstance().getEcefRefCoords();
+        LatLng position = CoordinateTransform.enuToGeodetic(kernel.get(StrapdownKernel.EAST),
+                kernel.get(StrapdownKernel.NORTH), altitude, startPosition[0], startPosition[1], ecefRefCoords);
+        SensorFusion.getInstance().notifyFusedUpdate(position);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setWifiCoverage(boolean covered) {
+        this.wifiCoverage = covered;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized FusionState snapshot() {
+        if (stopped) return null;
+        return new FusionState(kernel.get(StrapdownKernel.EAST), kernel.get(StrapdownKernel.NORTH), altitude,
+                kernel.getCovariance(StrapdownKernel.EAST, StrapdownKernel.EAST),
+                kernel.getCovariance(StrapdownKernel.NORTH, StrapdownKernel.NORTH),
+                kernel.getCovariance(StrapdownKernel.EAST, StrapdownKernel.NORTH));
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * The heading and walking speed estimated so far are kept.
+     */
+    @Override
+    public synchronized void restore(FusionState state) {
+        if (stopped || state == null) return;
+        kernel.setState(kernel.get(StrapdownKernel.HEADING), state.getEast(), state.getNorth(),
+                kernel.get(StrapdownKernel.SPEED),
+                kernel.getCovariance(StrapdownKernel.HEADING, StrapdownKernel.HEADING),
+                state.getVarianceEast(), state.getVarianceNorth(), state.getCovariance(),
+                kernel.getCovariance(StrapdownKernel.SPEED, StrapdownKernel.SPEED));
+        this.altitude = state.getAltitude();
+        Log.d("HIGH_RATE", "Restored estimate East " + state.getEast() + " North " + state.getNorth());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void stop() {
+        stopped = true;
+        Log.d("HIGH_RATE", "Step latency: " + stepLatency);
+        Log.d("HIGH_RATE", "WiFi fix latency: " + wifiFixLatency);
+        Log.d("HIGH_RATE", "GNSS fix latency: " + gnssFixLatency);
+        Log.d("HIGH_RATE", "Gyroscope propagation latency: " + propagationLatency);
+        Log.d("HIGH_RATE", "Innovation gate: accepted " + innovationGate.getAccepted() + ", rejected "
+                + innovationGate.getRejected());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public LatencyHistogram getLatencyHistogram(Input input) {
+        switch (input) {
+            case STEP:
+                return stepLatency;
+            case WIFI_FIX:
+                return wifiFixLatency;
+            default:
+                return gnssFixLatency;
+        }
+    }
+
+    /**
+     * A get method for the processing time of the samples of the gyroscope.
+     *
+     * @return The latency histogram of the propagation.
+     */
+    public LatencyHistogram getPropagationLatency() {
+        return propagationLatency;
+    }
+
+    /**
+     * A get method for the numerical core of the filter.
+     *
+     * @return The kernel holding the state and covariance.
+     */
+    public StrapdownKernel getKernel() {
+        return kernel;
+    }
+}
@@ -0,0 +1,337 @@
+package com.openpositioning.PositionMe.FusionAlgorithms;
+
+import com.openpositioning.PositionMe.sensors.TurnDetector;
+
+/**
+ * Interacting multiple model (IMM) bank of the {@link ExtendedKalmanFilter}, with one filter per
+ * motion mode of the user.
+ *
+ * A single filter has to pick one noise model for every step, based on the turn detector. The bank
+ * instead runs a filter for each {@link Mode} and keeps the probability of each mode. Every cycle:
+ * <ol>
+ *     <li>the mode filters are mixed according to the mode transition probabilities,</li>
+ *     <li>each mixed filter is predicted with the step length and noise of its mode,</li>
+ *     <li>observations update every filter and weigh the modes by how well they explain the
+ *     observation, and further evidence such as the turn detector output can weigh the modes,</li>
+ *     <li>the output is the probability weighted combination of the mode filters.</li>
+ * </ol>
+ *
+ * The mode states and covariances are kept in flat arrays, and all of them are processed by one
+ * shared {@link EkfKernel} which loads a mode, runs the prediction or update and stores it back.
+ * A cycle therefore does not allocate.
+ *
+ * The bank is not thread safe, it is only used from the EKF thread.
+ */
+public class ImmFilter {
+    /**
+     * Motion modes of the user.
+     */
+    public enum Mode {
+        // Walking in a straight line, small heading noise
+        STRAIGHT,
+        // Turning, large heading noise
+        TURN,
+        // Standing still, detected steps do not move the user
+        STATIONARY,
+        // On stairs or in an elevator, steps move the user less horizontally
+        VERTICAL
+    }
+
+    // Modes by ordinal, Mode.values() copies the array on every call
+    private static final Mode[] MODES = Mode.values();
+    // Number of modes in the bank
+    public static final int MODE_COUNT = MODES.length;
+    // Number of values written by save(double[])
+    public static final int SNAPSHOT_SIZE = MODE_COUNT * 13;
+
+    // Heading noise standard deviation of each mode, in radians
+    private static final double[] BEARING_STD = {
+            Math.toRadians(2), Math.toRadians(15), Math.toRadians(5), Math.toRadians(8)};
+    // Factor applied to the step length by each mode
+    private static final double[] STEP_SCALE = {1.0, 1.0, 0.0, 0.5};
+    // Factor applied to the step length standard deviation by each mode
+    private static final double[] STEP_NOISE_SCALE = {1.0, 1.0, 0.1, 2.0};
+    // Probability of switching from the row mode to the column mode at each step
+    private static final double[][] TRANSITION = {
+            {0.90, 0.06, 0.02, 0.02},
+            {0.30, 0.66, 0.02, 0.02},
+            {0.05, 0.03, 0.90, 0.02},
+            {0.05, 0.03, 0.02, 0.90}
+    };
+    // Mode probabilities at the start of a recording
+    private static final double[] INITIAL_PROBABILITY = {0.7, 0.1, 0.1, 0.1};
+    // Lowest mode probability, so that a mode can always be recovered
+    private static final double MIN_PROBABILITY = 1e-4;
+    // Likelihood of the turn detector output (STRAIGHT, PSEUDO_TURN, TURN) under each mode
+    private static final double[][] MOVEMENT_LIKELIHOOD = {
+            {0.80, 0.20, 0.60, 0.50},
+            {0.15, 0.30, 0.30, 0.30},
+            {0.05, 0.50, 0.10, 0.20}
+    };
+    // Standard deviation of the altitude change over a step on level ground and on stairs or in an elevator, in meters
+    private static final double LEVEL_ALTITUDE_STD = 0.05;
+    private static final double VERTICAL_ALTITUDE_STD = 0.3;
+
+    // Shared kernel running the equations of every mode
+    private final EkfKernel engine = new EkfKernel(0, 0, 0, 0);
+
+    // Mode states (3 per mode), covariances (9 per mode, row major) and probabilities
+    private final double[] states = new double[3 * MODE_COUNT];
+    private final double[] covariances = new double[9 * MODE_COUNT];
+    private final double[] probabilities = new double[MODE_COUNT];
+
+    // Scratch arrays of the mixing and combination
+    private final double[] mixedStates = new double[3 * MODE_COUNT];
+    private final double[] mixedCovariances = new double[9 * MODE_COUNT];
+    private final double[] predictedProbabilities = new double[MODE_COUNT];
+    private final double[] mixingWeights = new double[MODE_COUNT];
+    private final double[] logLikelihoods = new double[MODE_COUNT];
+    private final double[] evidence = new double[MODE_COUNT];
+    private final double[] combinedState = new double[3];
+    private final double[] combinedCovariance = new double[9];
+
+    /**
+     * Creates a bank with every mode at a zero state and zero error covariance.
+     */
+    public ImmFilter() {
+        initialise(engine);
+    }
+
+    /**
+     * Resets every mode to the state and error covariance of a filter, with the initial mode probabilities.
+     *
+     * @param state The filter to start from.
+     */
+    public void initialise(EkfKernel state) {
+        for (int j = 0; j < MODE_COUNT; j++) {
+            state.store(states, 3 * j, covariances, 9 * j);
+            probabilities[j] = INITIAL_PROBABILITY[j];
+        }
+    }
+
+    /**
+     * Mixes the mode filters and predicts each of them over one step.
+     *
+     * @param theta The heading of the step as reported by the sensors, in radians.
+     * @param adaptedHeading The heading of the step in radians with 0 pointing East.
+     * @param stepLength The length of the step, in meters.
+     * @param bearingVariances The bearing process noise variance of each mode, in square radians.
+     * @param stepVariance The step length process noise variance before the scaling of each mode.
+     */
+    public void predict(double theta, double adaptedHeading, double stepLength, double[] bearingVariances,
+                        double stepVariance) {
+        mix();
+        for (int j = 0; j < MODE_COUNT; j++) {
+            engine.load(mixedStates, 3 * j, mixedCovariances, 9 * j);
+            double stepNoise = STEP_NOISE_SCALE[j] * STEP_NOISE_SCALE[j] * stepVariance;
+            engine.setProcessNoise(bearingVariances[j], stepNoise);
+            engine.predict(theta, adaptedHeading, STEP_SCALE[j] * stepLength);
+            engine.store(states, 3 * j, covariances, 9 * j);
+        }
+        System.arraycopy(predictedProbabilities, 0, probabilities, 0, MODE_COUNT);
+    }
+
+    /**
+     * Corrects every mode filter with an observation of the East and North position.
+     *
+     * @param observedEast The observed East position.
+     * @param observedNorth The observed North position.
+     * @param eastVariance The East observation noise variance.
+     * @param northVariance The North observation noise variance.
+     * @param weighModes Whether the mode probabilities are updated with the likelihood of the observation.
+     */
+    public void update(double observedEast, double observedNorth, double eastVariance, double northVariance,
+                       boolean weighModes) {
+        engine.setObservationNoise(eastVariance, northVariance);
+        for (int j = 0; j < MODE_COUNT; j++) {
+            engine.load(states, 3 * j, covariances, 9 * j);
+            engine.update(observedEast, observedNorth);
+            logLikelihoods[j] = engine.getLastLogLikelihood();
+            engine.store(states, 3 * j, covariances, 9 * j);
+        }
+        if (!weighModes) return;
+
+        // Scale by the largest likelihood before exponentiating, only the ratios matter
+        double maxLogLikelihood = Double.NEGATIVE_INFINITY;
+        for (int j = 0; j < MODE_COUNT; j++) {
+            maxLogLikelihood = Math.max(maxLogLikelihood, logLikelihoods[j]);
+        }
+        if (Double.isInfinite(maxLogLikelihood) || Double.isNaN(maxLogLikelihood)) return;
+        for (int j = 0; j < MODE_COUNT; j++) {
+            probabilities[j] *= Math.exp(logLikelihoods[j] - maxLogLikelihood);
+        }
+        normaliseProbabilities();
+    }
+
+    /**
+     * Weighs the modes with evidence other than the observations, such as the turn detector output.
+     *
+     * @param likelihoods The likelihood of the evidence under each mode, up to a common factor.
+     */
+    public void applyModeEvidence(double[] likelihoods) {
+        for (int j = 0; j < MODE_COUNT; j++) {
+            probabilities[j] *= likelihoods[j];
+        }
+        normaliseProbabilities();
+    }
+
+    /**
+     * Weighs the modes with the turn detector output and the altitude change over a step. Turns favour the
+     * turn mode and altitude changes beyond the barometer noise favour the stairs and elevator mode.
+     *
+     * @param detected The movement detected by the turn detector over the step, null if unknown.
+     * @param altitudeChange The change of altitude over the step, in meters.
+     */
+    public void applyStepEvidence(TurnDetector.MovementType detected, double altitudeChange) {
+        // Zero mean Gaussian densities of the altitude change, the common factor of the level modes is dropped
+        double level = Math.exp(-0.5 * Math.pow(altitudeChange / LEVEL_ALTITUDE_STD, 2)) / LEVEL_ALTITUDE_STD;
+        double vertical = Math.exp(-0.5 * Math.pow(altitudeChange / VERTICAL_ALTITUDE_STD, 2)) / VERTICAL_ALTITUDE_STD;
+        for (int j = 0; j < MODE_COUNT; j++) {
+            double movement = (detected == null) ? 1 : MOVEMENT_LIKELIHOOD[detected.ordinal()][j];
+            evidence[j] = movement * ((j == Mode.VERTICAL.ordinal()) ? vertical : level);
+        }
+        applyModeEvidence(evidence);
+    }
+
+    /**
+     * Writes the probability weighted combination of the mode filters into a filter.
+     *
+     * @param out The filter receiving the combined state and error covariance.
+     */
+    public void combine(EkfKernel out) {
+        int reference = getMostLikelyMode().ordinal();
+        weightedMoments(probabilities, 0, reference, combinedState, 0, combinedCovariance, 0);
+        out.load(combinedState, 0, combinedCovariance, 0);
+    }
+
+    /**
+     * Computes the mixed initial condition of every mode filter from the mode transition probabilities.
+     */
+    private void mix() {
+        for (int j = 0; j < MODE_COUNT; j++) {
+            double predicted = 0;
+            for (int i = 0; i < MODE_COUNT; i++) {
+                predicted += TRANSITION[i][j] * probabilities[i];
+            }
+            predictedProbabilities[j] = predicted;
+            for (int i = 0; i < MODE_COUNT; i++) {
+                mixingWeights[i] = TRANSITION[i][j] * probabilities[i] / predicted;
+            }
+            weightedMoments(mixingWeights, 0, j, mixedStates, 3 * j, mixedCovariances, 9 * j);
+        }
+    }
+
+    /**
+     * Computes the weighted mean and covariance of the mode filters, including the spread of the means.
+     * Bearings are averaged as wrapped offsets from the bearing of a reference mode.
+     */
+    private void weightedMoments(double[] weights, int weightOffset, int reference,
+                                 double[] meanOut, int meanOffset, double[] covarianceOut, int covarianceOffset) {
+        double referenceBearing = states[3 * reference];
+        double bearingOffset = 0, east = 0, north = 0;
+        for (int i = 0; i < MODE_COUNT; i++) {
+            double w = weights[weightOffset + i];
+            bearingOffset += w * EkfKernel.wrapToPi(states[3 * i] - referenceBearing);
+            east += w * states[3 * i + 1];
+            north += w * states[3 * i + 2];
+        }
+        double bearing = referenceBearing + bearingOffset;
+
+        for (int k = 0; k < 9; k++) {
+            covarianceOut[covarianceOffset + k] = 0;
+        }
+        for (int i = 0; i < MODE_COUNT; i++) {
+            double w = weights[weightOffset + i];
+            double d0 = EkfKernel.wrapToPi(states[3 * i] - bearing);
+            double d1 = states[3 * i + 1] - east;
+            double d2 = states[3 * i + 2] - north;
+            int c = 9 * i;
+            int o = covarianceOffset;
+            covarianceOut[o] += w * (covariances[c] + d0 * d0);
+            covarianceOut[o + 1] += w * (covariances[c + 1] + d0 * d1);
+            covarianceOut[o + 2] += w * (covariances[c + 2] + d0 * d2);
+            covarianceOut[o + 3] += w * (covariances[c + 3] + d1 * d0);
+            covarianceOut[o + 4] += w * (covariances[c + 4] + d1 * d1);
+            covarianceOut[o + 5] += w * (covariances[c + 5] + d1 * d2);
+            covarianceOut[o + 6] += w * (covariances[c + 6] + d2 * d0);
+            covarianceOut[o + 7] += w * (covariances[c + 7] + d2 * d1);
+            covarianceOut[o + 8] += w * (covariances[c + 8] + d2 * d2);
+        }
+        meanOut[meanOffset] = bearing;
+        meanOut[meanOffset + 1] = east;
+        meanOut[meanOffset + 2] = north;
+    }
+
+    /**
+     * Normalises the mode probabilities, keeping every mode above the minimum probability.
+     */
+    private void normaliseProbabilities() {
+        double sum = 0;
+        for (int j = 0; j < MODE_COUNT; j++) {
+            sum += probabilities[j];
+        }
+        if (!(sum > 0)) {
+            System.arraycopy(INITIAL_PROBABILITY, 0, probabilities, 0, MODE_COUNT);
+            return;
+        }
+        double floored = 0;
+        for (int j = 0; j < MODE_COUNT; j++) {
+            probabilities[j] = Math.max(MIN_PROBABILITY, probabilities[j] / sum);
+            floored += probabilities[j];
+        }
+        for (int j = 0; j < MODE_COUNT; j++) {
+            probabilities[j] /= floored;
+        }
+    }
+
+    /**
+     * Saves the mode filters and probabilities.
+     *
+     * @param buffer The array receiving the snapshot, at least {@link #SNAPSHOT_SIZE} long.
+     */
+    public void save(double[] buffer) {
+        System.arraycopy(states, 0, buffer, 0, 3 * MODE_COUNT);
+        System.arraycopy(covariances, 0, buffer, 3 * MODE_COUNT, 9 * MODE_COUNT);
+        System.arraycopy(probabilities, 0, buffer, 12 * MODE_COUNT, MODE_COUNT);
+    }
+
+    /**
+     * Restores the mode filters and probabilities saved by {@link #save(double[])}.
+     *
+     * @param buffer The snapshot to restore.
+     */
+    public void restore(double[] buffer) {
+        System.arraycopy(buffer, 0, states, 0, 3 * MODE_COUNT);
+        System.arraycopy(buffer, 3 * MODE_COUNT, covariances, 0, 9 * MODE_COUNT);
+        System.arraycopy(buffer, 12 * MODE_COUNT, probabilities, 0, MODE_COUNT);
+    }
+
+    /**
+     * A get method for the heading noise standard deviation of a mode.
+     *
+     * @param mode The ordinal of the mode.
+     * @return The standard deviation, in radians.
+     */
+    public static double getBearingStd(int mode) { return BEARING_STD[mode]; }
+
+    /**
+     * A get method for the probability of a mode.
+     *
+     * @param mode The mode.
+     * @return The probability of the mode, between 0 and 1.
+     */
+    public double getModeProbability(Mode mode) { return probabilities[mode.ordinal()]; }
+
+    /**
+     * A get method for the mode with the highest probability.
+     *
+     * @return The most likely mode.
+     */
+    public Mode getMostLikelyMode() {
+        int best = 0;
+        for (int j = 1; j < MODE_COUNT; j++) {
+            if (probabilities[j] > probabilities[best]) best = j;
+        }
+        return MODES[best];
+    }
+}
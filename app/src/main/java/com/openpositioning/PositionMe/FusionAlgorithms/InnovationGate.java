@@ -0,0 +1,76 @@
+package com.openpositioning.PositionMe.FusionAlgorithms;
+
+/**
+ * Chi-square gate on the innovation of a position fix, used by the Kalman filters to discard fixes
+ * their estimate cannot explain.
+ *
+ * The squared Mahalanobis distance y' S^-1 y of the innovation y, with the innovation covariance S
+ * the filter computes for its update anyway, follows a chi-square distribution with two degrees of
+ * freedom when the fix is consistent with the filter. A fix whose distance is beyond the quantile of
+ * the chosen confidence is rejected. The check takes constant time and keeps no history.
+ *
+ * A filter that has drifted away rejects every fix that would bring it back, so after a run of
+ * rejections the next fix is accepted whatever its distance.
+ */
+public class InnovationGate {
+    // Quantiles of the chi-square distribution with two degrees of freedom
+    public static final double CHI_SQUARE_2_95 = 5.991;
+    public static final double CHI_SQUARE_2_99 = 9.210;
+    public static final double CHI_SQUARE_2_999 = 13.816;
+
+    private final double threshold;
+    private final int maxConsecutiveRejections;
+    private int consecutiveRejections;
+    // Counts of the fixes accepted and rejected
+    private long accepted;
+    private long rejected;
+
+    /**
+     * Creates a gate.
+     *
+     * @param threshold The largest squared Mahalanobis distance accepted, a chi-square quantile.
+     * @param maxConsecutiveRejections The number of fixes rejected in a row after which the next
+     *                                 fix is accepted.
+     */
+    public InnovationGate(double threshold, int maxConsecutiveRejections) {
+        if (threshold <= 0) {
+            throw new IllegalArgumentException("Threshold must be greater than 0");
+        }
+        if (maxConsecutiveRejections < 0) {
+            throw new IllegalArgumentException("Consecutive rejections must not be negative");
+        }
+        this.threshold = threshold;
+        this.maxConsecutiveRejections = maxConsecutiveRejections;
+    }
+
+    /**
+     * Decides whether a fix is used.
+     *
+     * @param mahalanobis The squared Mahalanobis distance of the innovation of the fix.
+     * @return True if the fix is accepted.
+     */
+    public boolean accept(double mahalanobis) {
+        if (mahalanobis <= threshold || consecutiveRejections >= maxConsecutiveRejections) {
+            consecutiveRejections = 0;
+            accepted++;
+            return true;
+        }
+        consecutiveRejections++;
+        rejected++;
+        return false;
+    }
+
+    /**
+     * A get method for the number of fixes accepted.
+     *
+     * @return The number of fixes accepted.
+     */
+    public long getAccepted() { return accepted; }
+
+    /**
+     * A get method for the number of fixes rejected.
+     *
+     * @return The number of fixes rejected.
+     */
+    public long getRejected() { return rejected; }
+}
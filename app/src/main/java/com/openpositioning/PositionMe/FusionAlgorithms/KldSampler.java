@@ -0,0 +1,229 @@
+package com.openpositioning.PositionMe.FusionAlgorithms;
+
+import java.util.Arrays;
+
+/**
+ * Chooses how many particles the {@link ParticleEngine} should carry using KLD-sampling (Fox, 2003).
+ *
+ * The particle cloud is binned on a square grid and the number of occupied bins k is used to bound
+ * the number of samples needed so that, with probability 1 - delta, the Kullback-Leibler divergence
+ * between the sampled and true posterior stays below epsilon. A spread out posterior, right after
+ * start-up or after a long WiFi outage, occupies many bins and asks for many particles, while a
+ * converged posterior occupies only a few bins and the cloud shrinks back towards the minimum.
+ *
+ * On top of the statistical bound the particle count is capped by a per-update time budget. The
+ * sampler keeps a running estimate of the cost of a single particle per update, so the CPU used by
+ * the filter follows the uncertainty of the position instead of the worst case.
+ *
+ * Bins are counted in a preallocated open-addressing hash set which is invalidated with a
+ * generation stamp, so computing the target count does not allocate. The set holds at least twice
+ * as many slots as particles, and is only reallocated if a larger population than it was sized for
+ * is counted, so the probing always finds a free slot.
+ */
+public class KldSampler {
+    // Default grid resolution in meters
+    private static final double DEFAULT_BIN_SIZE = 0.5;
+    // Default KL divergence bound
+    private static final double DEFAULT_EPSILON = 0.05;
+    // Upper 1 - delta quantile of the standard normal distribution for delta = 0.01
+    private static final double DEFAULT_UPPER_QUANTILE = 2.326;
+    // Fraction of the uniform weight a particle needs to count towards an occupied bin
+    private static final double SIGNIFICANT_WEIGHT_FRACTION = 0.1;
+    // Smoothing factor for the running estimate of the cost of a particle
+    private static final double COST_SMOOTHING = 0.2;
+
+    // Particle count limits
+    private final int minParticles;
+    private final int maxParticles;
+
+    // KLD parameters
+    private final double binSize;
+    private final double epsilon;
+    private final double upperQuantile;
+
+    // Open-addressing hash set of occupied bins, an entry is only valid if its stamp matches
+    private long[] binKeys;
+    private int[] binStamps;
+    private int binMask;
+    private int binShift;
+    private int currentStamp;
+
+    // Time budget per update in nanoseconds, zero or less disables the cap
+    private long timeBudgetNanos;
+    // Running estimate of the time spent per particle per update
+    private double nanosPerParticle;
+
+    /**
+     * Creates a KLD sampler with the default bin size, error bound and confidence.
+     *
+     * @param minParticles The smallest particle count that will be returned.
+     * @param maxParticles The largest particle count that will be returned.
+     */
+    public KldSampler(int minParticles, int maxParticles) {
+        this(minParticles, maxParticles, DEFAULT_BIN_SIZE, DEFAULT_EPSILON, DEFAULT_UPPER_QUANTILE);
+    }
+
+    /**
+     * Creates a KLD sampler.
+     *
+     * @param minParticles The smallest particle count that will be returned.
+     * @param maxParticles The largest particle count that will be returned.
+     * @param binSize The side of a square histogram bin, in meters.
+     * @param epsilon The bound on the KL divergence between the sampled and true posterior.
+     * @param upperQuantile The upper 1 - delta quantile of the standard normal distribution.
+     */
+    public KldSampler(int minParticles, int maxParticles, double binSize, double epsilon, double upperQuantile) {
+        if (minParticles <= 0 || maxParticles < minParticles) {
+            throw new IllegalArgumentException("Particle limits must satisfy 0 < min <= max");
+        }
+        if (binSize <= 0 || epsilon <= 0) {
+            throw new IllegalArgumentException("Bin size and epsilon must be greater than 0");
+        }
+        this.minParticles = minParticles;
+        this.maxParticles = maxParticles;
+        this.binSize = binSize;
+        this.epsilon = epsilon;
+        this.upperQuantile = upperQuantile;
+
+        allocateBins(maxParticles);
+    }
+
+    /**
+     * Allocates the hash set of bins for a population, keeping it at most half full.
+     *
+     * @param population The largest number of particles the set must hold.
+     */
+    private void allocateBins(int population) {
+        // Smallest power of two at least twice the population
+        int tableSize = Integer.highestOneBit(Math.max(2, population) * 2 - 1) << 1;
+        this.binKeys = new long[tableSize];
+        this.binStamps = new int[tableSize];
+        this.binMask = tableSize - 1;
+        this.binShift = 64 - Integer.numberOfTrailingZeros(tableSize);
+        this.currentStamp = 0;
+    }
+
+    /**
+     * Computes the number of particles the next generation should have.
+     *
+     * @param easting The particle eastings.
+     * @param northing The particle northings.
+     * @param weight The normalised particle weights.
+     * @param count The number of particles in the current generation.
+     * @return The target particle count, between the minimum and maximum and within the time budget.
+     */
+    public int computeTargetCount(double[] easting, double[] northing, double[] weight, int count) {
+        int occupiedBins = countOccupiedBins(easting, northing, weight, count);
+        int target = Math.max(minParticles, Math.min(maxParticles, kldBound(occupiedBins)));
+        return Math.max(minParticles, Math.min(target, getBudgetLimit()));
+    }
+
+    /**
+     * Evaluates the KLD bound on the number of samples for a given number of occupied bins, using the
+     * Wilson-Hilferty approximation of the chi-square quantile.
+     *
+     * @param occupiedBins The number of histogram bins holding at least one particle.
+     * @return The number of samples required.
+     */
+    public int kldBound(int occupiedBins) {
+        if (occupiedBins <= 1) return minParticles;
+        double k = occupiedBins - 1;
+        double a = 2.0 / (9.0 * k);
+        double b = 1.0 - a + Math.sqrt(a) * upperQuantile;
+        double bound = k / (2.0 * epsilon) * b * b * b;
+        return (bound >= maxParticles) ? maxParticles : (int) Math.ceil(bound);
+    }
+
+    /**
+     * Counts the number of bins holding at least one particle with a significant weight.
+     */
+    private int countOccupiedBins(double[] easting, double[] northing, double[] weight, int count) {
+        if (2 * count > binKeys.length) {
+            allocateBins(count);
+        }
+        // Advance the stamp to invalidate every entry without clearing the arrays
+        currentStamp++;
+        if (currentStamp == 0) {
+            Arrays.fill(binStamps, 0);
+            currentStamp = 1;
+        }
+
+        double significantWeight = SIGNIFICANT_WEIGHT_FRACTION / count;
+        double inverseBinSize = 1.0 / binSize;
+        int occupied = 0;
+        for (int i = 0; i < count; i++) {
+            if (weight[i] < significantWeight) continue;
+            long binX = (long) Math.floor(easting[i] * inverseBinSize);
+            long binY = (long) Math.floor(northing[i] * inverseBinSize);
+            long key = (binX << 32) ^ (binY & 0xffffffffL);
+            if (insertBin(key)) {
+                occupied++;
+            }
+        }
+        return occupied;
+    }
+
+    /**
+     * Inserts a bin into the hash set.
+     *
+     * @param key The packed bin coordinates.
+     * @return true if the bin was not yet present.
+     */
+    private boolean insertBin(long key) {
+        // Fibonacci hashing spreads neighbouring bins across the table
+        int slot = (int) ((key * 0x9E3779B97F4A7C15L) >>> binShift);
+        while (binStamps[slot] == currentStamp) {
+            if (binKeys[slot] == key) return false;
+            slot = (slot + 1) & binMask;
+        }
+        binStamps[slot] = currentStamp;
+        binKeys[slot] = key;
+        return true;
+    }
+
+    /**
+     * Records how long the last filter update took so the time budget can be enforced.
+     *
+     * @param elapsedNanos The duration of the update, in nanoseconds.
+     * @param count The number of particles used in the update.
+     */
+    public void recordUpdateTime(long elapsedNanos, int count) {
+        if (count <= 0 || elapsedNanos <= 0) return;
+        double cost = (double) elapsedNanos / count;
+        nanosPerParticle = (nanosPerParticle == 0) ? cost
+                : COST_SMOOTHING * cost + (1 - COST_SMOOTHING) * nanosPerParticle;
+    }
+
+    /**
+     * Calculates the largest particle count that fits in the time budget.
+     *
+     * @return The particle limit imposed by the time budget.
+     */
+    private int getBudgetLimit() {
+        if (timeBudgetNanos <= 0 || nanosPerParticle <= 0) return maxParticles;
+        return (int) Math.min(maxParticles, timeBudgetNanos / nanosPerParticle);
+    }
+
+    /**
+     * Sets the time the filter may spend on a single update.
+     *
+     * @param timeBudgetNanos The time budget in nanoseconds, zero or less disables the limit.
+     */
+    public void setTimeBudget(long timeBudgetNanos) {
+        this.timeBudgetNanos = timeBudgetNanos;
+    }
+
+    /**
+     * A get method for the smallest particle count the sampler returns.
+     *
+     * @return The minimum particle count.
+     */
+    public int getMinParticles() { return minParticles; }
+
+    /**
+     * A get method for the largest particle count the sampler returns.
+     *
+     * @return The maximum particle count.
+     */
+    public int getMaxParticles() { return maxParticles; }
+}
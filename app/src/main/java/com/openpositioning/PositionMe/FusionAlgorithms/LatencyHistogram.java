@@ -0,0 +1,142 @@
+package com.openpositioning.PositionMe.FusionAlgorithms;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of call latencies with log-linear buckets, used to compare the cost of the
+ * {@link FusionEngine} implementations on a device.
+ *
+ * Every power of two is split into {@link #SUB_BUCKETS} buckets, so a percentile is reported
+ * within about 12% of the true value over the whole range from a nanosecond to half an hour,
+ * with a fixed table of a few hundred counters. Recording neither allocates nor takes a lock, and
+ * the histogram may be read while it is being recorded to, the reader seeing the counts of the
+ * recent calls a little late.
+ */
+public class LatencyHistogram {
+    // Number of bits and buckets per power of two
+    private static final int SUB_BUCKET_BITS = 3;
+    public static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // Latencies of 2^MAX_BITS nanoseconds or more are counted in the last bucket
+    private static final int MAX_BITS = 41;
+    private static final long MAX_VALUE = (1L << MAX_BITS) - 1;
+    private static final int BUCKET_COUNT = (MAX_BITS - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    /**
+     * Records the latency of one call.
+     *
+     * @param nanos The latency, in nanoseconds. Negative values are counted as zero.
+     */
+    public void record(long nanos) {
+        long value = Math.max(0, Math.min(nanos, MAX_VALUE));
+        counts.incrementAndGet(bucketOf(value));
+        count.incrementAndGet();
+        totalNanos.addAndGet(value);
+        long max = maxNanos.get();
+        while (value > max && !maxNanos.compareAndSet(max, value)) {
+            max = maxNanos.get();
+        }
+    }
+
+    /**
+     * Removes every recorded latency.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts.set(i, 0);
+        }
+        count.set(0);
+        totalNanos.set(0);
+        maxNanos.set(0);
+    }
+
+    /**
+     * Computes a percentile of the recorded latencies, as the upper bound of the bucket holding it.
+     *
+     * @param percentile The percentile, between 0 and 100.
+     * @return The latency in nanoseconds, not above the largest latency recorded, or 0 if empty.
+     */
+    public long getPercentile(double percentile) {
+        if (!(percentile >= 0 && percentile <= 100)) {
+            throw new IllegalArgumentException("Percentile must be between 0 and 100");
+        }
+        long total = count.get();
+        if (total == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(upperBoundOf(i), maxNanos.get());
+            }
+        }
+        return maxNanos.get();
+    }
+
+    /**
+     * A get method for the number of calls recorded.
+     *
+     * @return The number of calls.
+     */
+    public long getCount() { return count.get(); }
+
+    /**
+     * A get method for the mean latency of the calls recorded.
+     *
+     * @return The mean latency in nanoseconds, or 0 if empty.
+     */
+    public double getMeanNanos() {
+        long total = count.get();
+        return total == 0 ? 0 : (double) totalNanos.get() / total;
+    }
+
+    /**
+     * A get method for the largest latency recorded.
+     *
+     * @return The largest latency, in nanoseconds.
+     */
+    public long getMaxNanos() { return maxNanos.get(); }
+
+    /**
+     * Summarises the histogram for logging, with latencies in microseconds.
+     *
+     * @return The count, mean, median, 90th and 99th percentiles and maximum.
+     */
+    @Override
+    public String toString() {
+        return "count " + getCount() + ", mean " + micros(getMeanNanos()) + " us, p50 " + micros(getPercentile(50))
+                + " us, p90 " + micros(getPercentile(90)) + " us, p99 " + micros(getPercentile(99))
+                + " us, max " + micros(getMaxNanos()) + " us";
+    }
+
+    /**
+     * Finds the bucket counting a latency. Values below {@link #SUB_BUCKETS} have a bucket each,
+     * larger values share a bucket with the values differing only in the bits below the top ones.
+     */
+    static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) return (int) value;
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        int subBucket = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+        return (shift + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * Computes the largest latency counted by a bucket.
+     */
+    static long upperBoundOf(int bucket) {
+        if (bucket < SUB_BUCKETS) return bucket;
+        int shift = bucket / SUB_BUCKETS - 1;
+        long lower = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+        return lower + (1L << shift) - 1;
+    }
+
+    private static String micros(double nanos) {
+        return String.format(Locale.US, "%.1f", nanos / 1000);
+    }
+}
@@ -0,0 +1,58 @@
+package com.openpositioning.PositionMe.FusionAlgorithms;
+
+/**
+ * Lookup table approximation of a {@link DistanceLikelihood}.
+ *
+ * The likelihood is sampled at evenly spaced distances when the table is created and evaluated by
+ * linear interpolation between the two nearest samples, which replaces a call to {@link Math#exp}
+ * per particle with a multiplication and two array reads. Distances past the end of the table
+ * return the last sample, so particles far from the measurement keep a tiny but equal weight
+ * instead of collapsing to zero.
+ */
+public class LikelihoodTable implements DistanceLikelihood {
+    // Likelihood sampled at distances 0, step, 2 * step, ..., maxDistance
+    private final double[] table;
+    private final double inverseStep;
+    private final int lastIndex;
+
+    /**
+     * Creates a lookup table by sampling a likelihood function.
+     *
+     * @param likelihood The exact likelihood function to approximate.
+     * @param maxDistance The largest distance covered by the table, in meters.
+     * @param intervals The number of intervals the range is divided into.
+     */
+    public LikelihoodTable(DistanceLikelihood likelihood, double maxDistance, int intervals) {
+        if (maxDistance <= 0 || intervals <= 0) {
+            throw new IllegalArgumentException("Table range and size must be greater than 0");
+        }
+        double step = maxDistance / intervals;
+        this.inverseStep = 1.0 / step;
+        this.lastIndex = intervals;
+        this.table = new double[intervals + 1];
+        for (int i = 0; i <= intervals; i++) {
+            table[i] = likelihood.evaluate(i * step);
+        }
+    }
+
+    /**
+     * Evaluates the likelihood by linear interpolation in the table.
+     *
+     * @param distance The distance between the particle and the measurement, in meters.
+     * @return The interpolated likelihood.
+     */
+    @Override
+    public double evaluate(double distance) {
+        double position = distance * inverseStep;
+        if (!(position < lastIndex)) {
+            // Also catches NaN
+            return table[lastIndex];
+        }
+        if (position <= 0) {
+            return table[0];
+        }
+        int index = (int) position;
+        double fraction = position - index;
+        return table[index] + fraction * (table[index + 1] - table[index]);
+    }
+}
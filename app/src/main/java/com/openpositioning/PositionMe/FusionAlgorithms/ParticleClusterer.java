@@ -0,0 +1,325 @@
+package com.openpositioning.PositionMe.FusionAlgorithms;
+
+import java.util.Arrays;
+
+/**
+ * Groups the particle cloud of the {@link ParticleEngine} into its strongest modes.
+ *
+ * The weighted mean of a bimodal cloud lies between the modes, for example inside the wall between
+ * two corridors, where the user cannot be. Instead the particles are binned on a square grid and
+ * neighbouring occupied cells, including diagonal neighbours, are joined into clusters with a
+ * union-find structure. The weight, mean and covariance of every cluster are accumulated from the
+ * per-cell sums, and the K heaviest clusters are kept as position hypotheses.
+ *
+ * Clustering is O(N) in the number of particles. Cells are stored in a preallocated open-addressing
+ * hash table invalidated with a generation stamp, as in {@link KldSampler}, so a clustering pass
+ * does not allocate.
+ */
+public class ParticleClusterer {
+    // Cell offsets visited from every cell, the other four neighbours are covered from the other side
+    private static final int[] NEIGHBOUR_X = {1, 0, 1, 1};
+    private static final int[] NEIGHBOUR_Y = {0, 1, 1, -1};
+
+    // Side of a grid cell in meters
+    private final double cellSize;
+    // Largest number of modes reported
+    private final int maxModes;
+
+    // Open-addressing hash table from packed cell coordinates to dense cell index
+    private final long[] slotKeys;
+    private final int[] slotStamps;
+    private final int[] slotCells;
+    private final int slotMask;
+    private final int slotShift;
+    private int currentStamp;
+
+    // Occupied cells, index c across the arrays describes cell c
+    private int numCells;
+    private final int[] cellX;
+    private final int[] cellY;
+    private final int[] parent;
+    // Weighted sums relative to the reference point, folded into the root of each cluster
+    private final double[] sumWeight;
+    private final double[] sumEast;
+    private final double[] sumNorth;
+    private final double[] sumEastEast;
+    private final double[] sumEastNorth;
+    private final double[] sumNorthNorth;
+
+    // Reference point the sums are taken relative to, for numerical precision
+    private double referenceEasting;
+    private double referenceNorthing;
+
+    // Modes of the last clustering pass sorted by decreasing weight
+    private int numModes;
+    private final int[] modeRoots;
+    private final double[] modeWeight;
+
+    /**
+     * Creates a particle clusterer.
+     *
+     * @param capacity The largest number of particles that will be clustered.
+     * @param cellSize The side of a grid cell in meters, cells further apart than this are only
+     *                 joined through occupied cells in between.
+     * @param maxModes The largest number of modes to report.
+     */
+    public ParticleClusterer(int capacity, double cellSize, int maxModes) {
+        if (capacity <= 0 || cellSize <= 0 || maxModes <= 0) {
+            throw new IllegalArgumentException("Capacity, cell size and number of modes must be greater than 0");
+        }
+        this.cellSize = cellSize;
+        this.maxModes = maxModes;
+
+        // Keep the hash table at most half full
+        int tableSize = Integer.highestOneBit(Math.max(2, capacity) * 2 - 1) << 1;
+        this.slotKeys = new long[tableSize];
+        this.slotStamps = new int[tableSize];
+        this.slotCells = new int[tableSize];
+        this.slotMask = tableSize - 1;
+        this.slotShift = 64 - Integer.numberOfTrailingZeros(tableSize);
+
+        this.cellX = new int[capacity];
+        this.cellY = new int[capacity];
+        this.parent = new int[capacity];
+        this.sumWeight = new double[capacity];
+        this.sumEast = new double[capacity];
+        this.sumNorth = new double[capacity];
+        this.sumEastEast = new double[capacity];
+        this.sumEastNorth = new double[capacity];
+        this.sumNorthNorth = new double[capacity];
+
+        this.modeRoots = new int[maxModes];
+        this.modeWeight = new double[maxModes];
+    }
+
+    /**
+     * Clusters a particle cloud and keeps its heaviest modes.
+     *
+     * @param easting The particle eastings.
+     * @param northing The particle northings.
+     * @param weight The normalised particle weights.
+     * @param count The number of particles, at most the capacity.
+     * @return The number of modes found, at most the maximum number of modes.
+     */
+    public int cluster(double[] easting, double[] northing, double[] weight, int count) {
+        if (count > cellX.length) {
+            throw new IllegalArgumentException("More particles than the clusterer capacity");
+        }
+        // Advance the stamp to invalidate every cell without clearing the table
+        currentStamp++;
+        if (currentStamp == 0) {
+            Arrays.fill(slotStamps, 0);
+            currentStamp = 1;
+        }
+        numCells = 0;
+        numModes = 0;
+        if (count == 0) return 0;
+
+        // Bin the particles
+        referenceEasting = easting[0];
+        referenceNorthing = northing[0];
+        double inverseCellSize = 1.0 / cellSize;
+        for (int i = 0; i < count; i++) {
+            int cell = findOrAddCell((int) Math.floor(easting[i] * inverseCellSize),
+                    (int) Math.floor(northing[i] * inverseCellSize));
+            double w = weight[i];
+            double dEast = easting[i] - referenceEasting;
+            double dNorth = northing[i] - referenceNorthing;
+            sumWeight[cell] += w;
+            sumEast[cell] += w * dEast;
+            sumNorth[cell] += w * dNorth;
+            sumEastEast[cell] += w * dEast * dEast;
+            sumEastNorth[cell] += w * dEast * dNorth;
+            sumNorthNorth[cell] += w * dNorth * dNorth;
+        }
+
+        // Join neighbouring cells
+        for (int c = 0; c < numCells; c++) {
+            for (int k = 0; k < NEIGHBOUR_X.length; k++) {
+                int neighbour = findCell(cellX[c] + NEIGHBOUR_X[k], cellY[c] + NEIGHBOUR_Y[k]);
+                if (neighbour >= 0) {
+                    union(c, neighbour);
+                }
+            }
+        }
+
+        // Fold every cell into the root of its cluster
+        for (int c = 0; c < numCells; c++) {
+            int root = find(c);
+            if (root == c) continue;
+            sumWeight[root] += sumWeight[c];
+            sumEast[root] += sumEast[c];
+            sumNorth[root] += sumNorth[c];
+            sumEastEast[root] += sumEastEast[c];
+            sumEastNorth[root] += sumEastNorth[c];
+            sumNorthNorth[root] += sumNorthNorth[c];
+        }
+
+        // Keep the heaviest clusters by insertion into the short sorted mode list
+        for (int c = 0; c < numCells; c++) {
+            if (parent[c] != c) continue;
+            double w = sumWeight[c];
+            if (w <= 0) continue;
+            if (numModes == maxModes && w <= modeWeight[numModes - 1]) continue;
+            int position = (numModes < maxModes) ? numModes++ : numModes - 1;
+            while (position > 0 && modeWeight[position - 1] < w) {
+                modeWeight[position] = modeWeight[position - 1];
+                modeRoots[position] = modeRoots[position - 1];
+                position--;
+            }
+            modeWeight[position] = w;
+            modeRoots[position] = c;
+        }
+        return numModes;
+    }
+
+    /**
+     * Finds the dense index of a cell, adding it with empty sums if it is not present yet.
+     */
+    private int findOrAddCell(int x, int y) {
+        long key = packCell(x, y);
+        int slot = hashSlot(key);
+        while (slotStamps[slot] == currentStamp) {
+            if (slotKeys[slot] == key) return slotCells[slot];
+            slot = (slot + 1) & slotMask;
+        }
+        int cell = numCells++;
+        slotStamps[slot] = currentStamp;
+        slotKeys[slot] = key;
+        slotCells[slot] = cell;
+
+        cellX[cell] = x;
+        cellY[cell] = y;
+        parent[cell] = cell;
+        sumWeight[cell] = 0;
+        sumEast[cell] = 0;
+        sumNorth[cell] = 0;
+        sumEastEast[cell] = 0;
+        sumEastNorth[cell] = 0;
+        sumNorthNorth[cell] = 0;
+        return cell;
+    }
+
+    /**
+     * Finds the dense index of a cell.
+     *
+     * @return The index of the cell, or -1 if it holds no particles.
+     */
+    private int findCell(int x, int y) {
+        long key = packCell(x, y);
+        int slot = hashSlot(key);
+        while (slotStamps[slot] == currentStamp) {
+            if (slotKeys[slot] == key) return slotCells[slot];
+            slot = (slot + 1) & slotMask;
+        }
+        return -1;
+    }
+
+    private static long packCell(int x, int y) {
+        return ((long) x << 32) ^ (y & 0xffffffffL);
+    }
+
+    private int hashSlot(long key) {
+        // Fibonacci hashing spreads neighbouring cells across the table
+        return (int) ((key * 0x9E3779B97F4A7C15L) >>> slotShift);
+    }
+
+    /**
+     * Finds the root of a cell's cluster, halving the path on the way.
+     */
+    private int find(int cell) {
+        while (parent[cell] != cell) {
+            parent[cell] = parent[parent[cell]];
+            cell = parent[cell];
+        }
+        return cell;
+    }
+
+    /**
+     * Joins the clusters of two cells, keeping the lower index as the root.
+     */
+    private void union(int a, int b) {
+        int rootA = find(a);
+        int rootB = find(b);
+        if (rootA == rootB) return;
+        if (rootA < rootB) {
+            parent[rootB] = rootA;
+        } else {
+            parent[rootA] = rootB;
+        }
+    }
+
+    /**
+     * A get method for the number of modes found by the last clustering pass.
+     *
+     * @return The number of modes.
+     */
+    public int getNumModes() { return numModes; }
+
+    /**
+     * A get method for the total particle weight of a mode.
+     *
+     * @param mode The index of the mode, 0 being the heaviest.
+     * @return The weight of the mode.
+     */
+    public double getModeWeight(int mode) { return modeWeight[mode]; }
+
+    /**
+     * A get method for the mean easting of a mode.
+     *
+     * @param mode The index of the mode, 0 being the heaviest.
+     * @return The mean easting, in meters.
+     */
+    public double getModeEasting(int mode) {
+        int root = modeRoots[mode];
+        return referenceEasting + sumEast[root] / sumWeight[root];
+    }
+
+    /**
+     * A get method for the mean northing of a mode.
+     *
+     * @param mode The index of the mode, 0 being the heaviest.
+     * @return The mean northing, in meters.
+     */
+    public double getModeNorthing(int mode) {
+        int root = modeRoots[mode];
+        return referenceNorthing + sumNorth[root] / sumWeight[root];
+    }
+
+    /**
+     * A get method for the East variance of a mode.
+     *
+     * @param mode The index of the mode, 0 being the heaviest.
+     * @return The variance of the easting, in square meters.
+     */
+    public double getModeVarianceEast(int mode) {
+        int root = modeRoots[mode];
+        double mean = sumEast[root] / sumWeight[root];
+        return Math.max(0, sumEastEast[root] / sumWeight[root] - mean * mean);
+    }
+
+    /**
+     * A get method for the North variance of a mode.
+     *
+     * @param mode The index of the mode, 0 being the heaviest.
+     * @return The variance of the northing, in square meters.
+     */
+    public double getModeVarianceNorth(int mode) {
+        int root = modeRoots[mode];
+        double mean = sumNorth[root] / sumWeight[root];
+        return Math.max(0, sumNorthNorth[root] / sumWeight[root] - mean * mean);
+    }
+
+    /**
+     * A get method for the East-North covariance of a mode.
+     *
+     * @param mode The index of the mode, 0 being the heaviest.
+     * @return The covariance of the easting and northing, in square meters.
+     */
+    public double getModeCovariance(int mode) {
+        int root = modeRoots[mode];
+        double meanEast = sumEast[root] / sumWeight[root];
+        double meanNorth = sumNorth[root] / sumWeight[root];
+        return sumEastNorth[root] / sumWeight[root] - meanEast * meanNorth;
+    }
+}
@@ -0,0 +1,844 @@
+package com.openpositioning.PositionMe.FusionAlgorithms;
+
+import com.openpositioning.PositionMe.Buildings.WallMap;
+
+import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Structure-of-arrays particle store and update kernel used by the {@link ParticleFilter}.
+ *
+ * The easting, northing and weight of every particle are kept in parallel primitive arrays rather
+ * than in one object per particle. Resampling writes the surviving particles into a second set of
+ * position arrays which are then swapped with the live ones, so once the engine has been created
+ * none of the per-update operations allocate on the heap. This keeps the garbage collector away
+ * from the sensor thread even with particle counts in the tens of thousands.
+ *
+ * Weights are carried over between measurements and the cloud is only resampled once the effective
+ * sample size drops below a configurable fraction of the particle count, which limits particle
+ * impoverishment. The resampling scheme itself is chosen with a {@link ResamplingStrategy}.
+ *
+ * The engine runs either single threaded or, when created with a {@link ForkJoinPool}, in a
+ * parallel mode where the motion, likelihood and normalisation loops are split into fixed chunks of
+ * particles. Each chunk draws its noise from its own {@link FastRandom} stream derived from a
+ * single seed, and the weight sums are reduced chunk by chunk in a fixed order, so a given seed
+ * produces the same particle cloud however many threads the pool has.
+ *
+ * The measurement likelihood is a {@link DistanceLikelihood} chosen at construction, either the
+ * exact function or a {@link LikelihoodTable}. Passing a {@link FastRandom} as the random source
+ * likewise replaces the synchronized Gaussian sampler of {@link Random} with a ziggurat sampler.
+ *
+ * All arrays are sized for a fixed capacity. When a {@link KldSampler} is attached the number of
+ * live particles changes at every resampling step, between the sampler's limits, to follow the
+ * spread of the posterior.
+ *
+ * When a {@link WallMap} is set, every particle whose motion crosses a wall has its weight
+ * multiplied by a crossing factor, zero to kill it outright, so the cloud respects the floor plan.
+ *
+ * Besides its position every particle carries its own step length scale and heading bias. Steps
+ * detected by PDR move each particle by the step length times its scale, in the PDR heading plus its
+ * bias. Resampling keeps the calibrations that explain the measurements best, so over time the cloud
+ * learns the user's stride and the bias of the compass.
+ */
+public class ParticleEngine {
+    // Default fraction of the particle count the effective sample size may drop to before resampling
+    private static final double DEFAULT_RESAMPLE_THRESHOLD = 0.5;
+    // Relative difference between the adaptive target and live particle count that forces a resize
+    private static final double RESIZE_TOLERANCE = 0.25;
+    // Number of particles processed by one fork-join task in parallel mode
+    private static final int PARALLEL_CHUNK_SIZE = 4096;
+
+    // Operations run by the chunk tasks in parallel mode
+    private static final int OP_MOTION = 0;
+    private static final int OP_MEASUREMENT = 1;
+    private static final int OP_SCALE = 2;
+    private static final int OP_STEP = 3;
+
+    // Number of particles the arrays are allocated for
+    private final int capacity;
+    // Number of live particles, always at most the capacity
+    private int numParticles;
+
+    // Live particle state, index i across all arrays describes particle i
+    private double[] easting;
+    private double[] northing;
+    private final double[] weight;
+    // Per-particle calibration of the PDR step length (multiplier) and heading (radians)
+    private double[] stepScale;
+    private double[] headingBias;
+
+    // Back buffers written during resampling and swapped with the live state afterwards
+    private double[] nextEasting;
+    private double[] nextNorthing;
+    private double[] nextStepScale;
+    private double[] nextHeadingBias;
+
+    // Ancestor indices selected by the resampling strategy
+    private final int[] ancestors;
+    // Scratch array handed to the resampling strategy
+    private final double[] resampleScratch;
+
+    // Resampling configuration
+    private ResamplingStrategy resamplingStrategy;
+    private double resampleThreshold;
+    // Adaptive particle count, null when the particle count is fixed
+    private KldSampler kldSampler;
+
+    // Walls of the current floor in the engine's frame, null when unconstrained
+    private WallMap wallMap;
+    // Factor applied to the weight of a particle that crosses a wall
+    private double wallCrossingWeight;
+
+    // Standard deviation of the random walk applied to the calibrations at every step
+    private double stepScaleDrift;
+    private double headingBiasDrift;
+
+    // Random number source for motion noise and resampling
+    private final Random random;
+    // Likelihood of a measurement given the distance to a particle
+    private final DistanceLikelihood likelihood;
+
+    // Parallel execution, the pool is null when running single threaded
+    private final ForkJoinPool pool;
+    private final ChunkTask[] chunkTasks;
+    private final RecursiveAction rootTask;
+    // Operation and arguments shared by the chunk tasks for the current parallel pass
+    private int parallelOp;
+    private double parallelArg0;
+    private double parallelArg1;
+    private double parallelArg2;
+    private double parallelArg3;
+
+    /**
+     * Creates a particle engine and preallocates all the particle state arrays.
+     *
+     * @param capacity The maximum number of particles to track, must be greater than 0.
+     * @param random The random number source used for noise and resampling.
+     */
+    public ParticleEngine(int capacity, Random random) {
+        this(capacity, random, DistanceLikelihood.EXPONENTIAL);
+    }
+
+    /**
+     * Creates a particle engine with a given measurement likelihood and preallocates all the
+     * particle state arrays.
+     *
+     * @param capacity The maximum number of particles to track, must be greater than 0.
+     * @param random The random number source used for noise and resampling.
+     * @param likelihood The likelihood used to weigh the particles against a measurement.
+     */
+    public ParticleEngine(int capacity, Random random, DistanceLikelihood likelihood) {
+        this(capacity, random, likelihood, null, 0);
+    }
+
+    /**
+     * Creates a particle engine that runs its per-particle loops in parallel on the given pool.
+     * Resampling and initialisation remain sequential and use a {@link Random} seeded with the
+     * same seed.
+     *
+     * @param capacity The maximum number of particles to track, must be greater than 0.
+     * @param seed The seed all random streams are derived from.
+     * @param pool The fork-join pool to run the particle chunks on.
+     */
+    public ParticleEngine(int capacity, long seed, ForkJoinPool pool) {
+        this(capacity, seed, pool, DistanceLikelihood.EXPONENTIAL);
+    }
+
+    /**
+     * Creates a particle engine with a given measurement likelihood that runs its per-particle loops
+     * in parallel on the given pool.
+     *
+     * @param capacity The maximum number of particles to track, must be greater than 0.
+     * @param seed The seed all random streams are derived from.
+     * @param pool The fork-join pool to run the particle chunks on.
+     * @param likelihood The likelihood used to weigh the particles against a measurement.
+     */
+    public ParticleEngine(int capacity, long seed, ForkJoinPool pool, DistanceLikelihood likelihood) {
+        this(capacity, new Random(seed), likelihood, pool, seed);
+    }
+
+    /**
+     * Shared constructor for the sequential and parallel modes.
+     */
+    private ParticleEngine(int capacity, Random random, DistanceLikelihood likelihood, ForkJoinPool pool, long seed) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Number of particles must be greater than 0");
+        }
+        this.capacity = capacity;
+        this.numParticles = capacity;
+        this.random = random;
+        this.likelihood = likelihood;
+        this.easting = new double[capacity];
+        this.northing = new double[capacity];
+        this.weight = new double[capacity];
+        this.nextEasting = new double[capacity];
+        this.nextNorthing = new double[capacity];
+        this.stepScale = new double[capacity];
+        this.headingBias = new double[capacity];
+        this.nextStepScale = new double[capacity];
+        this.nextHeadingBias = new double[capacity];
+        this.ancestors = new int[capacity];
+        this.resampleScratch = new double[capacity];
+        this.resamplingStrategy = ResamplingStrategy.SYSTEMATIC;
+        this.resampleThreshold = DEFAULT_RESAMPLE_THRESHOLD;
+
+        this.pool = pool;
+        if (pool != null) {
+            // Derive one independent random stream per chunk so the noise does not depend on scheduling
+            SplittableRandom rootRandom = new SplittableRandom(seed);
+            int numChunks = (capacity + PARALLEL_CHUNK_SIZE - 1) / PARALLEL_CHUNK_SIZE;
+            this.chunkTasks = new ChunkTask[numChunks];
+            for (int c = 0; c < numChunks; c++) {
+                int from = c * PARALLEL_CHUNK_SIZE;
+                int to = Math.min(from + PARALLEL_CHUNK_SIZE, capacity);
+                chunkTasks[c] = new ChunkTask(from, to, new FastRandom(rootRandom.nextLong()));
+            }
+            this.rootTask = new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    for (ChunkTask task : chunkTasks) {
+                        task.reinitialize();
+                    }
+                    invokeAll(chunkTasks);
+                }
+            };
+        } else {
+            this.chunkTasks = null;
+            this.rootTask = null;
+        }
+    }
+
+    /**
+     * Scatters the particles around a starting position with Gaussian noise and resets the weights
+     * to a uniform distribution. Every particle starts with an unscaled step length and no heading
+     * bias.
+     *
+     * @param centreEasting The easting to centre the particles around, in meters.
+     * @param centreNorthing The northing to centre the particles around, in meters.
+     * @param stdDev The standard deviation of the initial spread, in meters.
+     */
+    public void initialise(double centreEasting, double centreNorthing, double stdDev) {
+        initialise(centreEasting, centreNorthing, stdDev, 0, 0);
+    }
+
+    /**
+     * Scatters the particles around a starting position with Gaussian noise, samples a step length
+     * scale around one and a heading bias around zero for every particle, and resets the weights to
+     * a uniform distribution. With an adaptive particle count the cloud starts at the maximum size,
+     * as the posterior is at its widest before the first measurement.
+     *
+     * @param centreEasting The easting to centre the particles around, in meters.
+     * @param centreNorthing The northing to centre the particles around, in meters.
+     * @param stdDev The standard deviation of the initial spread, in meters.
+     * @param stepScaleStdDev The standard deviation of the initial step length scales.
+     * @param headingBiasStdDev The standard deviation of the initial heading biases, in radians.
+     */
+    public void initialise(double centreEasting, double centreNorthing, double stdDev,
+                           double stepScaleStdDev, double headingBiasStdDev) {
+        numParticles = (kldSampler != null) ? Math.min(capacity, kldSampler.getMaxParticles()) : capacity;
+        double uniformWeight = 1.0 / numParticles;
+        for (int i = 0; i < numParticles; i++) {
+            easting[i] = centreEasting + random.nextGaussian() * stdDev;
+            northing[i] = centreNorthing + random.nextGaussian() * stdDev;
+            stepScale[i] = 1.0 + random.nextGaussian() * stepScaleStdDev;
+            headingBias[i] = random.nextGaussian() * headingBiasStdDev;
+            weight[i] = uniformWeight;
+        }
+    }
+
+    /**
+     * Moves every particle by a step detected by PDR. Each particle scales the step length by its
+     * own step length scale and adds its own heading bias, plus independent Gaussian noise on both.
+     * The calibrations themselves follow a small random walk so resampling can keep refining them.
+     * If a wall map is set, particles crossing a wall are down-weighted and the weights are
+     * normalised again.
+     *
+     * @param stepLength The step length estimated by PDR, in meters.
+     * @param heading The heading of the step, in radians clockwise from North.
+     * @param stepLengthStdDev The standard deviation of the step length noise, in meters.
+     * @param headingStdDev The standard deviation of the heading noise, in radians.
+     */
+    public void applyStep(double stepLength, double heading, double stepLengthStdDev, double headingStdDev) {
+        double totalWeight;
+        if (pool != null) {
+            parallelArg2 = stepLengthStdDev;
+            parallelArg3 = headingStdDev;
+            runParallel(OP_STEP, stepLength, heading);
+            totalWeight = sumPartialWeights();
+        } else {
+            totalWeight = 0;
+            for (int i = 0; i < numParticles; i++) {
+                totalWeight += stepParticle(i, stepLength, heading,
+                        random.nextGaussian() * stepLengthStdDev, random.nextGaussian() * headingStdDev,
+                        random.nextGaussian() * stepScaleDrift, random.nextGaussian() * headingBiasDrift);
+            }
+        }
+        if (wallMap != null) {
+            normaliseWeights(totalWeight);
+        }
+    }
+
+    /**
+     * Moves a single particle by a step and applies the wall constraint.
+     *
+     * @param index The index of the particle.
+     * @param stepLength The step length estimated by PDR, in meters.
+     * @param heading The heading of the step, in radians clockwise from North.
+     * @param lengthNoise The step length noise sample, in meters.
+     * @param headingNoise The heading noise sample, in radians.
+     * @param scaleDrift The random walk sample of the step length scale.
+     * @param biasDrift The random walk sample of the heading bias, in radians.
+     * @return The weight of the particle after the constraint.
+     */
+    private double stepParticle(int index, double stepLength, double heading, double lengthNoise,
+                                double headingNoise, double scaleDrift, double biasDrift) {
+        stepScale[index] += scaleDrift;
+        headingBias[index] += biasDrift;
+        double length = stepLength * stepScale[index] + lengthNoise;
+        double theta = heading + headingBias[index] + headingNoise;
+
+        double oldEasting = easting[index];
+        double oldNorthing = northing[index];
+        easting[index] = oldEasting + length * Math.sin(theta);
+        northing[index] = oldNorthing + length * Math.cos(theta);
+        return constrainMotion(index, oldEasting, oldNorthing);
+    }
+
+    /**
+     * Moves every particle by independent zero mean Gaussian noise on both axes. If a wall map is
+     * set, particles crossing a wall are down-weighted and the weights are normalised again.
+     *
+     * @param stdDev The standard deviation of the noise, in meters.
+     */
+    public void applyMotionNoise(double stdDev) {
+        double totalWeight;
+        if (pool != null) {
+            runParallel(OP_MOTION, stdDev, 0);
+            totalWeight = sumPartialWeights();
+        } else {
+            totalWeight = 0;
+            for (int i = 0; i < numParticles; i++) {
+                double oldEasting = easting[i];
+                double oldNorthing = northing[i];
+                easting[i] = oldEasting + random.nextGaussian() * stdDev;
+                northing[i] = oldNorthing + random.nextGaussian() * stdDev;
+                totalWeight += constrainMotion(i, oldEasting, oldNorthing);
+            }
+        }
+        if (wallMap != null) {
+            normaliseWeights(totalWeight);
+        }
+    }
+
+    /**
+     * Applies the wall constraint to a particle that has just moved.
+     *
+     * @param index The index of the particle.
+     * @param oldEasting The easting of the particle before the motion.
+     * @param oldNorthing The northing of the particle before the motion.
+     * @return The weight of the particle after the constraint.
+     */
+    private double constrainMotion(int index, double oldEasting, double oldNorthing) {
+        if (wallMap != null && wallMap.crossesWall(oldEasting, oldNorthing, easting[index], northing[index])) {
+            weight[index] *= wallCrossingWeight;
+        }
+        return weight[index];
+    }
+
+    /**
+     * Multiplies each particle weight by the likelihood of the measured position and normalises the
+     * weights so they sum to one.
+     *
+     * @param measuredEasting The measured easting, in meters.
+     * @param measuredNorthing The measured northing, in meters.
+     */
+    public void applyMeasurement(double measuredEasting, double measuredNorthing) {
+        applyMeasurement(measuredEasting, measuredNorthing, 1);
+    }
+
+    /**
+     * Multiplies each particle weight by the likelihood of the measured position, with the distances
+     * divided by a scale so a less accurate measurement weighs the particles less sharply, and
+     * normalises the weights so they sum to one.
+     *
+     * @param measuredEasting The measured easting, in meters.
+     * @param measuredNorthing The measured northing, in meters.
+     * @param distanceScale The factor the distances are divided by, 1 for the nominal accuracy.
+     */
+    public void applyMeasurement(double measuredEasting, double measuredNorthing, double distanceScale) {
+        if (!(distanceScale > 0)) {
+            throw new IllegalArgumentException("Distance scale must be greater than 0");
+        }
+        double inverseScale = 1.0 / distanceScale;
+        double totalWeight;
+        if (pool != null) {
+            parallelArg2 = inverseScale;
+            runParallel(OP_MEASUREMENT, measuredEasting, measuredNorthing);
+            totalWeight = sumPartialWeights();
+        } else {
+            totalWeight = weighRange(0, numParticles, measuredEasting, measuredNorthing, inverseScale);
+        }
+        normaliseWeights(totalWeight);
+    }
+
+    /**
+     * Adds up the weight sums of the chunk tasks after a parallel pass. The partial sums are reduced
+     * in chunk order so the result does not depend on scheduling.
+     *
+     * @return The total weight over all chunks.
+     */
+    private double sumPartialWeights() {
+        double totalWeight = 0;
+        for (ChunkTask task : chunkTasks) {
+            totalWeight += task.partialSum;
+        }
+        return totalWeight;
+    }
+
+    /**
+     * Applies the measurement likelihood to a range of particles.
+     *
+     * @param from The first particle index, inclusive.
+     * @param to The last particle index, exclusive.
+     * @param measuredEasting The measured easting, in meters.
+     * @param measuredNorthing The measured northing, in meters.
+     * @param inverseScale The factor the distances are multiplied by.
+     * @return The sum of the updated weights in the range.
+     */
+    private double weighRange(int from, int to, double measuredEasting, double measuredNorthing,
+                              double inverseScale) {
+        double sum = 0;
+        for (int i = from; i < to; i++) {
+            double dEast = measuredEasting - easting[i];
+            double dNorth = measuredNorthing - northing[i];
+            double distance = Math.sqrt(dEast * dEast + dNorth * dNorth) * inverseScale;
+            double w = weight[i] * likelihood.evaluate(distance);
+            weight[i] = w;
+            sum += w;
+        }
+        return sum;
+    }
+
+    /**
+     * Divides every weight by the given total. If every weight has collapsed to zero the weights
+     * are reset to a uniform distribution instead of producing NaNs.
+     *
+     * @param totalWeight The current sum of all particle weights.
+     */
+    private void normaliseWeights(double totalWeight) {
+        if (totalWeight <= 0 || Double.isNaN(totalWeight)) {
+            double uniformWeight = 1.0 / numParticles;
+            for (int i = 0; i < numParticles; i++) {
+                weight[i] = uniformWeight;
+            }
+            return;
+        }
+        double inverseTotal = 1.0 / totalWeight;
+        if (pool != null) {
+            runParallel(OP_SCALE, inverseTotal, 0);
+            return;
+        }
+        for (int i = 0; i < numParticles; i++) {
+            weight[i] *= inverseTotal;
+        }
+    }
+
+    /**
+     * Runs one operation over every chunk of particles on the fork-join pool and waits for all the
+     * chunks to finish. The tasks are reused between passes so no new tasks are created.
+     *
+     * @param op The operation to run, one of the OP_ constants.
+     * @param arg0 The first argument of the operation.
+     * @param arg1 The second argument of the operation.
+     */
+    private void runParallel(int op, double arg0, double arg1) {
+        this.parallelOp = op;
+        this.parallelArg0 = arg0;
+        this.parallelArg1 = arg1;
+        rootTask.reinitialize();
+        pool.invoke(rootTask);
+    }
+
+    /**
+     * Calculates the effective sample size of the current weights, 1 / sum(w^2). It equals the
+     * particle count when the weights are uniform and approaches one when a single particle holds
+     * all of the weight.
+     *
+     * @return The effective sample size.
+     */
+    public double getEffectiveSampleSize() {
+        double sumSquares = 0;
+        for (int i = 0; i < numParticles; i++) {
+            sumSquares += weight[i] * weight[i];
+        }
+        return (sumSquares > 0) ? 1.0 / sumSquares : 0;
+    }
+
+    /**
+     * Resamples the particle cloud only if the effective sample size has dropped below the
+     * configured threshold, or if the adaptive particle count has moved far enough away from the
+     * live count that the cloud should be resized.
+     *
+     * @return true if the particles were resampled, false otherwise.
+     */
+    public boolean resampleIfNeeded() {
+        int targetCount = getTargetCount();
+        boolean degenerate = getEffectiveSampleSize() < resampleThreshold * numParticles;
+        boolean resize = Math.abs(targetCount - numParticles) > RESIZE_TOLERANCE * numParticles;
+        if (!degenerate && !resize) {
+            return false;
+        }
+        resample(targetCount);
+        return true;
+    }
+
+    /**
+     * Calculates the particle count of the next generation, either the fixed capacity or the
+     * count chosen by the {@link KldSampler}.
+     *
+     * @return The number of particles to draw at the next resampling step.
+     */
+    private int getTargetCount() {
+        if (kldSampler == null) return numParticles;
+        return Math.min(capacity, kldSampler.computeTargetCount(easting, northing, weight, numParticles));
+    }
+
+    /**
+     * Draws a new generation of particles in proportion to their weights, keeping the current
+     * particle count, or the adaptive count if a {@link KldSampler} is attached.
+     */
+    public void resample() {
+        resample(getTargetCount());
+    }
+
+    /**
+     * Draws a new generation of particles in proportion to their weights using the configured
+     * {@link ResamplingStrategy}. The survivors are written into the back buffers, which are then
+     * swapped with the live arrays, and the weights are reset to a uniform distribution.
+     *
+     * @param outCount The number of particles in the new generation, at most the capacity.
+     */
+    private void resample(int outCount) {
+        resamplingStrategy.resample(weight, numParticles, ancestors, outCount, resampleScratch, random);
+        numParticles = outCount;
+
+        for (int i = 0; i < numParticles; i++) {
+            int index = ancestors[i];
+            nextEasting[i] = easting[index];
+            nextNorthing[i] = northing[index];
+            nextStepScale[i] = stepScale[index];
+            nextHeadingBias[i] = headingBias[index];
+        }
+
+        swapBuffers();
+        double uniformWeight = 1.0 / numParticles;
+        for (int i = 0; i < numParticles; i++) {
+            weight[i] = uniformWeight;
+        }
+    }
+
+    /**
+     * Swaps the live particle state arrays with the back buffers.
+     */
+    private void swapBuffers() {
+        double[] swap = easting;
+        easting = nextEasting;
+        nextEasting = swap;
+
+        swap = northing;
+        northing = nextNorthing;
+        nextNorthing = swap;
+
+        swap = stepScale;
+        stepScale = nextStepScale;
+        nextStepScale = swap;
+
+        swap = headingBias;
+        headingBias = nextHeadingBias;
+        nextHeadingBias = swap;
+    }
+
+    /**
+     * Calculates the weighted mean easting of the particle cloud.
+     *
+     * @return The estimated easting, in meters.
+     */
+    public double getEstimatedEasting() {
+        double estimate = 0;
+        for (int i = 0; i < numParticles; i++) {
+            estimate += easting[i] * weight[i];
+        }
+        return estimate;
+    }
+
+    /**
+     * Calculates the weighted mean northing of the particle cloud.
+     *
+     * @return The estimated northing, in meters.
+     */
+    public double getEstimatedNorthing() {
+        double estimate = 0;
+        for (int i = 0; i < numParticles; i++) {
+            estimate += northing[i] * weight[i];
+        }
+        return estimate;
+    }
+
+    /**
+     * Calculates the weighted covariance of the particle positions around their weighted mean.
+     *
+     * @param covariance The array receiving the variance of the easting, the variance of the northing
+     *                   and their covariance, in square meters.
+     */
+    public void getEstimatedCovariance(double[] covariance) {
+        double meanEasting = getEstimatedEasting();
+        double meanNorthing = getEstimatedNorthing();
+        double varianceEasting = 0;
+        double varianceNorthing = 0;
+        double cross = 0;
+        for (int i = 0; i < numParticles; i++) {
+            double dEasting = easting[i] - meanEasting;
+            double dNorthing = northing[i] - meanNorthing;
+            varianceEasting += weight[i] * dEasting * dEasting;
+            varianceNorthing += weight[i] * dNorthing * dNorthing;
+            cross += weight[i] * dEasting * dNorthing;
+        }
+        covariance[0] = varianceEasting;
+        covariance[1] = varianceNorthing;
+        covariance[2] = cross;
+    }
+
+    /**
+     * Groups the live particles into their heaviest modes. The results are read from the clusterer.
+     *
+     * @param clusterer The clusterer to run, its capacity must be at least the engine capacity.
+     * @return The number of modes found.
+     */
+    public int clusterParticles(ParticleClusterer clusterer) {
+        return clusterer.cluster(easting, northing, weight, numParticles);
+    }
+
+    /**
+     * Calculates the weighted mean step length scale of the particle cloud.
+     *
+     * @return The estimated step length scale.
+     */
+    public double getEstimatedStepScale() {
+        double estimate = 0;
+        for (int i = 0; i < numParticles; i++) {
+            estimate += stepScale[i] * weight[i];
+        }
+        return estimate;
+    }
+
+    /**
+     * Calculates the weighted mean heading bias of the particle cloud.
+     *
+     * @return The estimated heading bias, in radians.
+     */
+    public double getEstimatedHeadingBias() {
+        double estimate = 0;
+        for (int i = 0; i < numParticles; i++) {
+            estimate += headingBias[i] * weight[i];
+        }
+        return estimate;
+    }
+
+    /**
+     * Sets the scheme used to select the next generation of particles.
+     *
+     * @param resamplingStrategy The resampling scheme to use.
+     */
+    public void setResamplingStrategy(ResamplingStrategy resamplingStrategy) {
+        this.resamplingStrategy = resamplingStrategy;
+    }
+
+    /**
+     * Sets the fraction of the particle count the effective sample size may fall to before the
+     * cloud is resampled. A value of 1 resamples after every measurement, 0 never resamples.
+     *
+     * @param resampleThreshold The threshold fraction, between 0 and 1.
+     */
+    public void setResampleThreshold(double resampleThreshold) {
+        if (resampleThreshold < 0 || resampleThreshold > 1) {
+            throw new IllegalArgumentException("Resample threshold must be between 0 and 1");
+        }
+        this.resampleThreshold = resampleThreshold;
+    }
+
+    /**
+     * Attaches a KLD sampler to adapt the particle count at every resampling step, or removes it
+     * if null is passed, which fixes the count at its current value.
+     *
+     * @param kldSampler The sampler choosing the particle count, or null.
+     */
+    public void setKldSampler(KldSampler kldSampler) {
+        this.kldSampler = kldSampler;
+    }
+
+    /**
+     * Sets the walls particles may not cross. The map must be in the same East North frame as the
+     * particles.
+     *
+     * @param wallMap The walls of the current floor, or null to remove the constraint.
+     * @param wallCrossingWeight The factor applied to the weight of a particle crossing a wall,
+     *                           between 0 (kill the particle) and 1 (ignore walls).
+     */
+    public void setWallMap(WallMap wallMap, double wallCrossingWeight) {
+        if (wallCrossingWeight < 0 || wallCrossingWeight > 1) {
+            throw new IllegalArgumentException("Wall crossing weight must be between 0 and 1");
+        }
+        this.wallMap = wallMap;
+        this.wallCrossingWeight = wallCrossingWeight;
+    }
+
+    /**
+     * Sets the standard deviation of the random walk the step length scale and heading bias of every
+     * particle follow at each step. A small drift keeps the calibrations diverse after resampling
+     * and lets them track slow changes, such as the user changing pace.
+     *
+     * @param stepScaleDrift The standard deviation of the step length scale change per step.
+     * @param headingBiasDrift The standard deviation of the heading bias change per step, in radians.
+     */
+    public void setCalibrationDrift(double stepScaleDrift, double headingBiasDrift) {
+        if (stepScaleDrift < 0 || headingBiasDrift < 0) {
+            throw new IllegalArgumentException("Calibration drift must not be negative");
+        }
+        this.stepScaleDrift = stepScaleDrift;
+        this.headingBiasDrift = headingBiasDrift;
+    }
+
+    /**
+     * Records the duration of the last filter update, used by the {@link KldSampler} to keep the
+     * particle count within its time budget.
+     *
+     * @param elapsedNanos The duration of the update, in nanoseconds.
+     */
+    public void recordUpdateTime(long elapsedNanos) {
+        if (kldSampler != null) {
+            kldSampler.recordUpdateTime(elapsedNanos, numParticles);
+        }
+    }
+
+    /**
+     * A get method for the number of live particles.
+     *
+     * @return The number of particles.
+     */
+    public int getNumParticles() { return numParticles; }
+
+    /**
+     * A get method for the number of particles the engine has allocated space for.
+     *
+     * @return The particle capacity.
+     */
+    public int getCapacity() { return capacity; }
+
+    /**
+     * A get method for the easting of a single particle.
+     *
+     * @param index The index of the particle.
+     * @return The easting of the particle, in meters.
+     */
+    public double getEasting(int index) { return easting[index]; }
+
+    /**
+     * A get method for the northing of a single particle.
+     *
+     * @param index The index of the particle.
+     * @return The northing of the particle, in meters.
+     */
+    public double getNorthing(int index) { return northing[index]; }
+
+    /**
+     * A get method for the normalised weight of a single particle.
+     *
+     * @param index The index of the particle.
+     * @return The weight of the particle.
+     */
+    public double getWeight(int index) { return weight[index]; }
+
+    /**
+     * A get method for the step length scale of a single particle.
+     *
+     * @param index The index of the particle.
+     * @return The step length scale of the particle.
+     */
+    public double getStepScale(int index) { return stepScale[index]; }
+
+    /**
+     * A get method for the heading bias of a single particle.
+     *
+     * @param index The index of the particle.
+     * @return The heading bias of the particle, in radians.
+     */
+    public double getHeadingBias(int index) { return headingBias[index]; }
+
+    /**
+     * A get method to check whether the engine runs its particle loops on a fork-join pool.
+     *
+     * @return true if running in parallel mode, false if single threaded.
+     */
+    public boolean isParallel() { return pool != null; }
+
+    /**
+     * Fork-join task processing a fixed range of particles with its own random stream.
+     */
+    private class ChunkTask extends RecursiveAction {
+        private final int from;
+        private final int to;
+        private final FastRandom chunkRandom;
+        // Weight sum of the chunk from the last measurement pass
+        private double partialSum;
+
+        ChunkTask(int from, int to, FastRandom chunkRandom) {
+            this.from = from;
+            this.to = to;
+            this.chunkRandom = chunkRandom;
+        }
+
+        @Override
+        protected void compute() {
+            // Only the live particles are processed, chunks past the live count do nothing
+            int end = Math.min(to, numParticles);
+            if (from >= end) {
+                partialSum = 0;
+                return;
+            }
+            switch (parallelOp) {
+                case OP_MOTION:
+                    double stdDev = parallelArg0;
+                    double sum = 0;
+                    for (int i = from; i < end; i++) {
+                        double oldEasting = easting[i];
+                        double oldNorthing = northing[i];
+                        easting[i] = oldEasting + chunkRandom.nextGaussian() * stdDev;
+                        northing[i] = oldNorthing + chunkRandom.nextGaussian() * stdDev;
+                        sum += constrainMotion(i, oldEasting, oldNorthing);
+                    }
+                    partialSum = sum;
+                    break;
+                case OP_STEP:
+                    double stepSum = 0;
+                    for (int i = from; i < end; i++) {
+                        stepSum += stepParticle(i, parallelArg0, parallelArg1,
+                                chunkRandom.nextGaussian() * parallelArg2, chunkRandom.nextGaussian() * parallelArg3,
+                                chunkRandom.nextGaussian() * stepScaleDrift, chunkRandom.nextGaussian() * headingBiasDrift);
+                    }
+                    partialSum = stepSum;
+                    break;
+                case OP_MEASUREMENT:
+                    partialSum = weighRange(from, end, parallelArg0, parallelArg1, parallelArg2);
+                    break;
+                case OP_SCALE:
+                    double factor = parallelArg0;
+                    for (int i = from; i < end; i++) {
+                        weight[i] *= factor;
+                    }
+                    break;
+            }
+        }
+    }
+}
@@ -1,26 +1,63 @@
 package com.openpositioning.PositionMe.FusionAlgorithms;
 
 import android.util.Log;
-import android.location.Location;
 import com.google.android.gms.maps.model.LatLng;
+import com.openpositioning.PositionMe.Buildings.WallMap;
 import com.openpositioning.PositionMe.Utils.CoordinateTransform;
 import com.openpositioning.PositionMe.Utils.OutlierDetector;
 import com.openpositioning.PositionMe.sensors.SensorFusion;
+import com.openpositioning.PositionMe.sensors.TurnDetector;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * Particle filter algorithm for estimating position based on sensor measurements.
  *
+ * The filter is a {@link FusionEngine} processing its inputs on the calling thread, the time spent
+ * on each step and fix being recorded in a {@link LatencyHistogram} per kind of input. Steps, WiFi
+ * fixes and GNSS fixes arrive on different threads, so the particles are only read or changed while
+ * holding the lock of the filter.
+ *
  * @author Christopher Khoo
  */
-public class ParticleFilter {
+public class ParticleFilter implements FusionEngine {
     // Constants, may need to be tuned
-    private static final int NUM_PARTICLES = 100;
+    private static final int MIN_PARTICLES = 100;
+    private static final int MAX_PARTICLES = 5000;
+    // Largest particle count when the per-particle loops are split across a fork-join pool
+    private static final int MAX_PARALLEL_PARTICLES = 20000;
+    // Time the filter may spend on a single update, in nanoseconds
+    private static final long UPDATE_TIME_BUDGET = 2000000;
     private static final double PARTICLE_STD_DEV = 0.0005;
+    // Diffusion applied before every position measurement, the motion itself comes from PDR steps
+    private static final double ROUGHENING_STD_DEV = 0.25;
+    // Step motion model noise
+    private static final double STEP_LENGTH_STD_DEV = 0.1;
+    private static final double STEP_HEADING_STD_DEV = Math.toRadians(5);
+    // Initial spread and drift per step of the per-particle step length scale and heading bias
+    private static final double STEP_SCALE_STD_DEV = 0.15;
+    private static final double HEADING_BIAS_STD_DEV = Math.toRadians(15);
+    private static final double STEP_SCALE_DRIFT = 0.005;
+    private static final double HEADING_BIAS_DRIFT = Math.toRadians(0.5);
+    // Fraction of the particle count the effective sample size may drop to before resampling
+    private static final double RESAMPLE_THRESHOLD = 0.5;
+    // Factor applied to the weight of particles crossing a wall, zero removes them at the next resampling
+    private static final double WALL_CROSSING_WEIGHT = 0.0;
+    // Standard deviation of a fix the likelihood is tuned for, in meters, less accurate fixes weigh less sharply
+    private static final double FIX_STD_DEV = 5.0;
+    // Range and number of intervals of the measurement likelihood lookup table
+    private static final double LIKELIHOOD_TABLE_RANGE = 100.0;
+    private static final int LIKELIHOOD_TABLE_INTERVALS = 10000;
+    // Grid cell size used to group particles into modes, and the number of modes reported
+    private static final double CLUSTER_CELL_SIZE = 1.0;
+    private static final int MAX_HYPOTHESES = 3;
 
     // Parameters
-    private Particle[] particles;
+    private final ParticleEngine engine;
+    private final ParticleClusterer clusterer;
     private final Random random;
 
     // Reference Lat Long objects
@@ -34,13 +71,43 @@ public class ParticleFilter {
     private final double initialTrueEasting;
     private final double initialTrueNorthing;
 
-    // Outlier Detector
-    private OutlierDetector outlierDetector;
+    // Outlier Detector over a bounded window of the distances of the fixes from the estimate
+    private final OutlierDetector outlierDetector;
+    // Walls set from another thread, applied to the engine at the start of the next update
+    private volatile WallMap pendingWallMap;
+    private volatile boolean wallMapChanged;
+    // Processing time of the steps and fixes
+    private final LatencyHistogram stepLatency = new LatencyHistogram();
+    private final LatencyHistogram wifiFixLatency = new LatencyHistogram();
+    private final LatencyHistogram gnssFixLatency = new LatencyHistogram();
 
     /**
-     * Constructor to create a particle filter.
+     * Constructor to create a particle filter using the fast likelihood and noise sampling.
      */
     public ParticleFilter() {
+        this(true);
+    }
+
+    /**
+     * Constructor to create a particle filter.
+     *
+     * @param useFastMath true to evaluate the likelihood from a lookup table and draw noise with the
+     *                    ziggurat sampler, false to use the exact functions.
+     */
+    public ParticleFilter(boolean useFastMath) {
+        this(useFastMath, null);
+    }
+
+    /**
+     * Constructor to create a particle filter, single threaded or with its per-particle loops split
+     * across a fork-join pool. The parallel filter may grow to {@link #MAX_PARALLEL_PARTICLES}
+     * particles, still within the time budget of an update.
+     *
+     * @param useFastMath true to evaluate the likelihood from a lookup table and draw noise with the
+     *                    ziggurat sampler, false to use the exact functions.
+     * @param pool        The pool to run the particle loops on, or null to run them on the calling thread.
+     */
+    public ParticleFilter(boolean useFastMath, ForkJoinPool pool) {
         this.outlierDetector = new OutlierDetector();
 
         double[] startRef = SensorFusion.getInstance().getGNSSLatLngAlt(true);
@@ -53,155 +120,294 @@ public class ParticleFilter {
         this.initialTrueNorthing = enuCoords[1];
         Log.d("PARTICLE_FILTER", "Starting ENU Easting: " + initialTrueEasting + " ENU Northing:" + initialTrueNorthing);
 
-        particles = new Particle[NUM_PARTICLES];
-        random = new Random();
+        random = useFastMath ? new FastRandom() : new Random();
+        DistanceLikelihood likelihood = useFastMath
+                ? new LikelihoodTable(DistanceLikelihood.EXPONENTIAL, LIKELIHOOD_TABLE_RANGE, LIKELIHOOD_TABLE_INTERVALS)
+                : DistanceLikelihood.EXPONENTIAL;
+        int maxParticles;
+        if (pool != null) {
+            maxParticles = MAX_PARALLEL_PARTICLES;
+            engine = new ParticleEngine(maxParticles, random.nextLong(), pool, likelihood);
+        } else {
+            maxParticles = MAX_PARTICLES;
+            engine = new ParticleEngine(maxParticles, random, likelihood);
+        }
+        engine.setResamplingStrategy(ResamplingStrategy.SYSTEMATIC);
+        engine.setResampleThreshold(RESAMPLE_THRESHOLD);
+
+        // Grow the particle set while the position is uncertain and shrink it once converged
+        KldSampler kldSampler = new KldSampler(MIN_PARTICLES, maxParticles);
+        kldSampler.setTimeBudget(UPDATE_TIME_BUDGET);
+        engine.setKldSampler(kldSampler);
+        engine.setCalibrationDrift(STEP_SCALE_DRIFT, HEADING_BIAS_DRIFT);
+        clusterer = new ParticleClusterer(maxParticles, CLUSTER_CELL_SIZE, MAX_HYPOTHESES);
+
+        // Initializes particles around the initial true Easting and Northing coordinates.
+        engine.initialise(initialTrueEasting, initialTrueNorthing, PARTICLE_STD_DEV, STEP_SCALE_STD_DEV, HEADING_BIAS_STD_DEV);
+    }
 
-        initializeParticles();
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean usesWallMap() {
+        return true;
     }
 
     /**
-     * Initializes particles around the initial true Easting and Northing coordinates.
+     * Sets the walls of the floor the user is on, so that particles moving through a wall are removed.
+     * The map is moved from the building frame into the filter frame and applied at the next step or update.
+     *
+     * @param wallMap The walls relative to the building origin, or null to remove the constraint.
+     * @param buildingOrigin The south west corner of the building bounds the wall map is relative to.
      */
-    private void initializeParticles() {
-        for (int i = 0; i < NUM_PARTICLES; i++) {
-            double easting = initialTrueEasting + (random.nextGaussian() * PARTICLE_STD_DEV);
-            double northing = initialTrueNorthing + (random.nextGaussian() * PARTICLE_STD_DEV);
-            particles[i] = new Particle(easting, northing, 1.0 / NUM_PARTICLES);
+    @Override
+    public void setWallMap(WallMap wallMap, LatLng buildingOrigin) {
+        if (wallMap == null || buildingOrigin == null) {
+            pendingWallMap = null;
+        } else {
+            double[] originEnu = CoordinateTransform.geodeticToEnu(buildingOrigin.latitude, buildingOrigin.longitude, refAlt, refLatitude, refLongitude, refAlt);
+            pendingWallMap = wallMap.shifted(originEnu[0], originEnu[1]);
+            Log.d("PARTICLE_FILTER", "Constraining particles to " + wallMap.getWallCount() + " walls");
         }
+        wallMapChanged = true;
     }
 
     /**
-     * Updates motion model by adding random noise to particle positions.
+     * Moves the particles by a step detected by PDR. Each particle applies its own step length scale
+     * and heading bias, which are refined by resampling as position measurements arrive. Particles
+     * walking through a wall lose their weight, so the cloud is resampled as after a measurement.
+     * The new estimate is sent to the listeners once the lock of the filter is released.
+     *
+     * @param stepLength The step length estimated by PDR, in meters.
+     * @param heading The heading of the step relative to North, in radians.
      */
-    private void updateMotionModel() {
-        for (Particle particle : particles) {
-            particle.update(random.nextGaussian(), random.nextGaussian());
+    public void onStep(float stepLength, float heading) {
+        LatLng estimate;
+        synchronized (this) {
+            long startNanos = System.nanoTime();
+            estimate = step(stepLength, heading);
+            stepLatency.record(System.nanoTime() - startNanos);
         }
+        SensorFusion.getInstance().notifyFusedUpdate(estimate);
     }
 
     /**
-     * Updates particle weights based on measurement likelihood.
+     * Moves the particles by a step, resampling them if needed. Must be called holding the lock of
+     * the filter.
+     *
+     * @param stepLength The step length estimated by PDR, in meters.
+     * @param heading The heading of the step relative to North, in radians.
+     * @return The new position estimate.
      */
-    private void updateMeasurementModel(double measuredEast, double measuredNorth) {
-        for (Particle particle : particles) {
-            double probability = calculateDistanceProbability(measuredEast, measuredNorth, particle.getEasting(), particle.getNorthing());
-            particle.setWeight(particle.getWeight() * probability);
-        }
+    private LatLng step(float stepLength, float heading) {
+        applyPendingWallMap();
 
-        // Normalize weights
-        double totalWeight = 0;
-        for (Particle particle : particles) {
-            totalWeight += particle.getWeight();
-        }
-        for (Particle particle : particles) {
-            particle.setWeight(particle.getWeight() / totalWeight);
+        long updateStart = System.nanoTime();
+        engine.applyStep(stepLength, heading, STEP_LENGTH_STD_DEV, STEP_HEADING_STD_DEV);
+        if (engine.resampleIfNeeded()) {
+            Log.d("PARTICLE_FILTER", "Resampled particles after step, count: " + engine.getNumParticles());
         }
+        engine.recordUpdateTime(System.nanoTime() - updateStart);
+        Log.d("PARTICLE_FILTER", "Step scale: " + engine.getEstimatedStepScale() + " heading bias: " + engine.getEstimatedHeadingBias());
+        return getEstimate();
     }
 
     /**
-     * Calculates distance-based probability for measurement likelihood.
+     * Hands the wall map set by {@link #setWallMap(WallMap, LatLng)} to the particles, if it changed
+     * since the last step or measurement.
      */
-    private double calculateDistanceProbability(double measuredEast, double measuredNorth, double particleEast, double particleNorth) {
-        double distance = Math.sqrt(Math.pow(measuredEast - particleEast, 2) + Math.pow(measuredNorth - particleNorth, 2));
-        return Math.exp(-0.5 * distance);
+    private void applyPendingWallMap() {
+        if (wallMapChanged) {
+            wallMapChanged = false;
+            engine.setWallMap(pendingWallMap, WALL_CROSSING_WEIGHT);
+        }
     }
 
     /**
-     * Resamples particles based on their weights.
+     * Updates particle filter with new sensor measurements, of the nominal accuracy.
      */
-    private void resampleParticles() {
-        Particle[] newParticles = new Particle[NUM_PARTICLES];
-        double[] cumulativeWeights = new double[NUM_PARTICLES];
-
-        cumulativeWeights[0] = particles[0].getWeight();
-        for (int i = 1; i < NUM_PARTICLES; i++) {
-            cumulativeWeights[i] = cumulativeWeights[i - 1] + particles[i].getWeight();
-        }
+    public void update(double measuredLat, double measuredLong) {
+        fix(measuredLat, measuredLong, 1, null);
+    }
 
-        for (int i = 0; i < NUM_PARTICLES; i++) {
-            double sample = random.nextDouble();
-            int index = 0;
-            for (int j = 0; j < NUM_PARTICLES - 1; j++) {
-                if (sample < cumulativeWeights[j]) {
-                    index = j;
-                    break;
-                }
+    /**
+     * Weighs the particles with a position fix and sends the new estimate and hypotheses to the
+     * listeners once the lock of the filter is released.
+     *
+     * @param measuredLat The latitude of the fix.
+     * @param measuredLong The longitude of the fix.
+     * @param distanceScale The standard deviation of the fix over {@link #FIX_STD_DEV}.
+     * @param latency The histogram of the processing time of the fix, or null.
+     */
+    private void fix(double measuredLat, double measuredLong, double distanceScale, LatencyHistogram latency) {
+        LatLng estimate;
+        List<PositionHypothesis> hypotheses;
+        synchronized (this) {
+            long startNanos = System.nanoTime();
+            boolean applied = correct(measuredLat, measuredLong, distanceScale);
+            estimate = applied ? getEstimate() : null;
+            hypotheses = applied ? predictHypotheses() : null;
+            if (latency != null) {
+                latency.record(System.nanoTime() - startNanos);
             }
-            newParticles[i] = new Particle(particles[index].getEasting(), particles[index].getNorthing(), 1.0 / NUM_PARTICLES);
         }
-
-        particles = newParticles;
+        if (estimate == null) return;
+        SensorFusion.getInstance().notifyFusedUpdate(estimate);
+        SensorFusion.getInstance().notifyFusedHypotheses(hypotheses);
+        Log.d("PARTICLE_FILTER", "Prediction LatLong: " + estimate.latitude + " " + estimate.longitude);
     }
 
     /**
-     * Updates particle filter with new sensor measurements.
+     * Weighs the particles with a position fix unless it is an outlier, and resamples them if needed.
+     * Must be called holding the lock of the filter.
+     *
+     * @param measuredLat The latitude of the fix.
+     * @param measuredLong The longitude of the fix.
+     * @param distanceScale The standard deviation of the fix over {@link #FIX_STD_DEV}.
+     * @return True if the fix was applied, false if it was rejected as an outlier.
      */
-    public void update(double measuredLat, double measuredLong) {
-        float[] distanceBetween = new float[1];
-        Location.distanceBetween(measuredLat, measuredLong, refLatitude, refLongitude, distanceBetween);
-        if (outlierDetector.detectOutliers(distanceBetween[0])) {
-            Log.d("PARTICLE_FILTER", "Outlier Detected at: " + measuredLat + "," + measuredLong + "," + distanceBetween[0]);
-            return;
-        }
+    private boolean correct(double measuredLat, double measuredLong, double distanceScale) {
+        applyPendingWallMap();
 
-        updateMotionModel();
+        // Compare the fix with the current estimate rather than with the start position
         double[] enucoords = CoordinateTransform.geodeticToEnu(measuredLat, measuredLong, refAlt, refLatitude, refLongitude, refAlt);
-        updateMeasurementModel(enucoords[0], enucoords[1]);
-        resampleParticles();
+        double distance = Math.hypot(enucoords[0] - engine.getEstimatedEasting(), enucoords[1] - engine.getEstimatedNorthing());
+        if (outlierDetector.detectOutliers(distance)) {
+            Log.d("PARTICLE_FILTER", "Outlier Detected at: " + measuredLat + "," + measuredLong + "," + distance);
+            return false;
+        }
+
+        long updateStart = System.nanoTime();
+        engine.applyMotionNoise(ROUGHENING_STD_DEV);
+        engine.applyMeasurement(enucoords[0], enucoords[1], distanceScale);
+        if (engine.resampleIfNeeded()) {
+            Log.d("PARTICLE_FILTER", "Resampled particles, count: " + engine.getNumParticles());
+        }
+        engine.recordUpdateTime(System.nanoTime() - updateStart);
+        return true;
+    }
+
+    /**
+     * Converts the estimate of the particles to latitude and longitude. Must be called holding the
+     * lock of the filter.
+     *
+     * @return The estimated position.
+     */
+    private LatLng getEstimate() {
         LatLng prediction = predict();
-        LatLng new_prediction = new LatLng(refLatitude + prediction.latitude, refLongitude + prediction.longitude);
-        SensorFusion.getInstance().notifyFusedUpdate(new_prediction);
-        Log.d("PARTICLE_FILTER", "Prediction LatLong: " + new_prediction.latitude + " " + new_prediction.longitude);
+        return new LatLng(refLatitude + prediction.latitude, refLongitude + prediction.longitude);
     }
 
     /**
-     * Predicts the estimated position based on particle weights.
+     * {@inheritDoc}
+     *
+     * The particles are moved by the step itself rather than corrected towards the PDR position.
      */
-    public LatLng predict() {
-        double estimatedEasting = 0;
-        double estimatedNorthing = 0;
+    @Override
+    public void onStep(double heading, double stepLength, double averageStepLength, double pdrEast, double pdrNorth,
+                       double altitude, TurnDetector.MovementType movementType, long refTime) {
+        onStep((float) stepLength, (float) heading);
+    }
 
-        for (Particle particle : particles) {
-            estimatedEasting += particle.getEasting() * particle.getWeight();
-            estimatedNorthing += particle.getNorthing() * particle.getWeight();
-        }
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void onWifiFix(double latitude, double longitude, double altitude, long refTime) {
+        fix(latitude, longitude, 1, wifiFixLatency);
+    }
 
-        return CoordinateTransform.enuToGeodetic(estimatedEasting, estimatedNorthing, refAlt, initialTrueEasting, initialTrueNorthing, refAlt);
+    /**
+     * {@inheritDoc}
+     *
+     * The distances of the particles are scaled by the standard deviation of the reported accuracy,
+     * so an inaccurate fix spreads its weight over more of the cloud.
+     */
+    @Override
+    public void onGnssFix(double latitude, double longitude, double altitude, double accuracy, long refTime) {
+        double stdDev = Math.sqrt(AdaptiveNoiseEstimator.varianceFromAccuracy(accuracy, FIX_STD_DEV * FIX_STD_DEV));
+        fix(latitude, longitude, stdDev / FIX_STD_DEV, gnssFixLatency);
     }
 
     /**
-     * Represents a particle with Easting, Northing coordinates, and weight.
+     * {@inheritDoc}
+     *
+     * The estimate is the weighted mean and covariance of the particle cloud.
      */
-    class Particle {
-        private double easting;
-        private double northing;
-        private double weight;
+    @Override
+    public synchronized FusionState snapshot() {
+        double[] covariance = new double[3];
+        engine.getEstimatedCovariance(covariance);
+        return new FusionState(engine.getEstimatedEasting(), engine.getEstimatedNorthing(), refAlt,
+                covariance[0], covariance[1], covariance[2]);
+    }
 
-        public Particle(double easting, double northing, double weight) {
-            this.easting = easting;
-            this.northing = northing;
-            this.weight = weight;
-        }
+    /**
+     * {@inheritDoc}
+     *
+     * The particles are scattered again around the restored position, with the spread of its variance. The
+     * calibration of the step length and heading learnt so far is lost.
+     */
+    @Override
+    public synchronized void restore(FusionState state) {
+        if (state == null) return;
+        double stdDev = Math.sqrt(Math.max(0, (state.getVarianceEast() + state.getVarianceNorth()) / 2));
+        engine.initialise(state.getEast(), state.getNorth(), Math.max(stdDev, PARTICLE_STD_DEV),
+                STEP_SCALE_STD_DEV, HEADING_BIAS_STD_DEV);
+        Log.d("PARTICLE_FILTER", "Restored estimate East " + state.getEast() + " North " + state.getNorth());
+    }
 
-        public void update(double deltaEasting, double deltaNorthing) {
-            this.easting += deltaEasting;
-            this.northing += deltaNorthing;
-        }
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void stop() {
+        Log.d("PARTICLE_FILTER", "Step latency: " + stepLatency);
+        Log.d("PARTICLE_FILTER", "WiFi fix latency: " + wifiFixLatency);
+        Log.d("PARTICLE_FILTER", "GNSS fix latency: " + gnssFixLatency);
+    }
 
-        public double getEasting() {
-            return easting;
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public LatencyHistogram getLatencyHistogram(Input input) {
+        switch (input) {
+            case STEP:
+                return stepLatency;
+            case WIFI_FIX:
+                return wifiFixLatency;
+            default:
+                return gnssFixLatency;
         }
+    }
 
-        public double getNorthing() {
-            return northing;
+    /**
+     * Groups the particles into their heaviest modes, so that a cloud split between two possible
+     * positions is reported as two hypotheses rather than a mean lying between them.
+     *
+     * @return The position hypotheses sorted by decreasing weight.
+     */
+    public synchronized List<PositionHypothesis> predictHypotheses() {
+        int numModes = engine.clusterParticles(clusterer);
+        List<PositionHypothesis> hypotheses = new ArrayList<>(numModes);
+        for (int m = 0; m < numModes; m++) {
+            LatLng offset = CoordinateTransform.enuToGeodetic(clusterer.getModeEasting(m), clusterer.getModeNorthing(m), refAlt, initialTrueEasting, initialTrueNorthing, refAlt);
+            LatLng position = new LatLng(refLatitude + offset.latitude, refLongitude + offset.longitude);
+            hypotheses.add(new PositionHypothesis(position, clusterer.getModeWeight(m),
+                    clusterer.getModeVarianceEast(m), clusterer.getModeVarianceNorth(m), clusterer.getModeCovariance(m)));
         }
+        return hypotheses;
+    }
 
-        public double getWeight() {
-            return weight;
-        }
+    /**
+     * Predicts the estimated position based on particle weights.
+     */
+    public synchronized LatLng predict() {
+        double estimatedEasting = engine.getEstimatedEasting();
+        double estimatedNorthing = engine.getEstimatedNorthing();
 
-        public void setWeight(double weight) {
-            this.weight = weight;
-        }
+        return CoordinateTransform.enuToGeodetic(estimatedEasting, estimatedNorthing, refAlt, initialTrueEasting, initialTrueNorthing, refAlt);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,69 @@
+package com.openpositioning.PositionMe.FusionAlgorithms;
+
+import com.google.android.gms.maps.model.LatLng;
+
+/**
+ * One mode of a multimodal position estimate, as found by the {@link ParticleClusterer}. Holds the
+ * mean position of the mode, the share of the particle weight it carries and its covariance in the
+ * local East North frame.
+ */
+public class PositionHypothesis {
+    private final LatLng position;
+    private final double weight;
+    private final double varianceEast;
+    private final double varianceNorth;
+    private final double covariance;
+
+    /**
+     * Creates a position hypothesis.
+     *
+     * @param position The mean position of the mode.
+     * @param weight The share of the total weight carried by the mode, between 0 and 1.
+     * @param varianceEast The variance of the easting, in square meters.
+     * @param varianceNorth The variance of the northing, in square meters.
+     * @param covariance The covariance of the easting and northing, in square meters.
+     */
+    public PositionHypothesis(LatLng position, double weight, double varianceEast, double varianceNorth,
+                              double covariance) {
+        this.position = position;
+        this.weight = weight;
+        this.varianceEast = varianceEast;
+        this.varianceNorth = varianceNorth;
+        this.covariance = covariance;
+    }
+
+    /**
+     * A get method for the mean position of the mode.
+     *
+     * @return The mean position.
+     */
+    public LatLng getPosition() { return position; }
+
+    /**
+     * A get method for the share of the total weight carried by the mode.
+     *
+     * @return The weight, between 0 and 1.
+     */
+    public double getWeight() { return weight; }
+
+    /**
+     * A get method for the variance of the easting.
+     *
+     * @return The variance, in square meters.
+     */
+    public double getVarianceEast() { return varianceEast; }
+
+    /**
+     * A get method for the variance of the northing.
+     *
+     * @return The variance, in square meters.
+     */
+    public double getVarianceNorth() { return varianceNorth; }
+
+    /**
+     * A get method for the covariance of the easting and northing.
+     *
+     * @return The covariance, in square meters.
+     */
+    public double getCovariance() { return covariance; }
+}
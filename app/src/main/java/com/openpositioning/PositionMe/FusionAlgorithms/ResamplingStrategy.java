@@ -0,0 +1,121 @@
+package com.openpositioning.PositionMe.FusionAlgorithms;
+
+import java.util.Random;
+
+/**
+ * Resampling schemes available to the {@link ParticleEngine}. Every scheme walks the cumulative
+ * weight distribution once, so drawing a new generation of particles costs O(N) rather than the
+ * O(N^2) of searching the distribution separately for each particle.
+ *
+ * The schemes only select ancestors, they do not touch the particle state. This lets the engine
+ * copy any number of per-particle arrays using the same ancestor indices.
+ */
+public enum ResamplingStrategy {
+    /**
+     * Low-variance resampling. A single uniform offset is drawn and the distribution is sampled at
+     * evenly spaced points from there, which gives the lowest resampling noise of the three.
+     */
+    SYSTEMATIC {
+        @Override
+        public void resample(double[] weights, int count, int[] ancestors, int outCount,
+                             double[] scratch, Random random) {
+            systematic(weights, count, ancestors, 0, outCount, random);
+        }
+    },
+    /**
+     * Stratified resampling. The distribution is split into equal strata and one uniform draw is
+     * made inside each of them.
+     */
+    STRATIFIED {
+        @Override
+        public void resample(double[] weights, int count, int[] ancestors, int outCount,
+                             double[] scratch, Random random) {
+            double step = 1.0 / outCount;
+            walkDistribution(weights, count, ancestors, 0, outCount, 0, step, random);
+        }
+    },
+    /**
+     * Residual resampling. Each particle is first copied floor(N * w) times deterministically and
+     * the remaining slots are filled by systematic resampling over the leftover weights.
+     */
+    RESIDUAL {
+        @Override
+        public void resample(double[] weights, int count, int[] ancestors, int outCount,
+                             double[] scratch, Random random) {
+            int written = 0;
+            double residualTotal = 0;
+            for (int i = 0; i < count; i++) {
+                double expected = weights[i] * outCount;
+                int copies = (int) expected;
+                for (int c = 0; c < copies && written < outCount; c++) {
+                    ancestors[written++] = i;
+                }
+                scratch[i] = expected - copies;
+                residualTotal += scratch[i];
+            }
+
+            int remaining = outCount - written;
+            if (remaining <= 0) return;
+
+            // Normalise the leftover weights and fill the rest of the slots systematically
+            if (residualTotal <= 0) {
+                systematic(weights, count, ancestors, written, remaining, random);
+                return;
+            }
+            for (int i = 0; i < count; i++) {
+                scratch[i] /= residualTotal;
+            }
+            systematic(scratch, count, ancestors, written, remaining, random);
+        }
+    };
+
+    /**
+     * Selects the ancestors of the next generation of particles.
+     *
+     * @param weights The normalised particle weights, only the first count entries are read.
+     * @param count The number of particles in the current generation.
+     * @param ancestors Output array, the first outCount entries are filled with the index of the
+     *                  particle each new particle is copied from.
+     * @param outCount The number of particles to draw for the next generation.
+     * @param scratch Working array of at least count entries, its contents are overwritten.
+     * @param random The random number source.
+     */
+    public abstract void resample(double[] weights, int count, int[] ancestors, int outCount,
+                                  double[] scratch, Random random);
+
+    /**
+     * Systematic resampling into a sub range of the ancestor array.
+     */
+    private static void systematic(double[] weights, int count, int[] ancestors, int offset, int outCount,
+                                   Random random) {
+        double step = 1.0 / outCount;
+        walkDistribution(weights, count, ancestors, offset, outCount, random.nextDouble() * step, step, null);
+    }
+
+    /**
+     * Walks the cumulative distribution of the weights once, writing the index of the particle
+     * covering each sample point. The sample points increase monotonically so the walk is O(N).
+     *
+     * @param weights The normalised weights.
+     * @param count The number of weights.
+     * @param ancestors The output array of selected indices.
+     * @param offset The first entry of the output array to write.
+     * @param outCount The number of samples to draw.
+     * @param start The position of the first sample point.
+     * @param step The distance between the start of consecutive sample points.
+     * @param jitter If not null a fresh uniform offset is drawn inside every step (stratified).
+     */
+    private static void walkDistribution(double[] weights, int count, int[] ancestors, int offset,
+                                         int outCount, double start, double step, Random jitter) {
+        int index = 0;
+        double cumulative = weights[0];
+        for (int m = 0; m < outCount; m++) {
+            double target = (jitter == null) ? start + m * step : (m + jitter.nextDouble()) * step;
+            while (target > cumulative && index < count - 1) {
+                index++;
+                cumulative += weights[index];
+            }
+            ancestors[offset + m] = index;
+        }
+    }
+}
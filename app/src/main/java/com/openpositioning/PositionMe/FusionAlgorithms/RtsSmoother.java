@@ -0,0 +1,376 @@
+package com.openpositioning.PositionMe.FusionAlgorithms;
+
+/**
+ * Rauch-Tung-Striebel smoother over the steps processed by the {@link ExtendedKalmanFilter}.
+ *
+ * The filter estimate at a step only uses the measurements up to that step. The smoother runs
+ * backwards over the recorded filter output and also takes the later measurements into account:
+ * <pre>
+ *     C  = P(k|k) F(k+1)' P(k+1|k)^-1
+ *     X(k|N) = X(k|k) + C (X(k+1|N) - X(k+1|k))
+ *     P(k|N) = P(k|k) + C (P(k+1|N) - P(k+1|k)) C'
+ * </pre>
+ * where F(k+1) is the state transition of the prediction leading to step k+1, with the same form
+ * as in the {@link EkfKernel}.
+ *
+ * Two modes are available. {@link #smoothLag(int)} smooths only the last steps, giving the estimate
+ * a fixed number of steps in the past for live display. {@link #smoothInterval()} smooths the whole
+ * recording once it has ended. Every vector and matrix is kept in flat primitive arrays indexed by
+ * step, growing by doubling, so a smoothing pass does not allocate and runs in time linear in the
+ * number of steps.
+ *
+ * The smoother is not thread safe, it is only used from the EKF thread.
+ */
+public class RtsSmoother {
+    // Smallest determinant of a predicted covariance that is inverted, below it the step is not smoothed
+    private static final double MIN_DETERMINANT = 1e-18;
+
+    // Number of steps recorded
+    private int size;
+
+    // Time and altitude of each step
+    private long[] times;
+    private double[] altitudes;
+    // Transition terms of the prediction leading to each step, F = [1 0 0; a 1 0; b 0 1]
+    private double[] transitionA;
+    private double[] transitionB;
+    // Predicted and filtered states (3 per step) and covariances (9 per step, row major)
+    private double[] predictedStates;
+    private double[] predictedCovariances;
+    private double[] filteredStates;
+    private double[] filteredCovariances;
+    // Smoothed states and covariances, valid for the steps covered by the last smoothing pass
+    private double[] smoothedStates;
+    private double[] smoothedCovariances;
+
+    // Scratch matrices of the backward pass
+    private final double[] gain = new double[9];
+    private final double[] inverse = new double[9];
+    private final double[] product = new double[9];
+    private final double[] difference = new double[9];
+
+    /**
+     * Creates an empty smoother.
+     *
+     * @param initialCapacity The number of steps held before the arrays grow.
+     */
+    public RtsSmoother(int initialCapacity) {
+        if (initialCapacity <= 0) {
+            throw new IllegalArgumentException("Initial capacity must be greater than 0");
+        }
+        allocate(initialCapacity);
+    }
+
+    /**
+     * Records a step.
+     *
+     * @param time The time of the step, in milliseconds.
+     * @param altitude The altitude at the step.
+     * @param predicted The filter after the prediction of the step, before its corrections.
+     * @param filtered The filter after the corrections of the step.
+     * @param predictedStep Whether a prediction led to the step, otherwise the transition is the identity.
+     * @param adaptedHeading The heading of the prediction in radians with 0 pointing East.
+     * @param stepLength The step length of the prediction, in meters.
+     * @return The index of the step.
+     */
+    public int add(long time, double altitude, EkfKernel predicted, EkfKernel filtered,
+                   boolean predictedStep, double adaptedHeading, double stepLength) {
+        if (size == times.length) {
+            allocate(times.length * 2);
+        }
+        int index = size++;
+        times[index] = time;
+        altitudes[index] = altitude;
+        transitionA[index] = predictedStep ? stepLength * Math.cos(adaptedHeading) : 0;
+        transitionB[index] = predictedStep ? -stepLength * Math.sin(adaptedHeading) : 0;
+        copyState(predicted, predictedStates, predictedCovariances, index);
+        copyState(filtered, filteredStates, filteredCovariances, index);
+        return index;
+    }
+
+    /**
+     * Replaces the filter output of a recorded step, after the step has been processed again.
+     *
+     * @param index The index of the step.
+     * @param predicted The filter after the prediction of the step, before its corrections.
+     * @param filtered The filter after the corrections of the step.
+     */
+    public void set(int index, EkfKernel predicted, EkfKernel filtered) {
+        checkIndex(index);
+        copyState(predicted, predictedStates, predictedCovariances, index);
+        copyState(filtered, filteredStates, filteredCovariances, index);
+    }
+
+    /**
+     * Replaces the filtered output of a recorded step, after a further correction of the step.
+     *
+     * @param index The index of the step.
+     * @param filtered The filter after the corrections of the step.
+     */
+    public void setFiltered(int index, EkfKernel filtered) {
+        checkIndex(index);
+        copyState(filtered, filteredStates, filteredCovariances, index);
+    }
+
+    /**
+     * Smooths every recorded step. The result is fixed-interval smoothing over the whole recording.
+     */
+    public void smoothInterval() {
+        smoothBackFromLast(0);
+    }
+
+    /**
+     * Smooths the last steps and returns the step a given number of steps behind the newest one,
+     * which has been smoothed with the measurements of the steps since. The steps before it keep the
+     * result of earlier passes.
+     *
+     * @param lag The number of steps the smoothed estimate lags behind the filter.
+     * @return The index of the smoothed step, or -1 if fewer steps than the lag have been recorded.
+     */
+    public int smoothLag(int lag) {
+        if (lag < 0) {
+            throw new IllegalArgumentException("Lag must not be negative");
+        }
+        int index = size - 1 - lag;
+        if (index < 0) return -1;
+        smoothBackFromLast(index);
+        return index;
+    }
+
+    /**
+     * Runs the backward recursion from the newest step down to a given step.
+     */
+    private void smoothBackFromLast(int first) {
+        if (size == 0) return;
+        int last = size - 1;
+        System.arraycopy(filteredStates, 3 * last, smoothedStates, 3 * last, 3);
+        System.arraycopy(filteredCovariances, 9 * last, smoothedCovariances, 9 * last, 9);
+        for (int k = last - 1; k >= first; k--) {
+            smoothStep(k);
+        }
+    }
+
+    /**
+     * Smooths step k from the smoothed estimate of step k + 1.
+     */
+    private void smoothStep(int k) {
+        int next = k + 1;
+        int s = 3 * k, sn = 3 * next;
+        int c = 9 * k, cn = 9 * next;
+
+        if (!invert(predictedCovariances, cn, inverse)) {
+            // Without an invertible prediction the later steps carry no information back
+            System.arraycopy(filteredStates, s, smoothedStates, s, 3);
+            System.arraycopy(filteredCovariances, c, smoothedCovariances, c, 9);
+            return;
+        }
+
+        // P(k|k) F', columns 1 and 2 gain a and b times column 0
+        double a = transitionA[next];
+        double b = transitionB[next];
+        double[] pf = filteredCovariances;
+        for (int r = 0; r < 3; r++) {
+            int row = c + 3 * r;
+            product[3 * r] = pf[row];
+            product[3 * r + 1] = a * pf[row] + pf[row + 1];
+            product[3 * r + 2] = b * pf[row] + pf[row + 2];
+        }
+        // C = P(k|k) F' P(k+1|k)^-1
+        multiply(product, 0, inverse, 0, gain);
+
+        // X(k|N) = X(k|k) + C (X(k+1|N) - X(k+1|k)), with the bearing difference wrapped
+        double d0 = EkfKernel.wrapToPi(smoothedStates[sn] - predictedStates[sn]);
+        double d1 = smoothedStates[sn + 1] - predictedStates[sn + 1];
+        double d2 = smoothedStates[sn + 2] - predictedStates[sn + 2];
+        for (int r = 0; r < 3; r++) {
+            smoothedStates[s + r] = filteredStates[s + r]
+                    + gain[3 * r] * d0 + gain[3 * r + 1] * d1 + gain[3 * r + 2] * d2;
+        }
+        smoothedStates[s] = EkfKernel.wrapToPi(smoothedStates[s]);
+
+        // P(k|N) = P(k|k) + C (P(k+1|N) - P(k+1|k)) C'
+        for (int i = 0; i < 9; i++) {
+            difference[i] = smoothedCovariances[cn + i] - predictedCovariances[cn + i];
+        }
+        multiply(gain, 0, difference, 0, product);
+        for (int r = 0; r < 3; r++) {
+            for (int col = 0; col < 3; col++) {
+                double sum = 0;
+                for (int m = 0; m < 3; m++) {
+                    sum += product[3 * r + m] * gain[3 * col + m];
+                }
+                smoothedCovariances[c + 3 * r + col] = pf[c + 3 * r + col] + sum;
+            }
+        }
+    }
+
+    /**
+     * Multiplies two 3x3 row major matrices.
+     */
+    private static void multiply(double[] left, int leftOffset, double[] right, int rightOffset, double[] out) {
+        for (int r = 0; r < 3; r++) {
+            for (int col = 0; col < 3; col++) {
+                out[3 * r + col] = left[leftOffset + 3 * r] * right[rightOffset + col]
+                        + left[leftOffset + 3 * r + 1] * right[rightOffset + 3 + col]
+                        + left[leftOffset + 3 * r + 2] * right[rightOffset + 6 + col];
+            }
+        }
+    }
+
+    /**
+     * Inverts a 3x3 row major matrix by cofactors.
+     *
+     * @return false if the matrix is too close to singular to invert.
+     */
+    private static boolean invert(double[] m, int o, double[] out) {
+        double c00 = m[o + 4] * m[o + 8] - m[o + 5] * m[o + 7];
+        double c01 = m[o + 5] * m[o + 6] - m[o + 3] * m[o + 8];
+        double c02 = m[o + 3] * m[o + 7] - m[o + 4] * m[o + 6];
+        double determinant = m[o] * c00 + m[o + 1] * c01 + m[o + 2] * c02;
+        if (!(Math.abs(determinant) > MIN_DETERMINANT)) return false;
+        double inverseDet = 1.0 / determinant;
+        out[0] = c00 * inverseDet;
+        out[1] = (m[o + 2] * m[o + 7] - m[o + 1] * m[o + 8]) * inverseDet;
+        out[2] = (m[o + 1] * m[o + 5] - m[o + 2] * m[o + 4]) * inverseDet;
+        out[3] = c01 * inverseDet;
+        out[4] = (m[o] * m[o + 8] - m[o + 2] * m[o + 6]) * inverseDet;
+        out[5] = (m[o + 2] * m[o + 3] - m[o] * m[o + 5]) * inverseDet;
+        out[6] = c02 * inverseDet;
+        out[7] = (m[o + 1] * m[o + 6] - m[o] * m[o + 7]) * inverseDet;
+        out[8] = (m[o] * m[o + 4] - m[o + 1] * m[o + 3]) * inverseDet;
+        return true;
+    }
+
+    /**
+     * Copies the state and error covariance of a kernel into the arrays of a step.
+     */
+    private static void copyState(EkfKernel kernel, double[] states, double[] covariances, int index) {
+        states[3 * index] = kernel.getBearing();
+        states[3 * index + 1] = kernel.getEast();
+        states[3 * index + 2] = kernel.getNorth();
+        for (int r = 0; r < 3; r++) {
+            for (int col = 0; col < 3; col++) {
+                covariances[9 * index + 3 * r + col] = kernel.getCovariance(r, col);
+            }
+        }
+    }
+
+    /**
+     * Grows the arrays to a new capacity, keeping the recorded steps.
+     */
+    private void allocate(int capacity) {
+        times = grow(times, capacity);
+        altitudes = grow(altitudes, capacity);
+        transitionA = grow(transitionA, capacity);
+        transitionB = grow(transitionB, capacity);
+        predictedStates = grow(predictedStates, 3 * capacity);
+        predictedCovariances = grow(predictedCovariances, 9 * capacity);
+        filteredStates = grow(filteredStates, 3 * capacity);
+        filteredCovariances = grow(filteredCovariances, 9 * capacity);
+        smoothedStates = grow(smoothedStates, 3 * capacity);
+        smoothedCovariances = grow(smoothedCovariances, 9 * capacity);
+    }
+
+    private static double[] grow(double[] array, int length) {
+        double[] grown = new double[length];
+        if (array != null) System.arraycopy(array, 0, grown, 0, array.length);
+        return grown;
+    }
+
+    private static long[] grow(long[] array, int length) {
+        long[] grown = new long[length];
+        if (array != null) System.arraycopy(array, 0, grown, 0, array.length);
+        return grown;
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size) {
+            throw new IllegalArgumentException("Step index out of range: " + index);
+        }
+    }
+
+    /**
+     * Removes every recorded step, keeping the allocated arrays.
+     */
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * A get method for the number of recorded steps.
+     *
+     * @return The number of steps.
+     */
+    public int size() { return size; }
+
+    /**
+     * A get method for the time of a step.
+     *
+     * @param index The index of the step.
+     * @return The time of the step, in milliseconds.
+     */
+    public long getTime(int index) {
+        checkIndex(index);
+        return times[index];
+    }
+
+    /**
+     * A get method for the altitude of a step.
+     *
+     * @param index The index of the step.
+     * @return The altitude at the step.
+     */
+    public double getAltitude(int index) {
+        checkIndex(index);
+        return altitudes[index];
+    }
+
+    /**
+     * A get method for the smoothed East position of a step, valid once a smoothing pass has covered the step.
+     *
+     * @param index The index of the step.
+     * @return The smoothed East position, in meters.
+     */
+    public double getSmoothedEast(int index) {
+        checkIndex(index);
+        return smoothedStates[3 * index + 1];
+    }
+
+    /**
+     * A get method for the smoothed North position of a step, valid once a smoothing pass has covered the step.
+     *
+     * @param index The index of the step.
+     * @return The smoothed North position, in meters.
+     */
+    public double getSmoothedNorth(int index) {
+        checkIndex(index);
+        return smoothedStates[3 * index + 2];
+    }
+
+    /**
+     * A get method for the smoothed bearing of a step, valid once a smoothing pass has covered the step.
+     *
+     * @param index The index of the step.
+     * @return The smoothed bearing, in radians.
+     */
+    public double getSmoothedBearing(int index) {
+        checkIndex(index);
+        return smoothedStates[3 * index];
+    }
+
+    /**
+     * A get method for one entry of the smoothed error covariance of a step.
+     *
+     * @param index The index of the step.
+     * @param row The row of the entry, 0 for bearing, 1 for East and 2 for North.
+     * @param column The column of the entry, with the same ordering as the row.
+     * @return The covariance entry.
+     */
+    public double getSmoothedCovariance(int index, int row, int column) {
+        checkIndex(index);
+        if (row < 0 || row > 2 || column < 0 || column > 2) {
+            throw new IllegalArgumentException("Covariance index out of range: " + row + ", " + column);
+        }
+        return smoothedCovariances[9 * index + 3 * row + column];
+    }
+}
@@ -0,0 +1,53 @@
+package com.openpositioning.PositionMe.FusionAlgorithms;
+
+import com.google.android.gms.maps.model.LatLng;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The fused trajectory of a finished recording, smoothed over the whole recording, with one
+ * position per step. Completes the future returned by {@link FusionEngine#finish()}, so that the
+ * caller appends it to the recorded trajectory once the engine has smoothed the recording.
+ */
+public class SmoothedTrajectory {
+    private final List<LatLng> positions;
+    private final long[] stepTimes;
+
+    /**
+     * Creates a smoothed trajectory.
+     *
+     * @param positions The smoothed position at each step.
+     * @param stepTimes The time of each step, from SystemClock.uptimeMillis().
+     */
+    public SmoothedTrajectory(List<LatLng> positions, long[] stepTimes) {
+        if (positions.size() != stepTimes.length) {
+            throw new IllegalArgumentException("There must be one time per position");
+        }
+        this.positions = Collections.unmodifiableList(positions);
+        this.stepTimes = stepTimes;
+    }
+
+    /**
+     * A get method for the number of steps of the trajectory.
+     *
+     * @return The number of smoothed positions.
+     */
+    public int size() { return stepTimes.length; }
+
+    /**
+     * A get method for the smoothed position at a step.
+     *
+     * @param index The index of the step, from 0 to {@link #size()} - 1.
+     * @return The smoothed position.
+     */
+    public LatLng getPosition(int index) { return positions.get(index); }
+
+    /**
+     * A get method for the time of a step.
+     *
+     * @param index The index of the step, from 0 to {@link #size()} - 1.
+     * @return The time of the step, from SystemClock.uptimeMillis().
+     */
+    public long getStepTime(int index) { return stepTimes[index]; }
+}
@@ -0,0 +1,210 @@
+package com.openpositioning.PositionMe.FusionAlgorithms;
+
+import java.util.Arrays;
+
+/**
+ * Fixed-size numerical core of the {@link HighRateKalmanFilter}, propagating the heading from the
+ * gyroscope at the sensor rate.
+ *
+ * The state is the heading relative to North, the East and North position and the walking speed.
+ * Between two samples of the gyroscope the heading turns by the yaw rate and the position moves
+ * along it at the walking speed:
+ * <pre>
+ *     heading' = heading + yawRate dt + wh
+ *     East'    = East  + speed sin(heading) dt
+ *     North'   = North + speed cos(heading) dt
+ *     speed'   = speed + ws
+ * </pre>
+ * where wh is the noise of the gyroscope and ws the change of walking speed. The heading, the speed
+ * and the position are observed one at a time as scalar measurements, so an update needs no matrix
+ * inversion. The covariance is kept in a flat array with a preallocated scratch array, so neither a
+ * propagation nor an update allocates.
+ *
+ * The kernel is not thread safe.
+ */
+public class StrapdownKernel {
+    // Indices of the state elements
+    public static final int HEADING = 0;
+    public static final int EAST = 1;
+    public static final int NORTH = 2;
+    public static final int SPEED = 3;
+    private static final int SIZE = 4;
+
+    // State estimate
+    private final double[] x = new double[SIZE];
+    // Estimate error covariance in row major order, and scratch space for its propagation
+    private final double[] p = new double[SIZE * SIZE];
+    private final double[] fp = new double[SIZE * SIZE];
+
+    // Power spectral densities of the gyroscope noise, in rad^2/s, and of the speed change, in m^2/s^3
+    private double qHeading;
+    private double qSpeed;
+
+    /**
+     * Creates a kernel with a zero state and zero error covariance.
+     *
+     * @param headingNoise The power spectral density of the gyroscope noise, in rad^2/s.
+     * @param speedNoise The power spectral density of the change of walking speed, in m^2/s^3.
+     */
+    public StrapdownKernel(double headingNoise, double speedNoise) {
+        setProcessNoise(headingNoise, speedNoise);
+    }
+
+    /**
+     * Propagates the state and error covariance over one sample of the gyroscope.
+     *
+     * @param yawRate The rate of turn about the vertical, clockwise seen from above, in rad/s.
+     * @param dt The time since the previous sample, in seconds.
+     */
+    public void propagate(double yawRate, double dt) {
+        if (dt <= 0) return;
+        double heading = x[HEADING];
+        double speed = x[SPEED];
+        double sin = Math.sin(heading);
+        double cos = Math.cos(heading);
+
+        // Jacobian F = I + dt A, A only having entries in the East and North rows
+        double a10 = speed * cos * dt;
+        double a13 = sin * dt;
+        double a20 = -speed * sin * dt;
+        double a23 = cos * dt;
+
+        x[HEADING] = EkfKernel.wrapToPi(heading + yawRate * dt);
+        x[EAST] += speed * sin * dt;
+        x[NORTH] += speed * cos * dt;
+
+        // FP: rows of P, the East and North rows gaining the heading and speed rows
+        for (int c = 0; c < SIZE; c++) {
+            fp[c] = p[c];
+            fp[SIZE + c] = p[SIZE + c] + a10 * p[c] + a13 * p[3 * SIZE + c];
+            fp[2 * SIZE + c] = p[2 * SIZE + c] + a20 * p[c] + a23 * p[3 * SIZE + c];
+            fp[3 * SIZE + c] = p[3 * SIZE + c];
+        }
+        // FPF': the same combination of the columns of FP
+        for (int r = 0; r < SIZE; r++) {
+            int row = r * SIZE;
+            p[row] = fp[row];
+            p[row + 1] = fp[row + 1] + a10 * fp[row] + a13 * fp[row + 3];
+            p[row + 2] = fp[row + 2] + a20 * fp[row] + a23 * fp[row + 3];
+            p[row + 3] = fp[row + 3];
+        }
+        p[HEADING * SIZE + HEADING] += qHeading * dt;
+        p[SPEED * SIZE + SPEED] += qSpeed * dt;
+    }
+
+    /**
+     * Corrects the state with a measurement of one of its elements.
+     *
+     * @param index The index of the measured element.
+     * @param measured The measured value.
+     * @param variance The variance of the measurement.
+     */
+    public void observe(int index, double measured, double variance) {
+        double innovation = measured - x[index];
+        if (index == HEADING) {
+            innovation = EkfKernel.wrapToPi(innovation);
+        }
+        double s = p[index * SIZE + index] + variance;
+        if (!(s > 0)) return;
+
+        // Gain K = P(:, i) / s, with x += K y and P -= K P(i, :)
+        for (int r = 0; r < SIZE; r++) {
+            x[r] += p[r * SIZE + index] / s * innovation;
+        }
+        System.arraycopy(p, index * SIZE, fp, 0, SIZE);
+        for (int r = 0; r < SIZE; r++) {
+            double gain = fp[r] / s;
+            for (int c = 0; c < SIZE; c++) {
+                p[r * SIZE + c] -= gain * fp[c];
+            }
+        }
+        x[HEADING] = EkfKernel.wrapToPi(x[HEADING]);
+    }
+
+    /**
+     * Corrects the position with an observed East and North position, whose errors are independent.
+     *
+     * @param observedEast The observed East position, in meters.
+     * @param observedNorth The observed North position, in meters.
+     * @param variance The variance of the observation on each axis, in square meters.
+     */
+    public void observePosition(double observedEast, double observedNorth, double variance) {
+        observe(EAST, observedEast, variance);
+        observe(NORTH, observedNorth, variance);
+    }
+
+    /**
+     * Computes the squared Mahalanobis distance of the innovation of an observed position, without
+     * changing the state.
+     *
+     * @param observedEast The observed East position, in meters.
+     * @param observedNorth The observed North position, in meters.
+     * @param variance The variance of the observation on each axis, in square meters.
+     * @return The squared distance y' S^-1 y.
+     */
+    public double mahalanobis(double observedEast, double observedNorth, double variance) {
+        double yEast = observedEast - x[EAST];
+        double yNorth = observedNorth - x[NORTH];
+        double s00 = p[EAST * SIZE + EAST] + variance;
+        double s01 = p[EAST * SIZE + NORTH];
+        double s11 = p[NORTH * SIZE + NORTH] + variance;
+        return (yEast * (s11 * yEast - s01 * yNorth) + yNorth * (s00 * yNorth - s01 * yEast)) / (s00 * s11 - s01 * s01);
+    }
+
+    /**
+     * Sets the state, with a diagonal error covariance except for the position.
+     *
+     * @param heading The heading relative to North, in radians.
+     * @param east The East position, in meters.
+     * @param north The North position, in meters.
+     * @param speed The walking speed, in m/s.
+     * @param headingVariance The variance of the heading, in square radians.
+     * @param eastVariance The variance of the East position, in square meters.
+     * @param northVariance The variance of the North position, in square meters.
+     * @param positionCovariance The covariance of the East and North position, in square meters.
+     * @param speedVariance The variance of the speed, in m^2/s^2.
+     */
+    public void setState(double heading, double east, double north, double speed, double headingVariance,
+                         double eastVariance, double northVariance, double positionCovariance, double speedVariance) {
+        x[HEADING] = EkfKernel.wrapToPi(heading);
+        x[EAST] = east;
+        x[NORTH] = north;
+        x[SPEED] = speed;
+        Arrays.fill(p, 0);
+        p[HEADING * SIZE + HEADING] = headingVariance;
+        p[EAST * SIZE + EAST] = eastVariance;
+        p[NORTH * SIZE + NORTH] = northVariance;
+        p[EAST * SIZE + NORTH] = positionCovariance;
+        p[NORTH * SIZE + EAST] = positionCovariance;
+        p[SPEED * SIZE + SPEED] = speedVariance;
+    }
+
+    /**
+     * Sets the power spectral densities of the process noise.
+     *
+     * @param headingNoise The power spectral density of the gyroscope noise, in rad^2/s.
+     * @param speedNoise The power spectral density of the change of walking speed, in m^2/s^3.
+     */
+    public void setProcessNoise(double headingNoise, double speedNoise) {
+        this.qHeading = headingNoise;
+        this.qSpeed = speedNoise;
+    }
+
+    /**
+     * A get method for an element of the state.
+     *
+     * @param index The index of the element, one of {@link #HEADING}, {@link #EAST}, {@link #NORTH}
+     *              and {@link #SPEED}.
+     * @return The estimated value of the element.
+     */
+    public double get(int index) { return x[index]; }
+
+    /**
+     * A get method for an entry of the estimate error covariance.
+     *
+     * @param row The row of the entry.
+     * @param column The column of the entry.
+     * @return The covariance of the two elements of the state.
+     */
+    public double getCovariance(int row, int column) { return p[row * SIZE + column]; }
+}
@@ -0,0 +1,323 @@
+package com.openpositioning.PositionMe.FusionAlgorithms;
+
+/**
+ * Fixed-size numerical core of the {@link UnscentedKalmanFilter}.
+ *
+ * The state is the same three elements as the {@link EkfKernel} (bearing, East, North), the bearing
+ * being the correction to add to the heading reported by the sensors. A step moves the position
+ * along the corrected heading:
+ * <pre>
+ *     bearing' = bearing + wb
+ *     h        = theta + bearing' + wh
+ *     East'    = East  + (s + ws) sin(h)
+ *     North'   = North + (s + ws) cos(h)
+ * </pre>
+ * where wb is the drift of the heading correction, wh the noise of the heading of the step and ws
+ * the noise of the step length. Rather than linearising the sine and cosine around the mean
+ * heading, which underestimates the spread of the position after a turn with an uncertain heading,
+ * the state and the three noise terms are represented by 13 sigma points pushed through the model.
+ * The sigma point weights depend only on the dimension and are computed once, the points are kept in
+ * a flat preallocated array and the square root of the 3x3 covariance is taken in closed form, so a
+ * step does not allocate.
+ *
+ * The East and North position is observed directly. As this observation is linear, the update uses
+ * the Kalman equations on the predicted mean and covariance, which is what the unscented update
+ * reduces to for a linear observation, without a second set of sigma points.
+ *
+ * The kernel is not thread safe.
+ */
+public class UkfKernel {
+    // Dimensions of the state, of the process noise and of the augmented state
+    private static final int STATE_SIZE = 3;
+    private static final int NOISE_SIZE = 3;
+    private static final int AUGMENTED_SIZE = STATE_SIZE + NOISE_SIZE;
+    public static final int SIGMA_POINTS = 2 * AUGMENTED_SIZE + 1;
+
+    // Spread of the sigma points around the mean, the scaling parameters being alpha 1, beta 2 and kappa 0
+    private static final double ALPHA = 1.0;
+    private static final double BETA = 2.0;
+    private static final double KAPPA = 0.0;
+    private static final double LAMBDA = ALPHA * ALPHA * (AUGMENTED_SIZE + KAPPA) - AUGMENTED_SIZE;
+    private static final double SPREAD = Math.sqrt(AUGMENTED_SIZE + LAMBDA);
+    // Weights of the central point for the mean and the covariance, and of every other point
+    private static final double WEIGHT_MEAN_CENTRE = LAMBDA / (AUGMENTED_SIZE + LAMBDA);
+    private static final double WEIGHT_COVARIANCE_CENTRE = WEIGHT_MEAN_CENTRE + (1 - ALPHA * ALPHA + BETA);
+    private static final double WEIGHT_POINT = 1.0 / (2 * (AUGMENTED_SIZE + LAMBDA));
+
+    // State estimate
+    private double bearing;
+    private double east;
+    private double north;
+
+    // Estimate error covariance, pRC is row R column C, symmetric
+    private double p00, p01, p02;
+    private double p11, p12;
+    private double p22;
+
+    // Diagonal process noise covariance (bearing drift, step heading, step length)
+    private double qDrift;
+    private double qHeading;
+    private double qStep;
+
+    // Diagonal observation noise covariance (East, North)
+    private double rEast;
+    private double rNorth;
+
+    // Predicted sigma points, bearing, East and North of each point in turn
+    private final double[] sigma = new double[SIGMA_POINTS * STATE_SIZE];
+
+    // Squared Mahalanobis distance of the last innovation
+    private double lastMahalanobis;
+
+    /**
+     * Creates a kernel with a zero state and zero error covariance.
+     *
+     * @param driftVariance The variance of the drift of the bearing per step, in square radians.
+     * @param headingVariance The variance of the heading of a step, in square radians.
+     * @param stepVariance The variance of the step length, in square meters.
+     * @param eastVariance The East observation noise variance, in square meters.
+     * @param northVariance The North observation noise variance, in square meters.
+     */
+    public UkfKernel(double driftVariance, double headingVariance, double stepVariance,
+                     double eastVariance, double northVariance) {
+        setProcessNoise(driftVariance, headingVariance, stepVariance);
+        setObservationNoise(eastVariance, northVariance);
+    }
+
+    /**
+     * Propagates the state and error covariance over one step through the sigma points.
+     *
+     * @param theta The heading of the step as reported by the sensors, relative to North, in radians.
+     * @param stepLength The length of the step, in meters.
+     */
+    public void predict(double theta, double stepLength) {
+        // Lower triangular square root of P, columns scaled by the spread
+        double l00 = Math.sqrt(Math.max(p00, 0));
+        double l10 = (l00 > 0) ? p01 / l00 : 0;
+        double l20 = (l00 > 0) ? p02 / l00 : 0;
+        double l11 = Math.sqrt(Math.max(p11 - l10 * l10, 0));
+        double l21 = (l11 > 0) ? (p12 - l20 * l10) / l11 : 0;
+        double l22 = Math.sqrt(Math.max(p22 - l20 * l20 - l21 * l21, 0));
+        l00 *= SPREAD; l10 *= SPREAD; l20 *= SPREAD;
+        l11 *= SPREAD; l21 *= SPREAD; l22 *= SPREAD;
+        double drift = SPREAD * Math.sqrt(qDrift);
+        double heading = SPREAD * Math.sqrt(qHeading);
+        double step = SPREAD * Math.sqrt(qStep);
+
+        // Centre point, then a pair of points along each column of the square root of the
+        // block diagonal augmented covariance
+        propagate(0, bearing, east, north, 0, 0, 0, theta, stepLength);
+        propagate(1, bearing + l00, east + l10, north + l20, 0, 0, 0, theta, stepLength);
+        propagate(2, bearing - l00, east - l10, north - l20, 0, 0, 0, theta, stepLength);
+        propagate(3, bearing, east + l11, north + l21, 0, 0, 0, theta, stepLength);
+        propagate(4, bearing, east - l11, north - l21, 0, 0, 0, theta, stepLength);
+        propagate(5, bearing, east, north + l22, 0, 0, 0, theta, stepLength);
+        propagate(6, bearing, east, north - l22, 0, 0, 0, theta, stepLength);
+        propagate(7, bearing, east, north, drift, 0, 0, theta, stepLength);
+        propagate(8, bearing, east, north, -drift, 0, 0, theta, stepLength);
+        propagate(9, bearing, east, north, 0, heading, 0, theta, stepLength);
+        propagate(10, bearing, east, north, 0, -heading, 0, theta, stepLength);
+        propagate(11, bearing, east, north, 0, 0, step, theta, stepLength);
+        propagate(12, bearing, east, north, 0, 0, -step, theta, stepLength);
+
+        // Weighted mean of the points
+        double meanBearing = WEIGHT_MEAN_CENTRE * sigma[0];
+        double meanEast = WEIGHT_MEAN_CENTRE * sigma[1];
+        double meanNorth = WEIGHT_MEAN_CENTRE * sigma[2];
+        for (int i = 1; i < SIGMA_POINTS; i++) {
+            meanBearing += WEIGHT_POINT * sigma[3 * i];
+            meanEast += WEIGHT_POINT * sigma[3 * i + 1];
+            meanNorth += WEIGHT_POINT * sigma[3 * i + 2];
+        }
+
+        // Weighted covariance of the points around the mean
+        double n00 = 0, n01 = 0, n02 = 0, n11 = 0, n12 = 0, n22 = 0;
+        for (int i = 0; i < SIGMA_POINTS; i++) {
+            double weight = (i == 0) ? WEIGHT_COVARIANCE_CENTRE : WEIGHT_POINT;
+            double dBearing = sigma[3 * i] - meanBearing;
+            double dEast = sigma[3 * i + 1] - meanEast;
+            double dNorth = sigma[3 * i + 2] - meanNorth;
+            n00 += weight * dBearing * dBearing;
+            n01 += weight * dBearing * dEast;
+            n02 += weight * dBearing * dNorth;
+            n11 += weight * dEast * dEast;
+            n12 += weight * dEast * dNorth;
+            n22 += weight * dNorth * dNorth;
+        }
+
+        bearing = meanBearing;
+        east = meanEast;
+        north = meanNorth;
+        p00 = n00; p01 = n01; p02 = n02;
+        p11 = n11; p12 = n12;
+        p22 = n22;
+    }
+
+    /**
+     * Pushes one sigma point through the step model.
+     */
+    private void propagate(int point, double pointBearing, double pointEast, double pointNorth,
+                           double drift, double headingNoise, double stepNoise, double theta, double stepLength) {
+        double nextBearing = pointBearing + drift;
+        double heading = theta + nextBearing + headingNoise;
+        double length = stepLength + stepNoise;
+        sigma[3 * point] = nextBearing;
+        sigma[3 * point + 1] = pointEast + length * Math.sin(heading);
+        sigma[3 * point + 2] = pointNorth + length * Math.cos(heading);
+    }
+
+    /**
+     * Corrects the state with an observation of the East and North position.
+     *
+     * @param observedEast The observed East position, in meters.
+     * @param observedNorth The observed North position, in meters.
+     */
+    public void update(double observedEast, double observedNorth) {
+        double yEast = observedEast - east;
+        double yNorth = observedNorth - north;
+
+        // Innovation covariance and its closed form inverse
+        double s00 = p11 + rEast;
+        double s01 = p12;
+        double s11 = p22 + rNorth;
+        double inverseDet = 1.0 / (s00 * s11 - s01 * s01);
+        double i00 = s11 * inverseDet;
+        double i01 = -s01 * inverseDet;
+        double i11 = s00 * inverseDet;
+        lastMahalanobis = yEast * (i00 * yEast + i01 * yNorth) + yNorth * (i01 * yEast + i11 * yNorth);
+
+        // Gain from the cross covariance of the state and the observed position
+        double k00 = p01 * i00 + p02 * i01, k01 = p01 * i01 + p02 * i11;
+        double k10 = p11 * i00 + p12 * i01, k11 = p11 * i01 + p12 * i11;
+        double k20 = p12 * i00 + p22 * i01, k21 = p12 * i01 + p22 * i11;
+
+        bearing = EkfKernel.wrapToPi(bearing + k00 * yEast + k01 * yNorth);
+        east += k10 * yEast + k11 * yNorth;
+        north += k20 * yEast + k21 * yNorth;
+
+        // P = P - K S K', written as P - K (P H')' since K S = P H'
+        double c0East = p01, c0North = p02;
+        double c1East = p11, c1North = p12;
+        double c2East = p12, c2North = p22;
+        p00 -= k00 * c0East + k01 * c0North;
+        p01 -= k00 * c1East + k01 * c1North;
+        p02 -= k00 * c2East + k01 * c2North;
+        p11 -= k10 * c1East + k11 * c1North;
+        p12 -= k10 * c2East + k11 * c2North;
+        p22 -= k20 * c2East + k21 * c2North;
+    }
+
+    /**
+     * Computes the squared Mahalanobis distance of the innovation an observation would have, with
+     * the current observation noise, without changing the state.
+     *
+     * @param observedEast The observed East position, in meters.
+     * @param observedNorth The observed North position, in meters.
+     * @return The squared distance y' S^-1 y.
+     */
+    public double mahalanobis(double observedEast, double observedNorth) {
+        double yEast = observedEast - east;
+        double yNorth = observedNorth - north;
+        double s00 = p11 + rEast;
+        double s01 = p12;
+        double s11 = p22 + rNorth;
+        return (yEast * (s11 * yEast - s01 * yNorth) + yNorth * (s00 * yNorth - s01 * yEast)) / (s00 * s11 - s01 * s01);
+    }
+
+    /**
+     * Sets the diagonal of the process noise covariance.
+     *
+     * @param driftVariance The variance of the drift of the bearing per step, in square radians.
+     * @param headingVariance The variance of the heading of a step, in square radians.
+     * @param stepVariance The variance of the step length, in square meters.
+     */
+    public void setProcessNoise(double driftVariance, double headingVariance, double stepVariance) {
+        if (driftVariance < 0 || headingVariance < 0 || stepVariance < 0) {
+            throw new IllegalArgumentException("Process noise variances must not be negative");
+        }
+        this.qDrift = driftVariance;
+        this.qHeading = headingVariance;
+        this.qStep = stepVariance;
+    }
+
+    /**
+     * Sets the diagonal of the observation noise covariance.
+     *
+     * @param eastVariance The variance of the East observation noise, in square meters.
+     * @param northVariance The variance of the North observation noise, in square meters.
+     */
+    public void setObservationNoise(double eastVariance, double northVariance) {
+        this.rEast = eastVariance;
+        this.rNorth = northVariance;
+    }
+
+    /**
+     * Replaces the state and its error covariance.
+     *
+     * @param bearing The bearing correction, in radians.
+     * @param east The East position, in meters.
+     * @param north The North position, in meters.
+     * @param bearingVariance The variance of the bearing, in square radians, uncorrelated with the position.
+     * @param eastVariance The variance of the East position, in square meters.
+     * @param northVariance The variance of the North position, in square meters.
+     * @param covariance The covariance of the East and North position, in square meters.
+     */
+    public void setState(double bearing, double east, double north, double bearingVariance,
+                         double eastVariance, double northVariance, double covariance) {
+        this.bearing = bearing;
+        this.east = east;
+        this.north = north;
+        p00 = bearingVariance; p01 = 0; p02 = 0;
+        p11 = eastVariance; p12 = covariance;
+        p22 = northVariance;
+    }
+
+    /**
+     * A get method for the squared Mahalanobis distance of the innovation of the last update.
+     *
+     * @return The squared distance y' S^-1 y.
+     */
+    public double getLastMahalanobis() { return lastMahalanobis; }
+
+    /**
+     * A get method for the bearing state.
+     *
+     * @return The correction to the heading reported by the sensors, in radians.
+     */
+    public double getBearing() { return bearing; }
+
+    /**
+     * A get method for the East position state.
+     *
+     * @return The East position estimate, in meters.
+     */
+    public double getEast() { return east; }
+
+    /**
+     * A get method for the North position state.
+     *
+     * @return The North position estimate, in meters.
+     */
+    public double getNorth() { return north; }
+
+    /**
+     * A get method for one entry of the estimate error covariance.
+     *
+     * @param row The row of the entry, 0 for bearing, 1 for East and 2 for North.
+     * @param column The column of the entry, with the same ordering as the row.
+     * @return The covariance entry.
+     */
+    public double getCovariance(int row, int column) {
+        if (row < 0 || row > 2 || column < 0 || column > 2) {
+            throw new IllegalArgumentException("Covariance index out of range: " + row + ", " + column);
+        }
+        switch (Math.min(row, column) * 3 + Math.max(row, column)) {
+            case 0: return p00;
+            case 1: return p01;
+            case 2: return p02;
+            case 4: return p11;
+            case 5: return p12;
+            default: return p22;
+        }
+    }
+}
@@ -0,0 +1,218 @@
+package com.openpositioning.PositionMe.FusionAlgorithms;
+
+import android.util.Log;
+
+import com.google.android.gms.maps.model.LatLng;
+import com.openpositioning.PositionMe.Utils.CoordinateTransform;
+import com.openpositioning.PositionMe.sensors.SensorFusion;
+import com.openpositioning.PositionMe.sensors.TurnDetector;
+
+/**
+ * Unscented Kalman Filter fusion of the PDR steps with the WiFi and GNSS fixes, over the same
+ * bearing, East and North state as the {@link ExtendedKalmanFilter}.
+ *
+ * The Extended Kalman Filter linearises the step model around the mean heading, which holds while
+ * walking straight but not through a turn, and compensates with a larger heading noise whenever the
+ * turn detector reports one. This filter propagates sigma points through the step model with an
+ * {@link UkfKernel} instead, so the heading uncertainty bends the position uncertainty along the arc
+ * of the turn, and the bearing state learns the correction to the heading reported by the sensors.
+ * The same heading noise is used for every step.
+ *
+ * Steps and fixes are processed on the calling thread, a step taking a few microseconds. As for the
+ * Extended Kalman Filter, WiFi fixes are used in the areas covered by the positioning server and
+ * GNSS fixes elsewhere, a fix the estimate cannot explain being discarded by an {@link InnovationGate}. Fixes are applied
+ * when they arrive rather than at their scan time.
+ */
+public class UnscentedKalmanFilter implements FusionEngine {
+    // Standard deviation of the drift of the heading correction per step, in radians.
+    private final static double headingDriftStd = Math.toRadians(1);
+    // Standard deviation of the heading of a single step, in radians.
+    private final static double stepHeadingStd = Math.toRadians(5);
+    // Standard deviation of the step length, as a fraction of the average step length plus a constant, in meters.
+    private final static double stepPercentageError = 0.1;
+    private final static double stepLengthStdOffset = 0.05;
+    // Standard deviation of the initial heading correction, in radians.
+    private final static double initialBearingStd = Math.toRadians(15);
+    // Standard deviation of the initial position, in meters.
+    private final static double initialPositionStd = 1;
+    // Standard deviation for WiFi-based location measurements, in meters.
+    private final static double wifiStd = 10;
+    // Standard deviation for GNSS location measurements, in meters.
+    private final static double gnssStd = 5;
+    // Number of fixes gated out in a row after which the next fix is used, so a diverged estimate can recover.
+    private final static int maxConsecutiveRejections = 5;
+
+    // Filter state, error covariance and noise covariances.
+    private final UkfKernel kernel;
+    // Chi-square gate on the innovation of the fixes, discarding the fixes the estimate cannot explain.
+    private final InnovationGate innovationGate;
+    // Altitude of the last step, reported with the estimate.
+    private double altitude;
+    // Whether WiFi fixes are used, GNSS fixes being used otherwise.
+    private volatile boolean wifiCoverage;
+    // Flag to ignore the inputs once the filter is stopped.
+    private volatile boolean stopped;
+    // Processing time of the steps and fixes.
+    private final LatencyHistogram stepLatency = new LatencyHistogram();
+    private final LatencyHistogram wifiFixLatency = new LatencyHistogram();
+    private final LatencyHistogram gnssFixLatency = new LatencyHistogram();
+
+    /**
+     * Creates a filter starting at the start position of the recording.
+     */
+    public UnscentedKalmanFilter() {
+        this.kernel = new UkfKernel(headingDriftStd * headingDriftStd, stepHeadingStd * stepHeadingStd, 0,
+                wifiStd * wifiStd, wifiStd * wifiStd);
+        this.kernel.setState(0, 0, 0, initialBearingStd * initialBearingStd,
+                initialPositionStd * initialPositionStd, initialPositionStd * initialPositionStd, 0);
+        this.innovationGate = new InnovationGate(InnovationGate.CHI_SQUARE_2_99, maxConsecutiveRejections);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * The position is moved by the step along the corrected heading, the PDR position is not used.
+     */
+    @Override
+    public synchronized void onStep(double heading, double stepLength, double averageStepLength, double pdrEast,
+                                    double pdrNorth, double altitude, TurnDetector.MovementType movementType,
+                                    long refTime) {
+        if (stopped) return;
+        long startNanos = System.nanoTime();
+        double stepStd = stepPercentageError * averageStepLength + stepLengthStdOffset;
+        kernel.setProcessNoise(headingDriftStd * headingDriftStd, stepHeadingStd * stepHeadingStd, stepStd * stepStd);
+        kernel.predict(heading, stepLength);
+        this.altitude = altitude;
+        stepLatency.record(System.nanoTime() - startNanos);
+        notifyEstimate();
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * WiFi fixes are only used while the user is in an area covered by the positioning server.
+     */
+    @Override
+    public synchronized void onWifiFix(double latitude, double longitude, double altitude, long refTime) {
+        if (stopped || !wifiCoverage) return;
+        long startNanos = System.nanoTime();
+        boolean applied = applyFix(latitude, longitude, altitude, wifiStd * wifiStd);
+        wifiFixLatency.record(System.nanoTime() - startNanos);
+        if (applied) notifyEstimate();
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * GNSS fixes are only used outside of the areas covered by WiFi, each weighed with its reported accuracy.
+     */
+    @Override
+    public synchronized void onGnssFix(double latitude, double longitude, double altitude, double accuracy, long refTime) {
+        if (stopped || wifiCoverage) return;
+        long startNanos = System.nanoTime();
+        boolean applied = applyFix(latitude, longitude, altitude,
+                AdaptiveNoiseEstimator.varianceFromAccuracy(accuracy, gnssStd * gnssStd));
+        gnssFixLatency.record(System.nanoTime() - startNanos);
+        if (applied) notifyEstimate();
+    }
+
+    /**
+     * Corrects the estimate with a fix, unless its innovation is beyond the gate.
+     *
+     * @param variance The variance of the fix on each axis, in square meters.
+     * @return True if the fix was applied.
+     */
+    private boolean applyFix(double latitude, double longitude, double altitude, double variance) {
+        double[] startPosition = SensorFusion.getInstance().getGNSSLatLngAlt(true);
+        double[] enu = CoordinateTransform.geodeticToEnu(latitude, longitude, altitude,
+                startPosition[0], startPosition[1], startPosition[2]);
+        kernel.setObservationNoise(variance, variance);
+        double mahalanobis = kernel.mahalanobis(enu[0], enu[1]);
+        if (!innovationGate.accept(mahalanobis)) {
+            Log.d("UKF", "Gated fix, squared Mahalanobis distance " + mahalanobis);
+            return false;
+        }
+        kernel.update(enu[0], enu[1]);
+        return true;
+    }
+
+    /**
+     * Passes the current estimate to {@link SensorFusion}.
+     */
+    private void notifyEstimate() {
+        double[] startPosition = SensorFusion.getInstance().getGNSSLatLngAlt(true);
+        double[] ecefRefCoords = SensorFusion.getInstance().getEcefRefCoords();
+        LatLng position = CoordinateTransform.enuToGeodetic(kernel.getEast(), kernel.getNorth(), altitude,
+                startPosition[0], startPosition[1], ecefRefCoords);
+        SensorFusion.getInstance().notifyFusedUpdate(position);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setWifiCoverage(boolean covered) {
+        this.wifiCoverage = covered;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized FusionState snapshot() {
+        if (stopped) return null;
+        return new FusionState(kernel.getEast(), kernel.getNorth(), altitude, kernel.getCovariance(1, 1),
+                kernel.getCovariance(2, 2), kernel.getCovariance(1, 2));
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * The heading correction learnt so far is kept.
+     */
+    @Override
+    public synchronized void restore(FusionState state) {
+        if (stopped || state == null) return;
+        kernel.setState(kernel.getBearing(), state.getEast(), state.getNorth(), kernel.getCovariance(0, 0),
+                state.getVarianceEast(), state.getVarianceNorth(), state.getCovariance());
+        this.altitude = state.getAltitude();
+        Log.d("UKF", "Restored estimate East " + state.getEast() + " North " + state.getNorth());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void stop() {
+        stopped = true;
+        Log.d("UKF", "Step latency: " + stepLatency);
+        Log.d("UKF", "WiFi fix latency: " + wifiFixLatency);
+        Log.d("UKF", "GNSS fix latency: " + gnssFixLatency);
+        Log.d("UKF", "Innovation gate: accepted " + innovationGate.getAccepted() + ", rejected "
+                + innovationGate.getRejected());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public LatencyHistogram getLatencyHistogram(Input input) {
+        switch (input) {
+            case STEP:
+                return stepLatency;
+            case WIFI_FIX:
+                return wifiFixLatency;
+            default:
+                return gnssFixLatency;
+        }
+    }
+
+    /**
+     * A get method for the numerical core of the filter.
+     *
+     * @return The kernel holding the state and covariances.
+     */
+    public UkfKernel getKernel() {
+        return kernel;
+    }
+}
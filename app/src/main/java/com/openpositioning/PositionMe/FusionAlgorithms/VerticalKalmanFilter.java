@@ -0,0 +1,210 @@
+package com.openpositioning.PositionMe.FusionAlgorithms;
+
+/**
+ * Kalman filter of the altitude and vertical velocity from the barometer, with a discrete floor
+ * estimate.
+ *
+ * The vertical motion of a pedestrian does not depend on the horizontal state of the fusion filters,
+ * so the altitude and the vertical velocity are estimated by their own two state filter, which is the
+ * vertical block of a filter over the full 3D state. The altitude is deliberately not part of the
+ * state of the {@link ExtendedKalmanFilter}:
+ * <ul>
+ *     <li>No transition, observation or noise term couples the vertical and horizontal states, so
+ *     the 3D filter is block diagonal and its vertical block gives the same estimates as this
+ *     filter.</li>
+ *     <li>The barometer is sampled at its own rate, while the EKF only runs on steps and fixes.</li>
+ *     <li>Every {@link FusionEngine} can be swapped during a recording, and each would otherwise need
+ *     its own vertical state, which would be lost on the hand over.</li>
+ * </ul>
+ * Instead, the altitude of this filter is passed to the engines with every step, where the EKF uses
+ * its change as evidence of the stairs and elevator modes.
+ *
+ * The velocity follows a random walk driven by white acceleration noise and the barometric altitude
+ * is observed directly:
+ * <pre>
+ *     altitude' = altitude + velocity dt
+ *     velocity' = velocity + w
+ * </pre>
+ *
+ * The floor is the one whose height is nearest to the altitude, with a hysteresis margin: the
+ * estimate only moves to the next floor once the altitude is past the midpoint between the two
+ * floors by the margin, so the barometer noise around a midpoint does not toggle the floor. Several
+ * floors can be crossed by a single sample, as in a lift.
+ *
+ * Each sample costs a fixed number of operations and does not allocate. The filter is not thread
+ * safe.
+ */
+public class VerticalKalmanFilter {
+    // State estimate, the altitude relative to the start in meters and the vertical velocity in m/s
+    private double altitude;
+    private double velocity;
+    // Estimate error covariance, symmetric
+    private double p00, p01, p11;
+    // Power spectral density of the vertical acceleration noise, in m^2/s^3
+    private final double accelerationNoise;
+    // Variance of the barometric altitude, in square meters
+    private final double altitudeNoise;
+    // Variance of the velocity at the first sample, in m^2/s^2
+    private final double initialVelocityVariance;
+
+    // Height between floors and the margin past the midpoint before the floor changes, in meters
+    private double floorHeight;
+    private final double hysteresis;
+    // Floor of the altitude relative to the start, and the floor the start is on
+    private int relativeFloor;
+    private int floorOffset;
+
+    // Time of the last sample in nanoseconds, and whether a sample has been received
+    private long lastTimeNanos;
+    private boolean initialised;
+
+    /**
+     * Creates a filter starting at the floor 0, the altitude of the first sample being taken as the
+     * height of that floor.
+     *
+     * @param accelerationNoise The power spectral density of the vertical acceleration, in m^2/s^3.
+     * @param altitudeNoise The variance of the barometric altitude, in square meters.
+     * @param initialVelocityVariance The variance of the vertical velocity at the start, in m^2/s^2.
+     * @param floorHeight The height between floors, in meters.
+     * @param hysteresis The distance past the midpoint between two floors before the floor changes,
+     *                   in meters, less than half the floor height.
+     */
+    public VerticalKalmanFilter(double accelerationNoise, double altitudeNoise, double initialVelocityVariance,
+                                double floorHeight, double hysteresis) {
+        if (accelerationNoise < 0 || altitudeNoise <= 0 || initialVelocityVariance < 0) {
+            throw new IllegalArgumentException("Noise variances must not be negative");
+        }
+        if (hysteresis < 0) {
+            throw new IllegalArgumentException("Hysteresis must not be negative");
+        }
+        this.accelerationNoise = accelerationNoise;
+        this.altitudeNoise = altitudeNoise;
+        this.initialVelocityVariance = initialVelocityVariance;
+        this.hysteresis = hysteresis;
+        setFloorHeight(floorHeight);
+    }
+
+    /**
+     * Propagates the estimate to the time of a barometric altitude and corrects it.
+     *
+     * @param measuredAltitude The altitude from the barometer relative to the start, in meters.
+     * @param timeNanos The time of the sample, in nanoseconds.
+     */
+    public void update(double measuredAltitude, long timeNanos) {
+        if (!initialised) {
+            altitude = measuredAltitude;
+            velocity = 0;
+            p00 = altitudeNoise;
+            p01 = 0;
+            p11 = initialVelocityVariance;
+            lastTimeNanos = timeNanos;
+            initialised = true;
+            // The first altitude is taken as the height of the current floor
+            int floor = getFloor();
+            updateFloor();
+            floorOffset = floor - relativeFloor;
+            return;
+        }
+
+        // Prediction over the time since the last sample
+        double dt = Math.max(0, (timeNanos - lastTimeNanos) * 1e-9);
+        lastTimeNanos = timeNanos;
+        altitude += velocity * dt;
+        double dt2 = dt * dt;
+        double n00 = p00 + 2 * dt * p01 + dt2 * p11 + accelerationNoise * dt2 * dt / 3;
+        double n01 = p01 + dt * p11 + accelerationNoise * dt2 / 2;
+        double n11 = p11 + accelerationNoise * dt;
+
+        // Correction with the barometric altitude
+        double innovation = measuredAltitude - altitude;
+        double s = n00 + altitudeNoise;
+        double k0 = n00 / s;
+        double k1 = n01 / s;
+        altitude += k0 * innovation;
+        velocity += k1 * innovation;
+        p00 = n00 - k0 * n00;
+        p01 = n01 - k0 * n01;
+        p11 = n11 - k1 * n01;
+
+        updateFloor();
+    }
+
+    /**
+     * Moves the floor estimate once the altitude is past the midpoint to a neighbouring floor by the
+     * hysteresis margin.
+     */
+    private void updateFloor() {
+        while (altitude > (relativeFloor + 0.5) * floorHeight + hysteresis) {
+            relativeFloor++;
+        }
+        while (altitude < (relativeFloor - 0.5) * floorHeight - hysteresis) {
+            relativeFloor--;
+        }
+    }
+
+    /**
+     * Forgets the altitude and velocity, keeping the current floor, so that the altitude of the next
+     * sample is taken as the height of this floor.
+     */
+    public void reset() {
+        floorOffset = getFloor();
+        relativeFloor = 0;
+        initialised = false;
+    }
+
+    /**
+     * Sets the current floor, when it is known from another source.
+     *
+     * @param floor The floor the user is on.
+     */
+    public void setFloor(int floor) {
+        floorOffset = floor - relativeFloor;
+    }
+
+    /**
+     * Sets the height between floors.
+     *
+     * @param floorHeight The height between floors, in meters, more than twice the hysteresis.
+     */
+    public void setFloorHeight(double floorHeight) {
+        if (floorHeight <= 2 * hysteresis) {
+            throw new IllegalArgumentException("Floor height must be more than twice the hysteresis");
+        }
+        this.floorHeight = floorHeight;
+    }
+
+    /**
+     * A get method for the estimated altitude.
+     *
+     * @return The altitude relative to the start, in meters, 0 before the first sample.
+     */
+    public double getAltitude() { return initialised ? altitude : 0; }
+
+    /**
+     * A get method for the estimated vertical velocity.
+     *
+     * @return The vertical velocity, positive upwards, in m/s.
+     */
+    public double getVerticalVelocity() { return initialised ? velocity : 0; }
+
+    /**
+     * A get method for the variance of the estimated altitude.
+     *
+     * @return The variance of the altitude, in square meters.
+     */
+    public double getAltitudeVariance() { return p00; }
+
+    /**
+     * A get method for the estimated floor.
+     *
+     * @return The floor the user is on.
+     */
+    public int getFloor() { return relativeFloor + floorOffset; }
+
+    /**
+     * A get method for whether a sample has been received since the creation or the last reset.
+     *
+     * @return True if the estimate is initialised.
+     */
+    public boolean isInitialised() { return initialised; }
+}
@@ -7,11 +7,13 @@ import android.util.Log;
 
 import androidx.preference.PreferenceManager;
 
+import com.openpositioning.PositionMe.FusionAlgorithms.VerticalKalmanFilter;
 import com.openpositioning.PositionMe.Utils.CircularFloatBuffer;
+import com.openpositioning.PositionMe.Utils.MinMaxWindow;
 import com.openpositioning.PositionMe.sensors.SensorFusion;
+import com.openpositioning.PositionMe.sensors.StepDetector;
 
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.List;
 import java.util.OptionalDouble;
 
@@ -29,8 +31,16 @@ public class PdrProcessing {
     //region Static variables
     // Weiberg algorithm coefficient for stride calculations
     private static final float K = 0.364f;
-    // Number of samples (seconds) to keep as memory for elevation calculation
+    // Smoothing of the barometric altitude, as the number of seconds of samples it used to be averaged over
     private static final int elevationSeconds = 4;
+    // Variance of a single barometric altitude sample, in square meters, scaled by the smoothing seconds
+    private static final double altitudeVariancePerSecond = 0.25;
+    // Power spectral density of the vertical acceleration of a walking user, in m^2/s^3
+    private static final double verticalAccelerationNoise = 0.01;
+    // Variance of the vertical velocity when the recording starts, in m^2/s^2
+    private static final double initialVerticalVelocityVariance = 0.01;
+    // Distance past the midpoint between two floors before the floor changes, as a fraction of the floor height
+    private static final double floorHysteresis = 0.25;
     // Number of samples (0.01 seconds)
     private static final int accelSamples = 100;
     // Threshold used to detect significant movement
@@ -59,11 +69,10 @@ public class PdrProcessing {
     private float startElevation;
     private int setupIndex = 0;
     private float elevation;
-    private float previousElevation;
     private int floorHeight;
 
-    // Buffer of most recent elevations calculated
-    private CircularFloatBuffer elevationList;
+    // Filter of the altitude and vertical velocity from the barometer, with the floor estimate
+    private VerticalKalmanFilter verticalFilter;
 
     // Buffer for most recent directional acceleration magnitudes
     private CircularFloatBuffer verticalAccel;
@@ -72,7 +81,9 @@ public class PdrProcessing {
     // Step sum and length aggregation variables
     private float sumStepLength = 0;
     private int stepCount = 0;
-    private int currentFloor = 0;
+
+    // Software step detector on the linear acceleration
+    private StepDetector stepDetector;
     //endregion
 
     /**
@@ -109,17 +120,11 @@ public class PdrProcessing {
 
 
         if(this.settings.getBoolean("overwrite_constants", false)) {
-            // Capacity - pressure is read with 1Hz - store values of past 10 seconds
-            this.elevationList = new CircularFloatBuffer(Integer.parseInt(settings.getString("elevation_seconds", "4")));
-
             // Buffer for most recent acceleration values
             this.verticalAccel = new CircularFloatBuffer(Integer.parseInt(settings.getString("accel_samples", "4")));
             this.horizontalAccel = new CircularFloatBuffer(Integer.parseInt(settings.getString("accel_samples", "4")));
         }
         else {
-            // Capacity - pressure is read with 1Hz - store values of past 10 seconds
-            this.elevationList = new CircularFloatBuffer(elevationSeconds);
-
             // Buffer for most recent acceleration values
             this.verticalAccel = new CircularFloatBuffer(accelSamples);
             this.horizontalAccel = new CircularFloatBuffer(accelSamples);
@@ -127,8 +132,30 @@ public class PdrProcessing {
 
         // Distance between floors is building dependent, use manual value
         this.floorHeight = settings.getInt("floor_height", 4);
+        // Vertical filter, starting on floor zero
+        this.verticalFilter = createVerticalFilter();
         // Array for holding initial values
         this.startElevationBuffer = new Float[3];
+        // Software step detection, independent of the step detector sensor
+        this.stepDetector = new StepDetector();
+    }
+
+    /**
+     * Creates the filter of the altitude from the barometer with the smoothing and floor height set
+     * in the settings.
+     *
+     * @return the vertical filter, starting on floor zero.
+     */
+    private VerticalKalmanFilter createVerticalFilter() {
+        int smoothingSeconds = elevationSeconds;
+        if(this.settings.getBoolean("overwrite_constants", false)) {
+            smoothingSeconds = Integer.parseInt(settings.getString("elevation_seconds", "4"));
+        }
+        // A floor height of 0 may have been saved before the setting had a minimum
+        int height = Math.max(1, floorHeight);
+        return new VerticalKalmanFilter(verticalAccelerationNoise,
+                altitudeVariancePerSecond * Math.max(1, smoothingSeconds),
+                initialVerticalVelocityVariance, height, floorHysteresis * height);
     }
 
     /**
@@ -137,18 +164,18 @@ public class PdrProcessing {
      * step.
      *
      * @param currentStepEnd            relative time in milliseconds since the start of the recording.
-     * @param accelMagnitudeOvertime    recorded acceleration magnitudes since the last step.
+     * @param accelMagnitudeOvertime    window of the acceleration magnitudes since the last step.
      * @param headingRad                heading relative to magnetic north in radians.
      */
-    public float[] updatePdr(long currentStepEnd, List<Double> accelMagnitudeOvertime, float headingRad) {
+    public float[] updatePdr(long currentStepEnd, MinMaxWindow accelMagnitudeOvertime, float headingRad) {
 
         // Change angle so zero rad is east
         float adaptedHeading = (float) (Math.PI/2 - headingRad);
         Log.d("EKF", "PDR adapted Heading "+adaptedHeading);
 
         // Calculate step length
-        if(!useManualStep) {
-            // Estimate stride
+        if(!useManualStep && !accelMagnitudeOvertime.isEmpty()) {
+            // Estimate stride, keeping the previous one if no acceleration was received since the last step
             this.stepLength = weibergMinMax(accelMagnitudeOvertime);
             Log.d("EKF", "StrideLength "+stepLength);
         }
@@ -169,16 +196,40 @@ public class PdrProcessing {
         return new float[]{(float)this.positionX, (float)this.positionY};
     }
 
+    /**
+     * Detects steps from the linear acceleration, for devices without a step detector sensor or to
+     * compare with it. Should be called with every linear acceleration sample.
+     *
+     * @param linearAcceleration    acceleration without gravity along the phone's x-y-z axis.
+     * @param gravity               strength of gravity along the phone's x-y-z axis.
+     * @param timeNanos             time of the sample in nanoseconds.
+     * @return                      boolean true if a step was detected, its time given by {@link #getStepTime()}.
+     */
+    public boolean detectStep(float[] linearAcceleration, float[] gravity, long timeNanos) {
+        return stepDetector.update(linearAcceleration, gravity, timeNanos);
+    }
+
+    /**
+     * A get method for the time of the last step found by {@link #detectStep(float[], float[], long)}.
+     *
+     * @return the time of the peak of the step in nanoseconds, in the clock of the sensor events.
+     */
+    public long getStepTime() {
+        return stepDetector.getStepTime();
+    }
+
     /**
      * Calculates the relative elevation compared to the start position.
      * The start elevation is the median of the first three seconds of data to give the sensor time
      * to settle. The sea level is irrelevant as only values relative to the initial position are
-     * reported.
+     * reported. The relative elevations are filtered together with the vertical velocity, and the
+     * floor is the one nearest to the filtered elevation, with a hysteresis margin.
      *
      * @param absoluteElevation absolute elevation in meters compared to sea level.
+     * @param timeNanos         time of the pressure sample in nanoseconds.
      * @return                  current elevation in meters relative to the start position.
      */
-    public float updateElevation(float absoluteElevation) {
+    public float updateElevation(float absoluteElevation, long timeNanos) {
         // Set start to median of first three values
         if(setupIndex < 3) {
             // Add values to buffer until it's full
@@ -187,54 +238,17 @@ public class PdrProcessing {
             if(setupIndex == 2) {
                 Arrays.sort(startElevationBuffer);
                 startElevation = startElevationBuffer[1];
-                previousElevation = 0;
             }
             this.setupIndex++;
         }
         else {
-            // Get relative elevation in meters
-            this.elevation = absoluteElevation - startElevation;
-            // Add to buffer
-            this.elevationList.putNewest(absoluteElevation);
-
-            // Check if there was floor movement
-            // Check if there is enough data to evaluate
-            if(this.elevationList.isFull()) {
-                // Check average of elevation array
-                List<Float> elevationMemory = this.elevationList.getListCopy();
-                OptionalDouble currentAvg = elevationMemory.stream().mapToDouble(f -> f).average();
-                float finishAvg = currentAvg.isPresent() ? (float) currentAvg.getAsDouble() : 0;
-
-                // Check if we moved floor by comparing with start position
-                if(Math.abs((finishAvg-startElevation) - (previousElevation)) > this.floorHeight) {
-                    // Change floors - 'floor' division
-                    int check = (int) (finishAvg - startElevation)/this.floorHeight;
-                    Log.d("FLOOR CHANGE", "Check "+check +" current floor "+currentFloor);
-                    //Check if user has returned to the starting floor.
-                    if ( check == 0){
-                        if ((finishAvg-startElevation) < previousElevation){
-                            //if user is descending from starting floor subtract a floor.
-                            this.currentFloor -= 1;
-                            Log.d("FLOOR CHANGE", "Descending -1 new floor " + currentFloor);
-
-                        } else {
-                            // Else the user is ascending, add a floor
-                            this.currentFloor += 1;
-                            Log.d("FLOOR CHANGE", "Ascending +1 new floor " + currentFloor);
-
-                        }
-                    } else {
-                        Log.d("FLOOR CHANGE", "Adding check "+check);
-                        if (check < 0){
-                            this.currentFloor -= 1;
-                        } else {
-                            this.currentFloor += 1;
-                        }
-                        //this.currentFloor += check;
-                    }
-                    //Update the previous elevation to compare
-                    previousElevation = (finishAvg - startElevation);
-                }
+            // Filter the relative elevation in meters, updating the floor estimate
+            int previousFloor = verticalFilter.getFloor();
+            verticalFilter.update(absoluteElevation - startElevation, timeNanos);
+            this.elevation = (float) verticalFilter.getAltitude();
+            if(verticalFilter.getFloor() != previousFloor) {
+                Log.d("FLOOR CHANGE", "New floor " + verticalFilter.getFloor() + " at elevation " + elevation
+                        + " vertical velocity " + verticalFilter.getVerticalVelocity());
             }
             // Return current elevation
             return elevation;
@@ -246,12 +260,13 @@ public class PdrProcessing {
     /**
      * Uses the Weiberg Stride Length formula to calculate step length from accelerometer values.
      *
-     * @param accelMagnitude    magnitude of acceleration values between the last and current step.
+     * @param accelMagnitude    window of the acceleration magnitudes between the last and current step,
+     *                          not empty.
      * @return                  float stride length in meters.
      */
-    private float weibergMinMax(List<Double> accelMagnitude) {
-        double maxAccel = Collections.max(accelMagnitude);
-        double minAccel = Collections.min(accelMagnitude);
+    private float weibergMinMax(MinMaxWindow accelMagnitude) {
+        double maxAccel = accelMagnitude.getMax();
+        double minAccel = accelMagnitude.getMin();
         float bounce = (float) Math.pow((maxAccel-minAccel), 0.25);
         if(this.settings.getBoolean("overwrite_constants", false)) {
             return bounce * Float.parseFloat(settings.getString("weiberg_k", "0.934")) * 2;
@@ -300,14 +315,23 @@ public class PdrProcessing {
      * @return current floor number, assuming start position is on level zero.
      */
     public int getCurrentFloor() {
-        return this.currentFloor;
+        return verticalFilter.getFloor();
     }
 
     /**
      * Sets the current floor number if the user selects a new floor.
      *
      */
-    public void setCurrentFloor(int updatedFloor) { this.currentFloor = updatedFloor; }
+    public void setCurrentFloor(int updatedFloor) { verticalFilter.setFloor(updatedFloor); }
+
+    /**
+     * Get the current vertical velocity as estimated from the barometer.
+     *
+     * @return vertical velocity in meters per second, positive upwards.
+     */
+    public float getVerticalVelocity() {
+        return (float) verticalFilter.getVerticalVelocity();
+    }
 
     /**
      * Estimates if the user is currently taking an elevator.
@@ -387,17 +411,11 @@ public class PdrProcessing {
         this.elevation = 0f;
 
         if(this.settings.getBoolean("overwrite_constants", false)) {
-            // Capacity - pressure is read with 1Hz - store values of past 10 seconds
-            this.elevationList = new CircularFloatBuffer(Integer.parseInt(settings.getString("elevation_seconds", "4")));
-
             // Buffer for most recent acceleration values
             this.verticalAccel = new CircularFloatBuffer(Integer.parseInt(settings.getString("accel_samples", "4")));
             this.horizontalAccel = new CircularFloatBuffer(Integer.parseInt(settings.getString("accel_samples", "4")));
         }
         else {
-            // Capacity - pressure is read with 1Hz - store values of past 10 seconds
-            this.elevationList = new CircularFloatBuffer(elevationSeconds);
-
             // Buffer for most recent acceleration values
             this.verticalAccel = new CircularFloatBuffer(accelSamples);
             this.horizontalAccel = new CircularFloatBuffer(accelSamples);
@@ -405,11 +423,14 @@ public class PdrProcessing {
 
         // Distance between floors is building dependent, use manual value
         this.floorHeight = settings.getInt("floor_height", 4);
+        // Restart the vertical filter from the next samples, keeping the current floor
+        int currentFloor = verticalFilter.getFloor();
+        this.verticalFilter = createVerticalFilter();
+        this.verticalFilter.setFloor(currentFloor);
         // Array for holding initial values
         this.startElevationBuffer = new Float[3];
-        // Start floor - assumed to be zero
-        //this.currentFloor = 0;
-        this.previousElevation = 0;
+        // Restart the step detection with the default thresholds
+        this.stepDetector.reset();
     }
 
     /**
@@ -1,13 +1,18 @@
 package com.openpositioning.PositionMe;
 
 import com.google.android.gms.maps.model.LatLng;
+import com.openpositioning.PositionMe.FusionAlgorithms.PositionHypothesis;
+
+import java.util.List;
+
 /**
  * An interface defining methods for receiving updates from a sensor fusion module.
  *
  * Implementing classes can receive updates related to various sensor inputs such as PDR (Pedestrian Dead Reckoning),
  * GNSS (Global Navigation Satellite System), orientation, fused data, and Wi-Fi signals.
  *
- * Implementations of this interface must provide concrete implementations for each update type.
+ * Implementations of this interface must provide concrete implementations for each update type,
+ * except for the optional multi-hypothesis and smoothed outputs which are ignored by default.
  *
  * @see update_type
  */
@@ -30,5 +35,21 @@ public interface SensorFusionUpdates {
     void onFusedUpdate(LatLng coordinate);
 
     void onWifiUpdate(LatLng wifi);
+
+    /**
+     * Called after a fused update when the fusion algorithm can report several candidate positions,
+     * currently only the particle filter.
+     *
+     * @param hypotheses The candidate positions sorted by decreasing weight.
+     */
+    default void onFusedHypotheses(List<PositionHypothesis> hypotheses) {}
+
+    /**
+     * Called when the fused position a few steps back has been smoothed with the measurements of the
+     * steps taken since, currently only by the Extended Kalman Filter.
+     *
+     * @param coordinate The smoothed position.
+     */
+    default void onSmoothedUpdate(LatLng coordinate) {}
 }
 
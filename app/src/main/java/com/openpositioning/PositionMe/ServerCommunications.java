@@ -129,11 +129,23 @@ public class ServerCommunications implements Observable {
 
     /**
      * Outgoing communication request with a JSON fingerprint the server will resolve this fingerprint
-     * into a coordinate that is used by the fusion algorithm.
+     * into a coordinate that is used by the fusion algorithm, taken now.
      *
      * @param fingerprint The JSON fingerprint for the server to resolve
      */
     public void sendWifi(JSONObject fingerprint){
+        sendWifi(fingerprint, android.os.SystemClock.uptimeMillis());
+    }
+
+    /**
+     * Outgoing communication request with a JSON fingerprint the server will resolve this fingerprint
+     * into a coordinate that is used by the fusion algorithm. The time of the scan is passed back to
+     * the observers with the response, as several requests may be in flight at once.
+     *
+     * @param fingerprint The JSON fingerprint for the server to resolve
+     * @param scanTime    The time of the scan behind the fingerprint, from SystemClock.uptimeMillis()
+     */
+    public void sendWifi(JSONObject fingerprint, long scanTime){
 
         // Convert the JSON fingerprint object to string
         String stringFingerprint = fingerprint.toString();
@@ -164,8 +176,7 @@ public class ServerCommunications implements Observable {
                     e.printStackTrace();
                     System.err.println("Failure to get response");
                     success = false;
-                    wifiResponse = null;
-                    notifyObservers(2);
+                    notifyWifiObservers(null, scanTime);
                 }
 
                 // Process the server's response
@@ -176,8 +187,7 @@ public class ServerCommunications implements Observable {
                         if (!response.isSuccessful()) {
                             System.err.println("POST error response: " + responseBody.string());
                             success = false;
-                            wifiResponse = null;
-                            notifyObservers(2);
+                            notifyWifiObservers(null, scanTime);
                             return;
                         }
 
@@ -192,9 +202,8 @@ public class ServerCommunications implements Observable {
                         // Print a confirmation of a successful POST to API
                         System.out.println("Successful post response: " + response_string);
 
-                        // assign the response to a global variable
-                        wifiResponse = new JSONObject(response_string);
-                        notifyObservers(2);
+                        // pass the response to the observers with the time of its scan
+                        notifyWifiObservers(new JSONObject(response_string), scanTime);
 
                     } catch (JSONException e) {
                         e.printStackTrace();
@@ -207,8 +216,7 @@ public class ServerCommunications implements Observable {
             // and notify observers and user
             System.err.println("No internet connection, No request allowed right now!");
             success = false;
-            wifiResponse = null;
-            notifyObservers(2);
+            notifyWifiObservers(null, scanTime);
         }
 
     }
@@ -537,6 +545,24 @@ public class ServerCommunications implements Observable {
         this.observers.add(o);
     }
 
+    /**
+     * Notifies the observers of the WiFi positioning responses of one response, with the time of the
+     * scan it was computed from.
+     *
+     * @param response The position computed by the server, or null if the request failed.
+     * @param scanTime The time of the scan behind the request, from SystemClock.uptimeMillis().
+     */
+    private synchronized void notifyWifiObservers(JSONObject response, long scanTime) {
+        this.wifiResponse = response;
+        if (observers == null) return;
+
+        for(Observer o : observers) {
+            if (o instanceof SensorFusion || o instanceof StartLocationFragment) {
+                o.updateServer(new Object[] {response, scanTime});
+            }
+        }
+    }
+
     @Override
     public void unRegisterObserver(Observer o) {
         this.observers.remove(o);
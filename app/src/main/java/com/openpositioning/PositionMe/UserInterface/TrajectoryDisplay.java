@@ -21,11 +21,11 @@ import java.util.List;
  * The class is instantiated in {@link UIelements} for each of the trajectories plotted: PDR, WIFI, GNSS, Fusion
  * As Attributes, the class stores
  * - the Polyline object with all the position points
- * - an Array of last K marker (objects)
+ * - the list of the points, appended to rather than read back from the polyline
+ * - an Array of last K marker (objects), older markers being removed from the map
  *
  * The class provides a number of methods that are called on the instantiated objects from a different
  * class to either show or hide the polyline or add points.
- * The class includes a smoothing function that is used for plotting the polyline.
  *
  * @author Alexandra Geciova
  * @author Thomas Deppe
@@ -34,8 +34,8 @@ import java.util.List;
 public class TrajectoryDisplay {
 
     private Polyline trajectory; // this shows the pdr trajectory
+    private final List<LatLng> points = new ArrayList<>(); // the points of the polyline
     private List<Marker> markersList;
-    private int numberOfPointsToSmooth = 50;
     private int numberOfMarkersDisplayed = 7;
 
 
@@ -58,6 +58,7 @@ public class TrajectoryDisplay {
                 .width(5)
                 .zIndex(1)
                 );
+        points.add(start_position);
         markersList = new ArrayList<>();
     }
 
@@ -83,32 +84,17 @@ public class TrajectoryDisplay {
     }
 
     /**
-     * Updates the trajectory with a new point and adjusts its visibility.
+     * Updates the trajectory with a new point and adjusts its visibility. The point is appended to
+     * the points of the trajectory, which are not read back from the polyline.
      *
      * @param point      The new point to add to the trajectory.
      * @param showLine   True to show the trajectory line, false to hide it.
-     * @param smoothing  True to apply smoothing to the trajectory, false otherwise.
      */
 
-    public void updateTrajectory (LatLng point, boolean showLine, boolean smoothing){
+    public void updateTrajectory (LatLng point, boolean showLine){
 
         if (trajectory == null) {return;}
 
-        List<LatLng> points = trajectory.getPoints();
-
-        // if smoothing is true
-        if (!points.isEmpty() && smoothing) {
-            // Get the last point in the polyline
-            LatLng lastPoint = points.get(points.size() - 1);
-
-            // Generate interpolated points
-            List<LatLng> interpolatedPoints = interpolate_points(lastPoint, point);
-
-            // Add interpolated points to the polyline
-            points.addAll(interpolatedPoints);
-
-        }
-
         // Add the new point and show on the map
         points.add(point);
         trajectory.setPoints(points);
@@ -128,43 +114,13 @@ public class TrajectoryDisplay {
         trajectory.setVisible(false);
 
         // reset the points for all polylines
-        trajectory.setPoints(new ArrayList<LatLng>());
+        points.clear();
+        trajectory.setPoints(points);
 
         // show the polylines again
         trajectory.setVisible(true);
     }
 
-    /**
-     * Interpolates points between two given points to smooth the trajectory.
-     *
-     * @param lastPoint The last point of the trajectory.
-     * @param newPoint  The new point to be added to the trajectory.
-     * @return A list of interpolated points between the last point and the new point.
-     */
-    private List<LatLng> interpolate_points(LatLng lastPoint, LatLng newPoint) {
-        List<LatLng> interpolatedPoints = new ArrayList<>();
-
-        double latDiff = newPoint.latitude - lastPoint.latitude;
-        double lngDiff = newPoint.longitude - lastPoint.longitude;
-
-        // Calculate step size for interpolation
-        double stepLat = latDiff / (numberOfPointsToSmooth + 1);
-        double stepLng = lngDiff / (numberOfPointsToSmooth + 1);
-
-        // Start interpolation from the point following last_point
-        double currentLat = lastPoint.latitude + stepLat;
-        double currentLng = lastPoint.longitude + stepLng;
-
-        // Generate intermediate points
-        for (int i = 0; i < numberOfPointsToSmooth; i++) {
-            interpolatedPoints.add(new LatLng(currentLat, currentLng));
-            currentLat += stepLat;
-            currentLng += stepLng;
-        }
-
-        return interpolatedPoints;
-    }
-
     /**
      * Displays trajectory dots (markers) on the map.
      *
@@ -175,9 +131,7 @@ public class TrajectoryDisplay {
      */
     public void displayTrajectoryDots(GoogleMap recording_map, Context context, int dotColor, boolean enabledDisplay) {
 
-        List<LatLng> points = trajectory.getPoints();
-
-        if (points == null){
+        if (trajectory == null || points.isEmpty()){
             return;
         }
 
@@ -188,10 +142,9 @@ public class TrajectoryDisplay {
 
         markersList.add(recording_map.addMarker(markerOptions.anchor(0.5f, 0.5f) .visible(false)));
 
-        // if the list array is full, remove the oldest marker
+        // if the list array is full, remove the oldest marker from the map
         if (markersList.size()-1 > numberOfMarkersDisplayed){
-            markersList.get(0).setVisible(false);
-            markersList.remove(0);
+            markersList.remove(0).remove();
         }
 
         // if the display is enable, show them
@@ -646,7 +646,7 @@ public class UIelements {
      * @param context                The context.
      */
     public void showWifiTrajectory(LatLng latlngFromWifiServer, Context context){
-        wifiTrajectory.updateTrajectory(latlngFromWifiServer, false, false);
+        wifiTrajectory.updateTrajectory(latlngFromWifiServer, false);
         wifiTrajectory.displayTrajectoryDots(recording_map, context, Color.GREEN, displayWifiToggle.isChecked());
     }
 
@@ -657,7 +657,7 @@ public class UIelements {
      * @param context       The context.
      */
     public void showPDRTrajectory(LatLng pdrPosition, Context context){
-        pdrTrajectory.updateTrajectory(pdrPosition, displayPRDToggle.isChecked(), false);
+        pdrTrajectory.updateTrajectory(pdrPosition, displayPRDToggle.isChecked());
         pdrTrajectory.displayTrajectoryDots(recording_map, context, Color.BLUE, displayPRDToggle.isChecked());
     }
 
@@ -668,7 +668,7 @@ public class UIelements {
      * @param context    The context.
      */
     public void showGNSSTrajectory(float[] GNSS_pos, Context context){
-        gnssTrajectory.updateTrajectory(new LatLng(GNSS_pos[0] , GNSS_pos[1]), false, false);
+        gnssTrajectory.updateTrajectory(new LatLng(GNSS_pos[0] , GNSS_pos[1]), false);
         gnssTrajectory.displayTrajectoryDots(recording_map, context, Color.RED, displayGNSSToggle.isChecked());
     }
 
@@ -679,7 +679,7 @@ public class UIelements {
      * @param context         The context.
      */
     public void showFusedTrajectory(LatLng newCoordinate, Context context){
-        fusedTrajectory.updateTrajectory(newCoordinate, displayFusedToggle.isChecked(), true);
+        fusedTrajectory.updateTrajectory(newCoordinate, displayFusedToggle.isChecked());
         fusedTrajectory.displayTrajectoryDots(recording_map, context, Color.CYAN, displayFusedToggle.isChecked());
     }
 
@@ -0,0 +1,133 @@
+package com.openpositioning.PositionMe.Utils;
+
+/**
+ * Window of the most recent values with their running minimum and maximum.
+ *
+ * The values are kept in a primitive ring, and the minimum and maximum in two monotonic deques of
+ * indices in the ring: the maximum deque holds the values that are larger than every value added
+ * after them, in decreasing order, so its front is the maximum of the window, and the minimum deque
+ * the reverse. Adding a value, evicting the oldest one and reading the minimum or maximum take O(1)
+ * amortised time, and none of them allocates.
+ *
+ * The class is not thread safe.
+ */
+public class MinMaxWindow {
+    private final int capacity;
+    // Values in arrival order, the oldest at index head
+    private final double[] values;
+    private int head;
+    private int size;
+
+    // Deques of indices of the values, as rings of the window capacity
+    private final int[] maxDeque;
+    private int maxHead;
+    private int maxSize;
+    private final int[] minDeque;
+    private int minHead;
+    private int minSize;
+
+    /**
+     * Creates an empty window.
+     *
+     * @param capacity The largest number of values in the window, the oldest value being evicted
+     *                 when a value is added to a full window.
+     */
+    public MinMaxWindow(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be greater than 0");
+        }
+        this.capacity = capacity;
+        this.values = new double[capacity];
+        this.maxDeque = new int[capacity];
+        this.minDeque = new int[capacity];
+    }
+
+    /**
+     * Adds a value, evicting the oldest value if the window is full.
+     *
+     * @param value The value to add, not NaN.
+     */
+    public void add(double value) {
+        if (Double.isNaN(value)) {
+            throw new IllegalArgumentException("Value must not be NaN");
+        }
+        if (size == capacity) {
+            if (maxDeque[maxHead] == head) {
+                maxHead = wrap(maxHead + 1);
+                maxSize--;
+            }
+            if (minDeque[minHead] == head) {
+                minHead = wrap(minHead + 1);
+                minSize--;
+            }
+            head = wrap(head + 1);
+            size--;
+        }
+        int index = wrap(head + size);
+        values[index] = value;
+        size++;
+
+        // Drop the values that can no longer be the maximum or minimum
+        while (maxSize > 0 && values[maxDeque[wrap(maxHead + maxSize - 1)]] <= value) {
+            maxSize--;
+        }
+        maxDeque[wrap(maxHead + maxSize)] = index;
+        maxSize++;
+        while (minSize > 0 && values[minDeque[wrap(minHead + minSize - 1)]] >= value) {
+            minSize--;
+        }
+        minDeque[wrap(minHead + minSize)] = index;
+        minSize++;
+    }
+
+    /**
+     * Wraps an index less than twice the capacity into the rings.
+     */
+    private int wrap(int index) {
+        return index >= capacity ? index - capacity : index;
+    }
+
+    /**
+     * Removes every value from the window.
+     */
+    public void clear() {
+        head = 0;
+        size = 0;
+        maxHead = 0;
+        maxSize = 0;
+        minHead = 0;
+        minSize = 0;
+    }
+
+    /**
+     * A get method for the largest value of the window.
+     *
+     * @return The maximum, or NaN if the window is empty.
+     */
+    public double getMax() {
+        return size == 0 ? Double.NaN : values[maxDeque[maxHead]];
+    }
+
+    /**
+     * A get method for the smallest value of the window.
+     *
+     * @return The minimum, or NaN if the window is empty.
+     */
+    public double getMin() {
+        return size == 0 ? Double.NaN : values[minDeque[minHead]];
+    }
+
+    /**
+     * A get method for the number of values in the window.
+     *
+     * @return The number of values.
+     */
+    public int size() { return size; }
+
+    /**
+     * Whether the window holds no value.
+     *
+     * @return True if the window is empty.
+     */
+    public boolean isEmpty() { return size == 0; }
+}
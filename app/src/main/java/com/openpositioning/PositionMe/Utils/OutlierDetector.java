@@ -1,14 +1,13 @@
 package com.openpositioning.PositionMe.Utils;
 
-import android.util.Log;
-
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
-
 /**
  * Utility class for detecting outliers in a list of distances by employing the modified Z score.
  *
+ * The median and the Median Absolute Deviation (MAD) are taken over a sliding window of the most
+ * recent distances, bounded in count and optionally in age, kept by a {@link SlidingWindowMedian}.
+ * A check takes O(log^2 w) time for a window of w distances and the memory used depends on the
+ * window size only, not on the length of the recording.
+ *
  * @author Thomas Deppe
  * @author Alexandra Geciova
  * @author Christopher Khoo
@@ -19,44 +18,76 @@ public class OutlierDetector {
     // Factor for computing modified Z-score
     private static final double Z_SCORE_FACTOR = 0.6745;
     private static final double max_distance_threshold = 10;
-    // List to store distances
-    private final List<Double> distances;
+    // Number of recent distances the median and MAD are taken over by default
+    public static final int DEFAULT_WINDOW_SIZE = 64;
+    // Window of the most recent distances
+    private final SlidingWindowMedian distances;
 
     /**
-     * Constructor to initialize the outlier detector.
+     * Constructor to initialize the outlier detector with the default window size.
      */
     public OutlierDetector() {
-        this.distances = new ArrayList<>();
+        this(DEFAULT_WINDOW_SIZE);
     }
 
     /**
-     * Detects outliers in the provided distance.
+     * Constructor to initialize the outlier detector.
+     *
+     * @param windowSize The number of recent distances the median and MAD are taken over.
+     */
+    public OutlierDetector(int windowSize) {
+        this(windowSize, SlidingWindowMedian.NO_EXPIRY);
+    }
+
+    /**
+     * Constructor to initialize the outlier detector with distances expiring after a given age.
+     *
+     * @param windowSize The number of recent distances the median and MAD are taken over.
+     * @param maxAgeMillis The age in milliseconds after which a distance leaves the window, or
+     *                     {@link SlidingWindowMedian#NO_EXPIRY}.
+     */
+    public OutlierDetector(int windowSize, long maxAgeMillis) {
+        this.distances = new SlidingWindowMedian(windowSize, maxAgeMillis);
+    }
+
+    /**
+     * Detects outliers in the provided distance, measured now.
      *
      * @param newDistance The new distance to check for outliers.
      * @return True if an outlier is detected, false otherwise.
      */
     public boolean detectOutliers(double newDistance) {
-        // Add the new distance to the list
-        distances.add(newDistance);
+        return detectOutliers(newDistance, System.currentTimeMillis());
+    }
+
+    /**
+     * Detects outliers in the provided distance.
+     *
+     * @param newDistance The new distance to check for outliers.
+     * @param timeMillis The time the distance was measured, in milliseconds.
+     * @return True if an outlier is detected, false otherwise.
+     */
+    public boolean detectOutliers(double newDistance, long timeMillis) {
+        // Add the new distance to the window, evicting the expired and the oldest ones
+        distances.add(newDistance, timeMillis);
 
         if (newDistance > max_distance_threshold) {
             return true;
         }
 
         // Calculate the median of distances
-        double median = calculateMedian();
+        double median = distances.median();
 
         // Calculate the Median Absolute Deviation (MAD)
-        double mad = calculateMAD(median);
+        double mad = distances.medianAbsoluteDeviation(median);
 
         // Calculate the modified Z-score
         double modifiedZScore = Z_SCORE_FACTOR * ((Math.abs(newDistance - median)) / mad);
 
         // Check if the modified Z-score exceeds the outlier threshold
         if (modifiedZScore > OUTLIER_THRESHOLD) {
-            // Remove the outlier from the list
-            int index = distances.indexOf(newDistance);
-            distances.remove(index);
+            // Remove the outlier from the window
+            distances.removeNewest();
             return true;
         }
 
@@ -64,51 +95,9 @@ public class OutlierDetector {
     }
 
     /**
-     * Calculates the median of distances.
+     * A get method for the number of distances in the window.
      *
-     * @return The median value.
+     * @return The number of distances the statistics are taken over.
      */
-    private double calculateMedian() {
-        // Sort distances in order to determine median
-        Collections.sort(this.distances);
-
-        // calculate median based on length of list
-        int size = this.distances.size();
-        if (size % 2 != 0) {
-            return distances.get(size / 2);
-        } else {
-            return (distances.get((size - 1) / 2) + distances.get(size / 2)) / 2.0;
-        }
-    }
-
-    /**
-     * Calculates the Median Absolute Deviation (MAD) of distances.
-     *
-     * @param median The median value of distances.
-     * @return The MAD value.
-     */
-    private double calculateMAD(double median) {
-        List<Double> absoluteDeviations = new ArrayList<>();
-        for (double distance : distances) {
-            double deviation = Math.abs(distance - median);
-            absoluteDeviations.add(deviation);
-        }
-        return calculateMedian(absoluteDeviations);
-    }
-
-    /**
-     * Calculates the median of a list of absolute deviations.
-     *
-     * @param absoluteDeviations The list of absolute deviations.
-     * @return The median of absolute deviations.
-     */
-    private double calculateMedian(List<Double> absoluteDeviations) {
-        Collections.sort(absoluteDeviations);
-        int size = absoluteDeviations.size();
-        if (size % 2 != 0) {
-            return absoluteDeviations.get(size / 2);
-        } else {
-            return (absoluteDeviations.get((size - 1) / 2) + absoluteDeviations.get(size / 2)) / 2.0;
-        }
-    }
+    public int size() { return distances.size(); }
 }
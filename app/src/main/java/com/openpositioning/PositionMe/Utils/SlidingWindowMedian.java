@@ -0,0 +1,373 @@
+package com.openpositioning.PositionMe.Utils;
+
+/**
+ * Streaming median and Median Absolute Deviation (MAD) over a sliding window of the most recent
+ * values, bounded both in count and in age.
+ *
+ * The values in the window are held twice: in a ring in arrival order, which decides the value to
+ * evict, and in an order statistic tree, a treap whose nodes carry the size of their subtree, which
+ * gives the value of any rank. Both live in primitive arrays allocated once for the window size, so
+ * adding and evicting values does not allocate.
+ *
+ * Adding or evicting a value and finding the median take O(log w) expected time for a window of w
+ * values. The MAD is the median of the distances to the median, which are the merge of two sorted
+ * sequences read from the tree on either side of the median, and is found with a binary search
+ * over that merge in O(log^2 w).
+ *
+ * The class is not thread safe.
+ */
+public class SlidingWindowMedian {
+    // Age limit meaning the values only leave the window when it is full
+    public static final long NO_EXPIRY = Long.MAX_VALUE;
+    // Index of the empty subtree, node 0 having a size of 0
+    private static final int NIL = 0;
+
+    private final int windowSize;
+    private final long maxAgeMillis;
+
+    // Values in arrival order with their times, oldest first from head
+    private final double[] ringValues;
+    private final long[] ringTimes;
+    private int head;
+    private int count;
+
+    // Nodes of the treap, node 0 standing for the empty subtree
+    private final double[] key;
+    private final int[] priority;
+    private final int[] left;
+    private final int[] right;
+    private final int[] subtreeSize;
+    // Unused nodes, as a stack
+    private final int[] freeNodes;
+    private int freeCount;
+    private int root = NIL;
+    // Results of the last split, the left and right trees
+    private int splitLeft;
+    private int splitRight;
+    // State of the xorshift generator drawing the node priorities
+    private int seed = 0x2545F491;
+
+    /**
+     * Creates a window bounded in count only.
+     *
+     * @param windowSize The largest number of values in the window.
+     */
+    public SlidingWindowMedian(int windowSize) {
+        this(windowSize, NO_EXPIRY);
+    }
+
+    /**
+     * Creates a window bounded in count and in age.
+     *
+     * @param windowSize The largest number of values in the window.
+     * @param maxAgeMillis The age in milliseconds after which a value leaves the window, or
+     *                     {@link #NO_EXPIRY}.
+     */
+    public SlidingWindowMedian(int windowSize, long maxAgeMillis) {
+        if (windowSize <= 0) {
+            throw new IllegalArgumentException("Window size must be greater than 0");
+        }
+        if (maxAgeMillis <= 0) {
+            throw new IllegalArgumentException("Maximum age must be greater than 0");
+        }
+        this.windowSize = windowSize;
+        this.maxAgeMillis = maxAgeMillis;
+        this.ringValues = new double[windowSize];
+        this.ringTimes = new long[windowSize];
+        this.key = new double[windowSize + 1];
+        this.priority = new int[windowSize + 1];
+        this.left = new int[windowSize + 1];
+        this.right = new int[windowSize + 1];
+        this.subtreeSize = new int[windowSize + 1];
+        this.freeNodes = new int[windowSize];
+        for (int node = windowSize; node >= 1; node--) {
+            freeNodes[freeCount++] = node;
+        }
+    }
+
+    /**
+     * Adds a value to the window, first evicting the values that have expired by its time and the
+     * oldest value if the window is full.
+     *
+     * @param value The value to add.
+     * @param timeMillis The time of the value, in milliseconds, not earlier than the previous one.
+     */
+    public void add(double value, long timeMillis) {
+        if (Double.isNaN(value)) {
+            throw new IllegalArgumentException("Value must not be NaN");
+        }
+        expire(timeMillis);
+        if (count == windowSize) {
+            removeOldest();
+        }
+        int tail = (head + count) % windowSize;
+        ringValues[tail] = value;
+        ringTimes[tail] = timeMillis;
+        count++;
+        insert(value);
+    }
+
+    /**
+     * Evicts the values older than the maximum age at a given time.
+     *
+     * @param nowMillis The current time, in milliseconds.
+     */
+    public void expire(long nowMillis) {
+        if (maxAgeMillis == NO_EXPIRY) return;
+        while (count > 0 && nowMillis - ringTimes[head] > maxAgeMillis) {
+            removeOldest();
+        }
+    }
+
+    /**
+     * Removes the oldest value of the window.
+     *
+     * @return False if the window was empty.
+     */
+    public boolean removeOldest() {
+        if (count == 0) return false;
+        delete(ringValues[head]);
+        head = (head + 1) % windowSize;
+        count--;
+        return true;
+    }
+
+    /**
+     * Removes the value added last.
+     *
+     * @return False if the window was empty.
+     */
+    public boolean removeNewest() {
+        if (count == 0) return false;
+        count--;
+        delete(ringValues[(head + count) % windowSize]);
+        return true;
+    }
+
+    /**
+     * Removes every value from the window.
+     */
+    public void clear() {
+        while (count > 0) {
+            removeOldest();
+        }
+    }
+
+    /**
+     * A get method for the number of values in the window.
+     *
+     * @return The number of values in the window.
+     */
+    public int size() { return count; }
+
+    /**
+     * Finds the value of a given rank in the window.
+     *
+     * @param rank The rank of the value, 0 being the smallest.
+     * @return The value of the given rank.
+     */
+    public double get(int rank) {
+        if (rank < 0 || rank >= count) {
+            throw new IndexOutOfBoundsException("Rank " + rank + " out of " + count + " values");
+        }
+        int node = root;
+        while (true) {
+            int leftSize = subtreeSize[left[node]];
+            if (rank < leftSize) {
+                node = left[node];
+            } else if (rank == leftSize) {
+                return key[node];
+            } else {
+                rank -= leftSize + 1;
+                node = right[node];
+            }
+        }
+    }
+
+    /**
+     * Calculates the median of the window.
+     *
+     * @return The median, the mean of the two middle values for an even count, or NaN if the window
+     *         is empty.
+     */
+    public double median() {
+        if (count == 0) return Double.NaN;
+        if (count % 2 != 0) {
+            return get(count / 2);
+        }
+        return (get((count - 1) / 2) + get(count / 2)) / 2.0;
+    }
+
+    /**
+     * Calculates the Median Absolute Deviation (MAD) of the window around a centre.
+     *
+     * @param centre The value the deviations are taken from, usually the median.
+     * @return The median of the absolute deviations from the centre, or NaN if the window is empty.
+     */
+    public double medianAbsoluteDeviation(double centre) {
+        if (count == 0) return Double.NaN;
+        // The deviations of the values below the centre, nearest first, and of the others
+        int below = countLess(centre);
+        if (count % 2 != 0) {
+            return deviationOfRank(count / 2, centre, below);
+        }
+        return (deviationOfRank((count - 1) / 2, centre, below) + deviationOfRank(count / 2, centre, below)) / 2.0;
+    }
+
+    /**
+     * Finds the absolute deviation of a given rank by a binary search over the number of values
+     * taken from below the centre.
+     *
+     * @param rank The rank of the deviation, 0 being the smallest.
+     * @param centre The value the deviations are taken from.
+     * @param below The number of values smaller than the centre.
+     * @return The deviation of the given rank.
+     */
+    private double deviationOfRank(int rank, double centre, int below) {
+        int above = count - below;
+        int low = Math.max(0, rank + 1 - above);
+        int high = Math.min(below, rank + 1);
+        // Smallest number taken from below such that the last one taken from above is not larger
+        // than the next one below
+        while (low < high) {
+            int taken = (low + high) >>> 1;
+            int takenAbove = rank + 1 - taken;
+            if (takenAbove > 0 && deviationAbove(takenAbove - 1, centre, below) > deviationBelow(taken, centre, below)) {
+                low = taken + 1;
+            } else {
+                high = taken;
+            }
+        }
+        int takenAbove = rank + 1 - low;
+        double deviation = Double.NEGATIVE_INFINITY;
+        if (low > 0) deviation = deviationBelow(low - 1, centre, below);
+        if (takenAbove > 0) deviation = Math.max(deviation, deviationAbove(takenAbove - 1, centre, below));
+        return deviation;
+    }
+
+    private double deviationBelow(int index, double centre, int below) {
+        return centre - get(below - 1 - index);
+    }
+
+    private double deviationAbove(int index, double centre, int below) {
+        return get(below + index) - centre;
+    }
+
+    /**
+     * Counts the values of the window smaller than a given value.
+     *
+     * @param value The value to compare with.
+     * @return The number of smaller values.
+     */
+    public int countLess(double value) {
+        int smaller = 0;
+        int node = root;
+        while (node != NIL) {
+            if (key[node] < value) {
+                smaller += subtreeSize[left[node]] + 1;
+                node = right[node];
+            } else {
+                node = left[node];
+            }
+        }
+        return smaller;
+    }
+
+    /**
+     * Inserts a value in the tree.
+     */
+    private void insert(double value) {
+        int node = freeNodes[--freeCount];
+        key[node] = value;
+        priority[node] = nextPriority();
+        left[node] = NIL;
+        right[node] = NIL;
+        subtreeSize[node] = 1;
+        split(root, value);
+        int greater = splitRight;
+        root = merge(merge(splitLeft, node), greater);
+    }
+
+    /**
+     * Deletes one occurrence of a value from the tree.
+     */
+    private void delete(double value) {
+        split(root, value);
+        int smaller = splitLeft;
+        // The smallest of the others is the value itself
+        splitBySize(splitRight, 1);
+        freeNodes[freeCount++] = splitLeft;
+        root = merge(smaller, splitRight);
+    }
+
+    /**
+     * Splits a tree into the nodes whose key is smaller than a value, left in splitLeft, and the
+     * others, left in splitRight.
+     */
+    private void split(int node, double value) {
+        if (node == NIL) {
+            splitLeft = NIL;
+            splitRight = NIL;
+        } else if (key[node] < value) {
+            split(right[node], value);
+            right[node] = splitLeft;
+            updateSize(node);
+            splitLeft = node;
+        } else {
+            split(left[node], value);
+            left[node] = splitRight;
+            updateSize(node);
+            splitRight = node;
+        }
+    }
+
+    /**
+     * Splits a tree into its first nodes in order, left in splitLeft, and the others, left in
+     * splitRight.
+     */
+    private void splitBySize(int node, int first) {
+        if (node == NIL) {
+            splitLeft = NIL;
+            splitRight = NIL;
+        } else if (subtreeSize[left[node]] < first) {
+            splitBySize(right[node], first - subtreeSize[left[node]] - 1);
+            right[node] = splitLeft;
+            updateSize(node);
+            splitLeft = node;
+        } else {
+            splitBySize(left[node], first);
+            left[node] = splitRight;
+            updateSize(node);
+            splitRight = node;
+        }
+    }
+
+    /**
+     * Merges two trees, every key of the first not being greater than those of the second.
+     *
+     * @return The root of the merged tree.
+     */
+    private int merge(int first, int second) {
+        if (first == NIL) return second;
+        if (second == NIL) return first;
+        if (priority[first] > priority[second]) {
+            right[first] = merge(right[first], second);
+            updateSize(first);
+            return first;
+        }
+        left[second] = merge(first, left[second]);
+        updateSize(second);
+        return second;
+    }
+
+    private void updateSize(int node) {
+        subtreeSize[node] = subtreeSize[left[node]] + subtreeSize[right[node]] + 1;
+    }
+
+    private int nextPriority() {
+        seed ^= seed << 13;
+        seed ^= seed >>> 17;
+        seed ^= seed << 5;
+        return seed;
+    }
+}
@@ -361,6 +361,8 @@ public class RecordingFragment extends Fragment implements SensorFusionUpdates{
                         sensorFusion.setNoCoverage(false);
                         buildingManager.addGroundOverlay();
                     }
+                    // constrain the particle filter to the walls of the new building
+                    sensorFusion.updateFloorPlanConstraints(buildingManager.getCurrentBuilding(), buildingManager.getCurrentFloor());
                 }
             }
         });
@@ -420,10 +422,13 @@ public class RecordingFragment extends Fragment implements SensorFusionUpdates{
         getActivity().runOnUiThread(new Runnable() {
             @Override
             public void run() {
-                uiElements.setCompassIconRotation(sensorFusion.passOrientation());
+                // Take the update first, so one arriving while the UI is drawn is notified again
+                sensorFusion.takeOrientationUpdate();
+                float orientation = sensorFusion.passOrientation();
+                uiElements.setCompassIconRotation(orientation);
 
                 if (recording_map != null) {
-                    uiElements.setUserMarkerRotation(sensorFusion.passOrientation());
+                    uiElements.setUserMarkerRotation(orientation);
                 }
             }
         });
@@ -573,6 +578,7 @@ public class RecordingFragment extends Fragment implements SensorFusionUpdates{
             @Override
             public void run() {
                 buildingManager.updateFloor(floor);
+                sensorFusion.updateFloorPlanConstraints(buildingManager.getCurrentBuilding(), buildingManager.getCurrentFloor());
             }
         });
     }
@@ -650,6 +656,7 @@ public class RecordingFragment extends Fragment implements SensorFusionUpdates{
         if (buildingManager != null) {
             buildingManager.updateGroundOverlay(Floors.valueOf(selectedFloor));
             sensorFusion.setCurrentFloor(buildingManager.convertSpinnerIndexToFloor(position));
+            sensorFusion.updateFloorPlanConstraints(buildingManager.getCurrentBuilding(), Floors.valueOf(selectedFloor));
         }
     }
 }
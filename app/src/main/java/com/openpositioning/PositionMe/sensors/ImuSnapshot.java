@@ -0,0 +1,92 @@
+package com.openpositioning.PositionMe.sensors;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Latest IMU and magnetometer values, written on the sensor processing thread and read as a
+ * consistent sample by the recording timer.
+ *
+ * The values are protected by a sequence lock. The writer makes the sequence odd, writes the values
+ * of one event and makes the sequence even again, without ever waiting for a reader. A reader copies
+ * every value between two reads of the sequence, and copies them again if the sequence was odd or
+ * changed meanwhile, so a sample never mixes the values of two events of the same sensor. As the
+ * writer only holds the lock for a few stores at the sensor rate, a read is retried rarely.
+ *
+ * The values are kept in an atomic array as raw float bits, so that under the Java memory model the
+ * stores of the writer cannot move outside of the odd sequence and the loads of the reader cannot
+ * move outside of its two reads of the sequence.
+ *
+ * Only one thread may write at a time.
+ */
+public class ImuSnapshot {
+    // Offsets of the values in a sample
+    public static final int ACCELERATION = 0;
+    public static final int ANGULAR_VELOCITY = 3;
+    public static final int ROTATION_VECTOR = 6;
+    public static final int MAGNETIC_FIELD = 10;
+    // Number of values in a sample
+    public static final int SIZE = 13;
+
+    // Values as raw float bits
+    private final AtomicIntegerArray values = new AtomicIntegerArray(SIZE);
+    // Sequence, odd while a write is in progress
+    private final AtomicLong sequence = new AtomicLong();
+    // Number of reads copied again after a concurrent write, only written by the reader
+    private volatile long retries;
+
+    /**
+     * Creates a snapshot of zero values, with the identity rotation.
+     */
+    public ImuSnapshot() {
+        values.set(ROTATION_VECTOR + 3, Float.floatToRawIntBits(1));
+    }
+
+    /**
+     * Writes the values of one event.
+     *
+     * @param offset The offset of the first value, one of the offsets of this class.
+     * @param source The values to write.
+     * @param count The number of values to write.
+     */
+    public void write(int offset, float[] source, int count) {
+        if (offset < 0 || count < 0 || offset + count > SIZE || count > source.length) {
+            throw new IllegalArgumentException("Values out of the snapshot");
+        }
+        long start = sequence.get();
+        sequence.set(start + 1);
+        for (int i = 0; i < count; i++) {
+            values.lazySet(offset + i, Float.floatToRawIntBits(source[i]));
+        }
+        sequence.set(start + 2);
+    }
+
+    /**
+     * Copies a consistent sample of every value, retrying while a write is in progress.
+     *
+     * @param destination The array receiving the sample, of at least {@link #SIZE} values.
+     */
+    public void read(float[] destination) {
+        if (destination.length < SIZE) {
+            throw new IllegalArgumentException("Destination must hold " + SIZE + " values");
+        }
+        while (true) {
+            long before = sequence.get();
+            if ((before & 1) == 0) {
+                for (int i = 0; i < SIZE; i++) {
+                    destination[i] = Float.intBitsToFloat(values.get(i));
+                }
+                if (sequence.get() == before) return;
+            }
+            retries++;
+            Thread.yield();
+        }
+    }
+
+    /**
+     * A get method for the number of reads copied again because of a concurrent write.
+     *
+     * @return The number of retries.
+     */
+    public long getRetries() { return retries; }
+}
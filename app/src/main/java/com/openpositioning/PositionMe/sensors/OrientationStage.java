@@ -0,0 +1,99 @@
+package com.openpositioning.PositionMe.sensors;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Orientation stage of the rotation vector sensor, computing the heading of the device without
+ * allocating and coalescing the notifications of its observers.
+ *
+ * The rotation vector is the quaternion of the device attitude. The azimuth of
+ * SensorManager.getOrientation() is atan2(R[1], R[4]) of the rotation matrix, and both entries are
+ * read straight from the quaternion:
+ * <pre>
+ *     R[1] = 2 (x y - z w)
+ *     R[4] = 1 - 2 (x^2 + z^2)
+ * </pre>
+ * so neither the rotation matrix nor the pitch and roll are built when only the heading is needed.
+ * Remapping the axes to the display rotation would need the full matrix, with
+ * SensorManager.remapCoordinateSystem().
+ *
+ * The quaternion is written into a reused array, and the azimuth is published through a coalescing
+ * slot: an update only asks for the observers to be notified when the previous notification has been
+ * taken with {@link #takeNotification()}, so a slow observer is told once about the latest heading
+ * rather than once per event. Reading the azimuth never takes the notification.
+ *
+ * {@link #update(float[], int)} must be called from a single thread. The azimuth can be read from
+ * any thread.
+ */
+public class OrientationStage {
+    // Latest unit quaternion of the device attitude, x, y, z and w
+    private final float[] quaternion = {0, 0, 0, 1};
+    // Latest azimuth relative to North, in radians
+    private volatile float azimuth;
+    // Whether a notification of the observers is waiting to be taken
+    private final AtomicBoolean notificationPending = new AtomicBoolean();
+
+    /**
+     * Updates the attitude with an event of the rotation vector sensor.
+     *
+     * @param values The values of the event, the x, y and z components of the quaternion, with the
+     *               w component when there are four or more.
+     * @param length The number of values of the event.
+     * @return True if the observers should be notified, no notification being pending.
+     */
+    public boolean update(float[] values, int length) {
+        if (length < 3) {
+            throw new IllegalArgumentException("Rotation vector must have at least 3 values");
+        }
+        float x = values[0];
+        float y = values[1];
+        float z = values[2];
+        float w;
+        if (length >= 4) {
+            w = values[3];
+        } else {
+            // Older devices only report the vector part of the unit quaternion
+            float norm = 1 - x * x - y * y - z * z;
+            w = norm > 0 ? (float) Math.sqrt(norm) : 0;
+        }
+        quaternion[0] = x;
+        quaternion[1] = y;
+        quaternion[2] = z;
+        quaternion[3] = w;
+        azimuth = azimuth(x, y, z, w);
+        return notificationPending.compareAndSet(false, true);
+    }
+
+    /**
+     * Computes the azimuth of an attitude, as SensorManager.getOrientation() does from its rotation
+     * matrix.
+     *
+     * @return The azimuth relative to North, clockwise, in radians in [-pi, pi].
+     */
+    public static float azimuth(float x, float y, float z, float w) {
+        return (float) Math.atan2(2 * (x * y - z * w), 1 - 2 * (x * x + z * z));
+    }
+
+    /**
+     * A get method for the latest azimuth.
+     *
+     * @return The azimuth relative to North, in radians.
+     */
+    public float getAzimuth() { return azimuth; }
+
+    /**
+     * Takes the pending notification, so that the next update notifies the observers again. Called
+     * by the consumer draining the stage before it reads the azimuth, so no update is missed.
+     */
+    public void takeNotification() {
+        notificationPending.set(false);
+    }
+
+    /**
+     * A get method for the latest quaternion, only to be read on the thread calling
+     * {@link #update(float[], int)}.
+     *
+     * @return The x, y, z and w components, in an array reused by the next update.
+     */
+    public float[] getQuaternion() { return quaternion; }
+}
@@ -0,0 +1,199 @@
+package com.openpositioning.PositionMe.sensors;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Ring of the recent events of one sensor, written by the sensor callback and read by any number
+ * of consumers, each at its own rate.
+ *
+ * The values and timestamp of every event are copied into preallocated atomic arrays, and the
+ * producer only publishes a sequence counter, so writing an event neither allocates, takes a lock
+ * nor waits for the consumers. Each consumer reads through its own {@link Cursor}, which keeps its
+ * position in the sequence and a private copy of the event it read last.
+ *
+ * The producer never waits: once the ring is full the oldest event is overwritten. Every slot has
+ * its own sequence lock, odd while the producer writes the slot and then set to the sequence number
+ * of the event it holds. A consumer copies a slot between two reads of its sequence and discards
+ * the copy unless both show the event it expects, so a consumer never sees values mixed from two
+ * events. As the values are kept as raw float bits in atomic arrays, the stores of the producer
+ * cannot move outside of the odd sequence and the loads of a consumer cannot move outside of its two
+ * reads, under the Java memory model. A cursor further behind than half the ring skips forward to
+ * the newest half, so that it rarely has to discard a slot. The skipped events are counted per
+ * cursor.
+ *
+ * Only one thread may publish events into a ring.
+ */
+public class SensorEventRing {
+    // Values of the events as raw float bits, width values per slot, with the number of values and the timestamp of each slot
+    private final AtomicIntegerArray values;
+    private final AtomicIntegerArray lengths;
+    private final AtomicLongArray timestamps;
+    // Sequence lock of each slot, odd while the slot is written, else 2 (n + 1) for the event n it holds
+    private final AtomicLongArray slotSequences;
+    private final int width;
+    // Capacity is a power of two
+    private final int mask;
+    // Number of events published, only written by the producer
+    private final AtomicLong published = new AtomicLong();
+
+    /**
+     * Creates an empty ring.
+     *
+     * @param capacity The minimum number of events the ring holds, rounded up to a power of two.
+     * @param width The largest number of values of an event, extra values being ignored.
+     */
+    public SensorEventRing(int capacity, int width) {
+        if (capacity < 2 || capacity > (1 << 24)) {
+            throw new IllegalArgumentException("Capacity must be between 2 and 2^24");
+        }
+        if (width <= 0) {
+            throw new IllegalArgumentException("Width must be greater than 0");
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) size <<= 1;
+        this.values = new AtomicIntegerArray(size * width);
+        this.lengths = new AtomicIntegerArray(size);
+        this.timestamps = new AtomicLongArray(size);
+        this.slotSequences = new AtomicLongArray(size);
+        this.width = width;
+        this.mask = size - 1;
+    }
+
+    /**
+     * Copies the values of an event into the ring, overwriting the oldest event if it is full.
+     *
+     * @param source The values of the event, only read during the call.
+     * @param timestamp The time of the event, in nanoseconds.
+     */
+    public void publish(float[] source, long timestamp) {
+        long sequence = published.get();
+        int slot = (int) (sequence & mask);
+        int length = Math.min(width, source.length);
+        int offset = slot * width;
+        slotSequences.set(slot, 2 * sequence + 1);
+        for (int i = 0; i < length; i++) {
+            values.lazySet(offset + i, Float.floatToRawIntBits(source[i]));
+        }
+        lengths.lazySet(slot, length);
+        timestamps.lazySet(slot, timestamp);
+        slotSequences.set(slot, 2 * sequence + 2);
+        // A volatile write, so the slot is visible before the new count
+        published.set(sequence + 1);
+    }
+
+    /**
+     * Creates a consumer position starting after the events already published.
+     *
+     * @return A new cursor, to be used by a single thread.
+     */
+    public Cursor newCursor() {
+        return new Cursor(published.get());
+    }
+
+    /**
+     * A get method for the number of events published since the ring was created.
+     *
+     * @return The number of published events.
+     */
+    public long getPublished() { return published.get(); }
+
+    /**
+     * A get method for the number of slots in the ring.
+     *
+     * @return The ring capacity.
+     */
+    public int getCapacity() { return mask + 1; }
+
+    /**
+     * Position of one consumer in the ring, with a copy of the event it read last.
+     */
+    public final class Cursor {
+        // Sequence of the next event to read
+        private long next;
+        // Copy of the event read last
+        private final float[] eventValues = new float[width];
+        private int eventLength;
+        private long eventTimestamp;
+        // Number of events overwritten before they could be read
+        private long skipped;
+
+        private Cursor(long start) {
+            this.next = start;
+        }
+
+        /**
+         * Reads the next event not read yet by this cursor.
+         *
+         * @return False if every published event has been read.
+         */
+        public boolean advance() {
+            while (true) {
+                long available = published.get();
+                if (next >= available) return false;
+                // Leave the half of the ring the producer is about to overwrite
+                long maxLag = (mask + 1) / 2;
+                if (available - next > maxLag) {
+                    skipped += available - maxLag - next;
+                    next = available - maxLag;
+                }
+                int slot = (int) (next & mask);
+                long expected = 2 * next + 2;
+                boolean copied = false;
+                if (slotSequences.get(slot) == expected) {
+                    eventLength = lengths.get(slot);
+                    int offset = slot * width;
+                    for (int i = 0; i < eventLength; i++) {
+                        eventValues[i] = Float.intBitsToFloat(values.get(offset + i));
+                    }
+                    eventTimestamp = timestamps.get(slot);
+                    copied = slotSequences.get(slot) == expected;
+                }
+                // The producer has overwritten the slot, or is overwriting it, with a later event
+                if (!copied) {
+                    skipped++;
+                    next++;
+                    continue;
+                }
+                next++;
+                return true;
+            }
+        }
+
+        /**
+         * Whether an event not read yet by this cursor has been published.
+         *
+         * @return True if {@link #advance()} would read an event.
+         */
+        public boolean hasNext() { return next < published.get(); }
+
+        /**
+         * A get method for the values of the event read last. The array is reused by the next read.
+         *
+         * @return The values, of which the first {@link #getLength()} are set.
+         */
+        public float[] getValues() { return eventValues; }
+
+        /**
+         * A get method for the number of values of the event read last.
+         *
+         * @return The number of values.
+         */
+        public int getLength() { return eventLength; }
+
+        /**
+         * A get method for the time of the event read last.
+         *
+         * @return The timestamp, in nanoseconds.
+         */
+        public long getTimestamp() { return eventTimestamp; }
+
+        /**
+         * A get method for the number of events overwritten before this cursor could read them.
+         *
+         * @return The number of skipped events.
+         */
+        public long getSkipped() { return skipped; }
+    }
+}
@@ -10,6 +10,8 @@ import android.location.Location;
 import android.location.LocationListener;
 import android.os.Build;
 import android.os.Environment;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.PowerManager;
 import android.util.Log;
 import android.view.WindowManager;
@@ -18,11 +20,21 @@ import android.widget.Toast;
 import androidx.preference.PreferenceManager;
 
 import com.google.android.gms.maps.model.LatLng;
+import com.openpositioning.PositionMe.Buildings.Buildings;
+import com.openpositioning.PositionMe.Buildings.Floors;
+import com.openpositioning.PositionMe.Buildings.WallMap;
+import com.openpositioning.PositionMe.FusionAlgorithms.FusionEngine;
+import com.openpositioning.PositionMe.FusionAlgorithms.FusionState;
+import com.openpositioning.PositionMe.FusionAlgorithms.PositionHypothesis;
+import com.openpositioning.PositionMe.FusionAlgorithms.SmoothedTrajectory;
 import com.openpositioning.PositionMe.FusionAlgorithms.ExtendedKalmanFilter;
 import com.openpositioning.PositionMe.Utils.CoordinateTransform;
 import com.openpositioning.PositionMe.Utils.JsonConverter;
+import com.openpositioning.PositionMe.Utils.MinMaxWindow;
 import com.openpositioning.PositionMe.MainActivity;
+import com.openpositioning.PositionMe.FusionAlgorithms.HighRateKalmanFilter;
 import com.openpositioning.PositionMe.FusionAlgorithms.ParticleFilter;
+import com.openpositioning.PositionMe.FusionAlgorithms.UnscentedKalmanFilter;
 import com.openpositioning.PositionMe.PathView;
 import com.openpositioning.PositionMe.PdrProcessing;
 import com.openpositioning.PositionMe.SensorFusionUpdates;
@@ -42,6 +54,11 @@ import java.util.List;
 import java.util.Map;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -55,9 +72,10 @@ import java.util.stream.Stream;
  * <p>
  * The class implements {@link SensorEventListener} and has instances of {@link MovementSensor} for
  * every device type necessary for data collection. As such, it implements the
- * {@link SensorFusion#onSensorChanged(SensorEvent)} function, and process and records the data
- * provided by the sensor hardware, which are stored in a {@link Traj} object. Data is read
- * continuously but is only saved to the trajectory when recording is enabled.
+ * {@link SensorFusion#onSensorChanged(SensorEvent)} function, which copies each event into a
+ * {@link SensorIngestion} ring. The events are processed and recorded on a dedicated thread, and
+ * stored in a {@link Traj} object. Data is read continuously but is only saved to the trajectory
+ * when recording is enabled.
  * <p>
  * The class provides a number of setters and getters so that other classes can have access to the
  * sensor data and influence the behaviour of data collection.
@@ -80,6 +98,20 @@ public class SensorFusion implements SensorEventListener, Observer {
     public static final float FILTER_COEFFICIENT = 0.96f;
     //Tuning value for low pass filter
     private static final float ALPHA = 0.8f;
+    // Sensors whose events are copied into the ingestion rings
+    private static final int[] INGESTED_SENSOR_TYPES = {Sensor.TYPE_ACCELEROMETER, Sensor.TYPE_PRESSURE,
+            Sensor.TYPE_GYROSCOPE, Sensor.TYPE_LINEAR_ACCELERATION, Sensor.TYPE_GRAVITY, Sensor.TYPE_LIGHT,
+            Sensor.TYPE_PROXIMITY, Sensor.TYPE_MAGNETIC_FIELD, Sensor.TYPE_ROTATION_VECTOR,
+            Sensor.TYPE_STEP_DETECTOR};
+    // Events held per sensor, over 2 s at 100 Hz, and the largest number of values of an event
+    private static final int SENSOR_RING_CAPACITY = 256;
+    private static final int SENSOR_EVENT_WIDTH = 5;
+    // Acceleration magnitudes kept between steps, 3 s at 100 Hz, so standing still does not grow the window
+    private static final int ACCEL_MAGNITUDE_WINDOW = 300;
+    // Largest time between a software and a sensor step counted as the same step, in nanoseconds
+    private static final long STEP_MATCH_TOLERANCE = 1_000_000_000L;
+    // Number of sensor steps between two logs of the step detector comparison
+    private static final int STEP_AGREEMENT_LOG_INTERVAL = 20;
 
     // Instance variables
     // Keep device awake while recording
@@ -89,6 +121,9 @@ public class SensorFusion implements SensorEventListener, Observer {
     private SharedPreferences settings;
     private Context context;
 
+    // Ingestion stage copying the sensor events into rings, processed on their own thread
+    private SensorIngestion sensorIngestion;
+
     // Movement sensor instances
     private MovementSensor accelerometerSensor;
     private MovementSensor barometerSensor;
@@ -112,7 +147,7 @@ public class SensorFusion implements SensorEventListener, Observer {
     private Traj.Trajectory.Builder trajectory;
 
     // Settings
-    private boolean saveRecording;
+    private volatile boolean saveRecording;
     private float filter_coefficient;
 
     // Variables to help with timed events
@@ -132,13 +167,15 @@ public class SensorFusion implements SensorEventListener, Observer {
     private float[] gravity;
     private float[] magneticField;
     private float[] angularVelocity;
-    private float[] orientation;
-    private float[] rotation;
+    // Attitude of the device from the rotation vector, with the heading used by PDR and the display
+    private final OrientationStage orientationStage = new OrientationStage();
     private float pressure;
     private float light;
     private float proximity;
     private float[] R;
-    private int stepCounter ;
+    private volatile int stepCounter ;
+    // Latest IMU and magnetometer values, read by the recording timer as a consistent sample
+    private final ImuSnapshot imuSnapshot = new ImuSnapshot();
 
     // Derived values
     private float elevation;
@@ -152,8 +189,6 @@ public class SensorFusion implements SensorEventListener, Observer {
     private float[] startLocation;
     private double[] startRef;
 
-    // Boolean to control fusion algorithm selection
-    private boolean fusionAlgorithmSelection = true;
     private boolean noCoverage;
     private double[] ecefRefCoords;
     // Stores recent Wifi position and Fused Position
@@ -164,18 +199,44 @@ public class SensorFusion implements SensorEventListener, Observer {
     private WindowManager currentWindowManager;
     // Wifi values
     private List<Wifi> wifiList;
-    // Over time accelerometer magnitude values since last step
-    private List<Double> accelMagnitude;
+    // Over time accelerometer magnitude values since last step, with their running minimum and maximum
+    private MinMaxWindow accelMagnitude;
     // PDR calculation class
     private PdrProcessing pdrProcessing;
+    // Guards the trajectory builder, written by the sensor processing thread, the recording timer,
+    // the location listener and the server callbacks
+    private final Object trajectoryLock = new Object();
+    // Posts the updates of the views to the main thread, which owns them
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    // Completed once the smoothed trajectory of the last recording has been added to it
+    private volatile CompletableFuture<Void> recordingFinished = CompletableFuture.completedFuture(null);
+    // Comparison of the software steps with the step detector sensor
+    private StepAgreement stepAgreement;
+    // Whether the software steps update the PDR instead of the step detector sensor
+    private volatile boolean softwareSteps;
+    // Number of steps of the step detector sensor since the recording started
+    private long sensorSteps;
     // Trajectory displaying class
     private PathView pathView;
-    // Filter classes
-    private ParticleFilter particleFilter;
-    private ExtendedKalmanFilter extendedKalmanFilter;
+    // Fusion algorithm in use, an Extended or Unscented Kalman Filter or a Particle Filter
+    private volatile FusionEngine fusionEngine;
+    // Reacts to the fusion algorithm being changed in the settings, kept as the preferences only hold weak references
+    private SharedPreferences.OnSharedPreferenceChangeListener fusionSettingListener;
+    // Wall maps of the building floors loaded so far, keyed by asset path, only used on the loader thread
+    private Map<String, WallMap> wallMapCache;
+    // Reads the wall maps from the assets off the main thread, one floor at a time
+    private final ExecutorService wallMapLoader = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "WallMapLoader");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // Building and floor the user is on, to constrain a newly selected fusion algorithm to their walls
+    private volatile Buildings currentBuilding;
+    private volatile Floors currentConstraintFloor;
     // Turn detector class
     private TurnDetector turnDetector;
-    //Creates a list of classes which wish to receive asynchronous updates from this class.
+    //Creates a list of classes which wish to receive asynchronous updates from this class, notified
+    // from the processing and fusion threads while registered on the main thread.
     private List<SensorFusionUpdates> recordingUpdates;
 
     //region Initialisation
@@ -205,15 +266,13 @@ public class SensorFusion implements SensorEventListener, Observer {
         this.gravity = new float[3];
         this.magneticField = new float[3];
         this.angularVelocity = new float[3];
-        this.orientation = new float[3];
-        this.rotation = new float[5];
-        this.rotation[3] = 1.0f;
         this.R = new float[9];
         // GNSS initial Long-Lat array
         this.startLocation = new float[2];
         this.startRef = new double[3];
 
-        this.recordingUpdates = new ArrayList<>();
+        this.recordingUpdates = new CopyOnWriteArrayList<>();
+        this.wallMapCache = new HashMap<>();
         this.turnDetector = new TurnDetector();
     }
 
@@ -254,6 +313,12 @@ public class SensorFusion implements SensorEventListener, Observer {
         this.rotationSensor = new MovementSensor(context, Sensor.TYPE_ROTATION_VECTOR);
         this.gravitySensor = new MovementSensor(context, Sensor.TYPE_GRAVITY);
         this.linearAccelerationSensor = new MovementSensor(context, Sensor.TYPE_LINEAR_ACCELERATION);
+        // Ingestion of the sensor events, processed off the callback thread
+        if (this.sensorIngestion == null) {
+            this.sensorIngestion = new SensorIngestion(INGESTED_SENSOR_TYPES, SENSOR_RING_CAPACITY,
+                    SENSOR_EVENT_WIDTH, "SensorProcessingThread", this::processSensorEvent);
+            this.sensorIngestion.start();
+        }
         // Listener based devices
         this.wifiProcessor = new WifiDataProcessor(context);
         wifiProcessor.registerObserver(this);
@@ -268,12 +333,14 @@ public class SensorFusion implements SensorEventListener, Observer {
         this.saveRecording = false;
 
         // Over time data holder
-        this.accelMagnitude = new ArrayList<>();
+        this.accelMagnitude = new MinMaxWindow(ACCEL_MAGNITUDE_WINDOW);
         // PDR
         this.pdrProcessing = new PdrProcessing(context);
+        this.stepAgreement = new StepAgreement(STEP_MATCH_TOLERANCE);
 
         //Settings
         this.settings = PreferenceManager.getDefaultSharedPreferences(context);
+        this.softwareSteps = useSoftwareSteps();
 
         this.pathView = new PathView(context, null);
 
@@ -296,144 +363,189 @@ public class SensorFusion implements SensorEventListener, Observer {
      *
      * Called every time a Sensor value is updated.
      *
-     * Checks originating sensor type, if the data is meaningful save it to a local variable.
+     * Copies the values and timestamp of the event into the ring of its sensor and returns, the
+     * event being processed on the sensor processing thread by {@link #processSensorEvent}.
      *
      * @param sensorEvent   SensorEvent of sensor with values changed, includes types and values.
      */
     @Override
     public void onSensorChanged(SensorEvent sensorEvent) {
-        switch (sensorEvent.sensor.getType()) {
+        sensorIngestion.publish(sensorEvent.sensor.getType(), sensorEvent.values, sensorEvent.timestamp);
+    }
+
+    /**
+     * Processes a sensor event taken off the ingestion rings, on the sensor processing thread.
+     *
+     * Checks originating sensor type, if the data is meaningful save it to a local variable.
+     *
+     * @param sensorType    Type of the sensor, using Sensor.TYPE constants.
+     * @param timestamp     Time of the event, in nanoseconds.
+     * @param values        Values of the event, reused once this method returns.
+     * @param length        Number of values of the event.
+     */
+    private void processSensorEvent(int sensorType, long timestamp, float[] values, int length) {
+        switch (sensorType) {
             case Sensor.TYPE_ACCELEROMETER:
                 // Accelerometer processing
-                acceleration[0] = sensorEvent.values[0];
-                acceleration[1] = sensorEvent.values[1];
-                acceleration[2] = sensorEvent.values[2];
+                acceleration[0] = values[0];
+                acceleration[1] = values[1];
+                acceleration[2] = values[2];
+                imuSnapshot.write(ImuSnapshot.ACCELERATION, acceleration, 3);
                 break;
 
             case Sensor.TYPE_PRESSURE:
                 // Barometer processing - filter
-                pressure = (1- ALPHA) * pressure + ALPHA * sensorEvent.values[0];
+                pressure = (1- ALPHA) * pressure + ALPHA * values[0];
                 // Store pressure data in protobuf trajectory class
                 if (saveRecording) {
                     this.elevation = pdrProcessing.updateElevation(SensorManager.getAltitude(
-                            SensorManager.PRESSURE_STANDARD_ATMOSPHERE, pressure));
+                            SensorManager.PRESSURE_STANDARD_ATMOSPHERE, pressure), timestamp);
                 }
                 break;
 
             case Sensor.TYPE_GYROSCOPE:
                 // Gyro processing
                 //Store gyroscope readings
-                angularVelocity[0] = sensorEvent.values[0];
-                angularVelocity[1] = sensorEvent.values[1];
-                angularVelocity[2] = sensorEvent.values[2];
+                angularVelocity[0] = values[0];
+                angularVelocity[1] = values[1];
+                angularVelocity[2] = values[2];
+                imuSnapshot.write(ImuSnapshot.ANGULAR_VELOCITY, angularVelocity, 3);
+                FusionEngine rateEngine = this.fusionEngine;
+                if (saveRecording && rateEngine != null && rateEngine.usesAngularRate()) {
+                    // Yaw rate about the vertical, from the projection of the rotation on gravity,
+                    // clockwise positive as the azimuth
+                    double gravityNorm = Math.sqrt(gravity[0] * gravity[0] + gravity[1] * gravity[1]
+                            + gravity[2] * gravity[2]);
+                    if (gravityNorm > 0) {
+                        double yawRate = -(angularVelocity[0] * gravity[0] + angularVelocity[1] * gravity[1]
+                                + angularVelocity[2] * gravity[2]) / gravityNorm;
+                        rateEngine.onAngularRate(yawRate, timestamp);
+                    }
+                }
                 break;
 
 
             case Sensor.TYPE_LINEAR_ACCELERATION:
                 // Acceleration processing with gravity already removed
-                filteredAcc[0] = sensorEvent.values[0];
-                filteredAcc[1] = sensorEvent.values[1];
-                filteredAcc[2] = sensorEvent.values[2];
+                filteredAcc[0] = values[0];
+                filteredAcc[1] = values[1];
+                filteredAcc[2] = values[2];
 
-                double accelMagFiltered = Math.sqrt(Math.pow(acceleration[0], 2) +
-                        Math.pow(acceleration[1], 2) + Math.pow(acceleration[2], 2));
+                double accelMagFiltered = Math.sqrt(acceleration[0] * acceleration[0]
+                        + acceleration[1] * acceleration[1] + acceleration[2] * acceleration[2]);
                 this.accelMagnitude.add(accelMagFiltered);
                 elevator = pdrProcessing.estimateElevator(gravity, filteredAcc);
+                // Software step detection, run alongside the step detector sensor
+                if (pdrProcessing.detectStep(filteredAcc, gravity, timestamp)) {
+                    stepAgreement.onSoftwareStep(pdrProcessing.getStepTime());
+                    if (softwareSteps) {
+                        processStep(pdrProcessing.getStepTime());
+                    }
+                }
                 break;
 
             case Sensor.TYPE_GRAVITY:
                 // Gravity processing obtained from acceleration
-                gravity[0] = sensorEvent.values[0];
-                gravity[1] = sensorEvent.values[1];
-                gravity[2] = sensorEvent.values[2];
+                gravity[0] = values[0];
+                gravity[1] = values[1];
+                gravity[2] = values[2];
                 elevator = pdrProcessing.estimateElevator(gravity, filteredAcc);
                 break;
 
             case Sensor.TYPE_LIGHT:
-                light = sensorEvent.values[0];
+                light = values[0];
                 break;
 
             case Sensor.TYPE_PROXIMITY:
-                proximity = sensorEvent.values[0];
+                proximity = values[0];
                 break;
 
             case Sensor.TYPE_MAGNETIC_FIELD:
                 //Store magnetic field readings
-                magneticField[0] = sensorEvent.values[0];
-                magneticField[1] = sensorEvent.values[1];
-                magneticField[2] = sensorEvent.values[2];
+                magneticField[0] = values[0];
+                magneticField[1] = values[1];
+                magneticField[2] = values[2];
+                imuSnapshot.write(ImuSnapshot.MAGNETIC_FIELD, magneticField, 3);
                 break;
 
             case Sensor.TYPE_ROTATION_VECTOR:
-                // Save values
-                this.rotation = sensorEvent.values.clone();
-                float[] rotationVectorDCM = new float[9];
-                SensorManager.getRotationMatrixFromVector(rotationVectorDCM,this.rotation);
-
-//              Uncomment this code if you wish to ensure that regardless of device orientation the
-//              bearing always points to north.
-//                int axisX;
-//                int axisY;
-//                switch (currentWindowManager.getDefaultDisplay().getRotation()) {
-//                    case Surface.ROTATION_90:
-//                        axisX = SensorManager.AXIS_Y;
-//                        axisY = SensorManager.AXIS_MINUS_X;
-//                        break;
-//
-//                    case Surface.ROTATION_180:
-//                        axisX = SensorManager.AXIS_MINUS_X;
-//                        axisY = SensorManager.AXIS_MINUS_Y;
-//                        break;
-//
-//                    case Surface.ROTATION_270:
-//                        axisX = SensorManager.AXIS_MINUS_Y;
-//                        axisY = SensorManager.AXIS_X;
-//                        break;
-//                    case Surface.ROTATION_0:
-//                    default:
-//                        axisX = SensorManager.AXIS_X;
-//                        axisY = SensorManager.AXIS_Y;
-//                        break;
-//                }
-//                float[] remappedMatrix = new float[9];
-//                SensorManager.remapCoordinateSystem(rotationVectorDCM, axisX, axisY, remappedMatrix);
-//                SensorManager.getOrientation(remappedMatrix, this.orientation);
-
-                SensorManager.getOrientation(rotationVectorDCM, this.orientation);
-                notifySensorUpdate(SensorFusionUpdates.update_type.ORIENTATION_UPDATE);
-                this.turnDetector.ProcessOrientationData(this.orientation[0]);
+                // Heading straight from the quaternion, notifying the observers once the last
+                // notification has been taken
+                boolean notifyOrientation = orientationStage.update(values, length);
+                imuSnapshot.write(ImuSnapshot.ROTATION_VECTOR, orientationStage.getQuaternion(), 4);
+                if (notifyOrientation) {
+                    notifySensorUpdate(SensorFusionUpdates.update_type.ORIENTATION_UPDATE);
+                }
+                this.turnDetector.ProcessOrientationData(orientationStage.getAzimuth());
                 break;
 
             case Sensor.TYPE_STEP_DETECTOR:
-                //Store time of step
-                long stepTime = android.os.SystemClock.uptimeMillis() - bootTime;
-                float[] newCords = this.pdrProcessing.updatePdr(stepTime, this.accelMagnitude, this.orientation[0]);
-                float step_length = this.pdrProcessing.getStepLength();
-
-                // PDR to display
-                notifySensorUpdate(SensorFusionUpdates.update_type.PDR_UPDATE);
-                if (saveRecording) {
-                    //update fusion processing algorithm with new PDR
-                    if (fusionAlgorithmSelection) {
-                        this.extendedKalmanFilter.predict(this.orientation[0], step_length, passAverageStepLength(),
-                                (android.os.SystemClock.uptimeMillis()),
-                                this.turnDetector.onStepDetected(this.orientation[0]));
-                    }
-                    this.updateFusionPDR();
-                    // Store the PDR coordinates for plotting the trajectory
-                    this.pathView.drawTrajectory(newCords);
+                stepAgreement.onHardwareStep(timestamp);
+                if (++sensorSteps % STEP_AGREEMENT_LOG_INTERVAL == 0) {
+                    Log.d("STEP_DETECTOR", "Software steps against the sensor: " + stepAgreement);
                 }
-                this.accelMagnitude.clear();
-                if (saveRecording) {
-                    stepCounter++;
-                    trajectory.addPdrData(Traj.Pdr_Sample.newBuilder()
-                            .setRelativeTimestamp(android.os.SystemClock.uptimeMillis() - bootTime)
-                            .setX(newCords[0]).setY(newCords[1]));
+                if (!softwareSteps) {
+                    processStep(timestamp);
                 }
                 break;
         }
     }
 
+    /**
+     * Whether the software step detector should update the PDR, when it is enabled in the settings
+     * or the device has no step detector sensor.
+     *
+     * @return True if the software steps are used, false if the sensor steps are.
+     */
+    private boolean useSoftwareSteps() {
+        return this.settings.getBoolean("software_step_enable", false) || stepDetectionSensor.sensor == null;
+    }
+
+    /**
+     * Updates the PDR with a step, from the step detector sensor or the software step detector,
+     * notifies the observers and saves the new position in the trajectory when recording.
+     *
+     * @param stepNanos The time of the step, from the event of the step detector sensor or the peak
+     *                  found by the software step detector, in nanoseconds in the clock of the sensor events.
+     */
+    private void processStep(long stepNanos) {
+        //Store time of step, on the clock of the fixes rather than the time it is processed
+        long stepUptime = toUptimeMillis(stepNanos);
+        long stepTime = stepUptime - bootTime;
+        float[] newCords = this.pdrProcessing.updatePdr(stepTime, this.accelMagnitude, orientationStage.getAzimuth());
+
+        // PDR to display
+        notifySensorUpdate(SensorFusionUpdates.update_type.PDR_UPDATE);
+        if (saveRecording) {
+            //update fusion processing algorithm with new PDR
+            this.updateFusionPDR(stepUptime);
+            // Store the PDR coordinates for plotting the trajectory, on the main thread drawing them
+            mainHandler.post(() -> this.pathView.drawTrajectory(newCords));
+        }
+        this.accelMagnitude.clear();
+        if (saveRecording) {
+            stepCounter++;
+            synchronized (trajectoryLock) {
+                trajectory.addPdrData(Traj.Pdr_Sample.newBuilder()
+                        .setRelativeTimestamp(stepTime)
+                        .setX(newCords[0]).setY(newCords[1]));
+            }
+        }
+    }
+
+    /**
+     * Converts the time of a sensor event to the clock of {@link android.os.SystemClock#uptimeMillis()},
+     * which the fixes passed to the fusion are timed with.
+     *
+     * @param eventNanos The time of the event, in nanoseconds since boot as
+     *                   {@link android.os.SystemClock#elapsedRealtimeNanos()}.
+     * @return The time of the event in milliseconds, on the uptime clock.
+     */
+    private static long toUptimeMillis(long eventNanos) {
+        long ageMillis = (android.os.SystemClock.elapsedRealtimeNanos() - eventNanos) / 1000000;
+        return android.os.SystemClock.uptimeMillis() - Math.max(0, ageMillis);
+    }
+
     /**
      * {@inheritDoc}
      *
@@ -454,15 +566,17 @@ public class SensorFusion implements SensorEventListener, Observer {
                 float speed = (float) location.getSpeed();
                 String provider = location.getProvider();
                 if(saveRecording) {
-                    trajectory.addGnssData(Traj.GNSS_Sample.newBuilder()
-                            .setAccuracy(GNSS_accuracy)
-                            .setAltitude((float)altitude)
-                            .setLatitude((float)latitude)
-                            .setLongitude((float)longitude)
-                            .setSpeed(speed)
-                            .setProvider(provider)
-                            .setRelativeTimestamp(System.currentTimeMillis()-absoluteStartTime));
-                    updateFusionGNSS(latitude, longitude ,altitude);
+                    synchronized (trajectoryLock) {
+                        trajectory.addGnssData(Traj.GNSS_Sample.newBuilder()
+                                .setAccuracy(GNSS_accuracy)
+                                .setAltitude((float)altitude)
+                                .setLatitude((float)latitude)
+                                .setLongitude((float)longitude)
+                                .setSpeed(speed)
+                                .setProvider(provider)
+                                .setRelativeTimestamp(System.currentTimeMillis()-absoluteStartTime));
+                    }
+                    updateFusionGNSS(latitude, longitude ,altitude, GNSS_accuracy);
                     notifySensorUpdate(SensorFusionUpdates.update_type.GNSS_UPDATE);
                 }
             }
@@ -476,12 +590,14 @@ public class SensorFusion implements SensorEventListener, Observer {
      */
     public void addTagFusionTrajectory(LatLng fusion_position){
         if(saveRecording) {
-            trajectory.addGnssData(Traj.GNSS_Sample.newBuilder()
-                    .setAltitude(getElevation())
-                    .setLatitude((float) fusion_position.latitude)
-                    .setLongitude((float) fusion_position.longitude)
-                    .setProvider("fusion")
-                    .setRelativeTimestamp(System.currentTimeMillis()-absoluteStartTime));
+            synchronized (trajectoryLock) {
+                trajectory.addGnssData(Traj.GNSS_Sample.newBuilder()
+                        .setAltitude(getElevation())
+                        .setLatitude((float) fusion_position.latitude)
+                        .setLongitude((float) fusion_position.longitude)
+                        .setProvider("fusion")
+                        .setRelativeTimestamp(System.currentTimeMillis()-absoluteStartTime));
+            }
 
             Toast.makeText(context, "Tag Successfully added.", Toast.LENGTH_SHORT).show();
         }
@@ -490,7 +606,8 @@ public class SensorFusion implements SensorEventListener, Observer {
     /**
      * {@inheritDoc}
      *
-     * Receives updates from {@link ServerCommunications}.
+     * Receives updates from {@link ServerCommunications}, the WiFi positioning response followed by
+     * the uptime in milliseconds of the scan it was computed from.
      *
      * @see ServerCommunications for more information abour notify Observables.
      */
@@ -499,10 +616,13 @@ public class SensorFusion implements SensorEventListener, Observer {
         //update fusion processing with new wifi fingerprint
         if (saveRecording) {
             if (responseList == null || responseList[0] == null){
-                updateFusionWifi(null);
+                updateFusionWifi(null, 0);
+                return;
             }
             JSONObject wifiResponse = (JSONObject) responseList[0];
-            updateFusionWifi(wifiResponse);
+            long scanTime = responseList.length > 1 && responseList[1] instanceof Long
+                    ? (Long) responseList[1] : android.os.SystemClock.uptimeMillis();
+            updateFusionWifi(wifiResponse, scanTime);
         }
     }
 
@@ -525,14 +645,17 @@ public class SensorFusion implements SensorEventListener, Observer {
                         .setRelativeTimestamp(android.os.SystemClock.uptimeMillis() - bootTime)
                         .setMac(data.getBssid()).setRssi(data.getLevel()));
             }
-            this.trajectory.addWifiData(wifiData);
+            synchronized (trajectoryLock) {
+                this.trajectory.addWifiData(wifiData);
+            }
 
             //Construct the wifi fingerprint to send to the server
             try {
                 JSONObject jsonFingerprint = JsonConverter.toJson(this.wifiList);
                 String jsonString = jsonFingerprint.toString();
                 Log.d("WIFI JSON: ", jsonString);
-                sendWifiJsonToCloud(jsonFingerprint);
+                // The server responds seconds later, send the time of the scan with the request for the fusion
+                sendWifiJsonToCloud(jsonFingerprint, android.os.SystemClock.uptimeMillis());
             } catch (JSONException e) {
                 e.printStackTrace();
             }
@@ -633,14 +756,15 @@ public class SensorFusion implements SensorEventListener, Observer {
 
     /**
      * Sets the flag indicating whether there is no coverage available.
-     * If the fusion algorithm selection is enabled, it adjusts the usage of WiFi in the extended Kalman filter accordingly.
+     * The fusion algorithm is told, so that it can choose between the WiFi and GNSS fixes accordingly.
      *
      * @param noCoverage True if there is no coverage, false otherwise.
      */
     public void setNoCoverage(boolean noCoverage){
         this.noCoverage = noCoverage;
-        if (this.fusionAlgorithmSelection){
-            this.extendedKalmanFilter.setUsingWifi(!noCoverage);
+        FusionEngine engine = this.fusionEngine;
+        if (engine != null){
+            engine.setWifiCoverage(!noCoverage);
         }
     }
 
@@ -685,12 +809,20 @@ public class SensorFusion implements SensorEventListener, Observer {
 
     /**
      * Getter function for device orientation.
-     * Passes the orientation variable
      *
      * @return orientation of device.
      */
     public float passOrientation(){
-        return orientation[0];
+        return orientationStage.getAzimuth();
+    }
+
+    /**
+     * Takes the pending orientation update, so that observers are notified of the next one. Called by
+     * the observer handling {@link SensorFusionUpdates#onOrientationUpdate()} before it reads the
+     * orientation.
+     */
+    public void takeOrientationUpdate(){
+        orientationStage.takeNotification();
     }
 
     /**
@@ -747,6 +879,8 @@ public class SensorFusion implements SensorEventListener, Observer {
      */
     public void registerForSensorUpdates(SensorFusionUpdates observer) {
         recordingUpdates.add(observer);
+        // Let the next orientation update reach the new observer
+        orientationStage.takeNotification();
     }
 
     /**
@@ -795,6 +929,54 @@ public class SensorFusion implements SensorEventListener, Observer {
         }
     }
 
+    /**
+     * A helper method used to notify all observers of the candidate positions of a multimodal fused
+     * estimate, alongside the single position sent by {@link #notifyFusedUpdate(LatLng)}.
+     *
+     * @param hypotheses The candidate positions sorted by decreasing weight.
+     */
+    public void notifyFusedHypotheses(List<PositionHypothesis> hypotheses){
+        for (SensorFusionUpdates observer : recordingUpdates) {
+            observer.onFusedHypotheses(hypotheses);
+        }
+    }
+
+    /**
+     * A helper method used to notify all observers of the fused position smoothed with the
+     * measurements of the following steps. It lags a few steps behind {@link #notifyFusedUpdate(LatLng)}.
+     *
+     * @param smoothed_pos The smoothed position.
+     */
+    public void notifySmoothedUpdate(LatLng smoothed_pos){
+        for (SensorFusionUpdates observer : recordingUpdates) {
+            observer.onSmoothedUpdate(smoothed_pos);
+        }
+    }
+
+    /**
+     * Stores the fused trajectory of the finished recording, smoothed over the whole recording, in the
+     * trajectory object as GNSS samples with the provider "fusion_smoothed", one per step, and passes
+     * the smoothed positions to the observers. Called on the thread of the fusion engine.
+     *
+     * @param recorded The trajectory object of the finished recording.
+     * @param smoothed The smoothed position and uptime in milliseconds of each step.
+     */
+    private void addSmoothedTrajectory(Traj.Trajectory.Builder recorded, SmoothedTrajectory smoothed){
+        synchronized (trajectoryLock) {
+            for (int i = 0; i < smoothed.size(); i++) {
+                LatLng position = smoothed.getPosition(i);
+                recorded.addGnssData(Traj.GNSS_Sample.newBuilder()
+                        .setLatitude((float) position.latitude)
+                        .setLongitude((float) position.longitude)
+                        .setProvider("fusion_smoothed")
+                        .setRelativeTimestamp(smoothed.getStepTime(i) - bootTime));
+            }
+        }
+        for (int i = 0; i < smoothed.size(); i++) {
+            notifySmoothedUpdate(smoothed.getPosition(i));
+        }
+    }
+
     /**
      * @deprecated ServerCommunications is now a singleton, resolving the three way dependency as
      * fragments had to register through sensor fusion. This was counterintuitive and the singleton
@@ -822,6 +1004,15 @@ public class SensorFusion implements SensorEventListener, Observer {
         return this.elevation;
     }
 
+    /**
+     * Get the vertical velocity estimated by the PDR class from the barometer.
+     *
+     * @return  float of the vertical velocity in meters per second, positive upwards.
+     */
+    public float getVerticalVelocity() {
+        return pdrProcessing.getVerticalVelocity();
+    }
+
     /**
      * Get an estimate by the PDR class whether it estimates the user is currently taking an elevator.
      *
@@ -867,7 +1058,8 @@ public class SensorFusion implements SensorEventListener, Observer {
     //region Start/Stop
 
     /**
-     * Registers all device listeners and enables updates with the specified sampling rate.
+     * Registers all device listeners, enables updates with the specified sampling rate and starts the
+     * processing thread if it was stopped.
      *
      * Should be called from {@link MainActivity} when resuming the application. Sampling rate is in
      * microseconds, IMU needs 100Hz, rest 1Hz
@@ -889,10 +1081,11 @@ public class SensorFusion implements SensorEventListener, Observer {
         rotationSensor.sensorManager.registerListener(this, rotationSensor.sensor, (int) 1e6);
         wifiProcessor.startListening();
         gnssProcessor.startLocationUpdates();
+        sensorIngestion.start();
     }
 
     /**
-     * Un-registers all device listeners and pauses data collection.
+     * Un-registers all device listeners, stops the processing thread and pauses data collection.
      *
      * Should be called from {@link MainActivity} when pausing the application.
      *
@@ -922,6 +1115,8 @@ public class SensorFusion implements SensorEventListener, Observer {
             }
             // Stop receiving location updates
             this.gnssProcessor.stopUpdating();
+            // Let the processing thread finish the events already received and stop
+            this.sensorIngestion.shutdown();
         }
     }
 
@@ -937,22 +1132,31 @@ public class SensorFusion implements SensorEventListener, Observer {
         // Acquire wakelock so the phone will record with a locked screen. Timeout after 31 minutes.
         this.wakeLock.acquire(31*60*1000L /*31 minutes*/);
         this.saveRecording = true;
-        this.stepCounter = 0;
         this.absoluteStartTime = System.currentTimeMillis();
         this.bootTime = android.os.SystemClock.uptimeMillis();
         this.turnDetector.startMonitoring();
-        // Protobuf trajectory class for sending sensor data to restful API
-        this.trajectory = Traj.Trajectory.newBuilder()
-                .setAndroidVersion(Build.VERSION.RELEASE)
-                .setStartTimestamp(absoluteStartTime)
-                .setAccelerometerInfo(createInfoBuilder(accelerometerSensor))
-                .setGyroscopeInfo(createInfoBuilder(gyroscopeSensor))
-                .setMagnetometerInfo(createInfoBuilder(magnetometerSensor))
-                .setBarometerInfo(createInfoBuilder(barometerSensor))
-                .setLightSensorInfo(createInfoBuilder(lightSensor));
+        synchronized (trajectoryLock) {
+            // Protobuf trajectory class for sending sensor data to restful API
+            this.trajectory = Traj.Trajectory.newBuilder()
+                    .setAndroidVersion(Build.VERSION.RELEASE)
+                    .setStartTimestamp(absoluteStartTime)
+                    .setAccelerometerInfo(createInfoBuilder(accelerometerSensor))
+                    .setGyroscopeInfo(createInfoBuilder(gyroscopeSensor))
+                    .setMagnetometerInfo(createInfoBuilder(magnetometerSensor))
+                    .setBarometerInfo(createInfoBuilder(barometerSensor))
+                    .setLightSensorInfo(createInfoBuilder(lightSensor));
+        }
         this.storeTrajectoryTimer = new Timer();
         this.storeTrajectoryTimer.scheduleAtFixedRate(new storeDataInTrajectory(), 0, TIME_CONST);
-        this.pdrProcessing.resetPDR();
+        // The step state is written by the processing thread, so it is reset there between two events
+        final boolean useSoftwareSteps = useSoftwareSteps();
+        this.sensorIngestion.post(() -> {
+            this.pdrProcessing.resetPDR();
+            this.softwareSteps = useSoftwareSteps;
+            this.stepAgreement.reset();
+            this.sensorSteps = 0;
+            this.stepCounter = 0;
+        });
         if(settings.getBoolean("overwrite_constants", false)) {
             this.filter_coefficient = Float.parseFloat(settings.getString("accel_filter", "0.96"));
         }
@@ -974,8 +1178,20 @@ public class SensorFusion implements SensorEventListener, Observer {
         if(this.saveRecording) {
             this.saveRecording = false;
             this.turnDetector.stopMonitoring();
-            if (this.extendedKalmanFilter != null){
-                this.extendedKalmanFilter.stopFusion();
+            FusionEngine engine = this.fusionEngine;
+            if (engine != null){
+                // The whole recording is smoothed by the engine without blocking, and added to the
+                // trajectory of this recording once done, before it is sent
+                Traj.Trajectory.Builder recorded;
+                synchronized (trajectoryLock) {
+                    recorded = this.trajectory;
+                }
+                this.recordingFinished = engine.finish().thenAccept(smoothed -> {
+                    if (smoothed != null) {
+                        addSmoothedTrajectory(recorded, smoothed);
+                    }
+                });
+                logLatencies(engine);
             }
             storeTrajectoryTimer.cancel();
             sensorFusion.setCurrentFloor(0);
@@ -990,13 +1206,30 @@ public class SensorFusion implements SensorEventListener, Observer {
     //region Trajectory object
 
     /**
-     * Send the trajectory object to servers.
+     * Send the trajectory object to servers, once the smoothing of the recording started by
+     * {@link #stopRecording()} has been added to it. Returns without waiting, the trajectory being
+     * sent from the main thread.
      *
      * @see ServerCommunications for sending and receiving data via HTTPS.
      */
     public void sendTrajectoryToCloud() {
+        recordingFinished.whenComplete((ignored, error) -> {
+            if (error != null) {
+                Log.e("SensorFusion", "Smoothed trajectory not added", error);
+            }
+            mainHandler.post(this::sendRecordedTrajectory);
+        });
+    }
+
+    /**
+     * Builds the trajectory object and sends it to the servers.
+     */
+    private void sendRecordedTrajectory() {
         // Build object
-        Traj.Trajectory sentTrajectory = trajectory.build();
+        Traj.Trajectory sentTrajectory;
+        synchronized (trajectoryLock) {
+            sentTrajectory = trajectory.build();
+        }
         // Pass object to communications object
         this.serverCommunications.sendTrajectory(sentTrajectory);
     }
@@ -1004,11 +1237,13 @@ public class SensorFusion implements SensorEventListener, Observer {
     /**
      * Send the wifi positioning fingerprint to the openpositioning server.
      *
+     * @param fingerprint The JSON fingerprint of the scan.
+     * @param scanTime    The uptime in milliseconds of the scan, passed back with the response.
      * @see ServerCommunications for sending and receiving data via HTTPS.
      */
-    public void sendWifiJsonToCloud(JSONObject fingerprint) {
+    public void sendWifiJsonToCloud(JSONObject fingerprint, long scanTime) {
         // Pass object to communications object
-        this.serverCommunications.sendWifi(fingerprint);
+        this.serverCommunications.sendWifi(fingerprint, scanTime);
     }
 
     /**
@@ -1037,40 +1272,48 @@ public class SensorFusion implements SensorEventListener, Observer {
      * destroyed in {@link SensorFusion#stopRecording()}.
      */
     private class storeDataInTrajectory extends TimerTask {
+        // Sample of the IMU values, reused by every run
+        private final float[] imuSample = new float[ImuSnapshot.SIZE];
+
         public void run() {
-            // Store IMU and magnetometer data in Trajectory class
-            trajectory.addImuData(Traj.Motion_Sample.newBuilder()
-                    .setRelativeTimestamp(android.os.SystemClock.uptimeMillis()-bootTime)
-                    .setAccX(acceleration[0])
-                    .setAccY(acceleration[1])
-                    .setAccZ(acceleration[2])
-                    .setGyrX(angularVelocity[0])
-                    .setGyrY(angularVelocity[1])
-                    .setGyrZ(angularVelocity[2])
-                    .setGyrZ(angularVelocity[2])
-                    .setRotationVectorX(rotation[0])
-                    .setRotationVectorY(rotation[1])
-                    .setRotationVectorZ(rotation[2])
-                    .setRotationVectorW(rotation[3])
-                    .setStepCount(stepCounter))
-                    .addPositionData(Traj.Position_Sample.newBuilder()
-                            .setMagX(magneticField[0])
-                            .setMagY(magneticField[1])
-                            .setMagZ(magneticField[2])
-                            .setRelativeTimestamp(android.os.SystemClock.uptimeMillis()-bootTime));
+            // Consistent IMU and magnetometer values, without blocking the sensor processing thread
+            imuSnapshot.read(imuSample);
+            synchronized (trajectoryLock) {
+                // Store IMU and magnetometer data in Trajectory class
+                trajectory.addImuData(Traj.Motion_Sample.newBuilder()
+                        .setRelativeTimestamp(android.os.SystemClock.uptimeMillis()-bootTime)
+                        .setAccX(imuSample[ImuSnapshot.ACCELERATION])
+                        .setAccY(imuSample[ImuSnapshot.ACCELERATION + 1])
+                        .setAccZ(imuSample[ImuSnapshot.ACCELERATION + 2])
+                        .setGyrX(imuSample[ImuSnapshot.ANGULAR_VELOCITY])
+                        .setGyrY(imuSample[ImuSnapshot.ANGULAR_VELOCITY + 1])
+                        .setGyrZ(imuSample[ImuSnapshot.ANGULAR_VELOCITY + 2])
+                        .setRotationVectorX(imuSample[ImuSnapshot.ROTATION_VECTOR])
+                        .setRotationVectorY(imuSample[ImuSnapshot.ROTATION_VECTOR + 1])
+                        .setRotationVectorZ(imuSample[ImuSnapshot.ROTATION_VECTOR + 2])
+                        .setRotationVectorW(imuSample[ImuSnapshot.ROTATION_VECTOR + 3])
+                        .setStepCount(stepCounter))
+                        .addPositionData(Traj.Position_Sample.newBuilder()
+                                .setMagX(imuSample[ImuSnapshot.MAGNETIC_FIELD])
+                                .setMagY(imuSample[ImuSnapshot.MAGNETIC_FIELD + 1])
+                                .setMagZ(imuSample[ImuSnapshot.MAGNETIC_FIELD + 2])
+                                .setRelativeTimestamp(android.os.SystemClock.uptimeMillis()-bootTime));
+            }
 
             // Divide timer with a counter for storing data every 1 second
             if (counter == 99) {
                 counter = 0;
                 // Store pressure and light data
                 if (barometerSensor.sensor != null) {
-                    trajectory.addPressureData(Traj.Pressure_Sample.newBuilder()
-                                    .setPressure(pressure)
-                                    .setRelativeTimestamp(android.os.SystemClock.uptimeMillis() - bootTime))
-                            .addLightData(Traj.Light_Sample.newBuilder()
-                                    .setLight(light)
-                                    .setRelativeTimestamp(android.os.SystemClock.uptimeMillis() - bootTime)
-                                    .build());
+                    synchronized (trajectoryLock) {
+                        trajectory.addPressureData(Traj.Pressure_Sample.newBuilder()
+                                        .setPressure(pressure)
+                                        .setRelativeTimestamp(android.os.SystemClock.uptimeMillis() - bootTime))
+                                .addLightData(Traj.Light_Sample.newBuilder()
+                                        .setLight(light)
+                                        .setRelativeTimestamp(android.os.SystemClock.uptimeMillis() - bootTime)
+                                        .build());
+                    }
                 }
 
                 // Divide the timer for storing AP data every 5 seconds
@@ -1078,10 +1321,12 @@ public class SensorFusion implements SensorEventListener, Observer {
                     secondCounter = 0;
                     //Current Wifi Object
                     Wifi currentWifi = wifiProcessor.getCurrentWifiData();
-                    trajectory.addApsData(Traj.AP_Data.newBuilder()
-                            .setMac(currentWifi.getBssid())
-                            .setSsid(currentWifi.getSsid())
-                            .setFrequency(currentWifi.getFrequency()));
+                    synchronized (trajectoryLock) {
+                        trajectory.addApsData(Traj.AP_Data.newBuilder()
+                                .setMac(currentWifi.getBssid())
+                                .setSsid(currentWifi.getSsid())
+                                .setFrequency(currentWifi.getFrequency()));
+                    }
                 }
                 else {
                     secondCounter++;
@@ -1100,25 +1345,24 @@ public class SensorFusion implements SensorEventListener, Observer {
 
     /**
      * Updates the fusion process with Pedestrian Dead Reckoning (PDR) data.
-     * Calculates new PDR values and elevation, then calls the appropriate fusion algorithm.
-     * Stores the resulting position and timestamps it.
+     * Calculates new PDR values and elevation, then passes the step with its heading, length and
+     * detected movement to the fusion algorithm.
+     *
+     * @param stepTime The time of the step, from {@link android.os.SystemClock#uptimeMillis()}.
      */
-    public void updateFusionPDR(){
+    public void updateFusionPDR(long stepTime){
 
         // calculate new PDR, save as global variable
         double[] pdrValues = getCurrentPDRCalc();
         float elevationVal = getElevation();
 
-        // local PDR LatLn point
-        LatLng positionPDR = CoordinateTransform.enuToGeodetic(pdrValues[0], pdrValues[1], elevationVal, startRef[0], startRef[1], ecefRefCoords);
-        double latitude = positionPDR.latitude;
-        double longitude = positionPDR.longitude;
-
-        // call fusion algorithm arg(double, double)
-        if (fusionAlgorithmSelection) {
-            this.extendedKalmanFilter.onStepDetected(pdrValues[0], pdrValues[1], elevationVal, (android.os.SystemClock.uptimeMillis()));
-        } else {
-            this.particleFilter.update(latitude, longitude);
+        // call fusion algorithm
+        FusionEngine engine = this.fusionEngine;
+        if (engine != null) {
+            float azimuth = orientationStage.getAzimuth();
+            engine.onStep(azimuth, this.pdrProcessing.getStepLength(), passAverageStepLength(),
+                    pdrValues[0], pdrValues[1], elevationVal, this.turnDetector.onStepDetected(azimuth),
+                    stepTime);
         }
     }
 
@@ -1129,8 +1373,9 @@ public class SensorFusion implements SensorEventListener, Observer {
      * If the server response failed notify with null to ensure no coverage is detected.
      *
      * @param wifiResponse The JSON object containing WiFi positioning data.
+     * @param scanTime The uptime in milliseconds of the scan the response was computed from.
      */
-    public void updateFusionWifi(JSONObject wifiResponse){
+    public void updateFusionWifi(JSONObject wifiResponse, long scanTime){
 
         try {
             if (wifiResponse == null){
@@ -1149,15 +1394,10 @@ public class SensorFusion implements SensorEventListener, Observer {
             // display the position on UI
             notifySensorUpdate(SensorFusionUpdates.update_type.WIFI_UPDATE);
 
-            // call fusion algorithm
-            if (fusionAlgorithmSelection){
-                if(!noCoverage) {
-                    this.extendedKalmanFilter.onOpportunisticUpdate(
-                            CoordinateTransform.geodeticToEnu(latitude, longitude, getElevation(), startRef[0], startRef[1], startRef[2]), (android.os.SystemClock.uptimeMillis())
-                    );
-                }
-            } else {
-                this.particleFilter.update(latitude, longitude);
+            // call fusion algorithm, timestamping the fix with its scan time so it is applied where the user was at the time
+            FusionEngine engine = this.fusionEngine;
+            if (engine != null) {
+                engine.onWifiFix(latitude, longitude, getElevation(), scanTime);
             }
 
         } catch (JSONException e) {
@@ -1173,33 +1413,148 @@ public class SensorFusion implements SensorEventListener, Observer {
      * @param latitude  The latitude from GNSS data.
      * @param longitude The longitude from GNSS data.
      * @param altitude  The altitude from GNSS data.
+     * @param accuracy  The horizontal accuracy reported with the GNSS data, in meters.
      */
-    public void updateFusionGNSS(double latitude,double longitude, double altitude){
+    public void updateFusionGNSS(double latitude,double longitude, double altitude, float accuracy){
 
-        // call fusion algorithm
-        if (fusionAlgorithmSelection) {
-            if (noCoverage) {
-                this.extendedKalmanFilter.onOpportunisticUpdate(
-                        CoordinateTransform.geodeticToEnu(latitude, longitude, altitude, startRef[0], startRef[1], startRef[2]), (android.os.SystemClock.uptimeMillis())
-                );
-            }
-        } else {
-            particleFilter.update(latitude, longitude);
+        // call fusion algorithm, weighing the fix with its reported accuracy
+        FusionEngine engine = this.fusionEngine;
+        if (engine != null) {
+            engine.onGnssFix(latitude, longitude, altitude, accuracy, android.os.SystemClock.uptimeMillis());
+        }
+    }
+
+    /**
+     * Updates the walls the fusion algorithm is constrained to when the user changes building or floor.
+     * Wall maps are read from the assets on a background thread the first time a floor is visited and
+     * cached afterwards. A map is only applied if the user is still on its floor once it is loaded.
+     * Has no effect when the fusion algorithm does not use walls, such as the Extended Kalman Filter.
+     *
+     * @param building The building the user is in.
+     * @param floor    The floor the user is on.
+     */
+    public void updateFloorPlanConstraints(Buildings building, Floors floor) {
+        this.currentBuilding = building;
+        this.currentConstraintFloor = floor;
+        FusionEngine engine = this.fusionEngine;
+        if (engine == null || !engine.usesWallMap() || building == null) return;
+
+        String wallMapAsset = building.getWallMapAsset(floor);
+        if (wallMapAsset == null) {
+            engine.setWallMap(null, null);
+            return;
         }
+        wallMapLoader.execute(() -> {
+            if (!wallMapCache.containsKey(wallMapAsset)) {
+                wallMapCache.put(wallMapAsset, WallMap.loadAsset(context.getAssets(), wallMapAsset));
+            }
+            // Drop the map if the user changed floor or fusion algorithm while it was loading
+            if (building != currentBuilding || floor != currentConstraintFloor || engine != fusionEngine) {
+                return;
+            }
+            // Wall maps are relative to the south west corner of the building bounds
+            engine.setWallMap(wallMapCache.get(wallMapAsset), building.getBuildingBounds().southwest);
+        });
     }
 
     /**
      * Initializes the fusion algorithm based on user settings.
-     * Creates either an Extended Kalman Filter or a Particle Filter instance.
+     * Creates an Extended Kalman Filter, an Unscented Kalman Filter, a high rate Kalman Filter or a
+     * Particle Filter instance, and switches between them if the setting is changed during the recording.
      */
     public void initialiseFusionAlgorithm() {
         // Picks the Fusion Algorithm to run
-        fusionAlgorithmSelection = !(this.settings.getBoolean("fusion_enable", false));
         this.noCoverage = true;
-        if (fusionAlgorithmSelection) {
-            this.extendedKalmanFilter = new ExtendedKalmanFilter();
-        }else{
-            this.particleFilter = new ParticleFilter();
+        this.fusionEngine = createFusionEngine(getSelectedFusionEngine());
+        if (this.fusionSettingListener == null) {
+            this.fusionSettingListener = (preferences, key) -> {
+                if (("fusion_enable".equals(key) || "unscented_enable".equals(key) || "high_rate_enable".equals(key))
+                        && saveRecording) {
+                    switchFusionEngine();
+                }
+            };
+            this.settings.registerOnSharedPreferenceChangeListener(this.fusionSettingListener);
+        }
+    }
+
+    /**
+     * Reads the fusion algorithm selected in the settings. The high rate Kalman Filter or else the
+     * Unscented Kalman Filter replaces the Extended Kalman Filter when enabled, the Particle Filter
+     * taking precedence over all of them.
+     *
+     * @return The class of the selected fusion algorithm.
+     */
+    private Class<? extends FusionEngine> getSelectedFusionEngine() {
+        if (this.settings.getBoolean("fusion_enable", false)) {
+            return ParticleFilter.class;
+        }
+        if (this.settings.getBoolean("high_rate_enable", false)) {
+            return HighRateKalmanFilter.class;
+        }
+        if (this.settings.getBoolean("unscented_enable", false)) {
+            return UnscentedKalmanFilter.class;
+        }
+        return ExtendedKalmanFilter.class;
+    }
+
+    /**
+     * Creates a fusion algorithm, told whether WiFi fixes are available.
+     *
+     * @param type The class of the fusion algorithm.
+     * @return The new fusion algorithm.
+     */
+    private FusionEngine createFusionEngine(Class<? extends FusionEngine> type) {
+        FusionEngine engine;
+        if (type == ParticleFilter.class) {
+            ForkJoinPool pool = this.settings.getBoolean("parallel_particles_enable", false)
+                    ? ForkJoinPool.commonPool() : null;
+            engine = new ParticleFilter(true, pool);
+        } else if (type == HighRateKalmanFilter.class) {
+            engine = new HighRateKalmanFilter();
+        } else if (type == UnscentedKalmanFilter.class) {
+            engine = new UnscentedKalmanFilter();
+        } else {
+            engine = new ExtendedKalmanFilter();
+        }
+        engine.setWifiCoverage(!this.noCoverage);
+        return engine;
+    }
+
+    /**
+     * Replaces the fusion algorithm during a recording with the one selected in the settings. The
+     * estimate of the running algorithm is handed over to the new one, which then receives the
+     * following steps and fixes, and the running algorithm is stopped with its latencies logged.
+     * Inputs received while the estimate is handed over go to the running algorithm only.
+     */
+    public synchronized void switchFusionEngine() {
+        FusionEngine previous = this.fusionEngine;
+        if (previous == null) return;
+        Class<? extends FusionEngine> selected = getSelectedFusionEngine();
+        if (previous.getClass() == selected) return;
+
+        FusionState state = previous.snapshot();
+        FusionEngine next = createFusionEngine(selected);
+        if (state != null) {
+            next.restore(state);
+        }
+        this.fusionEngine = next;
+        updateFloorPlanConstraints(this.currentBuilding, this.currentConstraintFloor);
+        previous.stop();
+        logLatencies(previous);
+        Log.d("SensorFusion", "Switched fusion algorithm to " + next.getClass().getSimpleName()
+                + (state == null ? " without an estimate" : ""));
+    }
+
+    /**
+     * Logs the percentiles of the processing time of every kind of input of an engine, once it has
+     * been stopped, to compare the engines on the device.
+     *
+     * @param engine The engine stopped.
+     */
+    private static void logLatencies(FusionEngine engine) {
+        for (FusionEngine.Input input : FusionEngine.Input.values()) {
+            Log.d("SensorFusion", engine.getClass().getSimpleName() + " " + input + " latency: "
+                    + engine.getLatencyHistogram(input));
         }
     }
 
@@ -0,0 +1,230 @@
+package com.openpositioning.PositionMe.sensors;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Ingestion stage between the sensor callbacks and the processing of their events.
+ *
+ * The sensor callback only copies the values and timestamp of an event into the
+ * {@link SensorEventRing} of its sensor and returns, so the time spent on the callback thread does not
+ * depend on the processing. A dedicated processing thread reads the rings in timestamp order and
+ * passes each event to an {@link EventProcessor}, parking while the rings are empty. Other consumers,
+ * such as the recording or the display, can read the same rings at their own rates through their
+ * own cursors.
+ *
+ * Only one thread may publish events at a time, which holds for the sensor callbacks of a listener
+ * registered without a handler, all delivered on the main thread. Tasks touching the state of the
+ * processor are posted with {@link #post(Runnable)} and run on the processing thread between events.
+ *
+ * The processing thread is stopped by {@link #shutdown()} while the sensors are not listened to, and
+ * a new one is started by the next {@link #start()}.
+ */
+public class SensorIngestion {
+    /**
+     * Processes the events of the sensors, on the processing thread.
+     */
+    public interface EventProcessor {
+        /**
+         * Processes one event.
+         *
+         * @param sensorType The type of the sensor, from the Sensor.TYPE constants.
+         * @param timestamp The time of the event, in nanoseconds.
+         * @param values The values of the event, reused once this method returns.
+         * @param length The number of values of the event.
+         */
+        void process(int sensorType, long timestamp, float[] values, int length);
+    }
+
+    // Rings and processing cursors indexed by sensor type, null for the types not ingested
+    private final SensorEventRing[] rings;
+    private final SensorEventRing.Cursor[] cursors;
+    // Types ingested, and whether the processing cursor of each holds an event not processed yet
+    private final int[] sensorTypes;
+    private final boolean[] pending;
+    private final EventProcessor processor;
+
+    // Tasks waiting to run on the processing thread
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    // Processing thread and its state, a new thread for every start
+    private final String threadName;
+    private volatile Thread consumerThread;
+    private volatile boolean running;
+    private volatile boolean consumerParked;
+    // Number of events processed, only written by the processing thread
+    private final AtomicLong processedEvents = new AtomicLong();
+
+    /**
+     * Creates a ring per sensor type. The processing thread is started by {@link #start()}.
+     *
+     * @param sensorTypes The types of the sensors to ingest, from the Sensor.TYPE constants.
+     * @param capacity The minimum number of events held per sensor.
+     * @param width The largest number of values of an event.
+     * @param threadName The name of the processing thread.
+     * @param processor The processor called on the processing thread for every event.
+     */
+    public SensorIngestion(int[] sensorTypes, int capacity, int width, String threadName, EventProcessor processor) {
+        int maxType = 0;
+        for (int type : sensorTypes) {
+            if (type < 0) {
+                throw new IllegalArgumentException("Sensor types must not be negative");
+            }
+            maxType = Math.max(maxType, type);
+        }
+        this.rings = new SensorEventRing[maxType + 1];
+        this.cursors = new SensorEventRing.Cursor[maxType + 1];
+        for (int type : sensorTypes) {
+            rings[type] = new SensorEventRing(capacity, width);
+            cursors[type] = rings[type].newCursor();
+        }
+        this.sensorTypes = sensorTypes.clone();
+        this.pending = new boolean[maxType + 1];
+        this.processor = processor;
+        this.threadName = threadName;
+    }
+
+    /**
+     * Starts the processing thread, if it is not running. A thread stopped by {@link #shutdown()} is
+     * first left to finish the events it was processing, so only one thread processes at a time.
+     */
+    public synchronized void start() {
+        if (running) return;
+        if (consumerThread != null) {
+            try {
+                consumerThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        running = true;
+        consumerThread = new Thread(this::consume, threadName);
+        consumerThread.start();
+    }
+
+    /**
+     * Stops the processing thread once it has processed the events and tasks already ingested.
+     */
+    public synchronized void shutdown() {
+        if (!running) return;
+        running = false;
+        LockSupport.unpark(consumerThread);
+    }
+
+    /**
+     * Runs a task on the processing thread, after the events already ingested. Tasks posted while
+     * the thread is stopped run once it is started again.
+     *
+     * @param task The task to run.
+     */
+    public synchronized void post(Runnable task) {
+        tasks.add(task);
+        if (running) {
+            LockSupport.unpark(consumerThread);
+        }
+    }
+
+    /**
+     * Copies an event into the ring of its sensor and wakes the processing thread. Events of types
+     * not ingested are ignored.
+     *
+     * @param sensorType The type of the sensor, from the Sensor.TYPE constants.
+     * @param values The values of the event, only read during the call.
+     * @param timestamp The time of the event, in nanoseconds.
+     */
+    public void publish(int sensorType, float[] values, long timestamp) {
+        if (sensorType < 0 || sensorType >= rings.length || rings[sensorType] == null) return;
+        rings[sensorType].publish(values, timestamp);
+        if (consumerParked) {
+            LockSupport.unpark(consumerThread);
+        }
+    }
+
+    /**
+     * Processing thread loop, processes the events of all sensors in timestamp order and the posted
+     * tasks, and parks while there are none.
+     */
+    private void consume() {
+        while (true) {
+            if (processNext()) continue;
+            Runnable task = tasks.poll();
+            if (task != null) {
+                task.run();
+                continue;
+            }
+            if (!running) return;
+            consumerParked = true;
+            if (!hasPending() && tasks.isEmpty() && running) {
+                LockSupport.park(this);
+            }
+            consumerParked = false;
+        }
+    }
+
+    /**
+     * Processes the earliest event among the next event of each sensor.
+     *
+     * @return False if no event was waiting.
+     */
+    boolean processNext() {
+        int earliest = -1;
+        for (int type : sensorTypes) {
+            if (!pending[type]) {
+                pending[type] = cursors[type].advance();
+            }
+            if (pending[type] && (earliest < 0
+                    || cursors[type].getTimestamp() < cursors[earliest].getTimestamp())) {
+                earliest = type;
+            }
+        }
+        if (earliest < 0) return false;
+        SensorEventRing.Cursor cursor = cursors[earliest];
+        pending[earliest] = false;
+        processor.process(earliest, cursor.getTimestamp(), cursor.getValues(), cursor.getLength());
+        processedEvents.lazySet(processedEvents.get() + 1);
+        return true;
+    }
+
+    /**
+     * Whether an event has been ingested and not processed yet.
+     */
+    private boolean hasPending() {
+        for (int type : sensorTypes) {
+            if (pending[type] || cursors[type].hasNext()) return true;
+        }
+        return false;
+    }
+
+    /**
+     * A get method for the ring of a sensor, for consumers reading it through their own cursor.
+     *
+     * @param sensorType The type of the sensor, from the Sensor.TYPE constants.
+     * @return The ring, or null if the type is not ingested.
+     */
+    public SensorEventRing getRing(int sensorType) {
+        if (sensorType < 0 || sensorType >= rings.length) return null;
+        return rings[sensorType];
+    }
+
+    /**
+     * A get method for the number of events processed by the processing thread.
+     *
+     * @return The number of processed events.
+     */
+    public long getProcessedEvents() { return processedEvents.get(); }
+
+    /**
+     * A get method for the number of events overwritten before the processing thread could read them.
+     *
+     * @return The number of skipped events.
+     */
+    public long getSkippedEvents() {
+        long skipped = 0;
+        for (int type : sensorTypes) {
+            skipped += cursors[type].getSkipped();
+        }
+        return skipped;
+    }
+}
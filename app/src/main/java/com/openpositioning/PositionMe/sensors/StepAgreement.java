@@ -0,0 +1,221 @@
+package com.openpositioning.PositionMe.sensors;
+
+import com.openpositioning.PositionMe.FusionAlgorithms.LatencyHistogram;
+
+import java.util.Locale;
+
+/**
+ * Comparison of the steps of the {@link StepDetector} with the steps of the step detector sensor of
+ * the device, run side by side on the same walk.
+ *
+ * Steps of each detector not matched yet wait in a small queue. A step is matched with the oldest
+ * waiting step of the other detector, and a waiting step with no match within the tolerance is
+ * counted as seen by its detector only. The latency of the sensor is the time of its step minus the
+ * time of the matching software step, positive when the sensor is late, and is recorded in a
+ * {@link LatencyHistogram} when positive.
+ *
+ * Steps must be reported in roughly increasing time, as they are by the sensor processing thread.
+ * The class is not thread safe, apart from the histogram which may be read from any thread.
+ */
+public class StepAgreement {
+    // Largest number of steps of each detector waiting for a match
+    private static final int QUEUE_CAPACITY = 16;
+
+    private final long toleranceNanos;
+    // Waiting steps of each detector, as rings of timestamps
+    private final long[] softwareQueue = new long[QUEUE_CAPACITY];
+    private int softwareHead;
+    private int softwareSize;
+    private final long[] hardwareQueue = new long[QUEUE_CAPACITY];
+    private int hardwareHead;
+    private int hardwareSize;
+
+    // Counts of matched and unmatched steps
+    private long matched;
+    private long softwareOnly;
+    private long hardwareOnly;
+    // Latencies of the sensor behind the software steps, and the number of matches it was ahead
+    private final LatencyHistogram hardwareLatency = new LatencyHistogram();
+    private long hardwareAhead;
+    private long totalLatencyNanos;
+
+    /**
+     * Creates an empty comparison.
+     *
+     * @param toleranceNanos The largest time between two steps of the two detectors counted as the
+     *                       same step, in nanoseconds.
+     */
+    public StepAgreement(long toleranceNanos) {
+        if (toleranceNanos <= 0) {
+            throw new IllegalArgumentException("Tolerance must be greater than 0");
+        }
+        this.toleranceNanos = toleranceNanos;
+    }
+
+    /**
+     * Reports a step of the software detector.
+     *
+     * @param timeNanos The time of the step, in nanoseconds.
+     */
+    public void onSoftwareStep(long timeNanos) {
+        expire(timeNanos);
+        if (hardwareSize > 0) {
+            long hardwareTime = hardwareQueue[hardwareHead];
+            hardwareHead = (hardwareHead + 1) % QUEUE_CAPACITY;
+            hardwareSize--;
+            match(timeNanos, hardwareTime);
+        } else {
+            if (softwareSize == QUEUE_CAPACITY) {
+                softwareHead = (softwareHead + 1) % QUEUE_CAPACITY;
+                softwareSize--;
+                softwareOnly++;
+            }
+            softwareQueue[(softwareHead + softwareSize) % QUEUE_CAPACITY] = timeNanos;
+            softwareSize++;
+        }
+    }
+
+    /**
+     * Reports a step of the step detector sensor.
+     *
+     * @param timeNanos The time of the step, in nanoseconds.
+     */
+    public void onHardwareStep(long timeNanos) {
+        expire(timeNanos);
+        if (softwareSize > 0) {
+            long softwareTime = softwareQueue[softwareHead];
+            softwareHead = (softwareHead + 1) % QUEUE_CAPACITY;
+            softwareSize--;
+            match(softwareTime, timeNanos);
+        } else {
+            if (hardwareSize == QUEUE_CAPACITY) {
+                hardwareHead = (hardwareHead + 1) % QUEUE_CAPACITY;
+                hardwareSize--;
+                hardwareOnly++;
+            }
+            hardwareQueue[(hardwareHead + hardwareSize) % QUEUE_CAPACITY] = timeNanos;
+            hardwareSize++;
+        }
+    }
+
+    /**
+     * Counts the waiting steps older than the tolerance as seen by one detector only.
+     *
+     * @param now The time of the newest step, in nanoseconds.
+     */
+    private void expire(long now) {
+        while (softwareSize > 0 && now - softwareQueue[softwareHead] > toleranceNanos) {
+            softwareHead = (softwareHead + 1) % QUEUE_CAPACITY;
+            softwareSize--;
+            softwareOnly++;
+        }
+        while (hardwareSize > 0 && now - hardwareQueue[hardwareHead] > toleranceNanos) {
+            hardwareHead = (hardwareHead + 1) % QUEUE_CAPACITY;
+            hardwareSize--;
+            hardwareOnly++;
+        }
+    }
+
+    /**
+     * Records a pair of steps of the two detectors.
+     */
+    private void match(long softwareTime, long hardwareTime) {
+        matched++;
+        long latency = hardwareTime - softwareTime;
+        totalLatencyNanos += latency;
+        if (latency >= 0) {
+            hardwareLatency.record(latency);
+        } else {
+            hardwareAhead++;
+        }
+    }
+
+    /**
+     * Forgets every step and metric.
+     */
+    public void reset() {
+        softwareHead = 0;
+        softwareSize = 0;
+        hardwareHead = 0;
+        hardwareSize = 0;
+        matched = 0;
+        softwareOnly = 0;
+        hardwareOnly = 0;
+        hardwareAhead = 0;
+        totalLatencyNanos = 0;
+        hardwareLatency.reset();
+    }
+
+    /**
+     * A get method for the number of steps seen by both detectors.
+     *
+     * @return The number of matched steps.
+     */
+    public long getMatched() { return matched; }
+
+    /**
+     * A get method for the number of steps only seen by the software detector, not counting the
+     * steps still waiting for a match.
+     *
+     * @return The number of software only steps.
+     */
+    public long getSoftwareOnly() { return softwareOnly; }
+
+    /**
+     * A get method for the number of steps only seen by the sensor, not counting the steps still
+     * waiting for a match.
+     *
+     * @return The number of sensor only steps.
+     */
+    public long getHardwareOnly() { return hardwareOnly; }
+
+    /**
+     * A get method for the fraction of the steps seen by both detectors.
+     *
+     * @return The matched steps over all the steps settled so far, or 1 if there is none.
+     */
+    public double getAgreement() {
+        long total = matched + softwareOnly + hardwareOnly;
+        return total == 0 ? 1 : (double) matched / total;
+    }
+
+    /**
+     * A get method for the mean latency of the sensor behind the software detector.
+     *
+     * @return The mean latency over the matched steps in nanoseconds, negative when the sensor is
+     *         ahead, or 0 if no step has been matched.
+     */
+    public double getMeanLatencyNanos() {
+        return matched == 0 ? 0 : (double) totalLatencyNanos / matched;
+    }
+
+    /**
+     * A get method for the histogram of the latencies of the sensor behind the software detector.
+     *
+     * @return The histogram of the positive latencies, in nanoseconds.
+     */
+    public LatencyHistogram getHardwareLatency() { return hardwareLatency; }
+
+    /**
+     * A get method for the number of matched steps where the sensor was ahead of the software
+     * detector.
+     *
+     * @return The number of steps the sensor reported first.
+     */
+    public long getHardwareAhead() { return hardwareAhead; }
+
+    /**
+     * Summarises the comparison for the logs.
+     *
+     * @return The counts, agreement and latencies.
+     */
+    @Override
+    public String toString() {
+        return String.format(Locale.US,
+                "matched %d, software only %d, sensor only %d, agreement %.1f%%, "
+                        + "mean latency %.1f ms, p50 %.1f ms, p95 %.1f ms, sensor ahead %d",
+                matched, softwareOnly, hardwareOnly, 100 * getAgreement(),
+                getMeanLatencyNanos() / 1e6, hardwareLatency.getPercentile(50) / 1e6,
+                hardwareLatency.getPercentile(95) / 1e6, hardwareAhead);
+    }
+}
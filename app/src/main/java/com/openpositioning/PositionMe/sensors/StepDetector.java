@@ -0,0 +1,186 @@
+package com.openpositioning.PositionMe.sensors;
+
+/**
+ * Streaming step detector on the linear acceleration, used alongside or instead of the step
+ * detector sensor of the device.
+ *
+ * Each sample is projected on the gravity direction, and the vertical acceleration is band-passed
+ * between {@link #HIGH_PASS_HZ} and {@link #LOW_PASS_HZ} by a first order high-pass and low-pass
+ * pair, with coefficients computed from the interval between samples so that the filter does not
+ * depend on the sensor rate. A step is the peak of the vertical bounce: once the filtered signal has
+ * gone below the valley threshold, the next local maximum above the peak threshold is a step, if the
+ * swing from the valley is large enough and the previous step is at least {@link #MIN_STEP_INTERVAL}
+ * old. Both thresholds follow an exponential average of the swings of the recent steps, so a soft
+ * and a heavy gait are both detected, with a floor that ignores the noise of a still device.
+ *
+ * A step is reported on the sample after its peak, with the timestamp of the peak sample. Every
+ * sample takes constant time and nothing is allocated. The class is not thread safe.
+ */
+public class StepDetector {
+    // Cut-off frequencies of the band-pass filter, around the 1.5-2.5 Hz step frequency of walking
+    public static final double HIGH_PASS_HZ = 0.5;
+    public static final double LOW_PASS_HZ = 3;
+    // Shortest interval between two steps, in nanoseconds, faster than running
+    public static final long MIN_STEP_INTERVAL = 250_000_000L;
+    // Gap between samples after which the filter restarts, in nanoseconds
+    private static final long MAX_SAMPLE_GAP = 500_000_000L;
+    // Swing assumed before the first step and smallest swing of a step, in m/s^2
+    private static final double INITIAL_SWING = 2.0;
+    private static final double MIN_SWING = 0.8;
+    // Fraction of the average swing the peak and valley must each reach from zero
+    private static final double THRESHOLD_FRACTION = 0.25;
+    // Weight of a new step in the average swing
+    private static final double SWING_SMOOTHING = 0.2;
+
+    // Band-pass filter state
+    private double highPassInput;
+    private double highPassOutput;
+    private double filtered;
+    private long lastSampleTime;
+    private boolean filterStarted;
+
+    // Peak and valley state: the previous sample, whether it was rising, and the valley since the last step
+    private double previous;
+    private long previousTime;
+    private boolean rising;
+    private boolean valleyReached;
+    private double valley;
+
+    // Adaptive swing and the steps detected
+    private double averageSwing = INITIAL_SWING;
+    private long lastStepTime;
+    private long stepTime;
+    private long stepCount;
+    // Delay between the peak of the last step and the sample reporting it, in nanoseconds
+    private long detectionDelay;
+
+    /**
+     * Processes one sample of the linear acceleration.
+     *
+     * @param acceleration The linear acceleration along the x, y and z axes of the device, in m/s^2.
+     * @param gravity      The gravity along the same axes, used for the vertical direction. If it is
+     *                     zero, the magnitude of the acceleration is used instead.
+     * @param timeNanos    The time of the sample, in nanoseconds.
+     * @return True if the sample reports a step, whose time is given by {@link #getStepTime()}.
+     */
+    public boolean update(float[] acceleration, float[] gravity, long timeNanos) {
+        double gravityNorm = Math.sqrt(gravity[0] * gravity[0] + gravity[1] * gravity[1]
+                + gravity[2] * gravity[2]);
+        double vertical;
+        if (gravityNorm > 0) {
+            vertical = (acceleration[0] * gravity[0] + acceleration[1] * gravity[1]
+                    + acceleration[2] * gravity[2]) / gravityNorm;
+        } else {
+            vertical = Math.sqrt(acceleration[0] * acceleration[0] + acceleration[1] * acceleration[1]
+                    + acceleration[2] * acceleration[2]);
+        }
+        return update(vertical, timeNanos);
+    }
+
+    /**
+     * Processes one sample of the vertical acceleration.
+     *
+     * @param vertical  The vertical acceleration without gravity, in m/s^2.
+     * @param timeNanos The time of the sample, in nanoseconds.
+     * @return True if the sample reports a step, whose time is given by {@link #getStepTime()}.
+     */
+    public boolean update(double vertical, long timeNanos) {
+        if (Double.isNaN(vertical)) {
+            throw new IllegalArgumentException("Acceleration must not be NaN");
+        }
+        long dt = timeNanos - lastSampleTime;
+        if (!filterStarted || dt <= 0 || dt > MAX_SAMPLE_GAP) {
+            // Restart the filter and the peak search on the first sample or after a gap
+            highPassInput = vertical;
+            highPassOutput = 0;
+            filtered = 0;
+            lastSampleTime = timeNanos;
+            filterStarted = true;
+            previous = 0;
+            previousTime = timeNanos;
+            rising = false;
+            valleyReached = false;
+            return false;
+        }
+        lastSampleTime = timeNanos;
+
+        // First order high-pass then low-pass, with the coefficients of the current interval
+        double seconds = dt * 1e-9;
+        double highPassTau = 1 / (2 * Math.PI * HIGH_PASS_HZ);
+        double lowPassTau = 1 / (2 * Math.PI * LOW_PASS_HZ);
+        highPassOutput = highPassTau / (highPassTau + seconds) * (highPassOutput + vertical - highPassInput);
+        highPassInput = vertical;
+        filtered += seconds / (lowPassTau + seconds) * (highPassOutput - filtered);
+
+        double threshold = THRESHOLD_FRACTION * averageSwing;
+        boolean step = false;
+        if (!valleyReached) {
+            if (filtered < -threshold) {
+                valleyReached = true;
+                valley = filtered;
+            }
+        } else if (filtered < valley) {
+            valley = filtered;
+        } else if (rising && filtered < previous && previous > threshold) {
+            // The previous sample is a peak following a valley
+            double swing = previous - valley;
+            if (swing >= MIN_SWING && (stepCount == 0 || previousTime - lastStepTime >= MIN_STEP_INTERVAL)) {
+                averageSwing += SWING_SMOOTHING * (swing - averageSwing);
+                lastStepTime = previousTime;
+                stepTime = previousTime;
+                detectionDelay = timeNanos - previousTime;
+                stepCount++;
+                valleyReached = false;
+                step = true;
+            }
+        }
+        rising = filtered > previous;
+        previous = filtered;
+        previousTime = timeNanos;
+        return step;
+    }
+
+    /**
+     * Restarts the detection, forgetting the filter state and the swing of the previous steps.
+     */
+    public void reset() {
+        filterStarted = false;
+        averageSwing = INITIAL_SWING;
+        stepCount = 0;
+    }
+
+    /**
+     * A get method for the time of the last step, the time of its peak sample.
+     *
+     * @return The time of the last step, in nanoseconds.
+     */
+    public long getStepTime() { return stepTime; }
+
+    /**
+     * A get method for the delay between the peak of the last step and the sample reporting it.
+     *
+     * @return The detection delay, in nanoseconds.
+     */
+    public long getDetectionDelay() { return detectionDelay; }
+
+    /**
+     * A get method for the number of steps detected since the last reset.
+     *
+     * @return The number of steps.
+     */
+    public long getStepCount() { return stepCount; }
+
+    /**
+     * A get method for the average swing of the vertical acceleration over the recent steps.
+     *
+     * @return The average swing, in m/s^2.
+     */
+    public double getAverageSwing() { return averageSwing; }
+
+    /**
+     * A get method for the latest band-passed vertical acceleration.
+     *
+     * @return The filtered acceleration, in m/s^2.
+     */
+    public double getFiltered() { return filtered; }
+}
@@ -0,0 +1,9 @@
+package com.openpositioning.PositionMe;
+
+/**
+ * JUnit category of the local benchmarks, which time the fusion and sensor code and print their
+ * results. They are left out of the unit tests, whose results must not depend on the load of the
+ * machine, and are run on their own with {@code ./gradlew testDebugUnitTest -Pbenchmarks}.
+ */
+public interface Benchmark {
+}
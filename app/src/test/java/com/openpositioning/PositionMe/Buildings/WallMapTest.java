@@ -0,0 +1,122 @@
+package com.openpositioning.PositionMe.Buildings;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of the crossing checks of the {@link WallMap} and of reading its binary format.
+ */
+public class WallMapTest {
+
+    /**
+     * A single wall along the North axis from (5, 0) to (5, 10).
+     */
+    private static WallMap verticalWall() {
+        return new WallMap(new double[]{5}, new double[]{0}, new double[]{5}, new double[]{10});
+    }
+
+    @Test
+    public void motionThroughWallCrosses() {
+        WallMap map = verticalWall();
+        assertTrue(map.crossesWall(4, 5, 6, 5));
+        assertTrue(map.crossesWall(6, 2, 4, 8));
+    }
+
+    @Test
+    public void motionBesideWallDoesNotCross() {
+        WallMap map = verticalWall();
+        assertFalse(map.crossesWall(1, 5, 4, 5));
+        // Passing beyond the end of the wall
+        assertFalse(map.crossesWall(4, 11, 6, 11));
+        // Far outside the indexed area
+        assertFalse(map.crossesWall(100, 100, 101, 101));
+    }
+
+    @Test
+    public void touchingCountsAsCrossing() {
+        WallMap map = verticalWall();
+        // Ending on the wall, starting on it, and ending on its end point
+        assertTrue(map.crossesWall(3, 5, 5, 5));
+        assertTrue(map.crossesWall(5, 5, 7, 5));
+        assertTrue(map.crossesWall(3, 10, 5, 10));
+    }
+
+    @Test
+    public void parallelMotionDoesNotCross() {
+        WallMap map = verticalWall();
+        assertFalse(map.crossesWall(4.9, 0, 4.9, 10));
+        assertFalse(map.crossesWall(5.1, -2, 5.1, 12));
+    }
+
+    @Test
+    public void collinearMotionCrossesOnlyWhenOverlapping() {
+        WallMap map = verticalWall();
+        assertTrue(map.crossesWall(5, -2, 5, 1));
+        assertTrue(map.crossesWall(5, 3, 5, 4));
+        assertFalse(map.crossesWall(5, 11, 5, 13));
+    }
+
+    @Test
+    public void longMotionFindsWallInDistantCell() {
+        // Walls spread over many grid cells, the motion covers several of them
+        WallMap map = new WallMap(new double[]{0, 40}, new double[]{0, 0},
+                new double[]{0, 40}, new double[]{40, 40});
+        assertTrue(map.crossesWall(20, 20, 45, 20));
+        assertFalse(map.crossesWall(10, 20, 30, 20));
+    }
+
+    @Test
+    public void shiftedMovesEveryWall() {
+        WallMap map = verticalWall().shifted(10, -5);
+        assertEquals(1, map.getWallCount());
+        assertTrue(map.crossesWall(14, 0, 16, 0));
+        assertFalse(map.crossesWall(4, 5, 6, 5));
+    }
+
+    @Test
+    public void emptyMapNeverCrosses() {
+        WallMap map = new WallMap(new double[0], new double[0], new double[0], new double[0]);
+        assertEquals(0, map.getWallCount());
+        assertFalse(map.crossesWall(-1, -1, 1, 1));
+    }
+
+    @Test
+    public void readsBinaryFormat() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0x504D574C);
+        out.writeShort(1);
+        out.writeInt(2);
+        out.writeFloat(5);
+        out.writeFloat(0);
+        out.writeFloat(5);
+        out.writeFloat(10);
+        out.writeFloat(0);
+        out.writeFloat(12);
+        out.writeFloat(10);
+        out.writeFloat(12);
+        out.flush();
+
+        WallMap map = WallMap.read(new ByteArrayInputStream(bytes.toByteArray()));
+        assertEquals(2, map.getWallCount());
+        assertTrue(map.crossesWall(4, 5, 6, 5));
+        assertTrue(map.crossesWall(3, 11, 3, 13));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsWrongMagic() throws IOException {
+        byte[] bytes = {'N', 'O', 'P', 'E', 0, 1, 0, 0, 0, 0};
+        WallMap.read(new ByteArrayInputStream(bytes));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsArraysOfDifferentLengths() {
+        new WallMap(new double[1], new double[1], new double[1], new double[2]);
+    }
+}
@@ -0,0 +1,121 @@
+package com.openpositioning.PositionMe.FusionAlgorithms;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of the {@link AdaptiveNoiseEstimator}, and a comparison of fixes weighed with a constant noise
+ * and with their reported accuracy on a replayed walk.
+ */
+public class AdaptiveNoiseEstimatorTest {
+    private static final long SEED = 5;
+
+    @Test
+    public void learnsRatioOfTrueNoise() {
+        Random random = new Random(SEED);
+        AdaptiveNoiseEstimator estimator = new AdaptiveNoiseEstimator(2000, 3, 0.01, 100);
+        double predictedVariance = 2;
+        double nominalVariance = 4;
+        double trueVariance = 16;
+        for (int i = 0; i < 2000; i++) {
+            double std = Math.sqrt(predictedVariance + trueVariance);
+            estimator.addInnovation(std * random.nextGaussian(), std * random.nextGaussian(),
+                    predictedVariance, predictedVariance, nominalVariance);
+        }
+        assertEquals(trueVariance / nominalVariance, estimator.getScale(), 0.3);
+    }
+
+    @Test
+    public void windowForgetsOldFixes() {
+        AdaptiveNoiseEstimator estimator = new AdaptiveNoiseEstimator(10, 3, 0.01, 100);
+        for (int i = 0; i < 10; i++) {
+            estimator.addInnovation(10, 0, 0, 0, 1);
+        }
+        assertEquals(50, estimator.getScale(), 1e-9);
+        for (int i = 0; i < 10; i++) {
+            estimator.addInnovation(2, 0, 0, 0, 1);
+        }
+        assertEquals(2, estimator.getScale(), 1e-9);
+        assertEquals(10, estimator.getSampleCount());
+    }
+
+    @Test
+    public void scaleStaysOneUntilEnoughFixesAndIsBounded() {
+        AdaptiveNoiseEstimator estimator = new AdaptiveNoiseEstimator(10, 3, 0.25, 16);
+        estimator.addInnovation(100, 100, 0, 0, 1);
+        estimator.addInnovation(100, 100, 0, 0, 1);
+        assertEquals(1, estimator.getScale(), 0);
+        estimator.addInnovation(100, 100, 0, 0, 1);
+        assertEquals(16, estimator.getScale(), 0);
+        estimator.reset();
+        for (int i = 0; i < 5; i++) {
+            estimator.addInnovation(0, 0, 1, 1, 1);
+        }
+        assertEquals(0.25, estimator.getScale(), 0);
+    }
+
+    @Test
+    public void varianceFromAccuracy() {
+        // A radius of 68% confidence of about 1.51 standard deviations
+        assertEquals(1, AdaptiveNoiseEstimator.varianceFromAccuracy(1.5096, 25), 1e-6);
+        assertEquals(25, AdaptiveNoiseEstimator.varianceFromAccuracy(0, 25), 0);
+        assertEquals(25, AdaptiveNoiseEstimator.varianceFromAccuracy(Double.NaN, 25), 0);
+    }
+
+    @Test
+    public void reportedAccuracyImprovesReplayedWalk() {
+        int recordings = 10;
+        int steps = 1000;
+        double constantError = 0;
+        double adaptiveError = 0;
+        for (int r = 0; r < recordings; r++) {
+            constantError += replay(new Random(SEED + r), steps, false);
+            adaptiveError += replay(new Random(SEED + r), steps, true);
+        }
+        double constantRmse = Math.sqrt(constantError / (recordings * steps));
+        double adaptiveRmse = Math.sqrt(adaptiveError / (recordings * steps));
+        System.out.printf("Fix noise: constant RMSE %.2f m, reported accuracy with learnt scale RMSE %.2f m%n",
+                constantRmse, adaptiveRmse);
+        assertTrue(adaptiveRmse < constantRmse);
+    }
+
+    /**
+     * Replays a straight walk with a fix every step, most fixes accurate and some poor, whose reported
+     * accuracy is twice too optimistic. Returns the sum of the squared position errors.
+     */
+    private static double replay(Random random, int steps, boolean adaptive) {
+        double constantVariance = 25;
+        EkfKernel kernel = new EkfKernel(Math.pow(Math.toRadians(2), 2), 0.01, constantVariance, constantVariance);
+        kernel.load(new double[3], 0, new double[]{0, 0, 0, 0, 1, 0, 0, 0, 1}, 0);
+        AdaptiveNoiseEstimator estimator = new AdaptiveNoiseEstimator(20, 3, 0.25, 16);
+        double east = 0;
+        double north = 0;
+        double error = 0;
+        for (int i = 0; i < steps; i++) {
+            double heading = Math.PI / 4;
+            east += 0.7 * Math.sin(heading);
+            north += 0.7 * Math.cos(heading);
+            double measured = heading + Math.toRadians(5) * random.nextGaussian();
+            kernel.predict(measured, EkfKernel.wrapToPi(Math.PI / 2 - measured), 0.7 + 0.1 * random.nextGaussian());
+
+            boolean poor = random.nextInt(10) < 3;
+            double std = poor ? 20 : 2;
+            double fixEast = east + std * random.nextGaussian();
+            double fixNorth = north + std * random.nextGaussian();
+            if (adaptive) {
+                double reportedAccuracy = 1.5096 * std / 2;
+                double nominal = AdaptiveNoiseEstimator.varianceFromAccuracy(reportedAccuracy, constantVariance);
+                estimator.addInnovation(fixEast - kernel.getEast(), fixNorth - kernel.getNorth(),
+                        kernel.getCovariance(1, 1), kernel.getCovariance(2, 2), nominal);
+                double variance = nominal * estimator.getScale();
+                kernel.setObservationNoise(variance, variance);
+            }
+            kernel.update(fixEast, fixNorth);
+            error += Math.pow(kernel.getEast() - east, 2) + Math.pow(kernel.getNorth() - north, 2);
+        }
+        return error;
+    }
+}
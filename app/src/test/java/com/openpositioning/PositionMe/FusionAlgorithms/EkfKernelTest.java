@@ -0,0 +1,156 @@
+package com.openpositioning.PositionMe.FusionAlgorithms;
+
+import com.openpositioning.PositionMe.Benchmark;
+
+import org.ejml.simple.SimpleMatrix;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that the {@link EkfKernel} reproduces the SimpleMatrix formulation of the
+ * {@link ExtendedKalmanFilter} equations, and benchmarks the cost of a step with both.
+ */
+public class EkfKernelTest {
+    private static final long SEED = 42;
+    private static final int STEPS = 2000;
+    private static final double TOLERANCE = 1e-9;
+
+    @Test
+    public void kernelMatchesMatrixFilter() {
+        EkfKernel kernel = new EkfKernel(0.07, 1, 100, 100);
+        ReferenceFilter reference = new ReferenceFilter(0.07, 1, 100, 100);
+        Random random = new Random(SEED);
+
+        for (int i = 0; i < STEPS; i++) {
+            double theta = (random.nextDouble() * 2 - 1) * Math.PI;
+            double adaptedHeading = EkfKernel.wrapToPi(Math.PI / 2 - theta);
+            double step = 0.5 + 0.4 * random.nextDouble();
+            double qBearing = Math.pow(Math.toRadians(2 + 20 * random.nextDouble()), 2);
+            double qStep = Math.pow(0.1 + 0.3 * random.nextDouble(), 2);
+            kernel.setProcessNoise(qBearing, qStep);
+            reference.setProcessNoise(qBearing, qStep);
+            kernel.predict(theta, adaptedHeading, step);
+            reference.predict(theta, adaptedHeading, step);
+
+            // Observe every few steps, as the filter does with WiFi and GNSS fixes
+            if (i % 3 == 0) {
+                double r = Math.pow(5 + 5 * random.nextDouble(), 2);
+                double observedEast = reference.x.get(1, 0) + random.nextGaussian() * 5;
+                double observedNorth = reference.x.get(2, 0) + random.nextGaussian() * 5;
+                kernel.setObservationNoise(r, r);
+                reference.setObservationNoise(r, r);
+                kernel.update(observedEast, observedNorth);
+                reference.update(observedEast, observedNorth);
+            }
+
+            assertClose(reference.x.get(0, 0), kernel.getBearing());
+            assertClose(reference.x.get(1, 0), kernel.getEast());
+            assertClose(reference.x.get(2, 0), kernel.getNorth());
+            for (int row = 0; row < 3; row++) {
+                for (int column = 0; column < 3; column++) {
+                    assertClose(reference.p.get(row, column), kernel.getCovariance(row, column));
+                }
+            }
+        }
+    }
+
+    @Test
+    @Category(Benchmark.class)
+    public void benchmarkStepCost() {
+        int warmup = 200000;
+        int measured = 1000000;
+        EkfKernel kernel = new EkfKernel(0.07, 1, 100, 100);
+        ReferenceFilter reference = new ReferenceFilter(0.07, 1, 100, 100);
+
+        runKernel(kernel, warmup);
+        long start = System.nanoTime();
+        double kernelSink = runKernel(kernel, measured);
+        double kernelNanos = (double) (System.nanoTime() - start) / measured;
+
+        runReference(reference, warmup / 10);
+        start = System.nanoTime();
+        double referenceSink = runReference(reference, measured / 10);
+        double referenceNanos = (double) (System.nanoTime() - start) / (measured / 10);
+
+        System.out.printf("EKF predict + update: kernel %.1f ns, SimpleMatrix %.1f ns (x%.1f)%n",
+                kernelNanos, referenceNanos, referenceNanos / kernelNanos);
+        assertFalse(Double.isNaN(kernelSink + referenceSink));
+    }
+
+    private static double runKernel(EkfKernel kernel, int steps) {
+        for (int i = 0; i < steps; i++) {
+            double theta = (i % 628) * 0.01 - Math.PI;
+            kernel.predict(theta, EkfKernel.wrapToPi(Math.PI / 2 - theta), 0.7);
+            kernel.update(kernel.getEast() + 0.5, kernel.getNorth() - 0.5);
+        }
+        return kernel.getEast();
+    }
+
+    private static double runReference(ReferenceFilter reference, int steps) {
+        for (int i = 0; i < steps; i++) {
+            double theta = (i % 628) * 0.01 - Math.PI;
+            reference.predict(theta, EkfKernel.wrapToPi(Math.PI / 2 - theta), 0.7);
+            reference.update(reference.x.get(1, 0) + 0.5, reference.x.get(2, 0) - 0.5);
+        }
+        return reference.x.get(1, 0);
+    }
+
+    private static void assertClose(double expected, double actual) {
+        assertEquals(expected, actual, TOLERANCE * Math.max(1, Math.abs(expected)));
+    }
+
+    /**
+     * The prediction and update equations as previously written with SimpleMatrix, also the
+     * baseline of the {@link ImmFilterTest} benchmark.
+     */
+    static class ReferenceFilter {
+        private SimpleMatrix x = new SimpleMatrix(new double[][]{{0}, {0}, {0}});
+        private SimpleMatrix p = SimpleMatrix.diag(0, 0, 0);
+        private final SimpleMatrix q;
+        private final SimpleMatrix r;
+        private final SimpleMatrix h = new SimpleMatrix(new double[][]{{0, 1, 0}, {0, 0, 1}});
+
+        ReferenceFilter(double qBearing, double qStep, double rEast, double rNorth) {
+            q = SimpleMatrix.diag(qBearing, qStep);
+            r = SimpleMatrix.diag(rEast, rNorth);
+        }
+
+        void setProcessNoise(double qBearing, double qStep) {
+            q.set(0, 0, qBearing);
+            q.set(1, 1, qStep);
+        }
+
+        void setObservationNoise(double rEast, double rNorth) {
+            r.set(0, 0, rEast);
+            r.set(1, 1, rNorth);
+        }
+
+        void predict(double theta, double adaptedHeading, double step) {
+            SimpleMatrix t = new SimpleMatrix(new double[][]{{1, 0}, {0, Math.sin(theta)}, {0, Math.cos(theta)}});
+            SimpleMatrix u = new SimpleMatrix(new double[][]{{theta}, {step}});
+            x = x.plus(t.mult(u));
+            SimpleMatrix f = new SimpleMatrix(new double[][]{
+                    {1, 0, 0},
+                    {step * Math.cos(adaptedHeading), 1, 0},
+                    {-step * Math.sin(adaptedHeading), 0, 1}
+            });
+            SimpleMatrix l = new SimpleMatrix(new double[][]{{1, 0}, {0, Math.sin(theta)}, {0, Math.cos(theta)}});
+            p = f.mult(p).mult(f.transpose()).plus(l.mult(q).mult(l.transpose()));
+        }
+
+        void update(double observedEast, double observedNorth) {
+            SimpleMatrix m = SimpleMatrix.identity(2);
+            SimpleMatrix z = new SimpleMatrix(new double[][]{{observedEast}, {observedNorth}});
+            SimpleMatrix y = z.minus(h.mult(x));
+            SimpleMatrix s = h.mult(p).mult(h.transpose()).plus(m.mult(r).mult(m.transpose()));
+            SimpleMatrix k = p.mult(h.transpose().mult(s.invert()));
+            x = x.plus(k.mult(y));
+            x.set(0, 0, EkfKernel.wrapToPi(x.get(0, 0)));
+            p = (SimpleMatrix.identity(3).minus(k.mult(h))).mult(p);
+        }
+    }
+}
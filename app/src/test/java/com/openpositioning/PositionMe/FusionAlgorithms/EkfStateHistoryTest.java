@@ -0,0 +1,86 @@
+package com.openpositioning.PositionMe.FusionAlgorithms;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of the step lookup and recycling of the {@link EkfStateHistory}.
+ */
+public class EkfStateHistoryTest {
+
+    @Test
+    public void findsLatestStepAtOrBeforeTime() {
+        EkfStateHistory history = new EkfStateHistory(8);
+        for (int i = 0; i < 5; i++) {
+            history.add(1000 + i * 500L);
+        }
+        assertEquals(-1, history.findLatestAtOrBefore(999));
+        assertEquals(0, history.findLatestAtOrBefore(1000));
+        assertEquals(0, history.findLatestAtOrBefore(1499));
+        assertEquals(2, history.findLatestAtOrBefore(2000));
+        assertEquals(4, history.findLatestAtOrBefore(100000));
+    }
+
+    @Test
+    public void overwritesOldestStepWhenFull() {
+        EkfStateHistory history = new EkfStateHistory(4);
+        for (int i = 0; i < 10; i++) {
+            history.add(i).stepLength = i;
+        }
+        assertEquals(4, history.size());
+        for (int i = 0; i < 4; i++) {
+            assertEquals(6 + i, history.get(i).time);
+            assertEquals(6 + i, history.get(i).stepLength, 0);
+        }
+        assertEquals(-1, history.findLatestAtOrBefore(5));
+        assertEquals(1, history.findLatestAtOrBefore(7));
+    }
+
+    @Test
+    public void recycledEntriesAreCleared() {
+        EkfStateHistory history = new EkfStateHistory(1);
+        EkfStateHistory.Entry entry = history.add(0);
+        entry.predicted = true;
+        entry.observed = true;
+        entry.delayed = true;
+        entry = history.add(1);
+        assertFalse(entry.predicted);
+        assertFalse(entry.observed);
+        assertFalse(entry.delayed);
+    }
+
+    @Test
+    public void statesAreCopies() {
+        EkfStateHistory history = new EkfStateHistory(2);
+        EkfKernel kernel = new EkfKernel(0.01, 0.04, 25, 25);
+        kernel.predict(0.3, Math.PI / 2 - 0.3, 0.7);
+        history.add(0).state.set(kernel);
+        kernel.predict(0.3, Math.PI / 2 - 0.3, 0.7);
+
+        EkfKernel restored = history.get(0).state;
+        assertEquals(0.7 * Math.sin(0.3), restored.getEast(), 1e-12);
+        assertEquals(0.7 * Math.cos(0.3), restored.getNorth(), 1e-12);
+        assertTrue(kernel.getEast() > restored.getEast());
+        assertEquals(25, restored.getObservationNoiseEast(), 0);
+    }
+
+    @Test
+    public void clearEmptiesHistory() {
+        EkfStateHistory history = new EkfStateHistory(4);
+        history.add(10);
+        history.add(20);
+        history.clear();
+        assertEquals(0, history.size());
+        assertEquals(-1, history.findLatestAtOrBefore(30));
+        history.add(5);
+        assertEquals(5, history.get(0).time);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsStepsOutOfOrder() {
+        EkfStateHistory history = new EkfStateHistory(4);
+        history.add(10);
+        history.add(5);
+    }
+}
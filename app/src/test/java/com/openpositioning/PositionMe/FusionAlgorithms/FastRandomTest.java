@@ -0,0 +1,125 @@
+package com.openpositioning.PositionMe.FusionAlgorithms;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Accuracy tests of the {@link FastRandom} uniform and ziggurat Gaussian samplers against the exact
+ * distributions.
+ */
+public class FastRandomTest {
+    private static final int SAMPLES = 2000000;
+    private static final long SEED = 42;
+    // Histogram of the Gaussian samples, bins of BIN_WIDTH between -HISTOGRAM_RANGE and HISTOGRAM_RANGE plus two tails
+    private static final double HISTOGRAM_RANGE = 4.0;
+    private static final double BIN_WIDTH = 0.25;
+    // Chi-square critical value for 33 degrees of freedom at p = 0.001
+    private static final double CHI_SQUARE_CRITICAL = 63.87;
+
+    @Test
+    public void gaussianMatchesStandardNormalMoments() {
+        FastRandom random = new FastRandom(SEED);
+        double sum = 0, sumSquares = 0, sumFourth = 0;
+        for (int i = 0; i < SAMPLES; i++) {
+            double x = random.nextGaussian();
+            sum += x;
+            sumSquares += x * x;
+            sumFourth += x * x * x * x;
+        }
+        double mean = sum / SAMPLES;
+        double variance = sumSquares / SAMPLES - mean * mean;
+        assertEquals(0.0, mean, 0.005);
+        assertEquals(1.0, variance, 0.005);
+        assertEquals(3.0, sumFourth / SAMPLES, 0.05);
+    }
+
+    @Test
+    public void gaussianHistogramMatchesExactDensity() {
+        int bins = (int) Math.round(2 * HISTOGRAM_RANGE / BIN_WIDTH);
+        long[] counts = new long[bins + 2];
+        FastRandom random = new FastRandom(SEED);
+        for (int i = 0; i < SAMPLES; i++) {
+            double x = random.nextGaussian();
+            if (x < -HISTOGRAM_RANGE) {
+                counts[0]++;
+            } else if (x >= HISTOGRAM_RANGE) {
+                counts[bins + 1]++;
+            } else {
+                counts[1 + Math.min(bins - 1, (int) ((x + HISTOGRAM_RANGE) / BIN_WIDTH))]++;
+            }
+        }
+
+        double chiSquare = 0;
+        double tailProbability = 0.5 - normalProbability(0, HISTOGRAM_RANGE);
+        for (int b = 0; b < bins + 2; b++) {
+            double probability;
+            if (b == 0 || b == bins + 1) {
+                probability = tailProbability;
+            } else {
+                double from = -HISTOGRAM_RANGE + (b - 1) * BIN_WIDTH;
+                probability = normalProbability(from, from + BIN_WIDTH);
+            }
+            double expected = probability * SAMPLES;
+            chiSquare += (counts[b] - expected) * (counts[b] - expected) / expected;
+        }
+        assertTrue("Chi-square " + chiSquare, chiSquare < CHI_SQUARE_CRITICAL);
+    }
+
+    @Test
+    public void gaussianTailBeyondZigguratMatchesExactProbability() {
+        // Samples past 3.44 are drawn by the separate tail algorithm
+        double threshold = 3.5;
+        FastRandom random = new FastRandom(SEED);
+        int tail = 0;
+        for (int i = 0; i < SAMPLES; i++) {
+            if (Math.abs(random.nextGaussian()) > threshold) tail++;
+        }
+        double expected = 2 * (0.5 - normalProbability(0, threshold)) * SAMPLES;
+        // Allow four standard deviations of the binomial count
+        assertEquals(expected, tail, 4 * Math.sqrt(expected));
+    }
+
+    @Test
+    public void uniformDoublesAreInUnitIntervalWithExactMoments() {
+        FastRandom random = new FastRandom(SEED);
+        double sum = 0, sumSquares = 0;
+        for (int i = 0; i < SAMPLES; i++) {
+            double u = random.nextDouble();
+            assertTrue(u >= 0 && u < 1);
+            sum += u;
+            sumSquares += u * u;
+        }
+        assertEquals(0.5, sum / SAMPLES, 0.001);
+        assertEquals(1.0 / 3.0, sumSquares / SAMPLES, 0.001);
+    }
+
+    @Test
+    public void sameSeedGivesSameSequence() {
+        Random first = new FastRandom(SEED);
+        Random second = new FastRandom(SEED);
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(first.nextLong(), second.nextLong());
+            assertEquals(first.nextGaussian(), second.nextGaussian(), 0);
+        }
+    }
+
+    /**
+     * Integrates the exact standard normal density between two points with Simpson's rule.
+     */
+    private static double normalProbability(double from, double to) {
+        int intervals = 1000;
+        double h = (to - from) / intervals;
+        double sum = density(from) + density(to);
+        for (int i = 1; i < intervals; i++) {
+            sum += density(from + i * h) * ((i % 2 == 0) ? 2 : 4);
+        }
+        return sum * h / 3;
+    }
+
+    private static double density(double x) {
+        return Math.exp(-0.5 * x * x) / Math.sqrt(2 * Math.PI);
+    }
+}
@@ -0,0 +1,132 @@
+package com.openpositioning.PositionMe.FusionAlgorithms;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Ordering, overflow and staleness tests of the {@link FusionEventRing}.
+ */
+public class FusionEventRingTest {
+    private static final long TIMEOUT_SECONDS = 10;
+
+    @Test
+    public void deliversEveryEventInOrder() throws InterruptedException {
+        final int count = 100000;
+        final long[] received = new long[count];
+        final int[] index = {0};
+        final CountDownLatch done = new CountDownLatch(1);
+        FusionEventRing ring = new FusionEventRing(64, FusionEventRing.OverflowPolicy.BLOCK, 0, "test",
+                event -> {
+                    received[index[0]++] = event.refTime;
+                    if (index[0] == count) done.countDown();
+                });
+        ring.start();
+        for (int i = 0; i < count; i++) {
+            FusionEvent event = ring.claim();
+            assertNotNull(event);
+            event.type = FusionEvent.Type.STEP;
+            event.refTime = i;
+            ring.publish(event);
+        }
+        assertTrue(done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        ring.shutdown();
+
+        for (int i = 0; i < count; i++) {
+            assertEquals(i, received[i]);
+        }
+        assertEquals(0, ring.getOverflowDrops());
+        assertEquals(count, ring.getProcessedEvents());
+        assertTrue(ring.getMaxQueueDepth() <= ring.getCapacity());
+    }
+
+    @Test
+    public void dropsNewestEventsWhenFull() throws InterruptedException {
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(4);
+        FusionEventRing ring = new FusionEventRing(4, FusionEventRing.OverflowPolicy.DROP_NEWEST, 0, "test",
+                event -> {
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    done.countDown();
+                });
+        ring.start();
+        int published = 0;
+        for (int i = 0; i < 10; i++) {
+            FusionEvent event = ring.claim();
+            if (event == null) continue;
+            event.type = FusionEvent.Type.STEP;
+            ring.publish(event);
+            published++;
+        }
+        // The consumer holds the first event while the ring fills up
+        assertEquals(4, published);
+        assertEquals(6, ring.getOverflowDrops());
+
+        release.countDown();
+        assertTrue(done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        ring.shutdown();
+    }
+
+    @Test
+    public void skipsStaleDroppableEvents() throws InterruptedException {
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(2);
+        final int[] opportunistic = {0};
+        FusionEventRing ring = new FusionEventRing(8, FusionEventRing.OverflowPolicy.BLOCK,
+                TimeUnit.MILLISECONDS.toNanos(20), "test",
+                event -> {
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    if (event.type == FusionEvent.Type.OPPORTUNISTIC_UPDATE) opportunistic[0]++;
+                    done.countDown();
+                });
+        ring.start();
+        publish(ring, FusionEvent.Type.STEP, false);
+        publish(ring, FusionEvent.Type.OPPORTUNISTIC_UPDATE, true);
+        publish(ring, FusionEvent.Type.STEP, false);
+        Thread.sleep(100);
+
+        release.countDown();
+        assertTrue(done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        ring.shutdown();
+        assertEquals(0, opportunistic[0]);
+        assertEquals(1, ring.getStaleDrops());
+    }
+
+    @Test
+    public void rejectsEventsAfterShutdown() {
+        FusionEventRing ring = new FusionEventRing(8, FusionEventRing.OverflowPolicy.BLOCK, 0, "test", event -> { });
+        ring.start();
+        ring.shutdown();
+        assertNull(ring.claim());
+    }
+
+    @Test
+    public void roundsCapacityToPowerOfTwo() {
+        assertEquals(256, new FusionEventRing(200, FusionEventRing.OverflowPolicy.BLOCK, 0, "test", event -> { })
+                .getCapacity());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsEmptyRing() {
+        new FusionEventRing(0, FusionEventRing.OverflowPolicy.BLOCK, 0, "test", event -> { });
+    }
+
+    private static void publish(FusionEventRing ring, FusionEvent.Type type, boolean droppable) {
+        FusionEvent event = ring.claim();
+        assertNotNull(event);
+        event.type = type;
+        event.droppableWhenStale = droppable;
+        ring.publish(event);
+    }
+}
@@ -0,0 +1,168 @@
+package com.openpositioning.PositionMe.FusionAlgorithms;
+
+import com.openpositioning.PositionMe.Benchmark;
+import com.openpositioning.PositionMe.sensors.TurnDetector;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Mode selection tests of the {@link ImmFilter}, and a benchmark of the four mode bank against the
+ * single SimpleMatrix filter it replaces.
+ */
+public class ImmFilterTest {
+    private static final long SEED = 11;
+    private static final double STEP_VARIANCE = 0.04;
+    private static final double FIX_VARIANCE = 4.0;
+    private static final double[] BEARING_VARIANCES = new double[ImmFilter.MODE_COUNT];
+
+    static {
+        for (int mode = 0; mode < ImmFilter.MODE_COUNT; mode++) {
+            BEARING_VARIANCES[mode] = Math.pow(ImmFilter.getBearingStd(mode), 2);
+        }
+    }
+
+    @Test
+    public void probabilitiesStayNormalised() {
+        ImmFilter imm = new ImmFilter();
+        Random random = new Random(SEED);
+        for (int i = 0; i < 500; i++) {
+            imm.predict(0.1, Math.PI / 2 - 0.1, 0.7, BEARING_VARIANCES, STEP_VARIANCE);
+            imm.applyStepEvidence(TurnDetector.MovementType.values()[random.nextInt(3)], 0.2 * random.nextGaussian());
+            imm.update(random.nextGaussian(), random.nextGaussian(), FIX_VARIANCE, FIX_VARIANCE, true);
+            double sum = 0;
+            for (ImmFilter.Mode mode : ImmFilter.Mode.values()) {
+                double probability = imm.getModeProbability(mode);
+                assertTrue(probability > 0 && probability <= 1);
+                sum += probability;
+            }
+            assertEquals(1, sum, 1e-9);
+        }
+    }
+
+    @Test
+    public void turnsFavourTurnMode() {
+        ImmFilter imm = new ImmFilter();
+        double before = imm.getModeProbability(ImmFilter.Mode.TURN);
+        for (int i = 0; i < 3; i++) {
+            imm.predict(0, Math.PI / 2, 0.7, BEARING_VARIANCES, STEP_VARIANCE);
+            imm.applyStepEvidence(TurnDetector.MovementType.TURN, 0);
+        }
+        assertTrue(imm.getModeProbability(ImmFilter.Mode.TURN) > before);
+        assertEquals(ImmFilter.Mode.TURN, imm.getMostLikelyMode());
+    }
+
+    @Test
+    public void climbingFavoursVerticalMode() {
+        ImmFilter imm = new ImmFilter();
+        for (int i = 0; i < 5; i++) {
+            imm.predict(0, Math.PI / 2, 0.7, BEARING_VARIANCES, STEP_VARIANCE);
+            imm.applyStepEvidence(TurnDetector.MovementType.STRAIGHT, 0.17);
+        }
+        assertEquals(ImmFilter.Mode.VERTICAL, imm.getMostLikelyMode());
+    }
+
+    @Test
+    public void fixesWithoutMovementFavourStationaryMode() {
+        ImmFilter imm = new ImmFilter();
+        EkfKernel combined = new EkfKernel(0, 0, 0, 0);
+        Random random = new Random(SEED);
+        // Steps are detected but precise fixes show the user at the origin
+        for (int i = 0; i < 30; i++) {
+            imm.predict(0, Math.PI / 2, 0.7, BEARING_VARIANCES, STEP_VARIANCE);
+            imm.applyStepEvidence(TurnDetector.MovementType.STRAIGHT, 0);
+            imm.update(0.1 * random.nextGaussian(), 0.1 * random.nextGaussian(), 0.01, 0.01, true);
+        }
+        imm.combine(combined);
+        assertEquals(ImmFilter.Mode.STATIONARY, imm.getMostLikelyMode());
+        assertEquals(0, combined.getNorth(), 0.5);
+    }
+
+    @Test
+    public void combinedEstimateFollowsStraightWalk() {
+        ImmFilter imm = new ImmFilter();
+        EkfKernel combined = new EkfKernel(0, 0, 0, 0);
+        Random random = new Random(SEED);
+        double north = 0;
+        for (int i = 0; i < 200; i++) {
+            north += 0.7;
+            imm.predict(0, Math.PI / 2, 0.7 + 0.1 * random.nextGaussian(), BEARING_VARIANCES, STEP_VARIANCE);
+            imm.applyStepEvidence(TurnDetector.MovementType.STRAIGHT, 0);
+            if (i % 5 == 0) {
+                imm.update(random.nextGaussian() * 2, north + random.nextGaussian() * 2, FIX_VARIANCE, FIX_VARIANCE, true);
+            }
+        }
+        imm.combine(combined);
+        assertEquals(ImmFilter.Mode.STRAIGHT, imm.getMostLikelyMode());
+        assertEquals(north, combined.getNorth(), 3);
+        assertEquals(0, combined.getEast(), 3);
+    }
+
+    @Test
+    public void restoreReturnsToSavedState() {
+        ImmFilter imm = new ImmFilter();
+        EkfKernel combined = new EkfKernel(0, 0, 0, 0);
+        imm.predict(0.3, Math.PI / 2 - 0.3, 0.7, BEARING_VARIANCES, STEP_VARIANCE);
+        double[] snapshot = new double[ImmFilter.SNAPSHOT_SIZE];
+        imm.save(snapshot);
+        imm.combine(combined);
+        double east = combined.getEast();
+        double turn = imm.getModeProbability(ImmFilter.Mode.TURN);
+
+        imm.predict(1.0, Math.PI / 2 - 1.0, 0.7, BEARING_VARIANCES, STEP_VARIANCE);
+        imm.applyStepEvidence(TurnDetector.MovementType.TURN, 0);
+        imm.restore(snapshot);
+        imm.combine(combined);
+        assertEquals(east, combined.getEast(), 0);
+        assertEquals(turn, imm.getModeProbability(ImmFilter.Mode.TURN), 0);
+    }
+
+    @Test
+    @Category(Benchmark.class)
+    public void benchmarkAgainstSingleMatrixFilter() {
+        int warmup = 20000;
+        int measured = 100000;
+        ImmFilter imm = new ImmFilter();
+        EkfKernel combined = new EkfKernel(0, 0, 0, 0);
+        EkfKernelTest.ReferenceFilter reference = new EkfKernelTest.ReferenceFilter(0.07, STEP_VARIANCE,
+                FIX_VARIANCE, FIX_VARIANCE);
+
+        runBank(imm, combined, warmup);
+        long start = System.nanoTime();
+        double bankSink = runBank(imm, combined, measured);
+        double bankNanos = (double) (System.nanoTime() - start) / measured;
+
+        runReference(reference, warmup / 10);
+        start = System.nanoTime();
+        runReference(reference, measured / 10);
+        double referenceNanos = (double) (System.nanoTime() - start) / (measured / 10);
+
+        System.out.printf("Step with update: IMM of %d modes %.1f ns, single SimpleMatrix filter %.1f ns%n",
+                ImmFilter.MODE_COUNT, bankNanos, referenceNanos);
+        assertFalse(Double.isNaN(bankSink));
+    }
+
+    private static double runBank(ImmFilter imm, EkfKernel combined, int steps) {
+        for (int i = 0; i < steps; i++) {
+            double theta = (i % 628) * 0.01 - Math.PI;
+            imm.predict(theta, EkfKernel.wrapToPi(Math.PI / 2 - theta), 0.7, BEARING_VARIANCES, STEP_VARIANCE);
+            imm.applyStepEvidence(TurnDetector.MovementType.STRAIGHT, 0);
+            imm.combine(combined);
+            imm.update(combined.getEast() + 0.5, combined.getNorth() - 0.5, FIX_VARIANCE, FIX_VARIANCE, true);
+            imm.combine(combined);
+        }
+        return combined.getEast();
+    }
+
+    private static void runReference(EkfKernelTest.ReferenceFilter reference, int steps) {
+        for (int i = 0; i < steps; i++) {
+            double theta = (i % 628) * 0.01 - Math.PI;
+            reference.predict(theta, EkfKernel.wrapToPi(Math.PI / 2 - theta), 0.7);
+            reference.update(0.5 * i, -0.5 * i);
+        }
+    }
+}
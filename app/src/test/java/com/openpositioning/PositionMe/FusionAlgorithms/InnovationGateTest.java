@@ -0,0 +1,73 @@
+package com.openpositioning.PositionMe.FusionAlgorithms;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of the {@link InnovationGate} and of the innovation distances the kernels compute for it.
+ */
+public class InnovationGateTest {
+
+    @Test
+    public void acceptsWithinThreshold() {
+        InnovationGate gate = new InnovationGate(InnovationGate.CHI_SQUARE_2_99, 5);
+        assertTrue(gate.accept(0));
+        assertTrue(gate.accept(InnovationGate.CHI_SQUARE_2_99));
+        assertFalse(gate.accept(InnovationGate.CHI_SQUARE_2_99 + 1e-6));
+        assertEquals(2, gate.getAccepted());
+        assertEquals(1, gate.getRejected());
+    }
+
+    @Test
+    public void acceptsAfterConsecutiveRejections() {
+        InnovationGate gate = new InnovationGate(InnovationGate.CHI_SQUARE_2_99, 3);
+        assertFalse(gate.accept(100));
+        assertFalse(gate.accept(100));
+        assertFalse(gate.accept(100));
+        assertTrue(gate.accept(100));
+        // The run starts again after an accepted fix
+        assertFalse(gate.accept(100));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNonPositiveThreshold() {
+        new InnovationGate(0, 5);
+    }
+
+    @Test
+    public void ekfDistanceMatchesUpdate() {
+        EkfKernel kernel = new EkfKernel(0, 0, 4, 9);
+        kernel.load(new double[]{0.1, 1, 2}, 0, new double[]{0.1, 0.02, 0.01, 0.02, 2, 0.5, 0.01, 0.5, 3}, 0);
+        double expected = kernel.mahalanobis(4, -1);
+        kernel.update(4, -1);
+        assertEquals(kernel.getLastMahalanobis(), expected, 1e-12);
+    }
+
+    @Test
+    public void ekfDistanceWithGivenNoise() {
+        EkfKernel kernel = new EkfKernel(0, 0, 1, 1);
+        // Position variance 1 and observation variance 3 give an innovation variance of 4 on each axis
+        kernel.load(new double[3], 0, new double[]{0, 0, 0, 0, 1, 0, 0, 0, 1}, 0);
+        assertEquals(2.0, kernel.mahalanobis(2, 2, 3, 3), 1e-12);
+        assertEquals(4.0, kernel.mahalanobis(2, 2), 1e-12);
+    }
+
+    @Test
+    public void ukfDistanceMatchesUpdate() {
+        UkfKernel kernel = new UkfKernel(0, 0, 0, 4, 9);
+        kernel.setState(0.1, 1, 2, 0.1, 2, 3, 0.5);
+        double expected = kernel.mahalanobis(4, -1);
+        kernel.update(4, -1);
+        assertEquals(kernel.getLastMahalanobis(), expected, 1e-12);
+    }
+
+    @Test
+    public void gateDiscardsFarFix() {
+        InnovationGate gate = new InnovationGate(InnovationGate.CHI_SQUARE_2_99, 5);
+        UkfKernel kernel = new UkfKernel(0, 0, 0, 25, 25);
+        kernel.setState(0, 0, 0, 0.01, 1, 1, 0);
+        assertTrue(gate.accept(kernel.mahalanobis(5, 5)));
+        assertFalse(gate.accept(kernel.mahalanobis(40, 0)));
+    }
+}
@@ -0,0 +1,138 @@
+package com.openpositioning.PositionMe.FusionAlgorithms;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of the particle count chosen by the {@link KldSampler} for spread and concentrated clouds,
+ * and under a time budget.
+ */
+public class KldSamplerTest {
+    private static final int MIN_PARTICLES = 100;
+    private static final int MAX_PARTICLES = 5000;
+    private static final int COUNT = 2000;
+    private static final long SEED = 4;
+
+    @Test
+    public void countStaysWithinLimits() {
+        KldSampler sampler = new KldSampler(MIN_PARTICLES, MAX_PARTICLES);
+        Random random = new Random(SEED);
+        for (double spread : new double[]{0, 0.01, 0.5, 5, 50, 500}) {
+            Cloud cloud = new Cloud(random, spread);
+            int target = sampler.computeTargetCount(cloud.easting, cloud.northing, cloud.weight, COUNT);
+            assertTrue(target >= MIN_PARTICLES);
+            assertTrue(target <= MAX_PARTICLES);
+        }
+        Cloud point = new Cloud(random, 0);
+        assertEquals(MIN_PARTICLES, sampler.computeTargetCount(point.easting, point.northing, point.weight, COUNT));
+        Cloud wide = new Cloud(random, 500);
+        assertEquals(MAX_PARTICLES, sampler.computeTargetCount(wide.easting, wide.northing, wide.weight, COUNT));
+    }
+
+    @Test
+    public void growsWithSpreadOfCloud() {
+        KldSampler sampler = new KldSampler(MIN_PARTICLES, MAX_PARTICLES);
+        Random random = new Random(SEED);
+        int previous = 0;
+        for (double spread : new double[]{0.2, 1, 2, 4}) {
+            Cloud cloud = new Cloud(random, spread);
+            int target = sampler.computeTargetCount(cloud.easting, cloud.northing, cloud.weight, COUNT);
+            assertTrue(target > previous);
+            previous = target;
+        }
+    }
+
+    @Test
+    public void shrinksOnceCloudConverges() {
+        KldSampler sampler = new KldSampler(MIN_PARTICLES, MAX_PARTICLES);
+        Random random = new Random(SEED);
+        Cloud spread = new Cloud(random, 10);
+        int before = sampler.computeTargetCount(spread.easting, spread.northing, spread.weight, COUNT);
+        Cloud converged = new Cloud(random, 0.1);
+        int after = sampler.computeTargetCount(converged.easting, converged.northing, converged.weight, COUNT);
+        assertTrue(after < before / 10);
+        assertTrue(after >= MIN_PARTICLES);
+    }
+
+    @Test
+    public void negligibleWeightsDoNotCount() {
+        KldSampler sampler = new KldSampler(MIN_PARTICLES, MAX_PARTICLES);
+        Cloud cloud = new Cloud(new Random(SEED), 50);
+        // All the weight on the first particle, the others far below the uniform weight
+        for (int i = 0; i < COUNT; i++) cloud.weight[i] = 1e-12;
+        cloud.weight[0] = 1;
+        assertEquals(MIN_PARTICLES, sampler.computeTargetCount(cloud.easting, cloud.northing, cloud.weight, COUNT));
+    }
+
+    @Test
+    public void timeBudgetCapsCount() {
+        KldSampler sampler = new KldSampler(MIN_PARTICLES, MAX_PARTICLES);
+        Cloud cloud = new Cloud(new Random(SEED), 500);
+        // 1 microsecond per particle and a budget of 0.8 ms allow 800 particles
+        sampler.setTimeBudget(800000);
+        sampler.recordUpdateTime(2000000, 2000);
+        assertEquals(800, sampler.computeTargetCount(cloud.easting, cloud.northing, cloud.weight, COUNT));
+
+        // A budget too small for the minimum still leaves the minimum
+        sampler.setTimeBudget(1000);
+        assertEquals(MIN_PARTICLES, sampler.computeTargetCount(cloud.easting, cloud.northing, cloud.weight, COUNT));
+
+        // No budget, back to the statistical bound
+        sampler.setTimeBudget(0);
+        assertEquals(MAX_PARTICLES, sampler.computeTargetCount(cloud.easting, cloud.northing, cloud.weight, COUNT));
+    }
+
+    @Test
+    public void boundGrowsWithOccupiedBins() {
+        KldSampler sampler = new KldSampler(MIN_PARTICLES, MAX_PARTICLES);
+        assertEquals(MIN_PARTICLES, sampler.kldBound(0));
+        assertEquals(MIN_PARTICLES, sampler.kldBound(1));
+        int previous = 0;
+        for (int bins = 2; bins < 200; bins++) {
+            int bound = sampler.kldBound(bins);
+            assertTrue(bound >= previous);
+            assertTrue(bound <= MAX_PARTICLES);
+            previous = bound;
+        }
+        assertEquals(MAX_PARTICLES, sampler.kldBound(100000));
+    }
+
+    @Test
+    public void countsPopulationLargerThanMaximum() {
+        // The engine may hold more particles than the sampler returns, every one in its own bin
+        KldSampler sampler = new KldSampler(10, 50);
+        Cloud cloud = new Cloud(new Random(SEED), 1000);
+        assertEquals(50, sampler.computeTargetCount(cloud.easting, cloud.northing, cloud.weight, COUNT));
+        assertEquals(50, sampler.computeTargetCount(cloud.easting, cloud.northing, cloud.weight, COUNT));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsMaxBelowMin() {
+        new KldSampler(100, 50);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsZeroMin() {
+        new KldSampler(0, 50);
+    }
+
+    /**
+     * A cloud of COUNT equally weighted particles drawn around the origin.
+     */
+    private static class Cloud {
+        final double[] easting = new double[COUNT];
+        final double[] northing = new double[COUNT];
+        final double[] weight = new double[COUNT];
+
+        Cloud(Random random, double spread) {
+            for (int i = 0; i < COUNT; i++) {
+                easting[i] = 0.1 + spread * random.nextGaussian();
+                northing[i] = 0.1 + spread * random.nextGaussian();
+                weight[i] = 1.0 / COUNT;
+            }
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package com.openpositioning.PositionMe.FusionAlgorithms;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Accuracy tests of the {@link LikelihoodTable} against the exact likelihood it approximates.
+ */
+public class LikelihoodTableTest {
+    private static final double RANGE = 100.0;
+    private static final int INTERVALS = 10000;
+    // Largest relative error allowed inside the table range
+    private static final double MAX_RELATIVE_ERROR = 1e-5;
+
+    @Test
+    public void interpolationMatchesExactLikelihood() {
+        LikelihoodTable table = new LikelihoodTable(DistanceLikelihood.EXPONENTIAL, RANGE, INTERVALS);
+        double worst = 0;
+        // Sample between and on the table entries
+        for (double d = 0; d <= RANGE; d += 0.00137) {
+            double exact = DistanceLikelihood.EXPONENTIAL.evaluate(d);
+            worst = Math.max(worst, Math.abs(table.evaluate(d) - exact) / exact);
+        }
+        assertTrue("Worst relative error " + worst, worst < MAX_RELATIVE_ERROR);
+    }
+
+    @Test
+    public void tableEntriesAreExact() {
+        LikelihoodTable table = new LikelihoodTable(DistanceLikelihood.EXPONENTIAL, RANGE, INTERVALS);
+        double step = RANGE / INTERVALS;
+        for (int i = 0; i <= INTERVALS; i += 97) {
+            assertEquals(DistanceLikelihood.EXPONENTIAL.evaluate(i * step), table.evaluate(i * step), 1e-15);
+        }
+    }
+
+    @Test
+    public void distancesOutsideTableAreClamped() {
+        LikelihoodTable table = new LikelihoodTable(DistanceLikelihood.EXPONENTIAL, RANGE, INTERVALS);
+        double last = DistanceLikelihood.EXPONENTIAL.evaluate(RANGE);
+        assertEquals(last, table.evaluate(RANGE * 10), 0);
+        assertEquals(last, table.evaluate(Double.NaN), 0);
+        assertEquals(1.0, table.evaluate(-1), 0);
+        assertTrue(table.evaluate(RANGE * 10) > 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsEmptyTable() {
+        new LikelihoodTable(DistanceLikelihood.EXPONENTIAL, RANGE, 0);
+    }
+}
@@ -0,0 +1,98 @@
+package com.openpositioning.PositionMe.FusionAlgorithms;
+
+import com.openpositioning.PositionMe.Benchmark;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of the {@link ParticleClusterer} on synthetic particle clouds, and a {@link Benchmark} timing
+ * it for a typical particle count.
+ */
+public class ParticleClustererTest {
+    private static final int NUM_PARTICLES = 5000;
+    private static final double CELL_SIZE = 1.0;
+    private static final long SEED = 42;
+
+    @Test
+    public void bimodalCloudGivesTwoModes() {
+        double[] easting = new double[NUM_PARTICLES];
+        double[] northing = new double[NUM_PARTICLES];
+        double[] weight = new double[NUM_PARTICLES];
+        Random random = new Random(SEED);
+        // 70 % of the weight around (0, 0), 30 % around (20, 5), the mean lies between them
+        for (int i = 0; i < NUM_PARTICLES; i++) {
+            boolean first = i < NUM_PARTICLES * 7 / 10;
+            easting[i] = (first ? 0 : 20) + random.nextGaussian() * 1.0;
+            northing[i] = (first ? 0 : 5) + random.nextGaussian() * 0.5;
+            weight[i] = 1.0 / NUM_PARTICLES;
+        }
+
+        ParticleClusterer clusterer = new ParticleClusterer(NUM_PARTICLES, CELL_SIZE, 3);
+        assertEquals(2, clusterer.cluster(easting, northing, weight, NUM_PARTICLES));
+        assertEquals(0.7, clusterer.getModeWeight(0), 1e-9);
+        assertEquals(0.3, clusterer.getModeWeight(1), 1e-9);
+        assertEquals(0, clusterer.getModeEasting(0), 0.1);
+        assertEquals(0, clusterer.getModeNorthing(0), 0.1);
+        assertEquals(20, clusterer.getModeEasting(1), 0.1);
+        assertEquals(5, clusterer.getModeNorthing(1), 0.1);
+        assertEquals(1.0, clusterer.getModeVarianceEast(0), 0.1);
+        assertEquals(0.25, clusterer.getModeVarianceNorth(0), 0.05);
+        assertEquals(0, clusterer.getModeCovariance(0), 0.05);
+    }
+
+    @Test
+    public void keepsOnlyHeaviestModes() {
+        // Five isolated clumps with increasing weight
+        int perClump = 10;
+        double[] easting = new double[5 * perClump];
+        double[] northing = new double[5 * perClump];
+        double[] weight = new double[5 * perClump];
+        double total = 0;
+        for (int c = 0; c < 5; c++) {
+            for (int i = 0; i < perClump; i++) {
+                easting[c * perClump + i] = c * 10 + 0.1 * i;
+                northing[c * perClump + i] = 0;
+                weight[c * perClump + i] = c + 1;
+                total += c + 1;
+            }
+        }
+        for (int i = 0; i < weight.length; i++) weight[i] /= total;
+
+        ParticleClusterer clusterer = new ParticleClusterer(weight.length, CELL_SIZE, 2);
+        assertEquals(2, clusterer.cluster(easting, northing, weight, weight.length));
+        assertEquals(40.45, clusterer.getModeEasting(0), 1e-9);
+        assertEquals(30.45, clusterer.getModeEasting(1), 1e-9);
+        assertTrue(clusterer.getModeWeight(0) > clusterer.getModeWeight(1));
+    }
+
+    @Test
+    @Category(Benchmark.class)
+    public void clusteringRunsWellUnderOneMillisecond() {
+        double[] easting = new double[NUM_PARTICLES];
+        double[] northing = new double[NUM_PARTICLES];
+        double[] weight = new double[NUM_PARTICLES];
+        Random random = new Random(SEED);
+        for (int i = 0; i < NUM_PARTICLES; i++) {
+            easting[i] = random.nextGaussian() * 5;
+            northing[i] = random.nextGaussian() * 5;
+            weight[i] = 1.0 / NUM_PARTICLES;
+        }
+        ParticleClusterer clusterer = new ParticleClusterer(NUM_PARTICLES, CELL_SIZE, 3);
+        for (int i = 0; i < 2000; i++) {
+            clusterer.cluster(easting, northing, weight, NUM_PARTICLES);
+        }
+        int runs = 500;
+        long start = System.nanoTime();
+        for (int i = 0; i < runs; i++) {
+            clusterer.cluster(easting, northing, weight, NUM_PARTICLES);
+        }
+        double millis = (System.nanoTime() - start) / 1e6 / runs;
+        System.out.printf("ParticleClusterer %d particles: %.3f ms/pass%n", NUM_PARTICLES, millis);
+        assertTrue(millis < 1.0);
+    }
+}
@@ -0,0 +1,76 @@
+package com.openpositioning.PositionMe.FusionAlgorithms;
+
+import com.openpositioning.PositionMe.Benchmark;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local benchmark of the {@link ParticleEngine} parallel mode. Runs the same workload on pools of
+ * increasing size, prints the time per update, and checks that the result only depends on the seed.
+ */
+public class ParticleEngineBenchmarkTest {
+    private static final int NUM_PARTICLES = 50000;
+    private static final int WARMUP_UPDATES = 20;
+    private static final int MEASURED_UPDATES = 50;
+    private static final long SEED = 42;
+
+    @Test
+    public void parallelResultIndependentOfPoolSize() {
+        ForkJoinPool singleThread = new ForkJoinPool(1);
+        ForkJoinPool allCores = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        try {
+            ParticleEngine first = runUpdates(new ParticleEngine(NUM_PARTICLES, SEED, singleThread), 10);
+            ParticleEngine second = runUpdates(new ParticleEngine(NUM_PARTICLES, SEED, allCores), 10);
+            for (int i = 0; i < NUM_PARTICLES; i++) {
+                assertEquals(first.getEasting(i), second.getEasting(i), 0);
+                assertEquals(first.getNorthing(i), second.getNorthing(i), 0);
+                assertEquals(first.getWeight(i), second.getWeight(i), 0);
+            }
+        } finally {
+            singleThread.shutdown();
+            allCores.shutdown();
+        }
+    }
+
+    @Test
+    @Category(Benchmark.class)
+    public void benchmarkScalingAcrossCores() {
+        int cores = Runtime.getRuntime().availableProcessors();
+        double sequentialMs = timeUpdates(new ParticleEngine(NUM_PARTICLES, new java.util.Random(SEED)));
+        System.out.printf("ParticleEngine %d particles, sequential: %.3f ms/update%n", NUM_PARTICLES, sequentialMs);
+
+        for (int threads = 1; threads <= cores; threads *= 2) {
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            try {
+                double parallelMs = timeUpdates(new ParticleEngine(NUM_PARTICLES, SEED, pool));
+                System.out.printf("ParticleEngine %d particles, %d threads: %.3f ms/update (x%.2f)%n",
+                        NUM_PARTICLES, threads, parallelMs, sequentialMs / parallelMs);
+                assertTrue(parallelMs > 0);
+            } finally {
+                pool.shutdown();
+            }
+        }
+    }
+
+    private static double timeUpdates(ParticleEngine engine) {
+        runUpdates(engine, WARMUP_UPDATES);
+        long start = System.nanoTime();
+        runUpdates(engine, MEASURED_UPDATES);
+        return (System.nanoTime() - start) / 1e6 / MEASURED_UPDATES;
+    }
+
+    private static ParticleEngine runUpdates(ParticleEngine engine, int updates) {
+        engine.initialise(0, 0, 5);
+        for (int k = 0; k < updates; k++) {
+            engine.applyMotionNoise(1.0);
+            engine.applyMeasurement(k * 0.5, k * 0.25);
+            engine.resampleIfNeeded();
+        }
+        return engine;
+    }
+}
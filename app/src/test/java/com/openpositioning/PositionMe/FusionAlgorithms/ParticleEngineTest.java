@@ -0,0 +1,79 @@
+package com.openpositioning.PositionMe.FusionAlgorithms;
+
+import com.openpositioning.PositionMe.Buildings.WallMap;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of the step path of the {@link ParticleEngine} as run by the {@link ParticleFilter} on
+ * every step: moving the particles, resampling if needed and recording the time of the update,
+ * and of the weighting of the particles by fixes of different accuracies.
+ */
+public class ParticleEngineTest {
+    private static final int NUM_PARTICLES = 1000;
+    private static final long SEED = 6;
+    // A wall running North one meter East of the start
+    private static final WallMap WALL = new WallMap(new double[]{1}, new double[]{-10},
+            new double[]{1}, new double[]{10});
+
+    @Test
+    public void stepWithoutWallsKeepsParticles() {
+        ParticleEngine engine = new ParticleEngine(NUM_PARTICLES, new Random(SEED));
+        engine.initialise(0, 0, 0.3);
+        engine.applyStep(1.0, Math.PI / 2, 0.05, 0.01);
+        assertFalse(engine.resampleIfNeeded());
+        assertEquals(NUM_PARTICLES, engine.getEffectiveSampleSize(), 1e-6);
+    }
+
+    @Test
+    public void stepThroughWallResamplesCrossingParticlesAway() {
+        ParticleEngine engine = new ParticleEngine(NUM_PARTICLES, new Random(SEED));
+        engine.setResampleThreshold(0.5);
+        engine.initialise(0, 0, 0.2);
+        engine.setWallMap(WALL, 0);
+        // Walking 1.2 m East takes most of the cloud through the wall
+        engine.applyStep(1.2, Math.PI / 2, 0.05, 0.01);
+        assertTrue(engine.getEffectiveSampleSize() < 0.5 * NUM_PARTICLES);
+        assertTrue(engine.resampleIfNeeded());
+        for (int i = 0; i < engine.getNumParticles(); i++) {
+            assertTrue(engine.getEasting(i) < 1);
+            assertEquals(1.0 / engine.getNumParticles(), engine.getWeight(i), 1e-12);
+        }
+    }
+
+    @Test
+    public void recordedStepTimeLimitsAdaptiveCount() {
+        ParticleEngine engine = new ParticleEngine(NUM_PARTICLES, new Random(SEED));
+        KldSampler sampler = new KldSampler(100, NUM_PARTICLES);
+        // 1 ms per update for 1000 particles, over a budget of 0.2 ms, leaves room for 200 particles
+        sampler.setTimeBudget(200000);
+        engine.setKldSampler(sampler);
+        engine.initialise(0, 0, 50);
+        engine.applyStep(1.0, 0, 0.05, 0.01);
+        engine.recordUpdateTime(1000000);
+        assertTrue(engine.resampleIfNeeded());
+        assertEquals(200, engine.getNumParticles());
+    }
+
+    @Test
+    public void lessAccurateFixWeighsLessSharply() {
+        ParticleEngine accurate = new ParticleEngine(NUM_PARTICLES, new Random(SEED));
+        accurate.initialise(0, 0, 10);
+        accurate.applyMeasurement(5, 5, 1);
+        ParticleEngine inaccurate = new ParticleEngine(NUM_PARTICLES, new Random(SEED));
+        inaccurate.initialise(0, 0, 10);
+        inaccurate.applyMeasurement(5, 5, 4);
+        assertTrue(inaccurate.getEffectiveSampleSize() > accurate.getEffectiveSampleSize());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsZeroDistanceScale() {
+        ParticleEngine engine = new ParticleEngine(NUM_PARTICLES, new Random(SEED));
+        engine.initialise(0, 0, 1);
+        engine.applyMeasurement(0, 0, 0);
+    }
+}
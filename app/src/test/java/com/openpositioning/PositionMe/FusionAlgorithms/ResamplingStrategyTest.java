@@ -0,0 +1,122 @@
+package com.openpositioning.PositionMe.FusionAlgorithms;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of the {@link ResamplingStrategy} schemes on small weight vectors, checking that every
+ * particle is copied in proportion to its weight.
+ */
+public class ResamplingStrategyTest {
+    private static final long SEED = 2;
+    private static final double[] WEIGHTS = {0.1, 0.2, 0.3, 0.4};
+    private static final int TRIALS = 20000;
+
+    @Test
+    public void copiesAreUnbiased() {
+        for (ResamplingStrategy strategy : ResamplingStrategy.values()) {
+            for (int outCount : new int[]{4, 7}) {
+                Random random = new Random(SEED);
+                int[] ancestors = new int[outCount];
+                double[] scratch = new double[WEIGHTS.length];
+                long[] copies = new long[WEIGHTS.length];
+                for (int t = 0; t < TRIALS; t++) {
+                    strategy.resample(WEIGHTS, WEIGHTS.length, ancestors, outCount, scratch, random);
+                    for (int m = 0; m < outCount; m++) {
+                        copies[ancestors[m]]++;
+                    }
+                }
+                for (int i = 0; i < WEIGHTS.length; i++) {
+                    assertEquals(strategy + " particle " + i, WEIGHTS[i] * outCount,
+                            (double) copies[i] / TRIALS, 0.02 * outCount);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void lowVarianceSchemesStayWithinOneCopy() {
+        Random random = new Random(SEED);
+        int outCount = 10;
+        int[] ancestors = new int[outCount];
+        double[] scratch = new double[WEIGHTS.length];
+        for (ResamplingStrategy strategy : new ResamplingStrategy[]{
+                ResamplingStrategy.SYSTEMATIC, ResamplingStrategy.RESIDUAL}) {
+            for (int t = 0; t < 1000; t++) {
+                strategy.resample(WEIGHTS, WEIGHTS.length, ancestors, outCount, scratch, random);
+                int[] copies = new int[WEIGHTS.length];
+                for (int m = 0; m < outCount; m++) {
+                    copies[ancestors[m]]++;
+                }
+                for (int i = 0; i < WEIGHTS.length; i++) {
+                    double expected = WEIGHTS[i] * outCount;
+                    assertTrue(strategy + " particle " + i, copies[i] >= Math.floor(expected - 1e-9));
+                    assertTrue(strategy + " particle " + i, copies[i] <= Math.ceil(expected + 1e-9));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void systematicWithFixedOffset() {
+        double[] weights = {0.5, 0, 0.25, 0.25};
+        int[] ancestors = new int[4];
+        // An offset of half a step samples the distribution at 1/8, 3/8, 5/8 and 7/8
+        ResamplingStrategy.SYSTEMATIC.resample(weights, 4, ancestors, 4, new double[4], new FixedRandom(0.5));
+        assertArrayEquals(new int[]{0, 0, 2, 3}, ancestors);
+    }
+
+    @Test
+    public void residualCopiesWholeShares() {
+        double[] weights = {0.5, 0, 0.25, 0.25};
+        int[] ancestors = new int[4];
+        // Every share is a whole number of copies, so no random draw is needed
+        ResamplingStrategy.RESIDUAL.resample(weights, 4, ancestors, 4, new double[4], new FixedRandom(0.99));
+        assertArrayEquals(new int[]{0, 0, 2, 3}, ancestors);
+    }
+
+    @Test
+    public void uniformWeightsKeepEveryParticle() {
+        double[] weights = {0.2, 0.2, 0.2, 0.2, 0.2};
+        int[] ancestors = new int[5];
+        for (ResamplingStrategy strategy : new ResamplingStrategy[]{
+                ResamplingStrategy.SYSTEMATIC, ResamplingStrategy.RESIDUAL}) {
+            strategy.resample(weights, 5, ancestors, 5, new double[5], new Random(SEED));
+            assertArrayEquals(strategy.toString(), new int[]{0, 1, 2, 3, 4}, ancestors);
+        }
+    }
+
+    @Test
+    public void zeroWeightsAreNeverDrawn() {
+        double[] weights = {0, 0.5, 0, 0.5, 0};
+        Random random = new Random(SEED);
+        int[] ancestors = new int[8];
+        for (ResamplingStrategy strategy : ResamplingStrategy.values()) {
+            for (int t = 0; t < 1000; t++) {
+                strategy.resample(weights, 5, ancestors, 8, new double[5], random);
+                for (int ancestor : ancestors) {
+                    assertTrue(strategy.toString(), ancestor == 1 || ancestor == 3);
+                }
+            }
+        }
+    }
+
+    /**
+     * A random source whose uniform draws are all the same value.
+     */
+    private static class FixedRandom extends Random {
+        private final double value;
+
+        FixedRandom(double value) {
+            this.value = value;
+        }
+
+        @Override
+        public double nextDouble() {
+            return value;
+        }
+    }
+}
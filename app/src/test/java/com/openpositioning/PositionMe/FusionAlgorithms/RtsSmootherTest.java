@@ -0,0 +1,194 @@
+package com.openpositioning.PositionMe.FusionAlgorithms;
+
+import com.openpositioning.PositionMe.Benchmark;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Accuracy and cost tests of the {@link RtsSmoother} on a simulated walk filtered with the
+ * {@link EkfKernel}.
+ */
+public class RtsSmootherTest {
+    private static final long SEED = 7;
+    // A 30 minute recording at two steps per second
+    private static final int STEPS = 3600;
+    private static final double STEP_LENGTH_STD = 0.15;
+    private static final double FIX_STD = 4.0;
+    private static final int FIX_INTERVAL = 5;
+
+    @Test
+    public void smoothingReducesPositionError() {
+        Walk walk = simulate(new RtsSmoother(64));
+        walk.smoother.smoothInterval();
+
+        double filteredError = 0;
+        double smoothedError = 0;
+        for (int i = 0; i < STEPS; i++) {
+            filteredError += squared(walk.filteredEast[i] - walk.trueEast[i], walk.filteredNorth[i] - walk.trueNorth[i]);
+            smoothedError += squared(walk.smoother.getSmoothedEast(i) - walk.trueEast[i],
+                    walk.smoother.getSmoothedNorth(i) - walk.trueNorth[i]);
+        }
+        double filteredRmse = Math.sqrt(filteredError / STEPS);
+        double smoothedRmse = Math.sqrt(smoothedError / STEPS);
+        System.out.printf("Position RMSE: filtered %.2f m, smoothed %.2f m%n", filteredRmse, smoothedRmse);
+        assertTrue(smoothedRmse < 0.8 * filteredRmse);
+    }
+
+    @Test
+    public void smoothedCovarianceIsNotLargerThanFiltered() {
+        Walk walk = simulate(new RtsSmoother(STEPS));
+        walk.smoother.smoothInterval();
+        for (int i = STEPS / 2; i < STEPS; i++) {
+            assertTrue(walk.smoother.getSmoothedCovariance(i, 1, 1) <= walk.filteredVarianceEast[i] + 1e-9);
+            assertTrue(walk.smoother.getSmoothedCovariance(i, 2, 2) <= walk.filteredVarianceNorth[i] + 1e-9);
+        }
+    }
+
+    @Test
+    public void lastStepKeepsFilteredEstimate() {
+        Walk walk = simulate(new RtsSmoother(STEPS));
+        walk.smoother.smoothInterval();
+        assertEquals(walk.filteredEast[STEPS - 1], walk.smoother.getSmoothedEast(STEPS - 1), 0);
+        assertEquals(walk.filteredNorth[STEPS - 1], walk.smoother.getSmoothedNorth(STEPS - 1), 0);
+    }
+
+    @Test
+    public void lagOverWholeRecordingMatchesInterval() {
+        Walk interval = simulate(new RtsSmoother(STEPS));
+        interval.smoother.smoothInterval();
+        Walk lagged = simulate(new RtsSmoother(STEPS));
+        assertEquals(0, lagged.smoother.smoothLag(STEPS - 1));
+        for (int i = 0; i < STEPS; i++) {
+            assertEquals(interval.smoother.getSmoothedEast(i), lagged.smoother.getSmoothedEast(i), 0);
+            assertEquals(interval.smoother.getSmoothedNorth(i), lagged.smoother.getSmoothedNorth(i), 0);
+        }
+        assertEquals(-1, lagged.smoother.smoothLag(STEPS));
+    }
+
+    @Test
+    public void fixedLagTracksIntervalResult() {
+        RtsSmoother smoother = new RtsSmoother(STEPS);
+        Walk walk = simulate(smoother);
+        // Lagged estimates computed at the end of each step, as done live
+        RtsSmoother live = new RtsSmoother(16);
+        EkfKernel predicted = new EkfKernel(0, 0, 0, 0);
+        EkfKernel filtered = new EkfKernel(0, 0, 0, 0);
+        int lag = 10;
+        double laggedError = 0;
+        double filteredError = 0;
+        int count = 0;
+        for (int i = 0; i < STEPS; i++) {
+            walk.restore(i, predicted, filtered);
+            live.add(i, 0, predicted, filtered, true, walk.adaptedHeading[i], walk.stepLength[i]);
+            int index = live.smoothLag(lag);
+            if (index < 0) continue;
+            laggedError += squared(live.getSmoothedEast(index) - walk.trueEast[index],
+                    live.getSmoothedNorth(index) - walk.trueNorth[index]);
+            filteredError += squared(walk.filteredEast[index] - walk.trueEast[index],
+                    walk.filteredNorth[index] - walk.trueNorth[index]);
+            count++;
+        }
+        assertTrue(Math.sqrt(laggedError / count) < Math.sqrt(filteredError / count));
+    }
+
+    @Test
+    @Category(Benchmark.class)
+    public void benchmarkRecordingSmoothing() {
+        Walk walk = simulate(new RtsSmoother(64));
+        for (int i = 0; i < 20; i++) {
+            walk.smoother.smoothInterval();
+        }
+        int repeats = 50;
+        long start = System.nanoTime();
+        for (int i = 0; i < repeats; i++) {
+            walk.smoother.smoothInterval();
+        }
+        double millis = (System.nanoTime() - start) / 1e6 / repeats;
+        System.out.printf("Fixed-interval smoothing of %d steps: %.3f ms%n", STEPS, millis);
+        assertFalse(Double.isNaN(walk.smoother.getSmoothedEast(0)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNegativeLag() {
+        new RtsSmoother(4).smoothLag(-1);
+    }
+
+    private static double squared(double east, double north) {
+        return east * east + north * north;
+    }
+
+    /**
+     * Walks a meandering path, filtering noisy step lengths and occasional noisy fixes with the kernel.
+     */
+    private static Walk simulate(RtsSmoother smoother) {
+        Random random = new Random(SEED);
+        Walk walk = new Walk(smoother);
+        EkfKernel kernel = new EkfKernel(Math.pow(Math.toRadians(5), 2), STEP_LENGTH_STD * STEP_LENGTH_STD,
+                FIX_STD * FIX_STD, FIX_STD * FIX_STD);
+        EkfKernel predicted = new EkfKernel(0, 0, 0, 0);
+        double east = 0;
+        double north = 0;
+        double heading = 0;
+        for (int i = 0; i < STEPS; i++) {
+            heading += Math.toRadians(3) * random.nextGaussian();
+            double trueLength = 0.7;
+            east += trueLength * Math.sin(heading);
+            north += trueLength * Math.cos(heading);
+
+            double measuredLength = trueLength + STEP_LENGTH_STD * random.nextGaussian();
+            double adaptedHeading = EkfKernel.wrapToPi(Math.PI / 2 - heading);
+            kernel.predict(heading, adaptedHeading, measuredLength);
+            predicted.set(kernel);
+            if (i % FIX_INTERVAL == 0) {
+                kernel.update(east + FIX_STD * random.nextGaussian(), north + FIX_STD * random.nextGaussian());
+            }
+            smoother.add(i, 0, predicted, kernel, true, adaptedHeading, measuredLength);
+            walk.record(i, east, north, adaptedHeading, measuredLength, predicted, kernel);
+        }
+        return walk;
+    }
+
+    private static class Walk {
+        final RtsSmoother smoother;
+        final double[] trueEast = new double[STEPS];
+        final double[] trueNorth = new double[STEPS];
+        final double[] filteredEast = new double[STEPS];
+        final double[] filteredNorth = new double[STEPS];
+        final double[] filteredVarianceEast = new double[STEPS];
+        final double[] filteredVarianceNorth = new double[STEPS];
+        final double[] adaptedHeading = new double[STEPS];
+        final double[] stepLength = new double[STEPS];
+        final EkfKernel[] predicted = new EkfKernel[STEPS];
+        final EkfKernel[] filtered = new EkfKernel[STEPS];
+
+        Walk(RtsSmoother smoother) {
+            this.smoother = smoother;
+        }
+
+        void record(int i, double east, double north, double heading, double length,
+                    EkfKernel predictedState, EkfKernel filteredState) {
+            trueEast[i] = east;
+            trueNorth[i] = north;
+            filteredEast[i] = filteredState.getEast();
+            filteredNorth[i] = filteredState.getNorth();
+            filteredVarianceEast[i] = filteredState.getCovariance(1, 1);
+            filteredVarianceNorth[i] = filteredState.getCovariance(2, 2);
+            adaptedHeading[i] = heading;
+            stepLength[i] = length;
+            predicted[i] = new EkfKernel(0, 0, 0, 0);
+            predicted[i].set(predictedState);
+            filtered[i] = new EkfKernel(0, 0, 0, 0);
+            filtered[i].set(filteredState);
+        }
+
+        void restore(int i, EkfKernel predictedState, EkfKernel filteredState) {
+            predictedState.set(predicted[i]);
+            filteredState.set(filtered[i]);
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package com.openpositioning.PositionMe.FusionAlgorithms;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of the {@link StrapdownKernel}.
+ */
+public class StrapdownKernelTest {
+    private static final long SEED = 20;
+    // Sample period of the gyroscope at 100 Hz, in seconds
+    private static final double DT = 0.01;
+    private static final double TOLERANCE = 1e-2;
+
+    @Test
+    public void walksAlongHeading() {
+        StrapdownKernel kernel = newKernel();
+        kernel.setState(Math.PI / 2, 0, 0, 1.4, 0.01, 1, 1, 0, 0.1);
+        for (int i = 0; i < 100; i++) {
+            kernel.propagate(0, DT);
+        }
+        assertEquals(1.4, kernel.get(StrapdownKernel.EAST), TOLERANCE);
+        assertEquals(0, kernel.get(StrapdownKernel.NORTH), TOLERANCE);
+        // The position error grows across the heading with the heading variance and along it with the speed variance
+        assertTrue(kernel.getCovariance(StrapdownKernel.EAST, StrapdownKernel.EAST) > 1);
+        assertTrue(kernel.getCovariance(StrapdownKernel.NORTH, StrapdownKernel.NORTH) > 1);
+    }
+
+    @Test
+    public void integratesTurnFromYawRate() {
+        StrapdownKernel kernel = newKernel();
+        kernel.setState(0, 0, 0, 1, 0.01, 1, 1, 0, 0.1);
+        // A quarter turn clockwise over one second, along an arc of radius 2 / pi
+        double yawRate = Math.PI / 2;
+        for (int i = 0; i < 100; i++) {
+            kernel.propagate(yawRate, DT);
+        }
+        double radius = 1 / yawRate;
+        assertEquals(Math.PI / 2, kernel.get(StrapdownKernel.HEADING), 1e-9);
+        assertEquals(radius, kernel.get(StrapdownKernel.EAST), TOLERANCE);
+        assertEquals(radius, kernel.get(StrapdownKernel.NORTH), TOLERANCE);
+    }
+
+    @Test
+    public void headingObservationWrapsAroundSouth() {
+        StrapdownKernel kernel = newKernel();
+        kernel.setState(Math.toRadians(179), 0, 0, 0, 0.1, 1, 1, 0, 0.1);
+        kernel.observe(StrapdownKernel.HEADING, Math.toRadians(-179), 1e-6);
+        // Two degrees clockwise across South, rather than 358 degrees back through North
+        assertEquals(Math.toRadians(-179), kernel.get(StrapdownKernel.HEADING), 1e-3);
+    }
+
+    @Test
+    public void positionFixesCorrectHeading() {
+        Random random = new Random(SEED);
+        StrapdownKernel kernel = newKernel();
+        // Walking North while the estimate starts 30 degrees off
+        double trueHeading = 0;
+        kernel.setState(Math.toRadians(30), 0, 0, 1.2, Math.pow(Math.toRadians(30), 2), 1, 1, 0, 0.01);
+        double trueNorth = 0;
+        for (int second = 1; second <= 30; second++) {
+            for (int i = 0; i < 100; i++) {
+                kernel.propagate(0, DT);
+            }
+            trueNorth += 1.2;
+            kernel.observePosition(random.nextGaussian(), trueNorth + random.nextGaussian(), 1);
+        }
+        assertEquals(trueHeading, kernel.get(StrapdownKernel.HEADING), Math.toRadians(5));
+    }
+
+    @Test
+    public void covarianceStaysSymmetricAndPositive() {
+        Random random = new Random(SEED);
+        StrapdownKernel kernel = newKernel();
+        kernel.setState(0, 0, 0, 0, 0.1, 1, 1, 0, 1);
+        for (int i = 0; i < 10000; i++) {
+            kernel.propagate(random.nextGaussian(), DT);
+            if (i % 50 == 0) {
+                kernel.observe(StrapdownKernel.HEADING, random.nextGaussian(), 0.03);
+                kernel.observe(StrapdownKernel.SPEED, 1.2 + 0.1 * random.nextGaussian(), 0.04);
+            }
+            if (i % 500 == 0) {
+                kernel.observePosition(random.nextGaussian(), random.nextGaussian(), 25);
+            }
+        }
+        for (int r = 0; r < 4; r++) {
+            assertTrue(kernel.getCovariance(r, r) > 0);
+            for (int c = 0; c < 4; c++) {
+                assertEquals(kernel.getCovariance(r, c), kernel.getCovariance(c, r), 1e-9);
+            }
+        }
+    }
+
+    @Test
+    public void mahalanobisMatchesScalarCase() {
+        StrapdownKernel kernel = newKernel();
+        kernel.setState(0, 0, 0, 0, 0.1, 3, 3, 0, 1);
+        // S = 4 on each axis, so an innovation of (2, 2) has a squared distance of 2
+        assertEquals(2, kernel.mahalanobis(2, 2, 1), 1e-9);
+    }
+
+    private static StrapdownKernel newKernel() {
+        return new StrapdownKernel(Math.pow(Math.toRadians(1), 2), 0.5);
+    }
+}
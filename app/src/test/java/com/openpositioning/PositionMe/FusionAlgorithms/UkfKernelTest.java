@@ -0,0 +1,221 @@
+package com.openpositioning.PositionMe.FusionAlgorithms;
+
+import com.openpositioning.PositionMe.Benchmark;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of the {@link UkfKernel}, and a comparison of its accuracy with the {@link EkfKernel} on
+ * replayed walks through corridors with right angled turns, with a {@link Benchmark} of the cost of
+ * a step of both.
+ */
+public class UkfKernelTest {
+    private static final long SEED = 3;
+    private static final int STEPS = 2000;
+    private static final double STEP_LENGTH = 0.7;
+    private static final double STEP_LENGTH_STD = 0.1;
+    private static final double HEADING_STD = Math.toRadians(5);
+    // Constant error of the heading reported by the sensors, as left by a poorly calibrated magnetometer
+    private static final double HEADING_ERROR = Math.toRadians(10);
+    private static final double FIX_STD = 4.0;
+    private static final int FIX_INTERVAL = 10;
+    private static final int STEPS_PER_CORRIDOR = 25;
+
+    @Test
+    public void staysStillWithoutSteps() {
+        UkfKernel kernel = new UkfKernel(0.01, 0.01, 0.01, 1, 1);
+        kernel.setState(0, 3, 4, 0.1, 1, 1, 0);
+        kernel.predict(0.5, 0);
+        assertEquals(3, kernel.getEast(), 1e-12);
+        assertEquals(4, kernel.getNorth(), 1e-12);
+        assertEquals(0.11, kernel.getCovariance(0, 0), 1e-12);
+    }
+
+    @Test
+    public void stepFollowsHeading() {
+        UkfKernel kernel = new UkfKernel(0, 0, 0, 1, 1);
+        kernel.predict(Math.PI / 2, 1);
+        assertEquals(1, kernel.getEast(), 1e-12);
+        assertEquals(0, kernel.getNorth(), 1e-12);
+    }
+
+    @Test
+    public void headingUncertaintyShortensMeanStep() {
+        // Averaging over an uncertain heading bends the points along an arc, so the mean moves less
+        // than the step length, which a linearised prediction does not capture
+        UkfKernel kernel = new UkfKernel(0, Math.pow(Math.toRadians(30), 2), 0, 1, 1);
+        kernel.predict(0, 1);
+        assertTrue(kernel.getNorth() < 0.95);
+        assertTrue(kernel.getCovariance(1, 1) > 0);
+    }
+
+    @Test
+    public void covarianceStaysSymmetricPositive() {
+        Recording recording = new Recording(new Random(SEED));
+        UkfKernel kernel = newUkf();
+        for (int i = 0; i < STEPS; i++) {
+            kernel.predict(recording.measuredHeading[i], recording.measuredLength[i]);
+            if (recording.hasFix[i]) {
+                kernel.update(recording.fixEast[i], recording.fixNorth[i]);
+            }
+            for (int d = 0; d < 3; d++) {
+                assertTrue(kernel.getCovariance(d, d) >= 0);
+                for (int e = 0; e < 3; e++) {
+                    assertEquals(kernel.getCovariance(d, e), kernel.getCovariance(e, d), 0);
+                }
+            }
+            double east = kernel.getCovariance(1, 1);
+            double north = kernel.getCovariance(2, 2);
+            double cross = kernel.getCovariance(1, 2);
+            assertTrue(east * north - cross * cross >= -1e-9);
+        }
+    }
+
+    @Test
+    public void learnsHeadingError() {
+        Recording recording = new Recording(new Random(SEED));
+        UkfKernel kernel = newUkf();
+        for (int i = 0; i < STEPS; i++) {
+            kernel.predict(recording.measuredHeading[i], recording.measuredLength[i]);
+            if (recording.hasFix[i]) {
+                kernel.update(recording.fixEast[i], recording.fixNorth[i]);
+            }
+        }
+        assertEquals(-HEADING_ERROR, kernel.getBearing(), Math.toRadians(4));
+    }
+
+    @Test
+    public void replayedRecordingsAgainstEkf() {
+        int recordings = 20;
+        double ekfError = 0;
+        double ukfError = 0;
+        for (int r = 0; r < recordings; r++) {
+            Recording recording = new Recording(new Random(SEED + r));
+            ekfError += replayEkf(recording, newEkf());
+            ukfError += replayUkf(recording, newUkf());
+        }
+        double ekfRmse = Math.sqrt(ekfError / (recordings * STEPS));
+        double ukfRmse = Math.sqrt(ukfError / (recordings * STEPS));
+        System.out.printf("Position RMSE: EKF %.2f m, UKF %.2f m%n", ekfRmse, ukfRmse);
+        assertTrue(ukfRmse < ekfRmse);
+    }
+
+    @Test
+    @Category(Benchmark.class)
+    public void benchmarkStepCostAgainstEkf() {
+        Recording recording = new Recording(new Random(SEED));
+        EkfKernel ekf = newEkf();
+        UkfKernel ukf = newUkf();
+        for (int i = 0; i < 20; i++) {
+            replayEkf(recording, ekf);
+            replayUkf(recording, ukf);
+        }
+        int repeats = 50;
+        long start = System.nanoTime();
+        double sink = 0;
+        for (int i = 0; i < repeats; i++) {
+            sink += replayEkf(recording, ekf);
+        }
+        double ekfNanos = (double) (System.nanoTime() - start) / (repeats * STEPS);
+        start = System.nanoTime();
+        for (int i = 0; i < repeats; i++) {
+            sink += replayUkf(recording, ukf);
+        }
+        double ukfNanos = (double) (System.nanoTime() - start) / (repeats * STEPS);
+
+        System.out.printf("Per step: EKF %.1f ns, UKF %.1f ns%n", ekfNanos, ukfNanos);
+        assertFalse(Double.isNaN(sink));
+    }
+
+    private static EkfKernel newEkf() {
+        return new EkfKernel(0, 0, FIX_STD * FIX_STD, FIX_STD * FIX_STD);
+    }
+
+    private static UkfKernel newUkf() {
+        UkfKernel kernel = new UkfKernel(Math.pow(Math.toRadians(1), 2), HEADING_STD * HEADING_STD,
+                STEP_LENGTH_STD * STEP_LENGTH_STD, FIX_STD * FIX_STD, FIX_STD * FIX_STD);
+        kernel.setState(0, 0, 0, Math.pow(Math.toRadians(15), 2), 1, 1, 0);
+        return kernel;
+    }
+
+    /**
+     * Replays a recording through the EKF kernel, raising the heading noise on the turns as the
+     * turn detector does, and returns the sum of the squared position errors.
+     */
+    private static double replayEkf(Recording recording, EkfKernel kernel) {
+        kernel.load(new double[3], 0, new double[]{0, 0, 0, 0, 1, 0, 0, 0, 1}, 0);
+        double error = 0;
+        for (int i = 0; i < STEPS; i++) {
+            double thetaStd = recording.turn[i] ? Math.toRadians(15) : Math.toRadians(2);
+            kernel.setProcessNoise(thetaStd * thetaStd, STEP_LENGTH_STD * STEP_LENGTH_STD);
+            double theta = recording.measuredHeading[i];
+            kernel.predict(theta, EkfKernel.wrapToPi(Math.PI / 2 - theta), recording.measuredLength[i]);
+            if (recording.hasFix[i]) {
+                kernel.update(recording.fixEast[i], recording.fixNorth[i]);
+            }
+            error += squared(kernel.getEast() - recording.trueEast[i], kernel.getNorth() - recording.trueNorth[i]);
+        }
+        return error;
+    }
+
+    /**
+     * Replays a recording through the UKF kernel and returns the sum of the squared position errors.
+     */
+    private static double replayUkf(Recording recording, UkfKernel kernel) {
+        kernel.setState(0, 0, 0, Math.pow(Math.toRadians(15), 2), 1, 1, 0);
+        double error = 0;
+        for (int i = 0; i < STEPS; i++) {
+            kernel.predict(recording.measuredHeading[i], recording.measuredLength[i]);
+            if (recording.hasFix[i]) {
+                kernel.update(recording.fixEast[i], recording.fixNorth[i]);
+            }
+            error += squared(kernel.getEast() - recording.trueEast[i], kernel.getNorth() - recording.trueNorth[i]);
+        }
+        return error;
+    }
+
+    private static double squared(double east, double north) {
+        return east * east + north * north;
+    }
+
+    /**
+     * A walk along corridors joined by right angled turns, with the step headings and lengths
+     * measured by PDR and the fixes received along the way.
+     */
+    private static class Recording {
+        final double[] trueEast = new double[STEPS];
+        final double[] trueNorth = new double[STEPS];
+        final double[] measuredHeading = new double[STEPS];
+        final double[] measuredLength = new double[STEPS];
+        final boolean[] turn = new boolean[STEPS];
+        final boolean[] hasFix = new boolean[STEPS];
+        final double[] fixEast = new double[STEPS];
+        final double[] fixNorth = new double[STEPS];
+
+        Recording(Random random) {
+            double east = 0;
+            double north = 0;
+            double heading = 0;
+            for (int i = 0; i < STEPS; i++) {
+                if (i > 0 && i % STEPS_PER_CORRIDOR == 0) {
+                    heading += random.nextBoolean() ? Math.PI / 2 : -Math.PI / 2;
+                    turn[i] = true;
+                }
+                east += STEP_LENGTH * Math.sin(heading);
+                north += STEP_LENGTH * Math.cos(heading);
+                trueEast[i] = east;
+                trueNorth[i] = north;
+                measuredHeading[i] = EkfKernel.wrapToPi(heading + HEADING_ERROR + HEADING_STD * random.nextGaussian());
+                measuredLength[i] = STEP_LENGTH + STEP_LENGTH_STD * random.nextGaussian();
+                hasFix[i] = i % FIX_INTERVAL == FIX_INTERVAL - 1;
+                fixEast[i] = east + FIX_STD * random.nextGaussian();
+                fixNorth[i] = north + FIX_STD * random.nextGaussian();
+            }
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package com.openpositioning.PositionMe.FusionAlgorithms;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of the {@link VerticalKalmanFilter} on simulated barometer altitudes.
+ */
+public class VerticalKalmanFilterTest {
+    private static final long SEED = 9;
+    private static final long SECOND = 1000000000L;
+    private static final double FLOOR_HEIGHT = 4;
+    private static final double BARO_STD = 0.5;
+
+    @Test
+    public void tracksClimbAndChangesFloor() {
+        Random random = new Random(SEED);
+        VerticalKalmanFilter filter = newFilter();
+        // Standing for 10 s, climbing a floor at 0.4 m/s over 10 s, standing for 10 s
+        double trueAltitude = 0;
+        for (int t = 0; t < 30; t++) {
+            if (t >= 10 && t < 20) trueAltitude += 0.4;
+            filter.update(trueAltitude + BARO_STD * random.nextGaussian(), t * SECOND);
+            if (t == 17) {
+                assertEquals(0.4, filter.getVerticalVelocity(), 0.25);
+            }
+        }
+        assertEquals(1, filter.getFloor());
+        assertEquals(FLOOR_HEIGHT, filter.getAltitude(), 1);
+    }
+
+    @Test
+    public void noiseAroundMidpointDoesNotToggleFloor() {
+        Random random = new Random(SEED);
+        VerticalKalmanFilter filter = newFilter();
+        filter.update(0, 0);
+        int changes = 0;
+        int floor = filter.getFloor();
+        for (int t = 1; t < 600; t++) {
+            // Standing on a landing at the midpoint between two floors
+            filter.update(FLOOR_HEIGHT / 2 + BARO_STD * random.nextGaussian(), t * SECOND);
+            if (filter.getFloor() != floor) {
+                changes++;
+                floor = filter.getFloor();
+            }
+        }
+        assertEquals(0, changes);
+    }
+
+    @Test
+    public void liftCrossesSeveralFloors() {
+        VerticalKalmanFilter filter = newFilter();
+        filter.update(0, 0);
+        for (int t = 1; t <= 10; t++) {
+            filter.update(-1.6 * t, t * SECOND);
+        }
+        for (int t = 11; t <= 40; t++) {
+            filter.update(-16, t * SECOND);
+        }
+        assertEquals(-4, filter.getFloor());
+    }
+
+    @Test
+    public void resetAndSetFloorKeepReportedFloor() {
+        VerticalKalmanFilter filter = newFilter();
+        filter.setFloor(2);
+        filter.update(0, 0);
+        assertEquals(2, filter.getFloor());
+        for (int t = 1; t <= 30; t++) {
+            filter.update(4, t * SECOND);
+        }
+        assertEquals(3, filter.getFloor());
+        filter.reset();
+        assertFalse(filter.isInitialised());
+        // The altitude of the next sample is taken as the height of the current floor
+        filter.update(4, 31 * SECOND);
+        assertEquals(3, filter.getFloor());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsHysteresisAboveHalfFloor() {
+        new VerticalKalmanFilter(0.05, 1, 0.01, 4, 2);
+    }
+
+    private static VerticalKalmanFilter newFilter() {
+        return new VerticalKalmanFilter(0.01, BARO_STD * BARO_STD * 4, 0.01, FLOOR_HEIGHT, 0.25 * FLOOR_HEIGHT);
+    }
+}
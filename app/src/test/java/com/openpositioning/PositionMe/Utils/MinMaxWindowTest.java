@@ -0,0 +1,69 @@
+package com.openpositioning.PositionMe.Utils;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of the {@link MinMaxWindow} against a scan of the window.
+ */
+public class MinMaxWindowTest {
+    private static final long SEED = 24;
+
+    @Test
+    public void emptyWindowHasNoExtremes() {
+        MinMaxWindow window = new MinMaxWindow(4);
+        assertTrue(window.isEmpty());
+        assertTrue(Double.isNaN(window.getMax()));
+        assertTrue(Double.isNaN(window.getMin()));
+    }
+
+    @Test
+    public void matchesScanWithEvictionAndClears() {
+        Random random = new Random(SEED);
+        int capacity = 16;
+        MinMaxWindow window = new MinMaxWindow(capacity);
+        List<Double> reference = new ArrayList<>();
+        for (int i = 0; i < 20000; i++) {
+            if (random.nextInt(40) == 0) {
+                window.clear();
+                reference.clear();
+                continue;
+            }
+            // Repeated values exercise the ties in the deques
+            double value = random.nextInt(8) == 0 ? 1.0 : random.nextGaussian();
+            window.add(value);
+            reference.add(value);
+            if (reference.size() > capacity) {
+                reference.remove(0);
+            }
+            assertEquals(reference.size(), window.size());
+            assertEquals(Collections.max(reference), window.getMax(), 0);
+            assertEquals(Collections.min(reference), window.getMin(), 0);
+        }
+    }
+
+    @Test
+    public void oldExtremesLeaveWindow() {
+        MinMaxWindow window = new MinMaxWindow(3);
+        window.add(10);
+        window.add(-10);
+        window.add(1);
+        assertEquals(10, window.getMax(), 0);
+        assertEquals(-10, window.getMin(), 0);
+        window.add(2);
+        assertEquals(2, window.getMax(), 0);
+        window.add(0);
+        assertEquals(0, window.getMin(), 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNaN() {
+        new MinMaxWindow(3).add(Double.NaN);
+    }
+}
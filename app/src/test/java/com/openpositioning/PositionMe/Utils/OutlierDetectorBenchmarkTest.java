@@ -0,0 +1,131 @@
+package com.openpositioning.PositionMe.Utils;
+
+import com.openpositioning.PositionMe.Benchmark;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local benchmark of the windowed {@link OutlierDetector} against the original implementation,
+ * which kept every distance and sorted them all twice per check. Prints the time per check with
+ * 1k, 10k and 100k distances of history, the windowed detector taking its statistics over the same
+ * number of distances, and checks that both detectors make the same decisions.
+ */
+public class OutlierDetectorBenchmarkTest {
+    private static final long SEED = 11;
+    private static final int[] HISTORY_SIZES = {1000, 10000, 100000};
+    // Checks timed per history size, fewer for the original detector whose checks grow with the history
+    private static final int WARMUP_CHECKS = 100000;
+    private static final int MEASURED_CHECKS = 20000;
+    private static final long MEASURED_REFERENCE_NANOS = 200000000L;
+
+    @Test
+    public void sameDecisionsAsOriginal() {
+        Random random = new Random(SEED);
+        int samples = 3000;
+        OutlierDetector windowed = new OutlierDetector(samples);
+        UnboundedOutlierDetector reference = new UnboundedOutlierDetector();
+        int outliers = 0;
+        for (int i = 0; i < samples; i++) {
+            double distance = nextDistance(random);
+            boolean expected = reference.detectOutliers(distance);
+            assertEquals(expected, windowed.detectOutliers(distance, i));
+            if (expected) outliers++;
+        }
+        assertTrue(outliers > 0);
+    }
+
+    @Test
+    @Category(Benchmark.class)
+    public void benchmarkAgainstOriginal() {
+        Random warmupRandom = new Random(SEED);
+        OutlierDetector warmup = new OutlierDetector(1000);
+        for (int i = 0; i < WARMUP_CHECKS; i++) {
+            warmup.detectOutliers(nextDistance(warmupRandom), i);
+        }
+
+        for (int history : HISTORY_SIZES) {
+            Random random = new Random(SEED);
+            OutlierDetector windowed = new OutlierDetector(history);
+            UnboundedOutlierDetector reference = new UnboundedOutlierDetector();
+            for (int i = 0; i < history; i++) {
+                double distance = nextDistance(random);
+                windowed.detectOutliers(distance, i);
+                reference.distances.add(distance);
+            }
+
+            long start = System.nanoTime();
+            for (int i = 0; i < MEASURED_CHECKS; i++) {
+                windowed.detectOutliers(nextDistance(random), history + i);
+            }
+            double windowedNanos = (double) (System.nanoTime() - start) / MEASURED_CHECKS;
+
+            int referenceChecks = 0;
+            start = System.nanoTime();
+            while (System.nanoTime() - start < MEASURED_REFERENCE_NANOS || referenceChecks < 3) {
+                reference.detectOutliers(nextDistance(random));
+                referenceChecks++;
+            }
+            double referenceNanos = (double) (System.nanoTime() - start) / referenceChecks;
+
+            System.out.printf("OutlierDetector with %d distances: windowed %.0f ns/check, original %.0f ns/check (x%.1f)%n",
+                    history, windowedNanos, referenceNanos, referenceNanos / windowedNanos);
+            assertEquals(history, windowed.size(), history / 100);
+        }
+    }
+
+    /**
+     * Draws a distance of a fix from the estimate, a few of them being far off.
+     */
+    private static double nextDistance(Random random) {
+        if (random.nextInt(50) == 0) {
+            return 6 + 3 * random.nextDouble();
+        }
+        return Math.abs(2 + random.nextGaussian());
+    }
+
+    /**
+     * The original outlier detector, keeping every distance in a list sorted on every check.
+     */
+    private static class UnboundedOutlierDetector {
+        private static final double OUTLIER_THRESHOLD = 3.0;
+        private static final double Z_SCORE_FACTOR = 0.6745;
+        private static final double max_distance_threshold = 10;
+        final List<Double> distances = new ArrayList<>();
+
+        boolean detectOutliers(double newDistance) {
+            distances.add(newDistance);
+            if (newDistance > max_distance_threshold) {
+                return true;
+            }
+            double median = calculateMedian(distances);
+            List<Double> absoluteDeviations = new ArrayList<>();
+            for (double distance : distances) {
+                absoluteDeviations.add(Math.abs(distance - median));
+            }
+            double mad = calculateMedian(absoluteDeviations);
+            double modifiedZScore = Z_SCORE_FACTOR * ((Math.abs(newDistance - median)) / mad);
+            if (modifiedZScore > OUTLIER_THRESHOLD) {
+                distances.remove(distances.indexOf(newDistance));
+                return true;
+            }
+            return false;
+        }
+
+        private static double calculateMedian(List<Double> values) {
+            Collections.sort(values);
+            int size = values.size();
+            if (size % 2 != 0) {
+                return values.get(size / 2);
+            }
+            return (values.get((size - 1) / 2) + values.get(size / 2)) / 2.0;
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package com.openpositioning.PositionMe.Utils;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of the bounded window {@link OutlierDetector}.
+ */
+public class OutlierDetectorTest {
+
+    @Test
+    public void windowIsBounded() {
+        OutlierDetector detector = new OutlierDetector(8);
+        for (int i = 0; i < 100; i++) {
+            detector.detectOutliers(1 + (i % 3) * 0.1);
+        }
+        assertEquals(8, detector.size());
+    }
+
+    @Test
+    public void detectsDistanceBeyondMaximum() {
+        OutlierDetector detector = new OutlierDetector();
+        assertTrue(detector.detectOutliers(11));
+    }
+
+    @Test
+    public void detectsOutlierAndDropsIt() {
+        OutlierDetector detector = new OutlierDetector(16);
+        double[] distances = {2.0, 2.2, 1.8, 2.1, 1.9, 2.0, 2.3, 1.7};
+        for (double distance : distances) {
+            detector.detectOutliers(distance);
+        }
+        int size = detector.size();
+        assertTrue(detector.detectOutliers(9));
+        assertEquals(size, detector.size());
+        assertFalse(detector.detectOutliers(2.05));
+    }
+
+    @Test
+    public void expiredDistancesLeaveWindow() {
+        OutlierDetector detector = new OutlierDetector(64, 10000);
+        for (int i = 0; i < 10; i++) {
+            detector.detectOutliers(2 + i * 0.01, i * 1000L);
+        }
+        assertEquals(10, detector.size());
+        // The distances measured before 5 s have expired by 15 s
+        assertFalse(detector.detectOutliers(2.07, 15000));
+        assertEquals(6, detector.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsEmptyWindow() {
+        new OutlierDetector(0);
+    }
+}
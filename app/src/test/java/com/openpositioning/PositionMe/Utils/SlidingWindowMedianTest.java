@@ -0,0 +1,106 @@
+package com.openpositioning.PositionMe.Utils;
+
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of the {@link SlidingWindowMedian} against the statistics of a sorted copy of the window.
+ */
+public class SlidingWindowMedianTest {
+
+    @Test
+    public void matchesSortedWindow() {
+        Random random = new Random(7);
+        int windowSize = 33;
+        SlidingWindowMedian window = new SlidingWindowMedian(windowSize);
+        Deque<Double> reference = new ArrayDeque<>();
+        for (int i = 0; i < 5000; i++) {
+            // Few distinct values so that ties are exercised
+            double value = (i % 3 == 0) ? random.nextInt(6) : random.nextGaussian() * 3;
+            window.add(value, i);
+            if (reference.size() == windowSize) reference.removeFirst();
+            reference.addLast(value);
+            if (random.nextInt(10) == 0) {
+                assertTrue(window.removeNewest());
+                reference.removeLast();
+            }
+            assertEquals(reference.size(), window.size());
+            if (reference.isEmpty()) continue;
+
+            double[] sorted = sorted(reference);
+            for (int rank = 0; rank < sorted.length; rank++) {
+                assertEquals(sorted[rank], window.get(rank), 0);
+            }
+            double median = median(sorted);
+            assertEquals(median, window.median(), 0);
+            double centre = (i % 2 == 0) ? median : random.nextGaussian() * 5;
+            double[] deviations = new double[sorted.length];
+            for (int k = 0; k < sorted.length; k++) {
+                deviations[k] = Math.abs(sorted[k] - centre);
+            }
+            Arrays.sort(deviations);
+            assertEquals(median(deviations), window.medianAbsoluteDeviation(centre), 0);
+        }
+    }
+
+    @Test
+    public void expiresOldValues() {
+        SlidingWindowMedian window = new SlidingWindowMedian(100, 1000);
+        window.add(1, 0);
+        window.add(2, 500);
+        window.add(3, 1000);
+        assertEquals(3, window.size());
+        window.add(10, 1600);
+        // The values of 0 and 500 ms are older than a second
+        assertEquals(2, window.size());
+        assertEquals(6.5, window.median(), 0);
+        window.expire(5000);
+        assertEquals(0, window.size());
+        assertTrue(Double.isNaN(window.median()));
+    }
+
+    @Test
+    public void evictsOldestWhenFull() {
+        SlidingWindowMedian window = new SlidingWindowMedian(3);
+        for (int i = 0; i < 10; i++) {
+            window.add(i, i);
+        }
+        assertEquals(3, window.size());
+        assertEquals(7, window.get(0), 0);
+        assertEquals(9, window.get(2), 0);
+        assertEquals(2, window.countLess(9));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNaN() {
+        new SlidingWindowMedian(4).add(Double.NaN, 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsEmptyWindow() {
+        new SlidingWindowMedian(0);
+    }
+
+    private static double[] sorted(Deque<Double> values) {
+        List<Double> list = new ArrayList<>(values);
+        double[] sorted = new double[list.size()];
+        for (int i = 0; i < sorted.length; i++) {
+            sorted[i] = list.get(i);
+        }
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    private static double median(double[] sorted) {
+        int size = sorted.length;
+        return (size % 2 != 0) ? sorted[size / 2] : (sorted[(size - 1) / 2] + sorted[size / 2]) / 2.0;
+    }
+}
@@ -0,0 +1,78 @@
+package com.openpositioning.PositionMe.sensors;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Consistency tests of the {@link ImuSnapshot} read concurrently with its writer.
+ */
+public class ImuSnapshotTest {
+    @Test
+    public void readsWrittenValues() {
+        ImuSnapshot snapshot = new ImuSnapshot();
+        float[] sample = new float[ImuSnapshot.SIZE];
+        snapshot.read(sample);
+        // Identity rotation before the first rotation vector
+        assertEquals(1, sample[ImuSnapshot.ROTATION_VECTOR + 3], 0);
+
+        snapshot.write(ImuSnapshot.ACCELERATION, new float[]{0.1f, 0.2f, 9.8f}, 3);
+        snapshot.write(ImuSnapshot.ROTATION_VECTOR, new float[]{0.5f, 0.5f, 0.5f, 0.5f, -1}, 4);
+        snapshot.read(sample);
+        assertEquals(9.8f, sample[ImuSnapshot.ACCELERATION + 2], 0);
+        assertEquals(0.5f, sample[ImuSnapshot.ROTATION_VECTOR + 3], 0);
+        assertEquals(0, sample[ImuSnapshot.MAGNETIC_FIELD], 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsValuesOutOfSnapshot() {
+        new ImuSnapshot().write(ImuSnapshot.MAGNETIC_FIELD, new float[4], 4);
+    }
+
+    @Test
+    public void concurrentReadsAreNeverTorn() throws InterruptedException {
+        final ImuSnapshot snapshot = new ImuSnapshot();
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicReference<String> failure = new AtomicReference<>();
+        final long[] reads = {0};
+        Thread reader = new Thread(() -> {
+            float[] sample = new float[ImuSnapshot.SIZE];
+            float lastAcceleration = -1;
+            while (running.get()) {
+                snapshot.read(sample);
+                reads[0]++;
+                // Every value of an event is its sequence number, and events only move forward
+                for (int i = 1; i < 3; i++) {
+                    if (sample[ImuSnapshot.ACCELERATION + i] != sample[ImuSnapshot.ACCELERATION]
+                            || sample[ImuSnapshot.ANGULAR_VELOCITY + i] != sample[ImuSnapshot.ANGULAR_VELOCITY]) {
+                        failure.compareAndSet(null, "Torn sample at " + sample[ImuSnapshot.ACCELERATION]);
+                    }
+                }
+                if (sample[ImuSnapshot.ACCELERATION] < lastAcceleration) {
+                    failure.compareAndSet(null, "Sample went back to " + sample[ImuSnapshot.ACCELERATION]);
+                }
+                lastAcceleration = sample[ImuSnapshot.ACCELERATION];
+            }
+        });
+        reader.start();
+        float[] values = new float[3];
+        int events = 2000000;
+        long start = System.nanoTime();
+        for (int i = 0; i < events; i++) {
+            values[0] = i;
+            values[1] = i;
+            values[2] = i;
+            snapshot.write(i % 2 == 0 ? ImuSnapshot.ACCELERATION : ImuSnapshot.ANGULAR_VELOCITY, values, 3);
+        }
+        double nanosPerWrite = (double) (System.nanoTime() - start) / events;
+        running.set(false);
+        reader.join(10000);
+        System.out.printf("ImuSnapshot: %.1f ns/write, %d reads, %d retries%n", nanosPerWrite, reads[0],
+                snapshot.getRetries());
+        assertNull(failure.get());
+        assertTrue(reads[0] > 0);
+    }
+}
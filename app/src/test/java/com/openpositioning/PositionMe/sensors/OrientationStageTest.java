@@ -0,0 +1,152 @@
+package com.openpositioning.PositionMe.sensors;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of the {@link OrientationStage} against the rotation matrix path it replaces, and a count
+ * of the bytes it allocates per rotation vector event.
+ */
+public class OrientationStageTest {
+    private static final long SEED = 23;
+
+    @Test
+    public void azimuthMatchesRotationMatrix() {
+        Random random = new Random(SEED);
+        OrientationStage stage = new OrientationStage();
+        float[] values = new float[5];
+        for (int i = 0; i < 10000; i++) {
+            randomQuaternion(random, values);
+            stage.update(values, 4);
+            assertEquals(matrixAzimuth(values), stage.getAzimuth(), 1e-4);
+        }
+    }
+
+    @Test
+    public void completesVectorPartOfQuaternion() {
+        Random random = new Random(SEED);
+        OrientationStage stage = new OrientationStage();
+        float[] values = new float[4];
+        for (int i = 0; i < 1000; i++) {
+            randomQuaternion(random, values);
+            // The sign of w does not change the attitude, devices reporting three values use w >= 0
+            if (values[3] < 0) {
+                for (int j = 0; j < 4; j++) values[j] = -values[j];
+            }
+            stage.update(values, 3);
+            assertEquals(values[3], stage.getQuaternion()[3], 1e-3);
+            assertEquals(matrixAzimuth(values), stage.getAzimuth(), 1e-3);
+        }
+    }
+
+    @Test
+    public void headingOfDeviceTurnedEast() {
+        OrientationStage stage = new OrientationStage();
+        // Flat, rotated 90 degrees clockwise about the vertical
+        float half = (float) Math.toRadians(-45);
+        stage.update(new float[]{0, 0, (float) Math.sin(half), (float) Math.cos(half)}, 4);
+        assertEquals(Math.PI / 2, stage.getAzimuth(), 1e-6);
+    }
+
+    @Test
+    public void coalescesNotifications() {
+        OrientationStage stage = new OrientationStage();
+        float[] values = {0, 0, 0, 1};
+        assertTrue(stage.update(values, 4));
+        // Not notified again until the pending notification is taken
+        assertFalse(stage.update(values, 4));
+        assertFalse(stage.update(values, 4));
+        values[2] = 1;
+        values[3] = 0;
+        stage.update(values, 4);
+        // Reading the heading alone does not take the notification
+        assertEquals(Math.PI, Math.abs(stage.getAzimuth()), 1e-6);
+        assertFalse(stage.update(values, 4));
+        // The observer takes it, then reads the latest heading
+        stage.takeNotification();
+        assertEquals(Math.PI, Math.abs(stage.getAzimuth()), 1e-6);
+        assertTrue(stage.update(values, 4));
+    }
+
+    @Test
+    public void updateDoesNotAllocate() {
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assumeAllocationCounting(threads);
+        Random random = new Random(SEED);
+        int events = 100000;
+        float[][] samples = new float[events][4];
+        for (float[] sample : samples) {
+            randomQuaternion(random, sample);
+        }
+        OrientationStage stage = new OrientationStage();
+        // Warm up so the update is compiled
+        float sink = runEvents(stage, samples);
+
+        long threadId = Thread.currentThread().getId();
+        // Cost of the measurement itself
+        long before = threads.getThreadAllocatedBytes(threadId);
+        long overhead = threads.getThreadAllocatedBytes(threadId) - before;
+        before = threads.getThreadAllocatedBytes(threadId);
+        sink += runEvents(stage, samples);
+        long allocated = threads.getThreadAllocatedBytes(threadId) - before - overhead;
+        System.out.printf("OrientationStage: %d bytes allocated over %d events (sink %.1f)%n",
+                allocated, events, sink);
+        assertEquals(0, allocated);
+    }
+
+    private static void assumeAllocationCounting(com.sun.management.ThreadMXBean threads) {
+        org.junit.Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+    }
+
+    private static float runEvents(OrientationStage stage, float[][] samples) {
+        float sum = 0;
+        for (float[] sample : samples) {
+            if (stage.update(sample, 4)) {
+                stage.takeNotification();
+                sum += stage.getAzimuth();
+            }
+            sum += stage.getQuaternion()[3];
+        }
+        return sum;
+    }
+
+    private static void randomQuaternion(Random random, float[] values) {
+        double x = random.nextGaussian();
+        double y = random.nextGaussian();
+        double z = random.nextGaussian();
+        double w = random.nextGaussian();
+        double norm = Math.sqrt(x * x + y * y + z * z + w * w);
+        values[0] = (float) (x / norm);
+        values[1] = (float) (y / norm);
+        values[2] = (float) (z / norm);
+        values[3] = (float) (w / norm);
+    }
+
+    /**
+     * The azimuth from the rotation matrix, as SensorManager.getRotationMatrixFromVector() and
+     * SensorManager.getOrientation() compute it.
+     */
+    private static double matrixAzimuth(float[] q) {
+        float q1 = q[0];
+        float q2 = q[1];
+        float q3 = q[2];
+        float q0 = q[3];
+        float[] r = new float[9];
+        r[0] = 1 - 2 * q2 * q2 - 2 * q3 * q3;
+        r[1] = 2 * q1 * q2 - 2 * q3 * q0;
+        r[2] = 2 * q1 * q3 + 2 * q2 * q0;
+        r[3] = 2 * q1 * q2 + 2 * q3 * q0;
+        r[4] = 1 - 2 * q1 * q1 - 2 * q3 * q3;
+        r[5] = 2 * q2 * q3 - 2 * q1 * q0;
+        r[6] = 2 * q1 * q3 - 2 * q2 * q0;
+        r[7] = 2 * q2 * q3 + 2 * q1 * q0;
+        r[8] = 1 - 2 * q1 * q1 - 2 * q2 * q2;
+        return Math.atan2(r[1], r[4]);
+    }
+}
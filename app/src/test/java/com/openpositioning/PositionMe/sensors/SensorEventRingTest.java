@@ -0,0 +1,123 @@
+package com.openpositioning.PositionMe.sensors;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Ordering, overwrite and tearing tests of the {@link SensorEventRing}.
+ */
+public class SensorEventRingTest {
+    private static final int WIDTH = 3;
+
+    @Test
+    public void readsEventsInOrder() {
+        SensorEventRing ring = new SensorEventRing(16, WIDTH);
+        SensorEventRing.Cursor cursor = ring.newCursor();
+        assertFalse(cursor.advance());
+        for (int i = 0; i < 5; i++) {
+            ring.publish(new float[]{i, 2 * i, 3 * i}, 100 + i);
+        }
+        for (int i = 0; i < 5; i++) {
+            assertTrue(cursor.advance());
+            assertEquals(100 + i, cursor.getTimestamp());
+            assertEquals(WIDTH, cursor.getLength());
+            assertEquals(2 * i, cursor.getValues()[1], 0);
+        }
+        assertFalse(cursor.advance());
+        assertEquals(0, cursor.getSkipped());
+    }
+
+    @Test
+    public void cursorsReadIndependently() {
+        SensorEventRing ring = new SensorEventRing(8, WIDTH);
+        SensorEventRing.Cursor first = ring.newCursor();
+        ring.publish(new float[]{1, 1, 1}, 1);
+        SensorEventRing.Cursor second = ring.newCursor();
+        ring.publish(new float[]{2, 2, 2}, 2);
+
+        assertTrue(first.advance());
+        assertEquals(1, first.getTimestamp());
+        // A new cursor only sees the events published after it
+        assertTrue(second.advance());
+        assertEquals(2, second.getTimestamp());
+        assertTrue(first.advance());
+        assertEquals(2, first.getTimestamp());
+        assertFalse(first.hasNext());
+        assertFalse(second.hasNext());
+    }
+
+    @Test
+    public void keepsShortEventsAndTruncatesLongOnes() {
+        SensorEventRing ring = new SensorEventRing(4, WIDTH);
+        SensorEventRing.Cursor cursor = ring.newCursor();
+        ring.publish(new float[]{7}, 1);
+        ring.publish(new float[]{1, 2, 3, 4, 5}, 2);
+        assertTrue(cursor.advance());
+        assertEquals(1, cursor.getLength());
+        assertEquals(7, cursor.getValues()[0], 0);
+        assertTrue(cursor.advance());
+        assertEquals(WIDTH, cursor.getLength());
+        assertEquals(3, cursor.getValues()[2], 0);
+    }
+
+    @Test
+    public void lappedCursorSkipsToNewestHalf() {
+        SensorEventRing ring = new SensorEventRing(8, WIDTH);
+        SensorEventRing.Cursor cursor = ring.newCursor();
+        for (int i = 0; i < 20; i++) {
+            ring.publish(new float[]{i, i, i}, i);
+        }
+        // Only the newest half of the ring is read
+        assertTrue(cursor.advance());
+        assertEquals(16, cursor.getTimestamp());
+        assertEquals(16, cursor.getSkipped());
+        int read = 1;
+        while (cursor.advance()) {
+            read++;
+        }
+        assertEquals(4, read);
+        assertEquals(19, cursor.getTimestamp());
+    }
+
+    @Test
+    public void concurrentReadsAreNeverTorn() throws InterruptedException {
+        final int count = 2000000;
+        final SensorEventRing ring = new SensorEventRing(16, WIDTH);
+        final SensorEventRing.Cursor cursor = ring.newCursor();
+        final AtomicReference<String> failure = new AtomicReference<>();
+        Thread consumer = new Thread(() -> {
+            long last = -1;
+            while (last < count - 1 && failure.get() == null) {
+                if (!cursor.advance()) continue;
+                float[] values = cursor.getValues();
+                long timestamp = cursor.getTimestamp();
+                // Every value of an event is its sequence number
+                if (values[0] != (float) timestamp || values[1] != values[0] || values[2] != values[0]) {
+                    failure.set("Torn event " + timestamp);
+                } else if (timestamp <= last) {
+                    failure.set("Event " + timestamp + " after " + last);
+                }
+                last = timestamp;
+            }
+        });
+        consumer.start();
+        float[] values = new float[WIDTH];
+        for (int i = 0; i < count; i++) {
+            values[0] = i;
+            values[1] = i;
+            values[2] = i;
+            ring.publish(values, i);
+        }
+        consumer.join(10000);
+        assertFalse(consumer.isAlive());
+        assertNull(failure.get());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsZeroWidth() {
+        new SensorEventRing(8, 0);
+    }
+}
@@ -0,0 +1,112 @@
+package com.openpositioning.PositionMe.sensors;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Ordering and threading tests of the {@link SensorIngestion}.
+ */
+public class SensorIngestionTest {
+    private static final long TIMEOUT_SECONDS = 10;
+    // Sensor types as in android.hardware.Sensor
+    private static final int ACCELEROMETER = 1;
+    private static final int GYROSCOPE = 4;
+    private static final int STEP_DETECTOR = 18;
+
+    @Test
+    public void processesSensorsInTimestampOrder() {
+        List<Long> timestamps = new ArrayList<>();
+        List<Integer> types = new ArrayList<>();
+        SensorIngestion ingestion = new SensorIngestion(new int[]{ACCELEROMETER, GYROSCOPE, STEP_DETECTOR},
+                16, 3, "test", (type, timestamp, values, length) -> {
+                    types.add(type);
+                    timestamps.add(timestamp);
+                });
+        // Published out of order across sensors, processed on the calling thread
+        ingestion.publish(GYROSCOPE, new float[]{0, 0, 1}, 15);
+        ingestion.publish(ACCELEROMETER, new float[]{0, 0, 9.8f}, 10);
+        ingestion.publish(ACCELEROMETER, new float[]{0, 0, 9.8f}, 20);
+        ingestion.publish(STEP_DETECTOR, new float[]{1}, 18);
+        while (ingestion.processNext()) {
+            // Drain
+        }
+        assertEquals(4, ingestion.getProcessedEvents());
+        assertEquals(Arrays.asList(10L, 15L, 18L, 20L), timestamps);
+        assertEquals(Arrays.asList(ACCELEROMETER, GYROSCOPE, STEP_DETECTOR, ACCELEROMETER), types);
+    }
+
+    @Test
+    public void ignoresTypesNotIngested() {
+        SensorIngestion ingestion = new SensorIngestion(new int[]{ACCELEROMETER}, 16, 3, "test",
+                (type, timestamp, values, length) -> fail("Unexpected event"));
+        ingestion.publish(GYROSCOPE, new float[]{0, 0, 1}, 1);
+        ingestion.publish(100, new float[]{0, 0, 1}, 1);
+        assertFalse(ingestion.processNext());
+        assertNull(ingestion.getRing(GYROSCOPE));
+        assertNotNull(ingestion.getRing(ACCELEROMETER));
+    }
+
+    @Test
+    public void processingThreadReceivesEveryEvent() throws InterruptedException {
+        final int count = 100000;
+        final long[] received = new long[count];
+        final int[] index = {0};
+        final CountDownLatch done = new CountDownLatch(1);
+        SensorIngestion ingestion = new SensorIngestion(new int[]{ACCELEROMETER}, 1 << 18, 3, "test",
+                (type, timestamp, values, length) -> {
+                    received[index[0]++] = timestamp;
+                    if (index[0] == count) done.countDown();
+                });
+        ingestion.start();
+        float[] values = new float[3];
+        for (int i = 0; i < count; i++) {
+            ingestion.publish(ACCELEROMETER, values, i);
+            if (i % 1000 == 0) {
+                // Let the processing thread park now and then
+                Thread.sleep(1);
+            }
+        }
+        assertTrue(done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        ingestion.shutdown();
+        for (int i = 0; i < count; i++) {
+            assertEquals(i, received[i]);
+        }
+        assertEquals(0, ingestion.getSkippedEvents());
+    }
+
+    @Test
+    public void postedTasksRunOnProcessingThreadAcrossRestarts() throws InterruptedException {
+        final CountDownLatch event = new CountDownLatch(1);
+        SensorIngestion ingestion = new SensorIngestion(new int[]{ACCELEROMETER}, 16, 3, "test",
+                (type, timestamp, values, length) -> event.countDown());
+        final List<String> threads = new ArrayList<>();
+        final CountDownLatch first = new CountDownLatch(1);
+        // Posted before the start, run once the thread is started
+        ingestion.post(() -> {
+            threads.add(Thread.currentThread().getName());
+            first.countDown();
+        });
+        ingestion.start();
+        assertTrue(first.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+        ingestion.shutdown();
+        ingestion.start();
+        final CountDownLatch second = new CountDownLatch(1);
+        ingestion.post(() -> {
+            threads.add(Thread.currentThread().getName());
+            second.countDown();
+        });
+        ingestion.publish(ACCELEROMETER, new float[3], 1);
+        assertTrue(second.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertTrue(event.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        ingestion.shutdown();
+        assertEquals(Arrays.asList("test", "test"), threads);
+    }
+}
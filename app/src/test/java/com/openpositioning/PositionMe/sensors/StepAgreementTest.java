@@ -0,0 +1,56 @@
+package com.openpositioning.PositionMe.sensors;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of the matching of the software and sensor steps by the {@link StepAgreement}.
+ */
+public class StepAgreementTest {
+    private static final long MILLIS = 1_000_000L;
+
+    @Test
+    public void matchesLateSensorSteps() {
+        StepAgreement agreement = new StepAgreement(1000 * MILLIS);
+        // The sensor reports each step 600 ms late, after the next software step
+        for (int i = 0; i < 20; i++) {
+            agreement.onSoftwareStep(i * 500 * MILLIS);
+            if (i > 0) agreement.onHardwareStep((i - 1) * 500 * MILLIS + 600 * MILLIS);
+        }
+        assertEquals(19, agreement.getMatched());
+        assertEquals(0, agreement.getSoftwareOnly());
+        assertEquals(0, agreement.getHardwareOnly());
+        assertEquals(600 * MILLIS, agreement.getMeanLatencyNanos(), 1);
+        assertEquals(1.0, agreement.getAgreement(), 0);
+        assertEquals(19, agreement.getHardwareLatency().getCount());
+    }
+
+    @Test
+    public void countsMissedSteps() {
+        StepAgreement agreement = new StepAgreement(200 * MILLIS);
+        agreement.onSoftwareStep(0);
+        agreement.onHardwareStep(50 * MILLIS);
+        // Only seen by the software detector
+        agreement.onSoftwareStep(500 * MILLIS);
+        // Only seen by the sensor
+        agreement.onHardwareStep(1500 * MILLIS);
+        // The sensor ahead of the software detector
+        agreement.onHardwareStep(2000 * MILLIS);
+        agreement.onSoftwareStep(2100 * MILLIS);
+        assertEquals(2, agreement.getMatched());
+        assertEquals(1, agreement.getSoftwareOnly());
+        assertEquals(1, agreement.getHardwareOnly());
+        assertEquals(1, agreement.getHardwareAhead());
+        assertEquals(0.5, agreement.getAgreement(), 1e-9);
+        assertEquals(-25 * MILLIS, agreement.getMeanLatencyNanos(), 1);
+        agreement.reset();
+        assertEquals(0, agreement.getMatched());
+        assertEquals(1.0, agreement.getAgreement(), 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsZeroTolerance() {
+        new StepAgreement(0);
+    }
+}
@@ -0,0 +1,126 @@
+package com.openpositioning.PositionMe.sensors;
+
+import com.openpositioning.PositionMe.Benchmark;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of the {@link StepDetector} on synthetic vertical accelerations of a walk, with its cost per
+ * sample.
+ */
+public class StepDetectorTest {
+    private static final long SEED = 25;
+    private static final long SECOND = 1_000_000_000L;
+
+    @Test
+    public void countsStepsOfWalk() {
+        StepDetector detector = new StepDetector();
+        // 20 s at 1.8 steps per second, the first step is missed while the filter settles
+        int steps = walk(detector, 1.8, 2.5, 0.3, 100, 20, new Random(SEED), null);
+        assertEquals(36, steps, 2);
+    }
+
+    @Test
+    public void stepTimesFollowPeaks() {
+        StepDetector detector = new StepDetector();
+        double frequency = 1.8;
+        long[] times = new long[64];
+        int steps = walk(detector, frequency, 2.5, 0.1, 100, 10, new Random(SEED), times);
+        assertTrue(steps > 10);
+        double period = 1 / frequency;
+        for (int i = 1; i < steps; i++) {
+            // Peaks of the sine are a quarter period into each cycle, the filter shifts them a little
+            double phase = (times[i] * 1e-9 - period / 4) / period;
+            double offset = (phase - Math.round(phase)) * period;
+            assertEquals(0, offset, 0.08);
+            assertTrue(times[i] - times[i - 1] >= StepDetector.MIN_STEP_INTERVAL);
+        }
+        // Reported on the sample after the peak
+        assertEquals(SECOND / 100, detector.getDetectionDelay());
+    }
+
+    @Test
+    public void adaptsToSoftAndLowRateGait() {
+        StepDetector detector = new StepDetector();
+        // A soft gait sampled at 50 Hz
+        int steps = walk(detector, 1.6, 1.0, 0.1, 50, 20, new Random(SEED), null);
+        assertEquals(32, steps, 2);
+        assertTrue(detector.getAverageSwing() < 2.0);
+    }
+
+    @Test
+    public void ignoresStillDevice() {
+        StepDetector detector = new StepDetector();
+        int steps = walk(detector, 1.8, 0, 0.1, 100, 20, new Random(SEED), null);
+        assertEquals(0, steps);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNaN() {
+        new StepDetector().update(Double.NaN, 0);
+    }
+
+    @Test
+    public void projectsOnGravity() {
+        StepDetector detector = new StepDetector();
+        float[] gravity = {0, 9.81f, 0};
+        float[] acceleration = new float[3];
+        Random random = new Random(SEED);
+        int steps = 0;
+        for (int i = 0; i < 2000; i++) {
+            double t = i / 100.0;
+            // Vertical bounce along y with a larger sway along x
+            acceleration[0] = (float) (3 * Math.sin(2 * Math.PI * 0.9 * t + 1));
+            acceleration[1] = (float) (2.5 * Math.sin(2 * Math.PI * 1.8 * t) + 0.1 * random.nextGaussian());
+            if (detector.update(acceleration, gravity, i * SECOND / 100)) steps++;
+        }
+        assertEquals(36, steps, 2);
+    }
+
+    @Test
+    @Category(Benchmark.class)
+    public void benchmarkPerSample() {
+        StepDetector detector = new StepDetector();
+        int samples = 1 << 20;
+        double[] vertical = new double[samples];
+        Random random = new Random(SEED);
+        for (int i = 0; i < samples; i++) {
+            vertical[i] = 2.5 * Math.sin(2 * Math.PI * 1.8 * i / 100) + 0.3 * random.nextGaussian();
+        }
+        long steps = 0;
+        for (int round = 0; round < 5; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < samples; i++) {
+                if (detector.update(vertical[i], ((long) round * samples + i) * SECOND / 100)) steps++;
+            }
+            if (round == 4) {
+                System.out.println("Per sample: " + (System.nanoTime() - start) / samples + " ns (steps " + steps + ")");
+            }
+        }
+        assertTrue(steps > 0);
+    }
+
+    /**
+     * Feeds a sine bounce with Gaussian noise and counts the steps.
+     *
+     * @param times Array receiving the step times, or null.
+     */
+    private static int walk(StepDetector detector, double frequency, double amplitude, double noise,
+                            int rate, int seconds, Random random, long[] times) {
+        int steps = 0;
+        for (int i = 0; i < rate * seconds; i++) {
+            double t = (double) i / rate;
+            double vertical = amplitude * Math.sin(2 * Math.PI * frequency * t) + noise * random.nextGaussian();
+            if (detector.update(vertical, i * SECOND / rate)) {
+                if (times != null && steps < times.length) times[steps] = detector.getStepTime();
+                steps++;
+            }
+        }
+        return steps;
+    }
+}
@@ -0,0 +1,257 @@
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Generates the wall maps of the app assets from the floor plan images, in the binary format read
+ * by com.openpositioning.PositionMe.Buildings.WallMap.
+ *
+ * Each floor plan is laid over the bounds of its building as the app overlays it on the map: the
+ * image is stretched to the bounds and rotated by the overlay bearing about their centre. The image
+ * is divided into cells of {@link #CELL_SIZE} meters, and a cell is a wall when enough of its pixels
+ * are dark and grey. Coloured labels and fills, and the lighter furniture lines, are left out by the
+ * thresholds. Horizontal and vertical runs of wall cells at least {@link #MIN_WALL_LENGTH} long
+ * become wall segments, so the short strokes of text, door leaves and door swings do not close off
+ * rooms. Walls at an angle to the image axes are not extracted.
+ *
+ * The buildings are listed in {@link #FLOORS}, mirroring the bounds, overlay rotation and floor
+ * plans of the Buildings enum of the app, which must be kept in step. Run from the repository root,
+ * with Java 8 or later:
+ * <pre>
+ *     javac -d build/tools tools/WallMapGenerator.java
+ *     java -cp build/tools WallMapGenerator app/src/main/res/drawable app/src/main/assets/walls
+ * </pre>
+ */
+public class WallMapGenerator {
+    // File format identifiers, as in WallMap
+    private static final int MAGIC = 0x504D574C;
+    private static final short VERSION = 1;
+    // Side of a cell in meters, and the shortest run of wall cells kept as a wall
+    private static final double CELL_SIZE = 0.15;
+    private static final double MIN_WALL_LENGTH = 1.0;
+    // WGS84 semi-major axis and first eccentricity squared
+    private static final double WGS84_A = 6378137.0;
+    private static final double WGS84_E2 = 6.69437999014e-3;
+
+    /**
+     * A floor plan of a building and the thresholds its drawing style needs.
+     */
+    private static class Floor {
+        final String building;
+        final String floor;
+        final String image;
+        final double swLat, swLon, neLat, neLon;
+        final double bearing;
+        // Largest luminance and channel spread of a wall pixel, and the fraction of dark pixels of a wall cell
+        final int maxLuminance;
+        final int maxSpread;
+        final double minFill;
+
+        Floor(String building, String floor, String image, double swLat, double swLon, double neLat,
+              double neLon, double bearing, int maxLuminance, int maxSpread, double minFill) {
+            this.building = building;
+            this.floor = floor;
+            this.image = image;
+            this.swLat = swLat;
+            this.swLon = swLon;
+            this.neLat = neLat;
+            this.neLon = neLon;
+            this.bearing = bearing;
+            this.maxLuminance = maxLuminance;
+            this.maxSpread = maxSpread;
+            this.minFill = minFill;
+        }
+    }
+
+    // Bounds and overlay bearings as in the Buildings enum. The library is drawn with thick black
+    // walls and grey furniture, the other buildings with thin black lines.
+    private static final Floor[] FLOORS = {
+            library("ground", "libraryg.png"),
+            library("first", "library1.png"),
+            library("second", "library2.png"),
+            library("third", "library3.png"),
+            nucleus("lower_ground", "nucleuslg.png"),
+            nucleus("ground", "nucleusground.png"),
+            nucleus("first", "nucleus1.png"),
+            nucleus("second", "nucleus2.png"),
+            nucleus("third", "nucleus3.png"),
+            flemingJenkins("ground", "flemingjenkinsg.png"),
+            flemingJenkins("first", "flemingjenkins1.png"),
+    };
+
+    private static Floor library(String floor, String image) {
+        return new Floor("library", floor, image, 55.92272222222222, -3.1751805555555555,
+                55.92303888888889, -3.1747666666666667, 0, 80, 40, 0.4);
+    }
+
+    private static Floor nucleus(String floor, String image) {
+        return new Floor("nucleus", floor, image, 55.922780555555555, -3.174836111111111,
+                55.92335555555555, -3.1738527777777774, 1.1811, 110, 40, 0.1);
+    }
+
+    private static Floor flemingJenkins(String floor, String image) {
+        return new Floor("fleming_jenkins", floor, image, 55.92219166666666, -3.173122222222222,
+                55.92262777777778, -3.171638888888889, -122.5447, 110, 40, 0.1);
+    }
+
+    /**
+     * Writes the wall map of every floor listed in {@link #FLOORS}.
+     *
+     * @param args The directory of the floor plan images and the output directory.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("Usage: WallMapGenerator <floor plan directory> <output directory>");
+            System.exit(2);
+        }
+        File outputDirectory = new File(args[1]);
+        if (!outputDirectory.isDirectory() && !outputDirectory.mkdirs()) {
+            throw new IOException("Cannot create " + outputDirectory);
+        }
+        for (Floor floor : FLOORS) {
+            BufferedImage image = ImageIO.read(new File(args[0], floor.image));
+            if (image == null) {
+                throw new IOException("Cannot read " + floor.image);
+            }
+            List<double[]> walls = extractWalls(image, floor);
+            File output = new File(outputDirectory, floor.building + "_" + floor.floor + ".pmw");
+            write(output, walls);
+            System.out.println(String.format(Locale.ROOT, "%s: %d walls", output.getName(), walls.size()));
+        }
+    }
+
+    /**
+     * Finds the walls of a floor plan.
+     *
+     * @return The walls as startEast, startNorth, endEast, endNorth in meters from the south west
+     *         corner of the bounds.
+     */
+    static List<double[]> extractWalls(BufferedImage image, Floor floor) {
+        double midLat = Math.toRadians((floor.swLat + floor.neLat) / 2);
+        double sin2 = Math.sin(midLat) * Math.sin(midLat);
+        double primeVertical = WGS84_A / Math.sqrt(1 - WGS84_E2 * sin2);
+        double meridional = WGS84_A * (1 - WGS84_E2) / Math.pow(1 - WGS84_E2 * sin2, 1.5);
+        double width = Math.toRadians(floor.neLon - floor.swLon) * primeVertical * Math.cos(midLat);
+        double height = Math.toRadians(floor.neLat - floor.swLat) * meridional;
+
+        int columns = (int) Math.ceil(width / CELL_SIZE);
+        int rows = (int) Math.ceil(height / CELL_SIZE);
+        boolean[][] wall = markWallCells(image, floor, columns, rows);
+        int minRun = (int) Math.ceil(MIN_WALL_LENGTH / CELL_SIZE);
+        double cellWidth = width / columns;
+        double cellHeight = height / rows;
+        double bearing = Math.toRadians(floor.bearing);
+        double cos = Math.cos(bearing);
+        double sin = Math.sin(bearing);
+
+        List<double[]> walls = new ArrayList<>();
+        // Row 0 is the top of the image, so the north edge of the bounds
+        for (int row = 0; row < rows; row++) {
+            int start = -1;
+            for (int column = 0; column <= columns; column++) {
+                boolean isWall = column < columns && wall[row][column];
+                if (isWall && start < 0) start = column;
+                if (!isWall && start >= 0) {
+                    if (column - start >= minRun) {
+                        double y = height - (row + 0.5) * cellHeight;
+                        walls.add(segment(start * cellWidth, y, column * cellWidth, y, width, height, cos, sin));
+                    }
+                    start = -1;
+                }
+            }
+        }
+        for (int column = 0; column < columns; column++) {
+            int start = -1;
+            for (int row = 0; row <= rows; row++) {
+                boolean isWall = row < rows && wall[row][column];
+                if (isWall && start < 0) start = row;
+                if (!isWall && start >= 0) {
+                    if (row - start >= minRun) {
+                        double x = (column + 0.5) * cellWidth;
+                        walls.add(segment(x, height - start * cellHeight, x, height - row * cellHeight,
+                                width, height, cos, sin));
+                    }
+                    start = -1;
+                }
+            }
+        }
+        return walls;
+    }
+
+    /**
+     * Marks the cells whose fraction of dark grey pixels reaches the fill threshold of the floor.
+     */
+    private static boolean[][] markWallCells(BufferedImage image, Floor floor, int columns, int rows) {
+        int[][] dark = new int[rows][columns];
+        int[][] total = new int[rows][columns];
+        for (int y = 0; y < image.getHeight(); y++) {
+            int row = Math.min(rows - 1, (int) ((long) y * rows / image.getHeight()));
+            for (int x = 0; x < image.getWidth(); x++) {
+                int column = Math.min(columns - 1, (int) ((long) x * columns / image.getWidth()));
+                total[row][column]++;
+                if (isWallPixel(image.getRGB(x, y), floor)) {
+                    dark[row][column]++;
+                }
+            }
+        }
+        boolean[][] wall = new boolean[rows][columns];
+        for (int row = 0; row < rows; row++) {
+            for (int column = 0; column < columns; column++) {
+                wall[row][column] = total[row][column] > 0
+                        && dark[row][column] >= floor.minFill * total[row][column];
+            }
+        }
+        return wall;
+    }
+
+    /**
+     * Whether a pixel is drawn in the dark grey of the walls, opaque and without much colour.
+     */
+    private static boolean isWallPixel(int argb, Floor floor) {
+        int alpha = argb >>> 24;
+        int red = (argb >> 16) & 0xFF;
+        int green = (argb >> 8) & 0xFF;
+        int blue = argb & 0xFF;
+        if (alpha < 128) return false;
+        int luminance = (299 * red + 587 * green + 114 * blue) / 1000;
+        int spread = Math.max(red, Math.max(green, blue)) - Math.min(red, Math.min(green, blue));
+        return luminance <= floor.maxLuminance && spread <= floor.maxSpread;
+    }
+
+    /**
+     * Rotates a segment of the image, in meters from the south west corner of the unrotated
+     * overlay, clockwise by the overlay bearing about the centre of the bounds.
+     */
+    private static double[] segment(double x0, double y0, double x1, double y1, double width,
+                                    double height, double cos, double sin) {
+        double cx = width / 2;
+        double cy = height / 2;
+        return new double[]{
+                cx + (x0 - cx) * cos + (y0 - cy) * sin, cy - (x0 - cx) * sin + (y0 - cy) * cos,
+                cx + (x1 - cx) * cos + (y1 - cy) * sin, cy - (x1 - cx) * sin + (y1 - cy) * cos};
+    }
+
+    /**
+     * Writes the walls in the binary format of WallMap.
+     */
+    private static void write(File file, List<double[]> walls) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.writeInt(MAGIC);
+            out.writeShort(VERSION);
+            out.writeInt(walls.size());
+            for (double[] wall : walls) {
+                for (double value : wall) {
+                    out.writeFloat((float) value);
+                }
+            }
+        }
+    }
+}